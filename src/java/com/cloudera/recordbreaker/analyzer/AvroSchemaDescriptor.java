@@ -28,6 +28,8 @@ import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.FileStatus;
 
+import com.cloudera.recordbreaker.learnstructure.CompressedInput;
+
 /************************************************************************
  * <code>AvroSchemaDescriptor</code> returns Avro-specific Schema data.
  *
@@ -49,7 +51,7 @@ public class AvroSchemaDescriptor implements SchemaDescriptor {
     this.fs = fs;
     this.p = p;
     //DataFileReader<Void> reader = new DataFileReader<Void>(fs, new GenericDatumReader<Void>());
-    DataFileStream<Void> reader = new DataFileStream<Void>(fs.open(p), new GenericDatumReader<Void>());    
+    DataFileStream<Void> reader = new DataFileStream<Void>(CompressedInput.open(fs, p), new GenericDatumReader<Void>());    
     try {
       this.schema = reader.getSchema();
     } finally {
@@ -74,7 +76,7 @@ public class AvroSchemaDescriptor implements SchemaDescriptor {
       {
         try {
           //reader = new DataFileReader<Void>(f, new GenericDatumReader<Void>());
-          reader = new DataFileStream<Void>(fs.open(p), new GenericDatumReader<Void>());          
+          reader = new DataFileStream<Void>(CompressedInput.open(fs, p), new GenericDatumReader<Void>());          
           nextElt = lookahead();
         } catch (IOException iex) {
           this.nextElt = null;
@@ -17,8 +17,6 @@ package com.cloudera.recordbreaker.analyzer;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -51,40 +49,47 @@ public class CSVDataDescriptor implements DataDescriptor {
     if (fname.endsWith(".csv")) {
       return true;
     }
+    try {
+      return isCSV(fs, p, new FileProbe(fs, p));
+    } catch (IOException ie) {
+    }
+    return false;
+  }
+
+  /**
+   * Test whether a given file is amenable to CSV processing, looking at
+   * the lines held by the probe
+   */
+  public static boolean isCSV(FileSystem fs, Path p, FileProbe probe) {
+    String fname = probe.getName();
+    if (fname.endsWith(".csv")) {
+      return true;
+    }
     CSVParser parser = new CSVParser();
     try {
-      BufferedReader in = new BufferedReader(new InputStreamReader(fs.open(p)));
-      try {
-        int lineCount = 0;
-        List<Integer> observedEltCounts = new ArrayList<Integer>();
-        int totalEltCount = 0;
-        int minEltCount = Integer.MAX_VALUE;
-        int maxEltCount = -1;
+      List<Integer> observedEltCounts = new ArrayList<Integer>();
+      int totalEltCount = 0;
+      int minEltCount = Integer.MAX_VALUE;
+      int maxEltCount = -1;
 
-        String line = null;
-        while (lineCount < MAX_LINES && ((line = in.readLine()) != null)) {
-          String parts[] = parser.parseLine(line);
-          int numElts = parts.length;
-          minEltCount = Math.min(minEltCount, numElts);
-          maxEltCount = Math.max(maxEltCount, numElts);
-          totalEltCount += numElts;
-          observedEltCounts.add(numElts);
-        
-          lineCount++;
-        }
-        double meanEltCount = totalEltCount / (1.0 * observedEltCounts.size());
-        double totalVariance = 0;
-        for (Integer v: observedEltCounts) {
-          totalVariance += Math.pow(v - meanEltCount, 2);
-        }
-        double variance = totalVariance / observedEltCounts.size();
-        double stddev = Math.sqrt(variance);
+      for (String line: probe.getLines(MAX_LINES)) {
+        String parts[] = parser.parseLine(line);
+        int numElts = parts.length;
+        minEltCount = Math.min(minEltCount, numElts);
+        maxEltCount = Math.max(maxEltCount, numElts);
+        totalEltCount += numElts;
+        observedEltCounts.add(numElts);
+      }
+      double meanEltCount = totalEltCount / (1.0 * observedEltCounts.size());
+      double totalVariance = 0;
+      for (Integer v: observedEltCounts) {
+        totalVariance += Math.pow(v - meanEltCount, 2);
+      }
+      double variance = totalVariance / observedEltCounts.size();
+      double stddev = Math.sqrt(variance);
 
-        if (meanEltCount >= MIN_MEAN_ELTS && ((stddev / meanEltCount) < MAX_ALLOWABLE_LINE_STDDEV)) {
-          return true;
-        }
-      } finally {
-        in.close();
+      if (meanEltCount >= MIN_MEAN_ELTS && ((stddev / meanEltCount) < MAX_ALLOWABLE_LINE_STDDEV)) {
+        return true;
       }
     } catch (IOException ie) {
     }
@@ -27,6 +27,8 @@ import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.FileStatus;
 
+import com.cloudera.recordbreaker.learnstructure.CompressedInput;
+
 import org.apache.avro.Schema;
 import org.apache.avro.generic.GenericData;
 
@@ -114,7 +116,7 @@ public class CSVSchemaDescriptor implements SchemaDescriptor {
     List<String> firstRow = new ArrayList<String>();
     List<List<Schema.Type>> allEltTypes = new ArrayList<List<Schema.Type>>();
     CSVParser parser = new CSVParser();    
-    BufferedReader in = new BufferedReader(new InputStreamReader(fs.open(p)));
+    BufferedReader in = new BufferedReader(new InputStreamReader(CompressedInput.open(fs, p)));
     try {
       int lineno = 0;
       String s = null;
@@ -253,7 +255,7 @@ public class CSVSchemaDescriptor implements SchemaDescriptor {
         rowNum = 0;
         try {
           this.parser = new CSVParser();
-          in = new BufferedReader(new InputStreamReader(fs.open(p)));
+          in = new BufferedReader(new InputStreamReader(CompressedInput.open(fs, p)));
           nextElt = lookahead();          
         } catch (IOException iex) {
           this.nextElt = null;
@@ -61,6 +61,11 @@ public class FSAnalyzer {
   static String CREATE_TABLE_TYPES = "CREATE TABLE Types(typeid integer primary key autoincrement, typelabel varchar(64), typedescriptor varchar(1024));";
   static String CREATE_TABLE_SCHEMAS = "CREATE TABLE Schemas(schemaid integer primary key autoincrement, schemaidentifier varchar(1024), schemadescription varchar(32));";
   static String CREATE_TABLE_GUESSES = "CREATE TABLE TypeGuesses(fid integer, typeid integer, schemaid integer, score double, foreign key(fid) references Files(fid), foreign key(typeid) references Types(typeid), foreign key(schemaid) references Schemas(schemaid));";
+  // The last analysis of each file, kept across crawls (see getCachedAnalysis()).  It's created
+  // when a store is opened, so that stores made before it existed get one too; a store whose
+  // table predates the 'analyzer' column has it dropped and made again.
+  static String CREATE_TABLE_ANALYSIS_CACHE = "CREATE TABLE IF NOT EXISTS AnalysisCache(path varchar(256) primary key, size integer, modified integer, checksum varchar(128), analyzer varchar(64), fid integer, foreign key(fid) references Files(fid));";
+  static String DROP_TABLE_ANALYSIS_CACHE = "DROP TABLE IF EXISTS AnalysisCache;";
   void createTables() throws SQLiteException {
     dbQueue.execute(new SQLiteJob<Object>() {
         protected Object job(SQLiteConnection db) throws SQLiteException {
@@ -78,6 +83,31 @@ public class FSAnalyzer {
         }
       }).complete();
   }
+  void createCacheTable() throws SQLiteException {
+    dbQueue.execute(new SQLiteJob<Object>() {
+        protected Object job(SQLiteConnection db) throws SQLiteException {
+          boolean exists = false;
+          boolean hasAnalyzer = false;
+          SQLiteStatement stmt = db.prepare("PRAGMA table_info(AnalysisCache)");
+          try {
+            while (stmt.step()) {
+              exists = true;
+              if ("analyzer".equals(stmt.columnString(1))) {
+                hasAnalyzer = true;
+              }
+            }
+          } finally {
+            stmt.dispose();
+          }
+          // The old entries can't say what analyzed them, so none could be reused
+          if (exists && ! hasAnalyzer) {
+            db.exec(DROP_TABLE_ANALYSIS_CACHE);
+          }
+          db.exec(CREATE_TABLE_ANALYSIS_CACHE);
+          return null;
+        }
+      }).complete();
+  }
 
   ///////////////////////////////////////////////
   // Manage Crawls and Filesystems
@@ -373,6 +403,76 @@ public class FSAnalyzer {
     return fileId;
   }
 
+  /**
+   * Add a file to the set of all known files, with the same TypeGuesses as an
+   * earlier entry (see getCachedAnalysis()), without analyzing it again.
+   */
+  long insertIntoFilesFromCache(FileSystem fs, Path insertFile, long crawlId, final long cachedFileId) throws SQLiteException, IOException {
+    final long fileId = insertIntoFiles(fs, insertFile, crawlId, new ArrayList<TypeGuess>());
+    dbQueue.execute(new SQLiteJob<Object>() {
+        protected Object job(SQLiteConnection db) throws SQLiteException {
+          SQLiteStatement stmt = db.prepare("INSERT into TypeGuesses SELECT ?, typeid, schemaid, score FROM TypeGuesses WHERE fid = ?");
+          try {
+            stmt.bind(1, fileId).bind(2, cachedFileId);
+            stmt.step();
+          } finally {
+            stmt.dispose();
+          }
+          return null;
+        }
+      }).complete();
+    return fileId;
+  }
+
+  ///////////////////////////////////////////////////
+  // CACHED ANALYSES
+  ///////////////////////////////////////////////////
+  /**
+   * The fid of the last analysis of the given file, if the file hasn't changed
+   * since: it has the same path, length, and modification time, and the same
+   * checksum (or "" if checksums aren't in use).  The analysis also has to have
+   * been made by an analyzer with the same fingerprint as this one (see
+   * FormatAnalyzer.getFingerprint()), so a new analyzer version or a change to
+   * the known text formats means files are analyzed again.  Otherwise -1.
+   */
+  public long getCachedAnalysis(final FileStatus fstatus, final String checksum) {
+    final String analyzerFingerprint = formatAnalyzer.getFingerprint();
+    return dbQueue.execute(new SQLiteJob<Long>() {
+        protected Long job(SQLiteConnection db) throws SQLiteException {
+          SQLiteStatement stmt = db.prepare("SELECT fid FROM AnalysisCache WHERE path = ? AND size = ? AND modified = ? AND checksum = ? AND analyzer = ?");
+          try {
+            stmt.bind(1, fstatus.getPath().toString()).bind(2, fstatus.getLen()).bind(3, fstatus.getModificationTime()).bind(4, checksum).bind(5, analyzerFingerprint);
+            if (stmt.step()) {
+              return stmt.columnLong(0);
+            }
+            return -1L;
+          } finally {
+            stmt.dispose();
+          }
+        }
+      }).complete();
+  }
+
+  /**
+   * Remember that the file, as it is now, was analyzed by this analyzer into the
+   * given fid's TypeGuesses
+   */
+  public void cacheAnalysis(final FileStatus fstatus, final String checksum, final long fid) {
+    final String analyzerFingerprint = formatAnalyzer.getFingerprint();
+    dbQueue.execute(new SQLiteJob<Object>() {
+        protected Object job(SQLiteConnection db) throws SQLiteException {
+          SQLiteStatement stmt = db.prepare("INSERT OR REPLACE into AnalysisCache(path, size, modified, checksum, analyzer, fid) VALUES(?, ?, ?, ?, ?, ?)");
+          try {
+            stmt.bind(1, fstatus.getPath().toString()).bind(2, fstatus.getLen()).bind(3, fstatus.getModificationTime()).bind(4, checksum).bind(5, analyzerFingerprint).bind(6, fid);
+            stmt.step();
+          } finally {
+            stmt.dispose();
+          }
+          return null;
+        }
+      }).complete();
+  }
+
   /**
    * Try to describe the contents of the given file
    */
@@ -870,6 +970,7 @@ public class FSAnalyzer {
     if (isNew) {
       createTables();
     }
+    createCacheTable();
     this.formatAnalyzer = new FormatAnalyzer(schemaDir);
   }
 
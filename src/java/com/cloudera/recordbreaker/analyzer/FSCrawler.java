@@ -28,7 +28,9 @@ import java.text.SimpleDateFormat;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileChecksum;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.util.StringUtils;
 
 import java.io.IOException;
 import com.almworks.sqlite4java.SQLiteException;
@@ -49,6 +51,7 @@ public class FSCrawler {
   Hashtable<Long, CrawlRuntimeStatus> crawlStatusInfo = new Hashtable<Long, CrawlRuntimeStatus>();
   FSAnalyzer analyzer;
   FileSystem fs;
+  boolean useChecksums = false;
 
   /**
    * Needs an analyzer to work
@@ -58,6 +61,32 @@ public class FSCrawler {
     this.fs = null;
   }
 
+  /**
+   * A file that's unchanged since it was last analyzed isn't analyzed again
+   * (see FSAnalyzer.getCachedAnalysis()).  By default, a file counts as unchanged
+   * if its length and modification time are.  With checksums, its checksum has
+   * to match too, which catches a file rewritten in place; but on HDFS, getting a
+   * checksum means reading the whole file on the DataNodes.
+   */
+  public void setUseChecksums(boolean useChecksums) {
+    this.useChecksums = useChecksums;
+  }
+
+  /**
+   * The file's checksum, or "" if checksums aren't in use or the filesystem
+   * doesn't have them
+   */
+  String getChecksum(FileSystem fs, Path p) throws IOException {
+    if (! useChecksums) {
+      return "";
+    }
+    FileChecksum checksum = fs.getFileChecksum(p);
+    if (checksum == null) {
+      return "";
+    }
+    return checksum.getAlgorithmName() + ":" + StringUtils.byteToHexString(checksum.getBytes());
+  }
+
   /**
    * <code>addFile</code> will insert a single file into the database.
    * This isn't the most efficient thing in the world; it would be better
@@ -67,8 +96,24 @@ public class FSCrawler {
     FileStatus fstatus = fs.getFileStatus(p);
     boolean isDir = fstatus.isDir();    
     List<TypeGuess> tgs = new ArrayList<TypeGuess>();
+    String checksum = null;
+    boolean analyzed = false;
 
     if (! isDir) {
+      // If the file hasn't changed since it was last analyzed, reuse that
+      // analysis rather than opening the file again
+      checksum = getChecksum(fs, p);
+      long cachedFid = analyzer.getCachedAnalysis(fstatus, checksum);
+      if (cachedFid >= 0) {
+        try {
+          analyzer.insertIntoFilesFromCache(fs, p, crawlid, cachedFid);
+        } catch (SQLiteException sle) {
+          sle.printStackTrace();
+          throw new IOException(sle.getMessage());
+        }
+        return;
+      }
+
       DataDescriptor descriptor = analyzer.describeData(fs, p, MAX_ANALYSIS_LINES);
       try {
         List<SchemaDescriptor> schemas = descriptor.getSchemaDescriptor();
@@ -82,12 +127,17 @@ public class FSCrawler {
                                   sd.getSchemaIdentifier(), sd.getSchemaSourceDescription(), 1.0));
           }
         }
+        analyzed = true;
       } catch (Exception ex) {
         ex.printStackTrace();
       }
     }
     try {
-      analyzer.insertIntoFiles(fs, p, crawlid, tgs);
+      long fid = analyzer.insertIntoFiles(fs, p, crawlid, tgs);
+      // Only a complete analysis is worth reusing
+      if (analyzed) {
+        analyzer.cacheAnalysis(fstatus, checksum, fid);
+      }
     } catch (SQLiteException sle) {
       sle.printStackTrace();
       throw new IOException(sle.getMessage());
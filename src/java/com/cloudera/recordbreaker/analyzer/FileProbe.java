@@ -0,0 +1,311 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.analyzer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.ByteArrayInputStream;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Collections;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+
+import com.cloudera.recordbreaker.learnstructure.CompressedInput;
+
+/*********************************************************************
+ * <code>FileProbe</code> holds the first few KB of a file, read with a
+ * single open.  FormatAnalyzer reads one probe per file and hands it to
+ * each format test in turn, instead of having every test open the file
+ * itself; on HDFS, each open is a round trip to the NameNode.
+ *
+ * The probe's contents are available as bytes and as the whole lines
+ * they contain.  A test that needs more than the probe holds can use
+ * openStream() or getLines(int), which open the file again, but only
+ * once they get past the end of the probe.
+ *
+ * A compressed file (see CompressedInput) is decompressed as it's read,
+ * so the probe holds the start of the decompressed data, and getName()
+ * is the file's name without the codec's extension.
+ *
+ * @version 1.0
+ * @since 1.0
+ * @see FormatAnalyzer
+ *********************************************************************/
+public class FileProbe {
+  public static int DEFAULT_PROBE_BYTES = 64 * 1024;
+
+  FileSystem fs;
+  Path p;
+  byte buf[];
+  int len;
+  boolean complete;
+  CompressionCodec codec;
+  List<String> lines;
+
+  /**
+   * Read the first DEFAULT_PROBE_BYTES of the file
+   */
+  public FileProbe(FileSystem fs, Path p) throws IOException {
+    this(fs, p, DEFAULT_PROBE_BYTES);
+  }
+
+  /**
+   * Read the first <code>maxBytes</code> of the file
+   */
+  public FileProbe(FileSystem fs, Path p, int maxBytes) throws IOException {
+    this.fs = fs;
+    this.p = p;
+    this.buf = new byte[maxBytes];
+    CompressionCodec codecOut[] = new CompressionCodec[1];
+    InputStream in = CompressedInput.open(fs, p, codecOut);
+    this.codec = codecOut[0];
+    try {
+      int numRead = 0;
+      while (len < maxBytes && (numRead = in.read(buf, len, maxBytes - len)) >= 0) {
+        len += numRead;
+      }
+      // A full buffer might have been the whole file
+      this.complete = (numRead < 0) || (in.read() < 0);
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * A probe of a file that couldn't be read.  It's empty, so the
+   * format tests find nothing in it, just as they did when each one
+   * swallowed its own IOException.
+   */
+  static FileProbe createEmpty(FileSystem fs, Path p) {
+    return new FileProbe(fs, p, new byte[0], 0, true);
+  }
+
+  FileProbe(FileSystem fs, Path p, byte buf[], int len, boolean complete) {
+    this.fs = fs;
+    this.p = p;
+    this.buf = buf;
+    this.len = len;
+    this.complete = complete;
+  }
+
+  public Path getPath() {
+    return p;
+  }
+
+  /**
+   * The file's name, less the compression codec's extension if it has one
+   * (so "access.log.gz" is "access.log")
+   */
+  public String getName() {
+    String name = p.getName();
+    return (codec == null) ? name : CompressionCodecFactory.removeSuffix(name, codec.getDefaultExtension());
+  }
+
+  /**
+   * Whether the file is compressed; if so, the probe holds decompressed bytes
+   */
+  public boolean isCompressed() {
+    return codec != null;
+  }
+
+  /**
+   * The bytes read from the start of the file; only the first getLength() are valid
+   */
+  public byte[] getBytes() {
+    return buf;
+  }
+
+  public int getLength() {
+    return len;
+  }
+
+  /**
+   * Whether the probe holds the whole file
+   */
+  public boolean isComplete() {
+    return complete;
+  }
+
+  /**
+   * Whether the probe starts with the given bytes
+   */
+  public boolean startsWith(byte prefix[]) {
+    if (len < prefix.length) {
+      return false;
+    }
+    for (int i = 0; i < prefix.length; i++) {
+      if (buf[i] != prefix[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Whether the probe starts with an XML declaration ("<?xml"), after an
+   * optional UTF-8 byte order mark and whitespace
+   */
+  public boolean hasXMLProlog() {
+    int i = 0;
+    if (len >= 3 && (buf[0] & 0xff) == 0xef && (buf[1] & 0xff) == 0xbb && (buf[2] & 0xff) == 0xbf) {
+      i = 3;
+    }
+    while (i < len && Character.isWhitespace((char) buf[i])) {
+      i++;
+    }
+    byte prolog[] = {'<', '?', 'x', 'm', 'l'};
+    if (len - i < prolog.length) {
+      return false;
+    }
+    for (int j = 0; j < prolog.length; j++) {
+      if (buf[i+j] != prolog[j]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * The whole lines in the probe, decoded just as a BufferedReader over
+   * the file would.  Unless the probe holds the whole file, a partial
+   * line at the end of the probe is left out: the probe is cut after its
+   * last '\n' or '\r'.  (A '\r' that's the first half of a "\r\n" still
+   * ends a whole line.)
+   */
+  public List<String> getLines() {
+    if (lines == null) {
+      int end = len;
+      if (! complete) {
+        while (end > 0 && buf[end-1] != '\n' && buf[end-1] != '\r') {
+          end--;
+        }
+      }
+      List<String> probeLines = new ArrayList<String>();
+      try {
+        BufferedReader in = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(buf, 0, end)));
+        String s = null;
+        while ((s = in.readLine()) != null) {
+          probeLines.add(s);
+        }
+      } catch (IOException iex) {
+        // Can't happen when reading from memory
+      }
+      lines = Collections.unmodifiableList(probeLines);
+    }
+    return lines;
+  }
+
+  /**
+   * The first <code>maxLines</code> lines of the file, or all of them if
+   * there are fewer.  The file is only opened again if the probe doesn't
+   * hold enough lines.
+   */
+  public List<String> getLines(int maxLines) throws IOException {
+    List<String> probeLines = getLines();
+    if (probeLines.size() >= maxLines) {
+      return probeLines.subList(0, maxLines);
+    } else if (complete) {
+      return probeLines;
+    }
+    List<String> fileLines = new ArrayList<String>();
+    BufferedReader in = new BufferedReader(new InputStreamReader(openStream()));
+    try {
+      String s = null;
+      while (fileLines.size() < maxLines && (s = in.readLine()) != null) {
+        fileLines.add(s);
+      }
+    } finally {
+      in.close();
+    }
+    return fileLines;
+  }
+
+  /**
+   * A stream over the whole file.  It reads from the probe first, and only
+   * opens the file if it's read past the end of the probe.
+   */
+  public InputStream openStream() {
+    return new ProbeInputStream();
+  }
+
+  class ProbeInputStream extends InputStream {
+    int pos = 0;
+    InputStream rest;
+
+    /**
+     * The rest of the file, or null if the probe is the whole file.  A
+     * compressed file can't seek, so it's read again up to the end of the
+     * probe.
+     */
+    InputStream rest() throws IOException {
+      if (rest == null && ! complete) {
+        if (codec == null) {
+          FSDataInputStream in = fs.open(p);
+          in.seek(len);
+          rest = in;
+        } else {
+          rest = CompressedInput.open(fs, p);
+          long toSkip = len;
+          while (toSkip > 0) {
+            long numSkipped = rest.skip(toSkip);
+            if (numSkipped <= 0) {
+              if (rest.read() < 0) {
+                break;
+              }
+              numSkipped = 1;
+            }
+            toSkip -= numSkipped;
+          }
+        }
+      }
+      return rest;
+    }
+    public int read() throws IOException {
+      if (pos < len) {
+        return buf[pos++] & 0xff;
+      }
+      InputStream in = rest();
+      return (in == null) ? -1 : in.read();
+    }
+    public int read(byte b[], int off, int n) throws IOException {
+      if (n == 0) {
+        return 0;
+      }
+      if (pos < len) {
+        int numBytes = Math.min(n, len - pos);
+        System.arraycopy(buf, pos, b, off, numBytes);
+        pos += numBytes;
+        return numBytes;
+      }
+      InputStream in = rest();
+      return (in == null) ? -1 : in.read(b, off, n);
+    }
+    public int available() throws IOException {
+      return (pos < len) ? len - pos : ((rest == null) ? 0 : rest.available());
+    }
+    public void close() throws IOException {
+      if (rest != null) {
+        rest.close();
+      }
+    }
+  }
+}
@@ -38,32 +38,90 @@ import org.apache.avro.generic.GenericData;
  * @since 1.0
  **********************************************************************************/
 public class FormatAnalyzer {
+  // The first bytes of an Avro data file, and of a Hadoop SequenceFile
+  static byte AVRO_MAGIC[] = {'O', 'b', 'j', 1};
+  static byte SEQUENCEFILE_MAGIC[] = {'S', 'E', 'Q'};
+  // Bump this whenever a change to the analysis could change what it says
+  // about a file, so analyses cached by an older version aren't reused
+  static int ANALYZER_VERSION = 1;
+
   File schemaDbDir;
   KnownTextFormatLibrary formatLibrary;
+  int probeBytes = FileProbe.DEFAULT_PROBE_BYTES;
   
   /**
-   * Creates a new <code>FormatAnalyzer</code> instance.
+   * Creates a new <code>FormatAnalyzer</code> instance that knows the default
+   * text formats (see KnownTextFormatLibrary).
    */
-  public FormatAnalyzer(File schemaDbDir) {
+  public FormatAnalyzer(File schemaDbDir) throws IOException {
     this.schemaDbDir = schemaDbDir;
     this.formatLibrary = new KnownTextFormatLibrary();
   }
 
+  /**
+   * Creates a new <code>FormatAnalyzer</code> instance that knows the text
+   * formats in the given directory (see KnownTextFormatLibrary).
+   */
+  public FormatAnalyzer(File schemaDbDir, File formatDir) throws IOException {
+    this.schemaDbDir = schemaDbDir;
+    this.formatLibrary = new KnownTextFormatLibrary(formatDir);
+  }
+
+  /**
+   * Identifies what this analyzer would say about a file: the analyzer's
+   * version and the known text formats.  An analysis made with a different
+   * fingerprint may not be what this analyzer would say now.
+   */
+  public String getFingerprint() {
+    return ANALYZER_VERSION + ":" + formatLibrary.getFingerprint();
+  }
+
+  /**
+   * How much of each file to read up front for the format tests to share
+   * (see FileProbe).  A test that needs more reads past it.
+   */
+  public void setProbeBytes(int probeBytes) {
+    this.probeBytes = probeBytes;
+  }
+
   /**
    * Create a file-appropriate DataDescriptor instance.
    *
-   * Right now we just use the file ending to figure out what to do,
-   * but this will become unsatisfactory pretty quickly.
+   * Avro, SequenceFile, and XML data are recognized by their first bytes;
+   * otherwise we go by the file ending, then by testing the contents.
    *
    * @param f a <code>File</code> value
    * @return a <code>DataDescriptor</code> value
    */
   public DataDescriptor describeData(FileSystem fs, Path p, int maxLines) throws IOException {
     FileStatus fstatus = fs.getFileStatus(p);
-    String fname = p.getName();
+
+    // Read the start of the file once, for all the tests below.  If it can't
+    // be read, only the tests that go by the filename can succeed.  A
+    // compressed file is decompressed, and its name loses the codec's
+    // extension, so "foo.csv.gz" is tested just as "foo.csv" would be.
+    FileProbe probe;
+    try {
+      probe = new FileProbe(fs, p, probeBytes);
+    } catch (IOException iex) {
+      probe = FileProbe.createEmpty(fs, p);
+    }
+    String fname = probe.getName();
+
+    // Formats that announce themselves in their first bytes come first,
+    // whatever the file is called.
+    if (probe.startsWith(AVRO_MAGIC)) {
+      return new AvroDataDescriptor(fs, p);
+    } else if (probe.startsWith(SEQUENCEFILE_MAGIC)) {
+      // There's no descriptor for SequenceFiles yet, but they're surely
+      // not text
+      return new UnstructuredFileDescriptor(fs, p);
+    } else if (probe.hasXMLProlog()) {
+      return new XMLDataDescriptor(fs, p);
+    }
 
     // Test to see if the file is one of a handful of known structured formats.
-    if (CSVDataDescriptor.isCSV(fs, p)) {
+    if (CSVDataDescriptor.isCSV(fs, p, probe)) {
       return new CSVDataDescriptor(fs, p);
     } else if (fname.endsWith(".xml")) {
       return new XMLDataDescriptor(fs, p);
@@ -75,14 +133,14 @@ public class FormatAnalyzer {
       // of these cases.  Ask the formatLibrary to test the input data and
       // see if it corresponds to one of the known formats.
       //
-      DataDescriptor retval = formatLibrary.createDescriptorForKnownFormat(fs, p);
+      DataDescriptor retval = formatLibrary.createDescriptorForKnownFormat(fs, p, probe);
       if (retval != null) {
         return retval;
       } else {
         // It's not one of the known formats, so apply LearnStructure (and
         // SchemaDictionary), then emit the resulting Avro data.
         try {
-          boolean isTextData = UnknownTextDataDescriptor.isTextData(fs, p);
+          boolean isTextData = UnknownTextDataDescriptor.isTextData(probe);
           if (isTextData) {
             return new UnknownTextDataDescriptor(fs, p, schemaDbDir, maxLines);
           }
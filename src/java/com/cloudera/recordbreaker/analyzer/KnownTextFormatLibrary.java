@@ -16,25 +16,33 @@ package com.cloudera.recordbreaker.analyzer;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.FileReader;
+import java.io.InputStream;
+import java.io.FileInputStream;
+import java.io.StringReader;
+import java.io.InputStreamReader;
 import java.io.BufferedReader;
+import java.io.FileFilter;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
+import java.util.Map;
 import java.util.List;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.regex.Matcher;
+import java.util.LinkedHashMap;
 import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.fs.FileSystem;
-import org.apache.hadoop.fs.FileStatus;
 
 import org.apache.avro.Schema;
-import org.apache.avro.generic.GenericData;
+import org.apache.avro.SchemaParseException;
 
 /***************************************************************************
  * <code>KnownTextFormatLibrary</code> maintains a set of known important
- * textual  * data formats.  Examples include Apache server logs, the output
+ * textual data formats.  Examples include Apache server logs, the output
  * of syslogd, etc.
  * These are textual formats that are so common that it's a bit silly to run
  * LearnStructure over them.  We usually don't know whether a file corresponds
@@ -44,93 +52,273 @@ import org.apache.avro.generic.GenericData;
  * a candidate File.  That fn will then either return an appropriate
  * DataDescriptor, or will return null.
  *
+ * Each format has a type identifier (e.g., "apachelog") and a pair of files
+ * for each kind of line the format allows: NAME.regex, whose first line is a
+ * regular expression with one group per field, and NAME.avsc, the Avro record
+ * schema for those fields.  Each line gets the schema of the first of its
+ * format's patterns that it matches.
+ *
+ * The library that ships with RecordBreaker is in src/formats, which the
+ * build copies onto the classpath.  It's loaded as classpath resources, so it
+ * works from a jar: formats/index lists one FORMAT/NAME per line, for the
+ * resources formats/FORMAT/NAME.regex and formats/FORMAT/NAME.avsc.  A
+ * directory laid out the same way (a subdirectory per format, with patterns
+ * in order of file name) can be used instead; no index is needed there.
+ *
+ * Every format's patterns are compiled into a single MultiPatternMatcher, so
+ * testing a line against all the formats is a single pass over it.
+ *
  * @author "Michael Cafarella"
  * @version 1.0
  * @since 1.0
  * @see DataDescriptor
  ***************************************************************************/
 public class KnownTextFormatLibrary {
+  // The system property that names a format directory to use instead of
+  // the shipped library, and the classpath resources the shipped library is in
+  public static String FORMAT_DIR_PROPERTY = "recordbreaker.formats";
+  static String FORMAT_RESOURCE_DIR = "formats";
+  static String FORMAT_INDEX_RESOURCE = FORMAT_RESOURCE_DIR + "/index";
+
   List<TextRegexpDataDescriptor> possibleDescriptors = new ArrayList<TextRegexpDataDescriptor>();
+  MultiPatternMatcher matcher;
+  // For each of the matcher's patterns, the index of its format
+  int patternFormats[];
+  String fingerprint;
   
   /**
-   * Creates a new <code>KnownTextFormatLibrary</code> instance.  It just
-   * populates the array of known descriptors.
+   * Creates a new <code>KnownTextFormatLibrary</code> instance with the
+   * formats in the directory named by the FORMAT_DIR_PROPERTY system
+   * property, or else with the library on the classpath.
    */
-  public KnownTextFormatLibrary() {
-    possibleDescriptors.add(createApacheDescriptor());
-    possibleDescriptors.add(createSyslogDescriptor());
+  public KnownTextFormatLibrary() throws IOException {
+    String formatDirName = System.getProperty(FORMAT_DIR_PROPERTY);
+    if (formatDirName != null) {
+      loadFormats(new File(formatDirName));
+    } else {
+      loadFormats(KnownTextFormatLibrary.class.getClassLoader());
+    }
+    compileMatcher();
   }
 
   /**
-   * Creates the descriptor for Apache server logs.
+   * Creates a new <code>KnownTextFormatLibrary</code> instance with the
+   * formats in the given directory.
    */
-  private TextRegexpDataDescriptor createApacheDescriptor() {
-    Pattern apacheCombinedLogPattern = Pattern.compile("^(\\S+) (\\S+) (\\S+) \\[([^\\]]+)\\] \"([A-Z]+)([^\"]*)HTTP/(\\S+)\" (\\d+) (\\d+) \"([^\"]*)\" \"([^\"]*)\"");
-    List<Schema.Field> logFields = new ArrayList<Schema.Field>();
-    logFields.add(new Schema.Field("ipaddr", Schema.create(Schema.Type.STRING), "Apache combined log ip address", null));
-    logFields.add(new Schema.Field("client", Schema.create(Schema.Type.STRING), "Apache combined log client string", null));
-    logFields.add(new Schema.Field("userid", Schema.create(Schema.Type.STRING), "Apache combined log user id", null));
-    logFields.add(new Schema.Field("timestamp", Schema.create(Schema.Type.STRING), "Apache combined log access timestamp", null));
-    logFields.add(new Schema.Field("method", Schema.create(Schema.Type.STRING), "Apache combined log HTTP method", null));
-    logFields.add(new Schema.Field("arg", Schema.create(Schema.Type.STRING), "Apache combined log HTTP method arg", null));
-    logFields.add(new Schema.Field("version", Schema.create(Schema.Type.FLOAT), "Apache combined log HTTP version", null));
-    logFields.add(new Schema.Field("resultcode", Schema.create(Schema.Type.INT), "Apache combined log HTTP result code", null));
-    logFields.add(new Schema.Field("size", Schema.create(Schema.Type.INT), "Apache combined log file size", null));
-    logFields.add(new Schema.Field("referrer", Schema.create(Schema.Type.STRING), "Apache combined log HTTP referrer", null));
-    logFields.add(new Schema.Field("useragent", Schema.create(Schema.Type.STRING), "Apache combined log user agent", null));
-    Schema combinedLogSchema = Schema.createRecord("combined", "Apache combined log format", "", false);
-    combinedLogSchema.setFields(logFields);
-
-    Pattern apacheCommonLogPattern = Pattern.compile("^(\\S+) (\\S+) (\\S+) \\[([^\\]]+)\\] \"([A-Z]+)([^\"]*)HTTP/(\\S+)\" (\\d+) (\\d+)");
-    logFields = new ArrayList<Schema.Field>();    
-    logFields.add(new Schema.Field("ipaddr", Schema.create(Schema.Type.STRING), "Apache common log ip address", null));
-    logFields.add(new Schema.Field("client", Schema.create(Schema.Type.STRING), "Apache common log client string", null));
-    logFields.add(new Schema.Field("userid", Schema.create(Schema.Type.STRING), "Apache common log user id", null));
-    logFields.add(new Schema.Field("timestamp", Schema.create(Schema.Type.STRING), "Apache common log access timestamp", null));
-    logFields.add(new Schema.Field("method", Schema.create(Schema.Type.STRING), "Apache common log HTTP method", null));
-    logFields.add(new Schema.Field("arg", Schema.create(Schema.Type.STRING), "Apache common log HTTP method arg", null));
-    logFields.add(new Schema.Field("version", Schema.create(Schema.Type.FLOAT), "Apache common log HTTP version", null));
-    logFields.add(new Schema.Field("resultcode", Schema.create(Schema.Type.INT), "Apache common log HTTP result code", null));
-    logFields.add(new Schema.Field("size", Schema.create(Schema.Type.INT), "Apache common log file size", null));
-    Schema commonLogSchema = Schema.createRecord("common", "Apache common log format", "", false);
-    commonLogSchema.setFields(logFields);
-
-    List<Pattern> apacheRegexps = new ArrayList<Pattern>();
-    apacheRegexps.add(apacheCombinedLogPattern);
-    apacheRegexps.add(apacheCommonLogPattern);
-
-    List<Schema> apacheSchemas = new ArrayList<Schema>();
-    apacheSchemas.add(combinedLogSchema);
-    apacheSchemas.add(commonLogSchema);    
-    
-    return new TextRegexpDataDescriptor("apachelog", apacheRegexps, apacheSchemas);
+  public KnownTextFormatLibrary(File formatDir) throws IOException {
+    loadFormats(formatDir);
+    compileMatcher();
   }
 
   /**
-   * Creates the descriptor for syslogd.
+   * Creates a new <code>KnownTextFormatLibrary</code> instance with the
+   * formats listed in the loader's formats/index resource.
    */
-  private TextRegexpDataDescriptor createSyslogDescriptor() {
-    Pattern stdFormatPattern = Pattern.compile("^(\\S+) (\\d+) (\\d+):(\\d+):(\\d+) (\\S+) ([^\\[]+)\\[(\\d+)\\]: ([^\\n]+)$");
-    List<Schema.Field> logFields = new ArrayList<Schema.Field>(); 
-    logFields.add(new Schema.Field("month", Schema.create(Schema.Type.STRING), "Syslog timestamp month", null));
-    logFields.add(new Schema.Field("day", Schema.create(Schema.Type.INT), "Syslog timestamp day", null));
-    logFields.add(new Schema.Field("hour", Schema.create(Schema.Type.INT), "Syslog timestamp hour", null));
-    logFields.add(new Schema.Field("min", Schema.create(Schema.Type.INT), "Syslog timestamp min", null));
-    logFields.add(new Schema.Field("sec", Schema.create(Schema.Type.INT), "Syslog timestamp second", null));
-    logFields.add(new Schema.Field("host", Schema.create(Schema.Type.STRING), "Syslog host", null));
-    logFields.add(new Schema.Field("logger", Schema.create(Schema.Type.STRING), "Syslog logger", null));
-    logFields.add(new Schema.Field("pri", Schema.create(Schema.Type.INT), "Syslog msg priority level", null));
-    logFields.add(new Schema.Field("msg", Schema.create(Schema.Type.STRING), "Syslog msg", null));
-    Schema stdFormatSchema = Schema.createRecord("std", "Standard syslog format", "", false);
-    stdFormatSchema.setFields(logFields);
-
-    List<Pattern> syslogRegexps = new ArrayList<Pattern>();
-    syslogRegexps.add(stdFormatPattern);
-
-    List<Schema> syslogSchemas = new ArrayList<Schema>();
-    syslogSchemas.add(stdFormatSchema);
-
-    return new TextRegexpDataDescriptor("syslog", syslogRegexps, syslogSchemas);
+  KnownTextFormatLibrary(ClassLoader loader) throws IOException {
+    loadFormats(loader);
+    compileMatcher();
+  }
+
+  static String readText(InputStream in) throws IOException {
+    StringBuffer sb = new StringBuffer();
+    BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+    try {
+      char buf[] = new char[4096];
+      int numRead;
+      while ((numRead = reader.read(buf)) >= 0) {
+        sb.append(buf, 0, numRead);
+      }
+    } finally {
+      reader.close();
+    }
+    return sb.toString();
+  }
+
+  static String readResource(ClassLoader loader, String name) throws IOException {
+    InputStream in = loader.getResourceAsStream(name);
+    if (in == null) {
+      throw new IOException("No resource " + name + " on the classpath");
+    }
+    return readText(in);
+  }
+
+  /**
+   * Load every format listed in the loader's formats/index resource, in the
+   * order they're listed
+   */
+  void loadFormats(ClassLoader loader) throws IOException {
+    Map<String, List<String>> formatPatterns = new LinkedHashMap<String, List<String>>();
+    for (String entry: readResource(loader, FORMAT_INDEX_RESOURCE).split("\\r?\\n")) {
+      entry = entry.trim();
+      if (entry.length() == 0 || entry.startsWith("#")) {
+        continue;
+      }
+      int slash = entry.indexOf('/');
+      if (slash <= 0 || slash != entry.lastIndexOf('/') || slash == entry.length() - 1) {
+        throw new IOException("Bad entry in " + FORMAT_INDEX_RESOURCE + ": " + entry);
+      }
+      String formatName = entry.substring(0, slash);
+      List<String> names = formatPatterns.get(formatName);
+      if (names == null) {
+        names = new ArrayList<String>();
+        formatPatterns.put(formatName, names);
+      }
+      names.add(entry.substring(slash + 1));
+    }
+    if (formatPatterns.size() == 0) {
+      throw new IOException("No formats listed in " + FORMAT_INDEX_RESOURCE);
+    }
+
+    for (Map.Entry<String, List<String>> format: formatPatterns.entrySet()) {
+      List<Pattern> regexps = new ArrayList<Pattern>();
+      List<Schema> schemas = new ArrayList<Schema>();
+      for (String name: format.getValue()) {
+        String base = FORMAT_RESOURCE_DIR + "/" + format.getKey() + "/" + name;
+        addPattern(base + ".regex", readResource(loader, base + ".regex"),
+                   base + ".avsc", readResource(loader, base + ".avsc"),
+                   regexps, schemas);
+      }
+      possibleDescriptors.add(new TextRegexpDataDescriptor(format.getKey(), regexps, schemas));
+    }
+  }
+
+  /**
+   * Load every format in the directory, in order of name
+   */
+  void loadFormats(File formatDir) throws IOException {
+    File formatDirs[] = formatDir.listFiles(new FileFilter() {
+        public boolean accept(File f) {
+          return f.isDirectory() && ! f.getName().startsWith(".");
+        }
+      });
+    if (formatDirs == null) {
+      throw new IOException("Not a directory: " + formatDir);
+    }
+    Arrays.sort(formatDirs);
+    for (File dir: formatDirs) {
+      possibleDescriptors.add(loadFormat(dir));
+    }
+  }
+
+  /**
+   * Load the pattern and schema files of a single format
+   */
+  TextRegexpDataDescriptor loadFormat(File dir) throws IOException {
+    File patternFiles[] = dir.listFiles(new FileFilter() {
+        public boolean accept(File f) {
+          return f.isFile() && f.getName().endsWith(".regex");
+        }
+      });
+    if (patternFiles == null || patternFiles.length == 0) {
+      throw new IOException("No .regex files in format directory " + dir);
+    }
+    Arrays.sort(patternFiles);
+
+    List<Pattern> regexps = new ArrayList<Pattern>();
+    List<Schema> schemas = new ArrayList<Schema>();
+    for (File patternFile: patternFiles) {
+      String name = patternFile.getName().substring(0, patternFile.getName().length() - ".regex".length());
+      File schemaFile = new File(dir, name + ".avsc");
+      addPattern(patternFile.getPath(), readText(new FileInputStream(patternFile)),
+                 schemaFile.getPath(), readText(new FileInputStream(schemaFile)),
+                 regexps, schemas);
+    }
+    return new TextRegexpDataDescriptor(dir.getName(), regexps, schemas);
+  }
+
+  /**
+   * Check one of a format's patterns against its schema, and add them to the
+   * format's lists.  The pattern is the first line of 'patternText'.
+   */
+  void addPattern(String patternSource, String patternText, String schemaSource, String schemaText,
+                  List<Pattern> regexps, List<Schema> schemas) throws IOException {
+    String patternStr = new BufferedReader(new StringReader(patternText)).readLine();
+    if (patternStr == null) {
+      throw new IOException("Empty pattern file " + patternSource);
+    }
+    Pattern pattern;
+    Schema schema;
+    try {
+      pattern = Pattern.compile(patternStr);
+      schema = new Schema.Parser().parse(schemaText);
+    } catch (PatternSyntaxException pse) {
+      throw new IOException("Bad pattern in " + patternSource + ": " + pse.getMessage());
+    } catch (SchemaParseException spe) {
+      throw new IOException("Bad schema in " + schemaSource + ": " + spe.getMessage());
+    }
+    if (schema.getType() != Schema.Type.RECORD) {
+      throw new IOException("Schema in " + schemaSource + " is not a record");
+    }
+    int numGroups = pattern.matcher("").groupCount();
+    if (numGroups != schema.getFields().size()) {
+      throw new IOException("Pattern in " + patternSource + " has " + numGroups + " groups, but its schema has " + schema.getFields().size() + " fields");
+    }
+    regexps.add(pattern);
+    schemas.add(schema);
+  }
+
+  /**
+   * Compile every format's patterns into one matcher
+   */
+  void compileMatcher() {
+    List<String> patterns = new ArrayList<String>();
+    List<Integer> formats = new ArrayList<Integer>();
+    for (int i = 0; i < possibleDescriptors.size(); i++) {
+      for (Pattern regexp: possibleDescriptors.get(i).regexps) {
+        patterns.add(regexp.pattern());
+        formats.add(i);
+      }
+    }
+    this.matcher = new MultiPatternMatcher(patterns);
+    this.patternFormats = new int[formats.size()];
+    for (int i = 0; i < patternFormats.length; i++) {
+      patternFormats[i] = formats.get(i);
+    }
+    this.fingerprint = computeFingerprint();
+  }
+
+  /**
+   * An MD5 hash of every format's name, patterns, and schemas, in order
+   */
+  String computeFingerprint() {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("MD5");
+      for (TextRegexpDataDescriptor descriptor: possibleDescriptors) {
+        digest.update(("format " + descriptor.getFileTypeIdentifier() + "\n").getBytes("UTF-8"));
+        for (int i = 0; i < descriptor.regexps.size(); i++) {
+          digest.update(("pattern " + descriptor.regexps.get(i).pattern() + "\n").getBytes("UTF-8"));
+          digest.update(("schema " + descriptor.schemas.get(i).toString() + "\n").getBytes("UTF-8"));
+        }
+      }
+      StringBuffer hex = new StringBuffer();
+      for (byte b: digest.digest()) {
+        hex.append(Integer.toHexString((b & 0xff) | 0x100).substring(1));
+      }
+      return hex.toString();
+    } catch (NoSuchAlgorithmException nsae) {
+      throw new IllegalStateException(nsae);
+    } catch (IOException iex) {
+      throw new IllegalStateException(iex);
+    }
+  }
+
+  /**
+   * A hash of the formats' contents.  Two libraries with the same formats, in
+   * the same order, have the same fingerprint, wherever they were loaded from.
+   */
+  public String getFingerprint() {
+    return fingerprint;
+  }
+
+  /**
+   * The type identifiers of the known formats
+   */
+  public List<String> getFormatIdentifiers() {
+    List<String> identifiers = new ArrayList<String>();
+    for (TextRegexpDataDescriptor descriptor: possibleDescriptors) {
+      identifiers.add(descriptor.getFileTypeIdentifier());
+    }
+    return identifiers;
   }
 
   /**
@@ -138,11 +326,47 @@ public class KnownTextFormatLibrary {
    * library list.
    */
   public DataDescriptor createDescriptorForKnownFormat(FileSystem fs, Path p) throws IOException {
-    for (TextRegexpDataDescriptor candidateDescriptor: possibleDescriptors) {
-      if (candidateDescriptor.testData(fs, p)) {
-        return candidateDescriptor.cloneWithFile(fs, p);
+    return createDescriptorForKnownFormat(fs, p, new FileProbe(fs, p));
+  }
+
+  /**
+   * Like createDescriptorForKnownFormat(fs, p), but looking only at the lines
+   * held by the probe, just as TextRegexpDataDescriptor.testData() does.  Each
+   * line is tested against every format at once.  Of the formats that match
+   * enough of the lines, the one that matches the most wins (ties go to the
+   * first).
+   */
+  public DataDescriptor createDescriptorForKnownFormat(FileSystem fs, Path p, FileProbe probe) throws IOException {
+    int numTested = 0;
+    int numMatched[] = new int[possibleDescriptors.size()];
+    for (String line: probe.getLines()) {
+      if (numTested >= TextRegexpDataDescriptor.MAX_TEST_LINES) {
+        break;
+      }
+      if (line.length() == 0) {
+        continue;
       }
+      numTested++;
+      // A format's patterns are numbered consecutively, so a format is
+      // counted once per line however many of its patterns match
+      BitSet matched = matcher.match(line);
+      int lastFormat = -1;
+      for (int i = matched.nextSetBit(0); i >= 0; i = matched.nextSetBit(i + 1)) {
+        if (patternFormats[i] != lastFormat) {
+          lastFormat = patternFormats[i];
+          numMatched[lastFormat]++;
+        }
+      }
+    }
+    int bestFormat = -1;
+    for (int i = 0; i < numMatched.length; i++) {
+      if (bestFormat < 0 || numMatched[i] > numMatched[bestFormat]) {
+        bestFormat = i;
+      }
+    }
+    if (bestFormat >= 0 && numTested > 0 && (numMatched[bestFormat] / (1.0 * numTested)) >= TextRegexpDataDescriptor.MIN_MATCH_RATIO) {
+      return possibleDescriptors.get(bestFormat).cloneWithFile(fs, p);
     }
     return null;
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,732 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.analyzer;
+
+import java.util.List;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.regex.Pattern;
+
+/*********************************************************************
+ * <code>MultiPatternMatcher</code> tests a line against many regular
+ * expressions at once, and says which of them match it (in the sense of
+ * Matcher.find()).  KnownTextFormatLibrary uses it so that testing a line
+ * against every known format takes a single pass over the line, however
+ * many formats there are.
+ *
+ * The patterns are compiled into one nondeterministic automaton, which
+ * is run as a DFA whose states are built as the input first reaches them
+ * and then kept.  After a few lines, almost every character is a single
+ * table lookup.
+ *
+ * Only the common subset of java.util.regex syntax is compiled: literals,
+ * character classes (without nesting or intersection), the predefined
+ * classes (\d, \s, \w, and their complements), '.', groups, alternation,
+ * the greedy and reluctant quantifiers, and the anchors ^ and $.  A
+ * pattern that uses anything else is run with java.util.regex on its own.
+ * Patterns are matched with the default flags.
+ *
+ * @version 1.0
+ * @since 1.0
+ * @see KnownTextFormatLibrary
+ *********************************************************************/
+public class MultiPatternMatcher {
+  // Past this many DFA states, the cache is thrown away and rebuilt
+  static int MAX_DFA_STATES = 4096;
+
+  // Counted repetitions bigger than this are left to java.util.regex, rather
+  // than copied out in the NFA
+  static int MAX_COMPILED_REPEAT = 100;
+
+  ///////////////////////////////////////////
+  // Character sets
+  ///////////////////////////////////////////
+  /**
+   * A set of chars, as sorted, disjoint, inclusive ranges
+   */
+  static class CharSet {
+    static CharSet DIGIT = range('0', '9');
+    static CharSet SPACE = chars(" \t\n\u000B\f\r");
+    static CharSet WORD = range('a', 'z').union(range('A', 'Z')).union(range('0', '9')).union(chars("_"));
+    static CharSet DOT = chars("\n\r\u0085").union(range(0x2028, 0x2029)).complement();
+
+    int ranges[];
+
+    CharSet(int ranges[]) {
+      this.ranges = ranges;
+    }
+    static CharSet range(int lo, int hi) {
+      return new CharSet(new int[] {lo, hi});
+    }
+    static CharSet chars(String s) {
+      CharSet result = new CharSet(new int[0]);
+      for (int i = 0; i < s.length(); i++) {
+        result = result.union(range(s.charAt(i), s.charAt(i)));
+      }
+      return result;
+    }
+    CharSet union(CharSet other) {
+      int all[] = new int[ranges.length + other.ranges.length];
+      System.arraycopy(ranges, 0, all, 0, ranges.length);
+      System.arraycopy(other.ranges, 0, all, ranges.length, other.ranges.length);
+      Integer order[] = new Integer[all.length / 2];
+      for (int i = 0; i < order.length; i++) {
+        order[i] = i;
+      }
+      final int sortBy[] = all;
+      Arrays.sort(order, new java.util.Comparator<Integer>() {
+        public int compare(Integer i1, Integer i2) {
+          return sortBy[2*i1] - sortBy[2*i2];
+        }
+      });
+      int merged[] = new int[all.length];
+      int len = 0;
+      for (int i: order) {
+        int lo = all[2*i];
+        int hi = all[2*i+1];
+        if (len > 0 && lo <= merged[len-1] + 1) {
+          merged[len-1] = Math.max(merged[len-1], hi);
+        } else {
+          merged[len++] = lo;
+          merged[len++] = hi;
+        }
+      }
+      return new CharSet(Arrays.copyOf(merged, len));
+    }
+    CharSet complement() {
+      int result[] = new int[ranges.length + 2];
+      int len = 0;
+      int next = 0;
+      for (int i = 0; i < ranges.length; i += 2) {
+        if (ranges[i] > next) {
+          result[len++] = next;
+          result[len++] = ranges[i] - 1;
+        }
+        next = ranges[i+1] + 1;
+      }
+      if (next <= Character.MAX_VALUE) {
+        result[len++] = next;
+        result[len++] = Character.MAX_VALUE;
+      }
+      return new CharSet(Arrays.copyOf(result, len));
+    }
+    boolean contains(char c) {
+      for (int i = 0; i < ranges.length && ranges[i] <= c; i += 2) {
+        if (c <= ranges[i+1]) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  ///////////////////////////////////////////
+  // Parsing
+  ///////////////////////////////////////////
+  static class UnsupportedPatternException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    UnsupportedPatternException(String msg) {
+      super(msg);
+    }
+  }
+
+  static final int CHARS = 0;
+  static final int CONCAT = 1;
+  static final int ALT = 2;
+  static final int REPEAT = 3;
+  static final int BOL = 4;
+  static final int EOL = 5;
+
+  /**
+   * A node of a parsed pattern.  REPEAT has one child, repeated between
+   * min and max times (max is -1 if there's no limit).
+   */
+  static class Node {
+    int kind;
+    CharSet chars;
+    List<Node> children = new ArrayList<Node>();
+    int min;
+    int max;
+
+    Node(int kind) {
+      this.kind = kind;
+    }
+    Node(CharSet chars) {
+      this(CHARS);
+      this.chars = chars;
+    }
+    Node(Node child, int min, int max) {
+      this(REPEAT);
+      this.children.add(child);
+      this.min = min;
+      this.max = max;
+    }
+  }
+
+  /**
+   * Parses the supported subset of regular expression syntax.  Anything
+   * else throws UnsupportedPatternException.
+   */
+  static class PatternParser {
+    String s;
+    int pos = 0;
+
+    PatternParser(String s) {
+      this.s = s;
+    }
+    Node parse() throws UnsupportedPatternException {
+      Node result = parseAlt();
+      if (pos < s.length()) {
+        throw new UnsupportedPatternException("Unbalanced ')' at " + pos);
+      }
+      return result;
+    }
+    boolean more() {
+      return pos < s.length();
+    }
+    char peek() {
+      return s.charAt(pos);
+    }
+    Node parseAlt() throws UnsupportedPatternException {
+      Node first = parseConcat();
+      if (! more() || peek() != '|') {
+        return first;
+      }
+      Node alt = new Node(ALT);
+      alt.children.add(first);
+      while (more() && peek() == '|') {
+        pos++;
+        alt.children.add(parseConcat());
+      }
+      return alt;
+    }
+    Node parseConcat() throws UnsupportedPatternException {
+      Node concat = new Node(CONCAT);
+      while (more() && peek() != '|' && peek() != ')') {
+        concat.children.add(parseRepeat());
+      }
+      return concat;
+    }
+    Node parseRepeat() throws UnsupportedPatternException {
+      Node atom = parseAtom();
+      while (more()) {
+        char c = peek();
+        if (c == '*') {
+          pos++;
+          atom = new Node(atom, 0, -1);
+        } else if (c == '+') {
+          pos++;
+          atom = new Node(atom, 1, -1);
+        } else if (c == '?') {
+          pos++;
+          atom = new Node(atom, 0, 1);
+        } else if (c == '{') {
+          pos++;
+          int min = parseNumber();
+          int max = min;
+          if (more() && peek() == ',') {
+            pos++;
+            max = (more() && peek() == '}') ? -1 : parseNumber();
+          }
+          if (! more() || peek() != '}' || (max >= 0 && max < min)) {
+            throw new UnsupportedPatternException("Bad repetition at " + pos);
+          }
+          if (min > MAX_COMPILED_REPEAT || max > MAX_COMPILED_REPEAT) {
+            throw new UnsupportedPatternException("Large repetition at " + pos);
+          }
+          pos++;
+          atom = new Node(atom, min, max);
+        } else {
+          break;
+        }
+        // Whether a line matches doesn't depend on a quantifier being reluctant,
+        // but it can on its being possessive
+        if (more() && peek() == '?') {
+          pos++;
+        } else if (more() && peek() == '+') {
+          throw new UnsupportedPatternException("Possessive quantifier at " + pos);
+        }
+      }
+      return atom;
+    }
+    int parseNumber() throws UnsupportedPatternException {
+      int start = pos;
+      while (more() && Character.isDigit(peek()) && pos - start < 6) {
+        pos++;
+      }
+      if (pos == start) {
+        throw new UnsupportedPatternException("Expected a number at " + pos);
+      }
+      return Integer.parseInt(s.substring(start, pos));
+    }
+    Node parseAtom() throws UnsupportedPatternException {
+      char c = s.charAt(pos++);
+      switch (c) {
+      case '(': {
+        if (more() && peek() == '?') {
+          if (pos + 1 < s.length() && s.charAt(pos + 1) == ':') {
+            pos += 2;
+          } else {
+            throw new UnsupportedPatternException("Special group at " + pos);
+          }
+        }
+        Node group = parseAlt();
+        if (! more() || peek() != ')') {
+          throw new UnsupportedPatternException("Unclosed group");
+        }
+        pos++;
+        return group;
+      }
+      case '[':
+        return new Node(parseClass());
+      case '.':
+        return new Node(CharSet.DOT);
+      case '^':
+        return new Node(BOL);
+      case '$':
+        return new Node(EOL);
+      case '\\': {
+        CharSet escaped = parseEscape(false);
+        return new Node(escaped);
+      }
+      case '*':
+      case '+':
+      case '?':
+      case '{':
+        throw new UnsupportedPatternException("Dangling quantifier at " + pos);
+      default:
+        return new Node(CharSet.range(c, c));
+      }
+    }
+    /**
+     * The set for the escape sequence after a backslash
+     */
+    CharSet parseEscape(boolean inClass) throws UnsupportedPatternException {
+      if (! more()) {
+        throw new UnsupportedPatternException("Trailing backslash");
+      }
+      char c = s.charAt(pos++);
+      switch (c) {
+      case 'd': return CharSet.DIGIT;
+      case 'D': return CharSet.DIGIT.complement();
+      case 's': return CharSet.SPACE;
+      case 'S': return CharSet.SPACE.complement();
+      case 'w': return CharSet.WORD;
+      case 'W': return CharSet.WORD.complement();
+      case 't': return CharSet.range('\t', '\t');
+      case 'n': return CharSet.range('\n', '\n');
+      case 'r': return CharSet.range('\r', '\r');
+      case 'f': return CharSet.range('\f', '\f');
+      case 'a': return CharSet.range('\u0007', '\u0007');
+      case 'e': return CharSet.range('\u001B', '\u001B');
+      case 'x': return parseHex(2);
+      case 'u': return parseHex(4);
+      default:
+        if (Character.isLetterOrDigit(c)) {
+          throw new UnsupportedPatternException("Escape \\" + c);
+        }
+        return CharSet.range(c, c);
+      }
+    }
+    CharSet parseHex(int numDigits) throws UnsupportedPatternException {
+      if (pos + numDigits > s.length()) {
+        throw new UnsupportedPatternException("Bad hex escape at " + pos);
+      }
+      try {
+        int c = Integer.parseInt(s.substring(pos, pos + numDigits), 16);
+        pos += numDigits;
+        return CharSet.range(c, c);
+      } catch (NumberFormatException nfe) {
+        throw new UnsupportedPatternException("Bad hex escape at " + pos);
+      }
+    }
+    CharSet parseClass() throws UnsupportedPatternException {
+      boolean negated = false;
+      if (more() && peek() == '^') {
+        negated = true;
+        pos++;
+      }
+      if (more() && peek() == ']') {
+        throw new UnsupportedPatternException("Empty class at " + pos);
+      }
+      CharSet result = new CharSet(new int[0]);
+      while (true) {
+        if (! more()) {
+          throw new UnsupportedPatternException("Unclosed class");
+        }
+        char c = s.charAt(pos++);
+        if (c == ']') {
+          break;
+        } else if (c == '[' || (c == '&' && more() && peek() == '&')) {
+          throw new UnsupportedPatternException("Nested class at " + pos);
+        }
+        CharSet item = (c == '\\') ? parseEscape(true) : CharSet.range(c, c);
+        boolean isSingleChar = (item.ranges.length == 2 && item.ranges[0] == item.ranges[1]);
+        if (isSingleChar && pos + 1 < s.length() && peek() == '-' && s.charAt(pos + 1) != ']') {
+          pos++;
+          char d = s.charAt(pos++);
+          if (d == '[') {
+            throw new UnsupportedPatternException("Nested class at " + pos);
+          }
+          CharSet end = (d == '\\') ? parseEscape(true) : CharSet.range(d, d);
+          if (end.ranges.length != 2 || end.ranges[0] != end.ranges[1] || end.ranges[0] < item.ranges[0]) {
+            throw new UnsupportedPatternException("Bad range at " + pos);
+          }
+          item = CharSet.range(item.ranges[0], end.ranges[0]);
+        }
+        result = result.union(item);
+      }
+      return negated ? result.complement() : result;
+    }
+  }
+
+  ///////////////////////////////////////////
+  // The NFA
+  ///////////////////////////////////////////
+  static final int NFA_CHARS = 0;
+  static final int NFA_SPLIT = 1;
+  static final int NFA_BOL = 2;
+  static final int NFA_EOL = 3;
+  static final int NFA_ACCEPT = 4;
+
+  // NFA states, in parallel arrays
+  int nfaKind[] = new int[64];
+  int nfaOut1[] = new int[64];
+  int nfaOut2[] = new int[64];
+  CharSet nfaChars[] = new CharSet[64];
+  int numNfaStates = 0;
+
+  int addState(int kind, int out1, int out2, CharSet chars) {
+    if (numNfaStates == nfaKind.length) {
+      int newLen = 2 * numNfaStates;
+      nfaKind = Arrays.copyOf(nfaKind, newLen);
+      nfaOut1 = Arrays.copyOf(nfaOut1, newLen);
+      nfaOut2 = Arrays.copyOf(nfaOut2, newLen);
+      nfaChars = Arrays.copyOf(nfaChars, newLen);
+    }
+    nfaKind[numNfaStates] = kind;
+    nfaOut1[numNfaStates] = out1;
+    nfaOut2[numNfaStates] = out2;
+    nfaChars[numNfaStates] = chars;
+    return numNfaStates++;
+  }
+
+  /**
+   * Compile the node into states that continue to 'next', and return its first state
+   */
+  int compile(Node node, int next) {
+    switch (node.kind) {
+    case CHARS:
+      return addState(NFA_CHARS, next, -1, node.chars);
+    case BOL:
+      return addState(NFA_BOL, next, -1, null);
+    case EOL:
+      return addState(NFA_EOL, next, -1, null);
+    case CONCAT: {
+      int cur = next;
+      for (int i = node.children.size() - 1; i >= 0; i--) {
+        cur = compile(node.children.get(i), cur);
+      }
+      return cur;
+    }
+    case ALT: {
+      int cur = compile(node.children.get(node.children.size() - 1), next);
+      for (int i = node.children.size() - 2; i >= 0; i--) {
+        cur = addState(NFA_SPLIT, compile(node.children.get(i), next), cur, null);
+      }
+      return cur;
+    }
+    default: {
+      // REPEAT: the optional copies come after the required ones
+      Node child = node.children.get(0);
+      int cur = next;
+      if (node.max < 0) {
+        int loop = addState(NFA_SPLIT, -1, next, null);
+        // (compile() can reallocate nfaOut1, so it has to run first)
+        int body = compile(child, loop);
+        nfaOut1[loop] = body;
+        cur = loop;
+      } else {
+        for (int i = node.min; i < node.max; i++) {
+          cur = addState(NFA_SPLIT, compile(child, cur), next, null);
+        }
+      }
+      for (int i = 0; i < node.min; i++) {
+        cur = compile(child, cur);
+      }
+      return cur;
+    }
+    }
+  }
+
+  ///////////////////////////////////////////
+  // The DFA, built lazily
+  ///////////////////////////////////////////
+  /**
+   * A set of NFA states, closed under the moves that don't consume a char.
+   * Only the states that can still do something are kept: those that consume
+   * a char, and the $ anchors.  'accepts' are the patterns with an accepting
+   * state in the closure.  'atLineEnd' is the same state where $ matches,
+   * which can accept more.
+   */
+  static class DState {
+    StateKey key;
+    int nfaStates[];
+    BitSet accepts;
+    DState atLineEnd;
+    DState next[] = new DState[128];
+    HashMap<Character, DState> nextOther;
+
+    DState(int nfaStates[]) {
+      this.nfaStates = nfaStates;
+    }
+  }
+
+  /**
+   * A DState's NFA states, as a HashMap key
+   */
+  static class StateKey {
+    int nfaStates[];
+    StateKey(int nfaStates[]) {
+      this.nfaStates = nfaStates;
+    }
+    public int hashCode() {
+      return Arrays.hashCode(nfaStates);
+    }
+    public boolean equals(Object o) {
+      return (o instanceof StateKey) && Arrays.equals(nfaStates, ((StateKey) o).nfaStates);
+    }
+  }
+
+  int numPatterns;
+  int nfaStarts[];
+  int nfaAcceptPattern[];
+  List<Integer> fallbackIndexes = new ArrayList<Integer>();
+  List<Pattern> fallbackPatterns = new ArrayList<Pattern>();
+
+  HashMap<StateKey, DState> dstates = new HashMap<StateKey, DState>();
+  DState lineStart;
+  // The state that can't lead anywhere, if there is one: that is, when every
+  // pattern is anchored with ^ and none of them is still in the running
+  DState deadState;
+
+  /**
+   * Compile the patterns.  Each is checked by java.util.regex first, so a
+   * bad pattern throws PatternSyntaxException just as Pattern.compile() would.
+   */
+  public MultiPatternMatcher(List<String> patterns) {
+    this.numPatterns = patterns.size();
+    List<Integer> starts = new ArrayList<Integer>();
+    List<Integer> acceptPatterns = new ArrayList<Integer>();
+    for (int i = 0; i < patterns.size(); i++) {
+      Pattern javaPattern = Pattern.compile(patterns.get(i));
+      try {
+        Node root = new PatternParser(patterns.get(i)).parse();
+        int accept = addState(NFA_ACCEPT, -1, -1, null);
+        acceptPatterns.add(accept);
+        acceptPatterns.add(i);
+        starts.add(compile(root, accept));
+      } catch (UnsupportedPatternException upe) {
+        fallbackIndexes.add(i);
+        fallbackPatterns.add(javaPattern);
+      }
+    }
+    this.nfaStarts = new int[starts.size()];
+    for (int i = 0; i < nfaStarts.length; i++) {
+      nfaStarts[i] = starts.get(i);
+    }
+    this.nfaAcceptPattern = new int[numNfaStates];
+    Arrays.fill(nfaAcceptPattern, -1);
+    for (int i = 0; i < acceptPatterns.size(); i += 2) {
+      nfaAcceptPattern[acceptPatterns.get(i)] = acceptPatterns.get(i+1);
+    }
+    resetStates();
+  }
+
+  public int getNumPatterns() {
+    return numPatterns;
+  }
+
+  /**
+   * How many of the patterns have to be run on their own, with java.util.regex
+   */
+  public int getNumFallbackPatterns() {
+    return fallbackPatterns.size();
+  }
+
+  void resetStates() {
+    dstates.clear();
+    lineStart = getState(new int[0], true, false);
+    DState restart = getState(new int[0], false, false);
+    deadState = (restart.nfaStates.length == 0) ? restart : null;
+  }
+
+  /**
+   * The DState for the given NFA states, plus the start of every pattern
+   * (so that patterns can match anywhere in the line, as with find()).
+   * The ^ and $ anchors are passed through only if the state is at the
+   * start or end of the line.
+   */
+  DState getState(int moved[], boolean atLineStart, boolean atLineEnd) {
+    boolean seen[] = new boolean[numNfaStates];
+    int stack[] = new int[numNfaStates];
+    int stackLen = 0;
+    for (int s: moved) {
+      if (! seen[s]) {
+        seen[s] = true;
+        stack[stackLen++] = s;
+      }
+    }
+    for (int s: nfaStarts) {
+      if (! seen[s]) {
+        seen[s] = true;
+        stack[stackLen++] = s;
+      }
+    }
+    BitSet accepts = new BitSet();
+    List<Integer> live = new ArrayList<Integer>();
+    while (stackLen > 0) {
+      int s = stack[--stackLen];
+      int kind = nfaKind[s];
+      if (kind == NFA_EOL) {
+        live.add(s);
+      }
+      if (kind == NFA_SPLIT || (kind == NFA_BOL && atLineStart) || (kind == NFA_EOL && atLineEnd)) {
+        for (int t: new int[] {nfaOut1[s], nfaOut2[s]}) {
+          if (t >= 0 && ! seen[t]) {
+            seen[t] = true;
+            stack[stackLen++] = t;
+          }
+        }
+      } else if (kind == NFA_CHARS) {
+        live.add(s);
+      } else if (kind == NFA_ACCEPT) {
+        accepts.set(nfaAcceptPattern[s]);
+      }
+    }
+    int nfaStates[] = new int[live.size()];
+    for (int i = 0; i < nfaStates.length; i++) {
+      nfaStates[i] = live.get(i);
+    }
+    Arrays.sort(nfaStates);
+    // What a state does next depends only on its live states, but closures with
+    // the same live states can differ in what they accept
+    int keyStates[] = Arrays.copyOf(nfaStates, nfaStates.length + accepts.cardinality() + 1);
+    int keyLen = nfaStates.length;
+    keyStates[keyLen++] = -1;
+    for (int i = accepts.nextSetBit(0); i >= 0; i = accepts.nextSetBit(i + 1)) {
+      keyStates[keyLen++] = i;
+    }
+    StateKey key = new StateKey(keyStates);
+    DState state = dstates.get(key);
+    if (state != null) {
+      return state;
+    }
+    if (dstates.size() >= MAX_DFA_STATES) {
+      dstates.clear();
+      dstates.put(lineStart.key, lineStart);
+      if (deadState != null) {
+        dstates.put(deadState.key, deadState);
+      }
+    }
+    state = new DState(nfaStates);
+    state.key = key;
+    state.accepts = accepts;
+    dstates.put(key, state);
+    return state;
+  }
+
+  /**
+   * The state where $ matches, from the given state 'pos' chars into the line.
+   * (It's built from the state's live NFA states, so it doesn't repeat the
+   * state's own accepts.)
+   */
+  DState atLineEnd(DState state, int pos) {
+    if (pos == 0) {
+      return getState(state.nfaStates, true, true);
+    }
+    if (state.atLineEnd == null) {
+      state.atLineEnd = getState(state.nfaStates, false, true);
+    }
+    return state.atLineEnd;
+  }
+
+  /**
+   * The state after consuming 'c'
+   */
+  DState step(DState state, char c) {
+    DState next = (c < 128) ? state.next[c] : ((state.nextOther == null) ? null : state.nextOther.get(c));
+    if (next == null) {
+      List<Integer> moved = new ArrayList<Integer>();
+      for (int s: state.nfaStates) {
+        if (nfaKind[s] == NFA_CHARS && nfaChars[s].contains(c)) {
+          moved.add(nfaOut1[s]);
+        }
+      }
+      int movedStates[] = new int[moved.size()];
+      for (int i = 0; i < movedStates.length; i++) {
+        movedStates[i] = moved.get(i);
+      }
+      next = getState(movedStates, false, false);
+      if (c < 128) {
+        state.next[c] = next;
+      } else {
+        if (state.nextOther == null) {
+          state.nextOther = new HashMap<Character, DState>();
+        }
+        state.nextOther.put(c, next);
+      }
+    }
+    return next;
+  }
+
+  /**
+   * The indexes of the patterns that match somewhere in the line
+   */
+  public synchronized BitSet match(CharSequence line) {
+    BitSet matched = new BitSet();
+    if (nfaStarts.length > 0) {
+      DState state = lineStart;
+      int len = line.length();
+      // As in java.util.regex, $ also matches before a line terminator that ends the input
+      int lineEnd = len;
+      if (len > 0 && CharSet.DOT.contains(line.charAt(len - 1)) == false) {
+        lineEnd = (len > 1 && line.charAt(len - 2) == '\r' && line.charAt(len - 1) == '\n') ? len - 2 : len - 1;
+      }
+      for (int i = 0; ; i++) {
+        if (! state.accepts.isEmpty()) {
+          matched.or(state.accepts);
+        }
+        if (i == lineEnd || i == len) {
+          state = atLineEnd(state, i);
+          matched.or(state.accepts);
+        }
+        if (i == len || state == deadState) {
+          break;
+        }
+        state = step(state, line.charAt(i));
+      }
+    }
+    for (int i = 0; i < fallbackPatterns.size(); i++) {
+      if (fallbackPatterns.get(i).matcher(line).find()) {
+        matched.set(fallbackIndexes.get(i));
+      }
+    }
+    return matched;
+  }
+}
@@ -38,6 +38,9 @@ import org.apache.avro.Schema;
  * @see DataDescriptor
  ***********************************************************************/
 public class TextRegexpDataDescriptor implements DataDescriptor {
+  static int MAX_TEST_LINES = 100;
+  static double MIN_MATCH_RATIO = 0.3;
+
   FileSystem fs;
   Path p;
   String typeIdentifier;
@@ -73,25 +76,34 @@ public class TextRegexpDataDescriptor implements DataDescriptor {
    * Test whether the input File corresponds to this data format.
    */
   public boolean testData(FileSystem fs, Path p) throws IOException {
-    TextRegexpDataDescriptor candidateDataDesc = cloneWithFile(fs, p);
-    List<SchemaDescriptor> candidateSchemaDescs = candidateDataDesc.getSchemaDescriptor();
+    return testData(fs, p, new FileProbe(fs, p));
+  }
 
-    for (SchemaDescriptor candidateSchemaDesc: candidateSchemaDescs) {
-      int maxTests = 100;
-      int observedItems = 0;
-      int numTests = 0;
-      for (Iterator it = candidateSchemaDesc.getIterator(); it.hasNext() && numTests < maxTests; numTests++) {
-        Object obj = it.next();
-        if (obj != null) {
-          observedItems++;
-        }
+  /**
+   * Test whether the input File corresponds to this data format, looking
+   * only at the lines held by the probe (at most MAX_TEST_LINES of them).
+   * The format matches if enough of those lines match one of its patterns.
+   * Blank lines aren't counted either way.
+   */
+  public boolean testData(FileSystem fs, Path p, FileProbe probe) throws IOException {
+    int numTested = 0;
+    int numMatched = 0;
+    for (String line: probe.getLines()) {
+      if (numTested >= MAX_TEST_LINES) {
+        break;
+      }
+      if (line.length() == 0) {
+        continue;
       }
-      double ratio = observedItems / (1.0 * numTests);
-      if (ratio >= 0.3) {
-        return true;
+      numTested++;
+      for (Pattern regexp: regexps) {
+        if (regexp.matcher(line).find()) {
+          numMatched++;
+          break;
+        }
       }
     }
-    return false;
+    return numTested > 0 && (numMatched / (1.0 * numTested)) >= MIN_MATCH_RATIO;
   }
   
   ///////////////////////////////////
@@ -15,6 +15,8 @@ import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.FileStatus;
 
+import com.cloudera.recordbreaker.learnstructure.CompressedInput;
+
 import org.apache.avro.Schema;
 import org.apache.avro.generic.GenericData;
 
@@ -73,7 +75,7 @@ public class TextRegexpSchemaDescriptor implements SchemaDescriptor {
       BufferedReader in;
       {
         try {
-          this.in = new BufferedReader(new InputStreamReader(fs.open(p)));
+          this.in = new BufferedReader(new InputStreamReader(CompressedInput.open(fs, p)));
           this.nextElt = lookahead();          
         } catch (IOException iex) {
           this.nextElt = null;
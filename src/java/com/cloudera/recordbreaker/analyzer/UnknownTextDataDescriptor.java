@@ -17,7 +17,6 @@ package com.cloudera.recordbreaker.analyzer;
 import java.io.File;
 import java.io.IOException;
 import java.io.FileInputStream;
-import java.io.BufferedInputStream;
 import java.util.List;
 import java.util.ArrayList;
 
@@ -48,24 +47,23 @@ public class UnknownTextDataDescriptor implements DataDescriptor {
    * of them are ASCII chars, then we assume it's text.
    */
   final static double asciiThreshold = 0.9;
+  final static int asciiTestBytes = 1024;
   public static boolean isTextData(FileSystem fs, Path p) throws IOException {
-    BufferedInputStream in = new BufferedInputStream(fs.open(p));
-    try {
-      byte buf[] = new byte[1024];
-      int numBytes = in.read(buf);
-      if (numBytes < 0) {
-        return false;
-      }
-      int numASCIIChars = 0;
-      for (int i = 0; i < numBytes; i++) {
-        if (buf[i] >= 32 && buf[i] < 128) {
-          numASCIIChars++;
-        }
+    return isTextData(new FileProbe(fs, p, asciiTestBytes));
+  }
+  public static boolean isTextData(FileProbe probe) {
+    byte buf[] = probe.getBytes();
+    int numBytes = Math.min(probe.getLength(), asciiTestBytes);
+    if (numBytes == 0) {
+      return false;
+    }
+    int numASCIIChars = 0;
+    for (int i = 0; i < numBytes; i++) {
+      if (buf[i] >= 32 && buf[i] < 128) {
+        numASCIIChars++;
       }
-      return ((numASCIIChars / (1.0 * numBytes)) > asciiThreshold);
-    } finally {
-      in.close();
     }
+    return ((numASCIIChars / (1.0 * numBytes)) > asciiThreshold);
   }
   
   FileSystem fs;
@@ -89,7 +87,10 @@ public class UnknownTextDataDescriptor implements DataDescriptor {
     // 1.  We already have a synthesized Avro data, with anonymous fields.
     // 2.  Test it against the known database of types.
     // 3.  Return the top-k types/schemas that we discover, as long as they pass a threshold.
+    // Learn from lines spread across the whole file, so that a format change
+    // partway through a big file still shows up in the schema.
     LearnStructure ls = new LearnStructure();
+    ls.setSamplingMode(LearnStructure.SAMPLE_STRATIFIED);
     ls.inferRecordFormat(fs, p, localFS, new Path(workingSchemaFile.getCanonicalPath()), null, null, new Path(workingAvroFile.getCanonicalPath()), false, maxLines);
 
     // The most basic schema descriptor is the raw one that captures the anonymous avro file
@@ -33,6 +33,8 @@ import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.FileStatus;
 
+import com.cloudera.recordbreaker.learnstructure.CompressedInput;
+
 import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
 import org.xml.sax.helpers.DefaultHandler;
@@ -68,7 +70,7 @@ public class XMLSchemaDescriptor implements SchemaDescriptor {
       // The XMLProcessor builds up a tree of tags
       XMLProcessor xp = new XMLProcessor();
       parser = factory.newSAXParser();
-      parser.parse(fs.open(p), xp);
+      parser.parse(CompressedInput.open(fs, p), xp);
 
       // Grab the root tag
       this.rootTag = xp.getRoot();
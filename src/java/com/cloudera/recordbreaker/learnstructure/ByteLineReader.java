@@ -0,0 +1,269 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocalFileSystem;
+import org.apache.hadoop.io.compress.CompressionCodec;
+
+/*********************************************************
+ * ByteLineReader hands back the lines of a text file without decoding them to Strings.
+ *
+ * Local files are memory-mapped with FileChannel.map(); files on any other FileSystem
+ * are read in large chunks into direct buffers.  Lines are split on the raw bytes,
+ * using the same terminators as BufferedReader.readLine() ('\n', '\r', or "\r\n").
+ *
+ * A line made up entirely of ASCII bytes comes back as a CharSequence view over the
+ * buffer, which the Lexer and the InferredType parser can consume in place.  Any
+ * other line is decoded with the platform charset, just as InputStreamReader would.
+ *
+ * Views stay valid after later calls to readLine(): we never overwrite a buffer that
+ * has been handed out, we allocate or map a fresh one instead.
+ *
+ * A reader can also be opened on a stream that has already been positioned somewhere
+ * in the middle of a file; getPosition() reports file offsets relative to that start.
+ *********************************************************/
+public class ByteLineReader {
+  static int MAP_WINDOW_SIZE = 1 << 28;
+  static int READ_BUFFER_SIZE = 1 << 22;
+  static Charset decodeCharset = Charset.defaultCharset();
+  static Charset asciiCharset = Charset.forName("ISO-8859-1");
+
+  /**
+   * A read-only CharSequence over a range of ASCII bytes.
+   */
+  static class AsciiLine implements CharSequence {
+    ByteBuffer buf;
+    int offset;
+    int len;
+
+    AsciiLine(ByteBuffer buf, int offset, int len) {
+      this.buf = buf;
+      this.offset = offset;
+      this.len = len;
+    }
+    public int length() {
+      return len;
+    }
+    public char charAt(int i) {
+      if (i < 0 || i >= len) {
+        throw new IndexOutOfBoundsException("Index: " + i + ", length: " + len);
+      }
+      return (char) buf.get(offset + i);
+    }
+    public CharSequence subSequence(int start, int end) {
+      if (start < 0 || end > len || start > end) {
+        throw new IndexOutOfBoundsException("Range: " + start + "-" + end + ", length: " + len);
+      }
+      return new AsciiLine(buf, offset + start, end - start);
+    }
+    public String toString() {
+      byte bytes[] = new byte[len];
+      for (int i = 0; i < len; i++) {
+        bytes[i] = buf.get(offset + i);
+      }
+      return new String(bytes, asciiCharset);
+    }
+  }
+
+  // File offset of byte 0 of 'buf'
+  long windowStart;
+
+  // Memory-mapped input
+  FileChannel fileChannel;
+  long fileSize;
+
+  // Streamed input
+  InputStream in;
+  ReadableByteChannel inChannel;
+  int readBufferSize;
+  boolean eof;
+
+  ByteBuffer buf;
+  int pos;
+  int limit;
+
+  /**
+   * Open the given path.  Local files are mapped; anything else is streamed.
+   * Compressed files (see CompressedInput) are streamed and decompressed, and
+   * positions count bytes of the decompressed data.
+   */
+  public ByteLineReader(FileSystem fs, Path p) throws IOException {
+    if (fs instanceof LocalFileSystem) {
+      File f = ((LocalFileSystem) fs).pathToFile(p);
+      RandomAccessFile raf = new RandomAccessFile(f, "r");
+      this.fileChannel = raf.getChannel();
+      this.fileSize = fileChannel.size();
+      this.windowStart = 0;
+      this.buf = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(fileSize, MAP_WINDOW_SIZE));
+      this.limit = buf.limit();
+      this.pos = 0;
+
+      byte head[] = new byte[Math.min(limit, CompressedInput.MAGIC_LEN)];
+      buf.get(head);
+      buf.rewind();
+      CompressionCodec codec = CompressedInput.getCodec(fs, p, head, head.length);
+      if (codec != null) {
+        fileChannel.close();
+        fileChannel = null;
+        initStream(codec.createInputStream(fs.open(p)), 0, READ_BUFFER_SIZE);
+      }
+    } else {
+      initStream(CompressedInput.open(fs, p), 0, READ_BUFFER_SIZE);
+    }
+  }
+
+  /**
+   * Read lines from a stream, in chunks of 'readBufferSize' bytes.  'startPos' is
+   * the file offset the stream is currently at.
+   */
+  public ByteLineReader(InputStream in, long startPos, int readBufferSize) {
+    initStream(in, startPos, readBufferSize);
+  }
+
+  void initStream(InputStream in, long startPos, int readBufferSize) {
+    this.in = in;
+    this.inChannel = Channels.newChannel(in);
+    this.readBufferSize = readBufferSize;
+    this.windowStart = startPos;
+    this.buf = ByteBuffer.allocateDirect(0);
+    this.limit = 0;
+    this.pos = 0;
+  }
+
+  /**
+   * The file offset of the next line that readLine() will return
+   */
+  public long getPosition() {
+    return windowStart + pos;
+  }
+
+  /**
+   * Move on to a new buffer, so that byte 'keepFrom' of the current buffer
+   * becomes byte 0 of the new one, and append as much fresh input as fits.
+   * Returns false (and changes nothing) if there is no more input to read.
+   */
+  boolean refill(int keepFrom) throws IOException {
+    int keepLen = limit - keepFrom;
+    if (fileChannel != null) {
+      long newStart = windowStart + keepFrom;
+      if (windowStart + limit >= fileSize) {
+        return false;
+      }
+      long size = Math.min(fileSize - newStart, Math.max((long) MAP_WINDOW_SIZE, 2L * keepLen));
+      if (size > Integer.MAX_VALUE) {
+        throw new IOException("Line at byte " + newStart + " is too long to map");
+      }
+      buf = fileChannel.map(FileChannel.MapMode.READ_ONLY, newStart, size);
+      windowStart = newStart;
+      limit = buf.limit();
+      return true;
+    } else {
+      if (eof) {
+        return false;
+      }
+      ByteBuffer newBuf = ByteBuffer.allocateDirect(Math.max(readBufferSize, 2 * keepLen));
+      for (int i = keepFrom; i < limit; i++) {
+        newBuf.put(buf.get(i));
+      }
+      while (newBuf.hasRemaining()) {
+        if (inChannel.read(newBuf) < 0) {
+          eof = true;
+          break;
+        }
+      }
+      buf = newBuf;
+      windowStart += keepFrom;
+      limit = newBuf.position();
+      return true;
+    }
+  }
+
+  /**
+   * Build the line object for bytes [start, end) of the current buffer.
+   */
+  CharSequence makeLine(int start, int end, boolean isAscii) {
+    if (isAscii) {
+      return new AsciiLine(buf, start, end - start);
+    }
+    byte bytes[] = new byte[end - start];
+    for (int i = start; i < end; i++) {
+      bytes[i - start] = buf.get(i);
+    }
+    return new String(bytes, decodeCharset);
+  }
+
+  /**
+   * Return the next line, without its terminator, or null at the end of the input.
+   */
+  public CharSequence readLine() throws IOException {
+    int start = pos;
+    int i = pos;
+    boolean isAscii = true;
+    while (true) {
+      if (i >= limit) {
+        if (refill(start)) {
+          i -= start;
+          start = 0;
+          continue;
+        }
+        if (i == start) {
+          pos = i;
+          return null;
+        }
+        pos = i;
+        return makeLine(start, i, isAscii);
+      }
+      byte b = buf.get(i);
+      if (b == '\n') {
+        pos = i + 1;
+        return makeLine(start, i, isAscii);
+      } else if (b == '\r') {
+        if (i + 1 >= limit && refill(start)) {
+          i -= start;
+          start = 0;
+        }
+        pos = (i + 1 < limit && buf.get(i + 1) == '\n') ? i + 2 : i + 1;
+        return makeLine(start, i, isAscii);
+      } else if (b < 0) {
+        isAscii = false;
+      }
+      i++;
+    }
+  }
+
+  /**
+   * Release the underlying file or stream.  Lines already returned remain readable.
+   */
+  public void close() throws IOException {
+    if (fileChannel != null) {
+      fileChannel.close();
+    }
+    if (in != null) {
+      in.close();
+    }
+  }
+}
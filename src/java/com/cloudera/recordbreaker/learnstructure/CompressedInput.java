@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.compress.GzipCodec;
+import org.apache.hadoop.io.compress.BZip2Codec;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.util.ReflectionUtils;
+
+/*********************************************************
+ * CompressedInput opens files so that compressed ones are decompressed as they're
+ * read, and everything downstream sees plain text (or whatever was compressed).
+ *
+ * gzip and bzip2 are recognized by their first bytes, whatever the file is called.
+ * Other codecs have no header we can rely on, so a file is taken to use one of them
+ * if Hadoop's CompressionCodecFactory says so from its extension.  A file named as if
+ * it were gzip'd or bzip2'd, but that doesn't start like it, is read as it is.
+ *
+ * A decompressed stream can't seek, so code that seeks (LineSampler, say) has to
+ * check isCompressed() first.
+ *********************************************************/
+public class CompressedInput {
+  static int MAGIC_LEN = 3;
+  static byte GZIP_MAGIC[] = {(byte) 0x1f, (byte) 0x8b};
+  static byte BZIP2_MAGIC[] = {'B', 'Z', 'h'};
+
+  static boolean startsWith(byte head[], int len, byte magic[]) {
+    if (len < magic.length) {
+      return false;
+    }
+    for (int i = 0; i < magic.length; i++) {
+      if (head[i] != magic[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  static Configuration getConf(FileSystem fs) {
+    Configuration conf = fs.getConf();
+    return (conf == null) ? new Configuration() : conf;
+  }
+
+  /**
+   * The codec the file was compressed with, given its first 'len' bytes (at least
+   * MAGIC_LEN, unless the file is shorter), or null if it isn't compressed.
+   */
+  public static CompressionCodec getCodec(FileSystem fs, Path p, byte head[], int len) {
+    Configuration conf = getConf(fs);
+    if (startsWith(head, len, GZIP_MAGIC)) {
+      return ReflectionUtils.newInstance(GzipCodec.class, conf);
+    } else if (startsWith(head, len, BZIP2_MAGIC)) {
+      return ReflectionUtils.newInstance(BZip2Codec.class, conf);
+    }
+    CompressionCodec codec = new CompressionCodecFactory(conf).getCodec(p);
+    if (codec instanceof GzipCodec || codec instanceof BZip2Codec) {
+      return null;
+    }
+    return codec;
+  }
+
+  /**
+   * The codec the file was compressed with, or null if it isn't compressed.  This
+   * reads the start of the file.
+   */
+  public static CompressionCodec getCodec(FileSystem fs, Path p) throws IOException {
+    InputStream in = fs.open(p);
+    try {
+      byte head[] = new byte[MAGIC_LEN];
+      return getCodec(fs, p, head, readFully(in, head));
+    } finally {
+      in.close();
+    }
+  }
+
+  public static boolean isCompressed(FileSystem fs, Path p) throws IOException {
+    return getCodec(fs, p) != null;
+  }
+
+  /**
+   * Open the file, decompressing it if it's compressed
+   */
+  public static InputStream open(FileSystem fs, Path p) throws IOException {
+    return open(fs, p, new CompressionCodec[1]);
+  }
+
+  /**
+   * Open the file, decompressing it if it's compressed.  The codec, or null, is
+   * left in codecOut[0].  The file is opened just once.
+   */
+  public static InputStream open(FileSystem fs, Path p, CompressionCodec codecOut[]) throws IOException {
+    PushbackInputStream in = new PushbackInputStream(fs.open(p), MAGIC_LEN);
+    try {
+      byte head[] = new byte[MAGIC_LEN];
+      int len = readFully(in, head);
+      in.unread(head, 0, len);
+      CompressionCodec codec = getCodec(fs, p, head, len);
+      codecOut[0] = codec;
+      return (codec == null) ? in : codec.createInputStream(in);
+    } catch (IOException iex) {
+      in.close();
+      throw iex;
+    }
+  }
+
+  /**
+   * Read until 'buf' is full or the stream ends, and return the number of bytes read
+   */
+  static int readFully(InputStream in, byte buf[]) throws IOException {
+    int len = 0;
+    int numRead = 0;
+    while (len < buf.length && (numRead = in.read(buf, len, buf.length - len)) >= 0) {
+      len += numRead;
+    }
+    return len;
+  }
+}
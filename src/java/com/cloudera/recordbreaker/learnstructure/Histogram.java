@@ -28,34 +28,6 @@ public class Histogram {
   static double MAX_RESIDUAL_MASS = 0.1;
   static double MIN_COVERAGE_FACTOR = 0.2;
 
-  ///////////////////////////////////////////////////
-  // static classes
-  ///////////////////////////////////////////////////
-  static class FrequencyPair implements Comparable {
-    int perChunkFrequency;
-    int overallChunkCount;
-    public FrequencyPair(int perChunkFrequency, int overallChunkCount) {
-      this.perChunkFrequency = perChunkFrequency;
-      this.overallChunkCount = overallChunkCount;
-    }
-    public int compareTo(Object o) {
-      FrequencyPair other = (FrequencyPair) o;
-      int cmp = overallChunkCount - other.overallChunkCount;
-      if (cmp != 0) {
-        return -1 * cmp;
-      } else {
-        cmp = perChunkFrequency - other.perChunkFrequency;
-        return cmp;
-      }
-    }
-    public int getPerChunkFrequency() {
-      return perChunkFrequency;
-    }
-    public int getCount() {
-      return overallChunkCount;
-    }
-  }
-
   //////////////////////////////////////////////////////////////
   // Static methods: for computing histograms from data,
   // and for clustering the resulting histograms.
@@ -68,91 +40,104 @@ public class Histogram {
    * Thus, the size of the output of this function is relatively small: no larger 
    * than the number of potential token types.  However, it can take awhile to compute
    * if the input data size is huge.  
-   *
-   * REMIND mjc - This fn may be a good candidate for runtime-perf optimization
    */
   public static List<Histogram> computeNormalizedHistograms(List<List<Token.AbstractToken>> chunks) {
-    Map<String, Map<Integer, Integer>> allHistograms = new TreeMap<String, Map<Integer, Integer>>();
+    TokenArena arena = TokenArena.fromChunks(chunks);
+    return computeNormalizedHistograms(arena, arena.getChunks());
+  }
+
+  /**
+   * Same as above, for a set of chunks stored in a TokenArena.  Token types are
+   * the arena's int type ids, so all the counting happens in int arrays, and
+   * the only per-chunk work is a pass over the chunk's tokens.  Histograms are returned in order of type name.
+   */
+  public static List<Histogram> computeNormalizedHistograms(TokenArena arena, TokenArena.ChunkList chunks) {
+    int numTypes = arena.getNumTypes();
     List<Histogram> normalizedHistograms = new ArrayList<Histogram>();
 
+    // freqCounts[type][f] is the number of chunks in which the type appears exactly f times
+    int freqCounts[][] = new int[numTypes][];
+    int localFreq[] = new int[numTypes];
+    int touchedTypes[] = new int[numTypes];
+
     //
     // 1.  Compute some per-chunk statistics
     //
-    for (List<Token.AbstractToken> chunk: chunks) {
-      // Compute frequencies of token-type within this chunk
-      HashMap<String, Integer> localFreq = new HashMap<String, Integer>();
-      for (Token.AbstractToken tok: chunk) {
-        Integer count = (Integer) localFreq.get(tok.getId());
-        if (count == null) {
-          localFreq.put(tok.getId(), 1);
-        } else {
-          localFreq.put(tok.getId(), count.intValue() + 1);
+    for (int c = 0; c < chunks.size(); c++) {
+      // Compute frequencies of token-type within this chunk.  A chunk that stands for
+      // several identical chunks is counted once for each of them.
+      int weight = chunks.getWeight(c);
+      int numTouched = 0;
+      for (int t = chunks.getStart(c); t < chunks.getEnd(c); t++) {
+        int type = arena.getTypeId(t);
+        if (localFreq[type] == 0) {
+          touchedTypes[numTouched++] = type;
         }
+        localFreq[type]++;
       }
 
       // Now adjust the "histogram of frequencies" associated with each token type
-      for (String tokenId: localFreq.keySet()) {
-        Map<Integer, Integer> perTokenTypeHistogram = allHistograms.get(tokenId);
-        if (perTokenTypeHistogram == null) {
-          perTokenTypeHistogram = new HashMap<Integer, Integer>();
-          allHistograms.put(tokenId, perTokenTypeHistogram);
-        }
-        Integer currentTokenTypeCount = localFreq.get(tokenId);
-        Integer countSoFar = perTokenTypeHistogram.get(currentTokenTypeCount);
-        if (countSoFar == null) {
-          perTokenTypeHistogram.put(currentTokenTypeCount, 1);
-        } else {
-          perTokenTypeHistogram.put(currentTokenTypeCount, countSoFar.intValue() + 1);
+      for (int i = 0; i < numTouched; i++) {
+        int type = touchedTypes[i];
+        int freq = localFreq[type];
+        localFreq[type] = 0;
+        int counts[] = freqCounts[type];
+        if (counts == null) {
+          counts = new int[Math.max(freq + 1, 4)];
+          freqCounts[type] = counts;
+        } else if (freq >= counts.length) {
+          counts = Arrays.copyOf(counts, Math.max(freq + 1, counts.length * 2));
+          freqCounts[type] = counts;
         }
+        counts[freq] += weight;
       }
     }
 
-    //
-    // 2.  Now for each per-token-type histogram, compute how many times the
-    //     token was observed in *no chunk at all*.
-    //
-    for (String tokenId: allHistograms.keySet()) {
-      Map<Integer, Integer> perTokenTypeHistogram = allHistograms.get(tokenId);
-      int numberOfChunksForObservedTokenTypeCount = 0;
-      for (Integer currentTokenTypeCount: perTokenTypeHistogram.keySet()) {
-        numberOfChunksForObservedTokenTypeCount += perTokenTypeHistogram.get(currentTokenTypeCount);
+    // Scratch space for sorting each histogram's (count, frequency) pairs
+    long sortKeys[] = new long[4];
+    for (int type: arena.getTypesInNameOrder()) {
+      int counts[] = freqCounts[type];
+      if (counts == null) {
+        continue;
       }
-      perTokenTypeHistogram.put(0, chunks.size() - numberOfChunksForObservedTokenTypeCount);
-    }
-
-    //
-    // 3.  Normalize the per-token-type histograms
-    //
-    for (Map.Entry<String, Map<Integer, Integer>> e1: allHistograms.entrySet()) {
-      String tokenId = e1.getKey();
-      Map<Integer, Integer> perTokenTypeHistogram = e1.getValue();
-      double coverage = 0;
-      double totalMass = 0;
 
+      //
+      // 2.  For each per-token-type histogram, compute how many times the
+      //     token was observed in *no chunk at all*.
+      //
+      // 3.  Normalize the per-token-type histograms
+      //
       // 3.1.  Compute the histogram's normal form: all the counts in descending order of prevalence in the chunk set.
-      //       Also, compute some metainfo stats along the way
-      SortedSet<FrequencyPair> sorter = new TreeSet<FrequencyPair>();
-      for (Map.Entry<Integer, Integer> e2: perTokenTypeHistogram.entrySet()) {
-        Integer perChunkFrequency = e2.getKey();
-        Integer overallChunkCount = e2.getValue();
-        if (perChunkFrequency.intValue() != 0) {
-          coverage += overallChunkCount.intValue();
-          sorter.add(new FrequencyPair(perChunkFrequency, overallChunkCount));
+      //       Also, compute some metainfo stats along the way.  Each pair is packed into a long that sorts
+      //       by descending count, then ascending frequency.
+      double coverage = 0;
+      double totalMass = chunks.getTotalWeight();
+      int width = 0;
+      if (sortKeys.length < counts.length) {
+        sortKeys = new long[counts.length];
+      }
+      for (int perChunkFrequency = 1; perChunkFrequency < counts.length; perChunkFrequency++) {
+        int overallChunkCount = counts[perChunkFrequency];
+        if (overallChunkCount != 0) {
+          coverage += overallChunkCount;
+          sortKeys[width++] = (((long) (Integer.MAX_VALUE - overallChunkCount)) << 32) | perChunkFrequency;
         }
-        totalMass += overallChunkCount.intValue();
       }
-      List<FrequencyPair> normalForm = new ArrayList<FrequencyPair>();
-      for (FrequencyPair p: sorter) {
-        normalForm.add(p);
+      Arrays.sort(sortKeys, 0, width);
+      int normalFreqs[] = new int[width + 1];
+      int normalCounts[] = new int[width + 1];
+      normalFreqs[0] = 0;
+      normalCounts[0] = chunks.getTotalWeight() - (int) coverage;
+      for (int i = 0; i < width; i++) {
+        normalFreqs[i+1] = (int) sortKeys[i];
+        normalCounts[i+1] = Integer.MAX_VALUE - (int) (sortKeys[i] >>> 32);
       }
-      normalForm.add(0, new FrequencyPair(0, perTokenTypeHistogram.get(0)));
 
       // 3.2.  Compute metainfo
-      double width = perTokenTypeHistogram.size()-1;
-      double residualMass = (totalMass - normalForm.get(1).getCount()) / totalMass;
+      double residualMass = (totalMass - normalCounts[1]) / totalMass;
 
       // 3.3   Done with the histogram!
-      normalizedHistograms.add(new Histogram(tokenId, normalForm, width, residualMass, coverage));
+      normalizedHistograms.add(new Histogram(type, arena.getTypeName(type), normalFreqs, normalCounts, width, residualMass, coverage));
     }
     return normalizedHistograms;
   }
@@ -175,95 +160,136 @@ public class Histogram {
       return clusters;
     }
 
-    // 2.  Otherwise, compute pairwise symmetric relative entropy among histograms
-    class Score implements Comparable {
-      double s;
-      int i;
-      int j;
-      public Score(double s, int i, int j) {
-        this.s = s;
-        this.i = i;
-        this.j = j;
-      }
-      public int getIndex1() {
-        return i;
-      }
-      public int getIndex2() {
-        return j;
-      }
-      public int compareTo(Object o) {
-        Score other = (Score) o;
-        if (this.s < other.s) {
-          return -1;
-        } else if (this.s > other.s) {
-          return 1;
-        } else {
-          int cmp = this.i - other.i;
-          if (cmp == 0) {
-            cmp = this.j - other.j;
-          }
-          return cmp;
-        }
-      }
-    }
-    SortedSet<Score> scores = new TreeSet<Score>();
-    for (int i = 0; i < inputHistograms.size(); i++) {
-      for (int j = i+1; j < inputHistograms.size(); j++) {
-        Histogram h1 = inputHistograms.get(i);
+    // 2.  Otherwise, compute pairwise symmetric relative entropy among histograms.
+    //     Only the pairs close enough to be merged are kept.
+    int numHistograms = inputHistograms.size();
+    int numScores = 0;
+    double scores[] = new double[16];
+    int scoreIdx1[] = new int[16];
+    int scoreIdx2[] = new int[16];
+    for (int i = 0; i < numHistograms; i++) {
+      Histogram h1 = inputHistograms.get(i);
+      for (int j = i+1; j < numHistograms; j++) {
         Histogram h2 = inputHistograms.get(j);
         double sre = h1.computeSymmetricRelativeEntropy(h2);
         if (sre < CLUSTER_TOLERANCE) {
-          scores.add(new Score(sre, i, j));
+          if (numScores == scores.length) {
+            scores = Arrays.copyOf(scores, numScores * 2);
+            scoreIdx1 = Arrays.copyOf(scoreIdx1, numScores * 2);
+            scoreIdx2 = Arrays.copyOf(scoreIdx2, numScores * 2);
+          }
+          scores[numScores] = sre;
+          scoreIdx1[numScores] = i;
+          scoreIdx2[numScores] = j;
+          numScores++;
         }
       }
     }
 
-    // Initialize clusters
-    Map<Integer, Integer> histogramToCluster = new TreeMap<Integer, Integer>();
-    Map<Integer, Set<Integer>> clusterToHistograms = new TreeMap<Integer, Set<Integer>>();
-    for (int i = 0; i < inputHistograms.size(); i++) {
-      histogramToCluster.put(i, i);
-      Set<Integer> containedHistograms = new HashSet<Integer>();
-      containedHistograms.add(i);
-      clusterToHistograms.put(i, containedHistograms);
-    } 
-    // Start merging clusters
-    for (Score s: scores) {
-      int idx1 = s.getIndex1();
-      int idx2 = s.getIndex2();
-      int cluster1 = histogramToCluster.get(idx1);
-      int cluster2 = histogramToCluster.get(idx2);
+    // Visit the pairs in ascending order of score.  Pairs were generated in (i, j) order,
+    // so a stable sort breaks ties the same way.
+    int order[] = new int[numScores];
+    for (int k = 0; k < numScores; k++) {
+      order[k] = k;
+    }
+    sortByScore(order, new int[numScores], 0, numScores, scores);
 
-      if (cluster1 == cluster2) {
+    // Initialize clusters.  Clusters are kept in a union-find forest; each root also
+    // records the cluster's id, which is the index of the histogram the cluster started from.
+    int parent[] = new int[numHistograms];
+    int rank[] = new int[numHistograms];
+    int clusterId[] = new int[numHistograms];
+    for (int i = 0; i < numHistograms; i++) {
+      parent[i] = i;
+      clusterId[i] = i;
+    }
+    // Start merging clusters.  The merged cluster keeps the id of the first histogram's cluster.
+    for (int k = 0; k < numScores; k++) {
+      int root1 = findRoot(parent, scoreIdx1[order[k]]);
+      int root2 = findRoot(parent, scoreIdx2[order[k]]);
+      if (root1 == root2) {
         continue;
       }
-      for (Integer histogramId: clusterToHistograms.get(cluster2)) {
-        histogramToCluster.put(histogramId, cluster1);
+      int id = clusterId[root1];
+      if (rank[root1] < rank[root2]) {
+        parent[root1] = root2;
+        clusterId[root2] = id;
+      } else {
+        parent[root2] = root1;
+        if (rank[root1] == rank[root2]) {
+          rank[root1]++;
+        }
       }
-      clusterToHistograms.get(cluster1).addAll(clusterToHistograms.get(cluster2));
-      clusterToHistograms.remove(cluster2);
     }
 
-    // Build the clustered histogram list.
+    // Build the clustered histogram list, in order of cluster id
+    // There are no arrays of a generic type, so make a wildcard one and cast it
+    @SuppressWarnings("unchecked")
+    List<Histogram> clusterMembers[] = (List<Histogram>[]) new List<?>[numHistograms];
+    for (int i = 0; i < numHistograms; i++) {
+      int id = clusterId[findRoot(parent, i)];
+      if (clusterMembers[id] == null) {
+        clusterMembers[id] = new ArrayList<Histogram>();
+      }
+      clusterMembers[id].add(inputHistograms.get(i));
+    }
     List<List<Histogram>> clusters = new ArrayList<List<Histogram>>();
-    for (Map.Entry<Integer, Set<Integer>> entry: clusterToHistograms.entrySet()) {
-      Integer clusterId = entry.getKey();
-      Set<Integer> histograms = entry.getValue();
-
-      List<Histogram> curCluster = new ArrayList<Histogram>();
-      for (Integer histogramIndex: histograms) {
-        curCluster.add(inputHistograms.get(histogramIndex));
+    for (int id = 0; id < numHistograms; id++) {
+      if (clusterMembers[id] != null) {
+        clusters.add(clusterMembers[id]);
       }
-      clusters.add(curCluster);
     }
     return clusters;
   }
 
+  /**
+   * Find the root of i's tree in the union-find forest, compressing the path along the way.
+   */
+  static int findRoot(int parent[], int i) {
+    int root = i;
+    while (parent[root] != root) {
+      root = parent[root];
+    }
+    while (parent[i] != root) {
+      int next = parent[i];
+      parent[i] = root;
+      i = next;
+    }
+    return root;
+  }
+
+  /**
+   * Stable merge sort of order[lo..hi) by ascending scores[order[k]].
+   */
+  static void sortByScore(int order[], int tmp[], int lo, int hi, double scores[]) {
+    if (hi - lo < 2) {
+      return;
+    }
+    int mid = (lo + hi) >>> 1;
+    sortByScore(order, tmp, lo, mid, scores);
+    sortByScore(order, tmp, mid, hi, scores);
+    if (scores[order[mid-1]] <= scores[order[mid]]) {
+      return;
+    }
+    System.arraycopy(order, lo, tmp, lo, hi - lo);
+    int a = lo;
+    int b = mid;
+    for (int k = lo; k < hi; k++) {
+      if (b >= hi || (a < mid && scores[tmp[a]] <= scores[tmp[b]])) {
+        order[k] = tmp[a++];
+      } else {
+        order[k] = tmp[b++];
+      }
+    }
+  }
+
   //////////////////////////////////////////////////////////////
   // Members
   //////////////////////////////////////////////////////////////
-  String histogramType;
-  List<FrequencyPair> normalForm;
+  int histogramType;
+  String histogramName;
+  int normalFreqs[];
+  int normalCounts[];
   double width;
   double residualMass;
   double coverage;
@@ -271,9 +297,16 @@ public class Histogram {
   //////////////////////////////////////////////////////////////
   // Methods
   //////////////////////////////////////////////////////////////
-  public Histogram(String histogramType, List<FrequencyPair> normalForm, double width, double residualMass, double coverage) {
+  /**
+   * The normal form is given as parallel arrays: normalCounts[i] chunks contain the
+   * token type exactly normalFreqs[i] times.  Element 0 is always the zero-frequency
+   * entry; the rest are in descending order of count.
+   */
+  public Histogram(int histogramType, String histogramName, int normalFreqs[], int normalCounts[], double width, double residualMass, double coverage) {
     this.histogramType = histogramType;
-    this.normalForm = normalForm;
+    this.histogramName = histogramName;
+    this.normalFreqs = normalFreqs;
+    this.normalCounts = normalCounts;
     this.width = width;
     this.residualMass = residualMass;
     this.coverage = coverage;
@@ -285,9 +318,15 @@ public class Histogram {
   public boolean passArrayStatisticalTest(int numChunks) {
     return width > 3 && coverage > MIN_COVERAGE_FACTOR * numChunks;
   }
-  public String getHistogramType() {
+  /**
+   * The TokenArena type id of the token type this histogram describes
+   */
+  public int getHistogramType() {
     return histogramType;
   }
+  public String getHistogramName() {
+    return histogramName;
+  }
   public double getWidth() {
     return width;
   }
@@ -300,9 +339,9 @@ public class Histogram {
 
   public String toString() {
     StringBuffer buf = new StringBuffer();
-    buf.append("Histogram:  type=" + histogramType + ", width=" + width + ", residualMass=" + residualMass + ", coverage=" + coverage + ", normalForm=[");
-    for (FrequencyPair fp: normalForm) {
-      buf.append("(" + fp.getPerChunkFrequency() + ", " + fp.getCount() + ") ");
+    buf.append("Histogram:  type=" + histogramName + ", width=" + width + ", residualMass=" + residualMass + ", coverage=" + coverage + ", normalForm=[");
+    for (int i = 0; i < normalCounts.length; i++) {
+      buf.append("(" + normalFreqs[i] + ", " + normalCounts[i] + ") ");
     }
     buf.append("]");
     return buf.toString();
@@ -311,35 +350,37 @@ public class Histogram {
   /**
    * The relative entropy score is used for clustering.  However, we can't compute
    * it directly, as histograms do not always contain the same components.  Instead,
-   * we preprocess the data with computeSymmetricRelativeEntropy(), then pass the resulting
-   * averaged values into this pretty generic method.
+   * we compare against the average of the two histograms' counts, as prepared by
+   * computeSymmetricRelativeEntropy().
    */
-  double computeRelativeEntropy(List<Double> avgCounts) {
+  double computeRelativeEntropy(Histogram h1, Histogram h2) {
     double total = 0;
-    for (int i = 1; i < normalForm.size(); i++) {
-      double selfOverallChunkCount = normalForm.get(i).getCount();
-      double otherOverallChunkCount = avgCounts.get(i);
+    for (int i = 1; i < normalCounts.length; i++) {
+      double selfOverallChunkCount = normalCounts[i];
+      double otherOverallChunkCount = averageCount(h1, h2, i);
       total += selfOverallChunkCount * Math.log(selfOverallChunkCount / otherOverallChunkCount);
     }
     return total;
   }
 
   /**
-   * The point of this method is to preprocess the data from two input Histograms,
-   * getting it ready for the relative entropy computation.  Without this preprocessing,
-   * the rel-entropy computation would be sensitive to varying numbers of components in each histogram.
+   * The i'th averaged count of two histograms.  Without this averaging, the
+   * rel-entropy computation would be sensitive to varying numbers of components in each histogram.
    */
-  double computeSymmetricRelativeEntropy(Histogram other) {
-    List<Double> avgCounts = new ArrayList<Double>();
-    for (int i = 0; i < Math.max(normalForm.size(), other.normalForm.size()); i++) {
-      if ((i < normalForm.size()) && (i < other.normalForm.size())) {
-        avgCounts.add((normalForm.get(i).getCount() + other.normalForm.get(i).getCount()) / 2.0);
-      } else if (i < normalForm.size()) {
-        avgCounts.add(normalForm.get(i).getCount() * 0.5);
-      } else {
-        avgCounts.add(other.normalForm.get(i).getCount() * 0.5);
-      }
+  static double averageCount(Histogram h1, Histogram h2, int i) {
+    if ((i < h1.normalCounts.length) && (i < h2.normalCounts.length)) {
+      return (h1.normalCounts[i] + h2.normalCounts[i]) / 2.0;
+    } else if (i < h1.normalCounts.length) {
+      return h1.normalCounts[i] * 0.5;
+    } else {
+      return h2.normalCounts[i] * 0.5;
     }
-    return 0.5 * this.computeRelativeEntropy(avgCounts) + 0.5 * other.computeRelativeEntropy(avgCounts);
+  }
+
+  /**
+   * Symmetric relative entropy between this Histogram and another one.
+   */
+  double computeSymmetricRelativeEntropy(Histogram other) {
+    return 0.5 * this.computeRelativeEntropy(this, other) + 0.5 * other.computeRelativeEntropy(this, other);
   }
 }
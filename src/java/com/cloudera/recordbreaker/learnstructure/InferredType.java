@@ -16,6 +16,7 @@ package com.cloudera.recordbreaker.learnstructure;
 
 import java.lang.reflect.*;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.io.*;
 import java.util.regex.*;
 import org.apache.hadoop.io.*;
@@ -27,6 +28,10 @@ import org.codehaus.jackson.JsonNode;
 /*********************************************************
  * InferredType is returned by TypeInference.infer() for the inferred record type
  * of a file's contents.  It has several subclasses.
+ *
+ * A node's Avro schema is built the first time it's asked for, and then kept.
+ * Intermediate trees (the one TypeInference builds before hoistUnions(), say)
+ * never build theirs; a nested union's schema couldn't be built anyway.
  *********************************************************/
 public abstract class InferredType implements Writable {
   static byte BASE_TYPE = 1;
@@ -38,9 +43,12 @@ public abstract class InferredType implements Writable {
   static int BASE_NOOP = 1;
 
   String name;
+  ParserProgram program;
 
   /**
-   * Super constructor
+   * Super constructor.  Names come from per-kind counters that are safe to share
+   * between threads; TypeInference builds each tree on a single thread, so a tree's
+   * names don't depend on how many threads took part in inferring it.
    */
   public InferredType() {
     name = createName();
@@ -69,83 +77,32 @@ public abstract class InferredType implements Writable {
   }
 
   /**
-   * Use the type tree to parse the given input string
+   * Use the type tree to parse the given input string.
    */
-  class ParseResult {
-    Object data;
-    boolean hasData;
-    String s;
+  public GenericContainer parse(CharSequence str) {
+    return compile().newParser().parse(str);
+  }
 
-    /**
-     */
-    ParseResult(Object data, boolean hasData, String s) {
-      this.data = data;
-      this.hasData = hasData;
-      this.s = s;
-    }
-    String getRemainingString() {
-      return s;
-    }
-    Object getData() {
-      return data;
-    }
-    boolean hasData() {
-      return hasData;
-    }
-  }
-  public GenericContainer parse(String str) {
-    //
-    // Try the naive parse
-    //
-    ParseResult pr = internalParse(str, null, true);
-    if (pr != null && pr.hasData()) {
-      return (GenericContainer) pr.getData();
-    }
-
-    //
-    // Otherwise, we need to consider other union-options.
-    // Unfold the candidate decisions into a series of target decisions
-    //
-    Map<String, Set<Integer>> candidateUnionDecisions = findCandidateUnionDecisions();
-
-    List<HashMap<String, Integer>> allUnionDecisions = new ArrayList<HashMap<String, Integer>>();
-    for (Map.Entry<String, Set<Integer>> pair: candidateUnionDecisions.entrySet()) {
-      String k = pair.getKey();
-      Set<Integer> indices = pair.getValue();
-
-      if (allUnionDecisions.size() == 0) {
-        for (Integer index: indices) {
-          HashMap<String, Integer> newMap = new HashMap<String, Integer>();
-          newMap.put(k, index);
-          allUnionDecisions.add(newMap);
-        }
-      } else {
-        List<HashMap<String, Integer>> newUnionDecisions = new ArrayList<HashMap<String, Integer>>();
-        for (HashMap<String, Integer> curUnionDecisions: allUnionDecisions) {
-          for (Integer index: indices) {
-            HashMap<String, Integer> newMap = (HashMap<String, Integer>) curUnionDecisions.clone();
-            newMap.put(k, index);
-            newUnionDecisions.add(newMap);
-          }
-        }
-        allUnionDecisions = newUnionDecisions;
-      }
-    }
+  /**
+   * Parse the given input string, counting the work done at each node in 'profile'
+   * (which must be for this tree: see ParseProfile(InferredType)).
+   */
+  public GenericContainer parse(CharSequence str, ParseProfile profile) {
+    ParserProgram.Parser parser = compile().newParser();
+    parser.setProfile(profile);
+    return parser.parse(str);
+  }
 
-    //
-    // Now execute all possible union decisions
-    //
-    for (Map<String, Integer> targetUnionDecisions: allUnionDecisions) {
-      pr = internalParse(str, targetUnionDecisions, true);
-      if (pr != null && pr.hasData()) {
-        return (GenericContainer) pr.getData();
-      }
+  /**
+   * The type tree compiled into a ParserProgram.  It's built on first use and kept;
+   * to parse many lines, get a Parser from it once and reuse that.
+   */
+  public synchronized ParserProgram compile() {
+    if (program == null) {
+      program = new ParserProgram(this);
     }
-    return null;
+    return program;
   }
-  abstract ParseResult internalParse(String s, Map<String, Integer> targetUnionDecisions, boolean mustConsumeStr);
-  abstract Map<String, Set<Integer>> findCandidateUnionDecisions();
-  abstract List<String> getBases();
 
   /**
    * Read/write to disk
@@ -163,9 +120,117 @@ public abstract class InferredType implements Writable {
    * Accessors
    */
   public abstract Schema getAvroSchema();
+
+  /**
+   * The tree with each union's union-typed branches replaced by their branches.
+   * Subtrees with nothing to hoist are shared with this tree rather than copied,
+   * along with the schemas they've already built.
+   *
+   * Identical subtrees elsewhere in the tree are not merged into one node.  Each
+   * node's name is its own Avro field or record name, each BaseType keeps its own
+   * sample values for its doc string, and ParserProgram gives every node exactly
+   * one parent, so two equal "Base: int" fields must stay two nodes.
+   */
   public abstract InferredType hoistUnions();
-  public abstract List<InferredType> materializeWithoutUnions();
-  abstract InferredType duplicate();
+
+  /**
+   * The union-free trees this type describes, one for each way of picking a branch
+   * at every union.  They're built lazily, most likely first: an alternative's
+   * likelihood is the product of the observed frequencies of the branches it picks.
+   * Parts of the tree that have no unions are shared with this tree, not copied.
+   */
+  public Iterator<InferredType> materializeWithoutUnions() {
+    return materializeWithoutUnions(-1);
+  }
+
+  /**
+   * The first 'maxTrees' union-free trees (or all of them, if maxTrees < 0)
+   */
+  public Iterator<InferredType> materializeWithoutUnions(final int maxTrees) {
+    final Alternatives alts = alternatives();
+    return new Iterator<InferredType>() {
+      int i = 0;
+      public boolean hasNext() {
+        return (maxTrees < 0 || i < maxTrees) && alts.has(i);
+      }
+      public InferredType next() {
+        if (! hasNext()) {
+          throw new NoSuchElementException();
+        }
+        return alts.tree(i++);
+      }
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  /**
+   * The type's union-free alternatives, not yet built
+   */
+  abstract Alternatives alternatives();
+
+  /**
+   * A type's union-free alternatives, in order of increasing cost, where the cost
+   * of an alternative is -log of its likelihood.  Alternatives are built on request
+   * and kept, since a parent may combine each of them with many others.
+   */
+  static abstract class Alternatives {
+    List<InferredType> trees = new ArrayList<InferredType>();
+    List<Double> costs = new ArrayList<Double>();
+    boolean exhausted = false;
+
+    /**
+     * Is there an i'th alternative?  Builds it (and the ones before it) if so.
+     */
+    boolean has(int i) {
+      while (trees.size() <= i && ! exhausted) {
+        exhausted = ! buildNext();
+      }
+      return i < trees.size();
+    }
+    InferredType tree(int i) {
+      return trees.get(i);
+    }
+    double cost(int i) {
+      return costs.get(i);
+    }
+    void add(InferredType tree, double cost) {
+      trees.add(tree);
+      costs.add(cost);
+    }
+
+    /**
+     * add() the next-cheapest alternative, or return false if there are no more
+     */
+    abstract boolean buildNext();
+  }
+
+  /**
+   * A partly-explored combination of alternatives, for a best-first search: which
+   * alternative to take for each part, and the last part whose choice was moved.
+   * Ties go to the candidate that was found first, so the order is deterministic.
+   */
+  static class Candidate implements Comparable<Candidate> {
+    int choices[];
+    int lastChoice;
+    double cost;
+    long seqno;
+
+    Candidate(int choices[], int lastChoice, double cost, long seqno) {
+      this.choices = choices;
+      this.lastChoice = lastChoice;
+      this.cost = cost;
+      this.seqno = seqno;
+    }
+    public int compareTo(Candidate other) {
+      if (cost != other.cost) {
+        return (cost < other.cost) ? -1 : 1;
+      }
+      return (seqno < other.seqno) ? -1 : ((seqno > other.seqno) ? 1 : 0);
+    }
+  }
+
   public String getDocString() {
     return "";
   }
@@ -186,7 +251,7 @@ class BaseType extends InferredType {
   Schema schema = null;
   List<String> sampleStrs = null;
 
-  static int fieldCounter = 0;
+  static AtomicInteger fieldCounter = new AtomicInteger();
   public BaseType() {
   }
   public BaseType(Token.AbstractToken token, List<String> sampleStrs) {
@@ -194,31 +259,35 @@ class BaseType extends InferredType {
     this.tokenClassIdentifier = token.getClassId();
     this.tokenParameter = token.getParameter();
     //System.err.println("Token parameter: " + tokenParameter);
-    this.schema = computeAvroSchema();
   }
   public BaseType(int tokenClassIdentifier, List<String> sampleStrs, String tokenParameter) {
     this.sampleStrs = sampleStrs;
     this.tokenClassIdentifier = tokenClassIdentifier;
     this.tokenParameter = tokenParameter;
     //System.err.println("Token parameter: " + tokenParameter);
-    this.schema = computeAvroSchema();
   }
   public InferredType hoistUnions() {
     return this;
   }
-  public List<InferredType> materializeWithoutUnions() {
-    List<InferredType> toReturn = new ArrayList<InferredType>();
-    toReturn.add(this.duplicate());
-    return toReturn;
-  }
-  InferredType duplicate() {
-    return new BaseType(tokenClassIdentifier, sampleStrs, tokenParameter);
+  Alternatives alternatives() {
+    return new Alternatives() {
+      boolean buildNext() {
+        if (trees.size() > 0) {
+          return false;
+        }
+        add(BaseType.this, 0);
+        return true;
+      }
+    };
   }
 
   Schema computeAvroSchema() {
     return Token.AbstractToken.createAvroSchema(tokenClassIdentifier, tokenParameter, name);
   }
   public Schema getAvroSchema() {
+    if (schema == null) {
+      schema = computeAvroSchema();
+    }
     return schema;
   }
   public String getDocString() {
@@ -233,24 +302,6 @@ class BaseType extends InferredType {
     }
     return buf.toString();
   }
-  ParseResult internalParse(String s, Map<String, Integer> targetUnionDecisions, boolean mustConsumeStr) {
-    List<Token.AbstractToken> outputToks = new ArrayList<Token.AbstractToken>();
-    String newStr = Tokenizer.attemptParse(tokenClassIdentifier, tokenParameter, s, outputToks);
-    if (newStr == null || (mustConsumeStr && newStr.trim().length()!=0)) {
-      return null;
-    }
-    assert(outputToks.size()==1);
-    // outputToks should contain just one result.
-    return new ParseResult(outputToks.get(0).get(), Token.AbstractToken.hasData(tokenClassIdentifier), newStr);
-  }
-  Map<String, Set<Integer>> findCandidateUnionDecisions() {
-    return new HashMap<String, Set<Integer>>();
-  }
-  List<String> getBases() {
-    List<String> tr = new ArrayList<String>();
-    tr.add(toString());
-    return tr;
-  }
   public String toString() {
     return "Base: " + Token.AbstractToken.getStrDesc(tokenClassIdentifier, tokenParameter) + " ";
   }
@@ -258,7 +309,7 @@ class BaseType extends InferredType {
     return CARD_COST;
   }
   String createName() {
-    return "base_" + fieldCounter++;
+    return "base_" + fieldCounter.getAndIncrement();
   }
   public void readFields(DataInput in) throws IOException {
     // instance-specific
@@ -273,7 +324,6 @@ class BaseType extends InferredType {
     } else {
       this.tokenParameter = null;
     }
-    this.schema = computeAvroSchema();
   }
   public void write(DataOutput out) throws IOException {
     out.writeInt(sampleStrs.size());
@@ -296,64 +346,95 @@ class BaseType extends InferredType {
  ****************************************/
 class StructType extends InferredType {
   List<InferredType> structTypes;
-  static int recordCounter = 0;
+  static AtomicInteger recordCounter = new AtomicInteger();
   Schema schema;
 
   public StructType() {
   }
   public StructType(List<InferredType> structTypes) {
     this.structTypes = structTypes;
-    this.schema = computeAvroSchema();
-  }
-  void addElt(InferredType structElt) {
-    this.structTypes.add(structElt);
   }
   public InferredType hoistUnions() {
     List<InferredType> newStructTypes = new ArrayList<InferredType>();
+    boolean changed = false;
     for (InferredType it: structTypes) {
-      newStructTypes.add(it.hoistUnions());
+      InferredType newIt = it.hoistUnions();
+      changed |= (newIt != it);
+      newStructTypes.add(newIt);
     }
-    return new StructType(newStructTypes);
+    return changed ? new StructType(newStructTypes) : this;
   }
-  public List<InferredType> materializeWithoutUnions() {
-    List<InferredType> newStructs = new ArrayList<InferredType>();
-
-    for (int i = 0; i < structTypes.size(); i++) {
-      List<InferredType> curTrees = structTypes.get(i).materializeWithoutUnions();
 
-      if (i == 0) {
-        for (int j = 0; j < curTrees.size(); j++) {
-          List<InferredType> curTypeList = new ArrayList<InferredType>();
-          curTypeList.add(curTrees.get(j));
-          newStructs.add(new StructType(curTypeList));
+  /**
+   * A struct's alternatives are the combinations of its fields' alternatives.  The
+   * search starts from every field's cheapest alternative; a candidate's successors
+   * each move one field to its next alternative.  Only fields at or after the last
+   * one moved may move, so each combination is reached exactly once.
+   */
+  Alternatives alternatives() {
+    final int numFields = structTypes.size();
+    final Alternatives fieldAlts[] = new Alternatives[numFields];
+    for (int i = 0; i < numFields; i++) {
+      fieldAlts[i] = structTypes.get(i).alternatives();
+    }
+    return new Alternatives() {
+      PriorityQueue<Candidate> frontier = null;
+      long seqno = 0;
+
+      /**
+       * Summed afresh rather than adjusted from a neighbour's, since a branch that
+       * was never observed costs infinity, and infinity minus itself isn't zero
+       */
+      double cost(int choices[]) {
+        double cost = 0;
+        for (int i = 0; i < numFields; i++) {
+          cost += fieldAlts[i].cost(choices[i]);
         }
-      } else {
-        List<InferredType> evenNewerStructs = new ArrayList<InferredType>();
-        evenNewerStructs.addAll(newStructs);
-        for (int j = 1; j < curTrees.size(); j++) {         
-          for (int k = 0; k < newStructs.size(); k++) {
-            evenNewerStructs.add(newStructs.get(k).duplicate());
+        return cost;
+      }
+
+      boolean buildNext() {
+        if (frontier == null) {
+          frontier = new PriorityQueue<Candidate>();
+          for (int i = 0; i < numFields; i++) {
+            if (! fieldAlts[i].has(0)) {
+              return false;
+            }
           }
+          int choices[] = new int[numFields];
+          frontier.add(new Candidate(choices, 0, cost(choices), seqno++));
         }
-        for (int j = 0; j < curTrees.size(); j++) {
-          for (int k = 0; k < evenNewerStructs.size(); k++) {
-            ((StructType) evenNewerStructs.get(k)).addElt(curTrees.get(j));
+        Candidate c = frontier.poll();
+        if (c == null) {
+          return false;
+        }
+
+        List<InferredType> fields = new ArrayList<InferredType>(numFields);
+        boolean changed = false;
+        for (int i = 0; i < numFields; i++) {
+          InferredType field = fieldAlts[i].tree(c.choices[i]);
+          changed |= (field != structTypes.get(i));
+          fields.add(field);
+        }
+        add(changed ? new StructType(fields) : StructType.this, c.cost);
+
+        for (int i = c.lastChoice; i < numFields; i++) {
+          int choice = c.choices[i];
+          if (fieldAlts[i].has(choice + 1)) {
+            int choices[] = c.choices.clone();
+            choices[i]++;
+            frontier.add(new Candidate(choices, i, cost(choices), seqno++));
           }
         }
-        newStructs = evenNewerStructs;
+        return true;
       }
-    }
-    return newStructs;
-  }
-  InferredType duplicate() {
-    List<InferredType> newElts = new ArrayList<InferredType>();
-    for (InferredType elt: structTypes) {
-      newElts.add(elt.duplicate());
-    }
-    return new StructType(newElts);
+    };
   }
 
   public Schema getAvroSchema() {
+    if (schema == null) {
+      schema = computeAvroSchema();
+    }
     return schema;
   }
   Schema computeAvroSchema() {
@@ -363,7 +444,7 @@ class StructType extends InferredType {
       if (itS == null) {
         continue;
       }
-      fields.add(new Schema.Field(it.getName(), it.getAvroSchema(), it.getDocString(), it.getDefaultValue()));
+      fields.add(new Schema.Field(it.getName(), itS, it.getDocString(), it.getDefaultValue()));
     }
     Schema s = Schema.createRecord(name, "RECORD", "", false);
     s.setFields(fields);
@@ -387,7 +468,7 @@ class StructType extends InferredType {
     return dc;
   }
   String createName() {
-    return "record_" + recordCounter++;
+    return "record_" + recordCounter.getAndIncrement();
   }
   public void readFields(DataInput in) throws IOException {
     int numStructTypes = in.readInt();
@@ -395,7 +476,6 @@ class StructType extends InferredType {
     for (int i = 0; i < numStructTypes; i++) {
       structTypes.add(InferredType.readType(in));
     }
-    this.schema = computeAvroSchema();
   }
   public void write(DataOutput out) throws IOException {
     out.write(STRUCT_TYPE);
@@ -405,74 +485,40 @@ class StructType extends InferredType {
     }
   }
 
-  /**
-   * Parse the given string, return resulting data if appropriate.
-   */
-  ParseResult internalParse(String s, Map<String, Integer> targetUnionDecisions, boolean mustConsumeStr) {
-    boolean hasData = false;
-    GenericData.Record gdr = new GenericData.Record(getAvroSchema());
-    String currentStr = s;
-
-    for (InferredType subelt: structTypes) {
-      if (currentStr.length() == 0) {
-        return null;
-      }
-      ParseResult pr = subelt.internalParse(currentStr, targetUnionDecisions, false);
-      if (pr == null) {
-        return null;
-      }
-      if (pr.hasData()) {
-        hasData = true;
-        gdr.put(subelt.getName(), pr.getData());
-      }
-      currentStr = pr.getRemainingString();
-    }
-    if (mustConsumeStr && currentStr.trim().length() != 0) {
-      return null;
-    }
-    return new ParseResult(gdr, hasData, currentStr);
-  }
-  Map<String, Set<Integer>> findCandidateUnionDecisions() {
-    Map<String, Set<Integer>> candidateUnionDecisions = new HashMap<String, Set<Integer>>();
-    for (InferredType subelt: structTypes) {
-      candidateUnionDecisions.putAll(subelt.findCandidateUnionDecisions());
-    }
-    return candidateUnionDecisions;
-  }
-  List<String> getBases() {
-    List<String> tr = new ArrayList<String>();
-    for (InferredType subelt: structTypes) {
-      tr.addAll(subelt.getBases());
-    }
-    return tr;
-  }
 }
 
 class ArrayType extends InferredType {
   InferredType bodyType;
-  static int arrayCounter = 0;
+  static AtomicInteger arrayCounter = new AtomicInteger();
   Schema schema = null;
 
   public ArrayType() {
   }
   public ArrayType(InferredType bodyType) {
     this.bodyType = bodyType;
-    this.schema = computeAvroSchema();
   }
   public InferredType hoistUnions() {
-    return new ArrayType(bodyType.hoistUnions());
-  }
-  public List<InferredType> materializeWithoutUnions() {
-    List<InferredType> newArrays = new ArrayList<InferredType>();
-    for (InferredType subtype: bodyType.materializeWithoutUnions()) {
-      newArrays.add(new ArrayType(subtype));
-    }
-    return newArrays;
-  }
-  InferredType duplicate() {
-    return new ArrayType(bodyType);
+    InferredType newBodyType = bodyType.hoistUnions();
+    return (newBodyType != bodyType) ? new ArrayType(newBodyType) : this;
+  }
+  Alternatives alternatives() {
+    final Alternatives bodyAlts = bodyType.alternatives();
+    return new Alternatives() {
+      boolean buildNext() {
+        int i = trees.size();
+        if (! bodyAlts.has(i)) {
+          return false;
+        }
+        InferredType body = bodyAlts.tree(i);
+        add((body != bodyType) ? new ArrayType(body) : ArrayType.this, bodyAlts.cost(i));
+        return true;
+      }
+    };
   }
   public Schema getAvroSchema() {
+    if (schema == null) {
+      schema = computeAvroSchema();
+    }
     return schema;
   }
   Schema computeAvroSchema() {
@@ -485,43 +531,11 @@ class ArrayType extends InferredType {
     return CARD_COST + bodyType.getDescriptionCost();
   }
   String createName() {
-    return "array_" + arrayCounter++;
-  }
-  /**
-   * Parse the given string, return resulting data if appropriate.
-   */
-  ParseResult internalParse(String s, Map<String, Integer> targetUnionDecisions, boolean mustConsumeStr) {
-    boolean hasData = false;
-    Schema localSchema = getAvroSchema();
-    GenericData.Array gda = new GenericData.Array(5, localSchema);
-    Map<String, Integer> curUnionDecisions = new HashMap<String, Integer>();
-    String currentStr = s;
-
-    while (true) {
-      ParseResult pr = bodyType.internalParse(currentStr, targetUnionDecisions, false);
-      if (pr == null) {
-        break;
-      }
-      assert(pr.hasData());
-
-      gda.add(pr.getData());
-      currentStr = pr.getRemainingString();
-    }
-    if (mustConsumeStr && currentStr.trim().length() != 0) {
-      return null;
-    }
-    return new ParseResult(gda, true, currentStr);
-  }
-  Map<String, Set<Integer>> findCandidateUnionDecisions() {
-    return bodyType.findCandidateUnionDecisions();
-  }
-  List<String> getBases() {
-    return bodyType.getBases();
+    return "array_" + arrayCounter.getAndIncrement();
   }
 
   public void readFields(DataInput in) throws IOException {
     bodyType = InferredType.readType(in);
-    this.schema = computeAvroSchema();
   }
   public void write(DataOutput out) throws IOException {
     out.write(ARRAY_TYPE);
@@ -531,47 +545,112 @@ class ArrayType extends InferredType {
 
 class UnionType extends InferredType {
   List<InferredType> unionTypes;
-  static int unionCounter = 0;
+  // How often each branch was observed, or null if that isn't known
+  double branchWeights[];
+  static AtomicInteger unionCounter = new AtomicInteger();
   Schema schema = null;
 
   public UnionType() {
   }
   public UnionType(List<InferredType> unionTypes) {
+    this(unionTypes, null);
+  }
+  public UnionType(List<InferredType> unionTypes, double branchWeights[]) {
     this.unionTypes = unionTypes;
-    this.schema = computeAvroSchema();
+    this.branchWeights = branchWeights;
+  }
+
+  /**
+   * The fraction of observations that took the given branch.  If there were no
+   * observations, every branch is equally likely.
+   */
+  double getBranchFraction(int i) {
+    if (branchWeights != null) {
+      double total = 0;
+      for (int j = 0; j < branchWeights.length; j++) {
+        total += branchWeights[j];
+      }
+      if (total > 0) {
+        return branchWeights[i] / total;
+      }
+    }
+    return 1.0 / unionTypes.size();
   }
   public InferredType hoistUnions() {
     List<InferredType> newUnionTypes = new ArrayList<InferredType>();
-    for (InferredType it: unionTypes) {
+    List<Double> newFractions = new ArrayList<Double>();
+    boolean changed = false;
+    for (int i = 0; i < unionTypes.size(); i++) {
+      InferredType it = unionTypes.get(i);
       if (it instanceof UnionType) {
-        UnionType subUnion = (UnionType) it;
-        for (InferredType it2: subUnion.unionTypes) {
-          newUnionTypes.add(it2.hoistUnions());
+        // Hoisting the subunion first brings up its own subunions' branches too
+        UnionType subUnion = (UnionType) it.hoistUnions();
+        for (int j = 0; j < subUnion.unionTypes.size(); j++) {
+          newUnionTypes.add(subUnion.unionTypes.get(j));
+          newFractions.add(getBranchFraction(i) * subUnion.getBranchFraction(j));
         }
+        changed = true;
       } else {
-        newUnionTypes.add(it.hoistUnions());
+        InferredType newIt = it.hoistUnions();
+        changed |= (newIt != it);
+        newUnionTypes.add(newIt);
+        newFractions.add(getBranchFraction(i));
       }
     }
-    return new UnionType(newUnionTypes);
-  }
-
-  public List<InferredType> materializeWithoutUnions() {
-    List<InferredType> allOptions = new ArrayList<InferredType>();
-    for (InferredType branch: unionTypes) {
-      allOptions.addAll(branch.materializeWithoutUnions());
+    if (! changed) {
+      return this;
+    }
+    double newWeights[] = new double[newFractions.size()];
+    for (int i = 0; i < newWeights.length; i++) {
+      newWeights[i] = newFractions.get(i);
     }
-    return allOptions;
+    return new UnionType(newUnionTypes, newWeights);
   }
 
-  InferredType duplicate() {
-    List<InferredType> newBranches = new ArrayList<InferredType>();
-    for (InferredType branch: unionTypes) {
-      newBranches.add(branch.duplicate());
-    }
-    return new UnionType(newBranches);
+  /**
+   * A union's alternatives are its branches' alternatives, each costing an extra
+   * -log of the branch's fraction.  They're merged cheapest-first.
+   */
+  Alternatives alternatives() {
+    final int numBranches = unionTypes.size();
+    final Alternatives branchAlts[] = new Alternatives[numBranches];
+    final double branchCosts[] = new double[numBranches];
+    for (int i = 0; i < numBranches; i++) {
+      branchAlts[i] = unionTypes.get(i).alternatives();
+      branchCosts[i] = -Math.log(getBranchFraction(i));
+    }
+    return new Alternatives() {
+      PriorityQueue<Candidate> frontier = null;
+      long seqno = 0;
+
+      boolean buildNext() {
+        if (frontier == null) {
+          frontier = new PriorityQueue<Candidate>();
+          for (int i = 0; i < numBranches; i++) {
+            if (branchAlts[i].has(0)) {
+              frontier.add(new Candidate(new int[] {i, 0}, 0, branchCosts[i] + branchAlts[i].cost(0), seqno++));
+            }
+          }
+        }
+        Candidate c = frontier.poll();
+        if (c == null) {
+          return false;
+        }
+        int branch = c.choices[0];
+        int choice = c.choices[1];
+        add(branchAlts[branch].tree(choice), c.cost);
+        if (branchAlts[branch].has(choice + 1)) {
+          frontier.add(new Candidate(new int[] {branch, choice + 1}, 0, branchCosts[branch] + branchAlts[branch].cost(choice + 1), seqno++));
+        }
+        return true;
+      }
+    };
   }
 
   public Schema getAvroSchema() {
+    if (schema == null) {
+      schema = computeAvroSchema();
+    }
     return schema;
   }
   Schema computeAvroSchema() {
@@ -585,80 +664,11 @@ class UnionType extends InferredType {
       String schemaDesc = itS.toString();
       if (! observedSchemas.contains(schemaDesc)) {
         observedSchemas.add(schemaDesc);
-        fields.add(it.getAvroSchema());
+        fields.add(itS);
       }
     }
     return Schema.createUnion(fields);
   }
-  /**
-   * Parse the given string, return resulting data if appropriate.
-   */
-  ParseResult internalParse(String s, Map<String, Integer> targetUnionDecisions, boolean mustConsumeStr) {
-    //
-    // If there's no target decision, then go ahead and try all branches.
-    //
-    if (targetUnionDecisions == null || targetUnionDecisions.get(name) == null) {
-      for (InferredType subelt: unionTypes) {
-        ParseResult pr = subelt.internalParse(s, targetUnionDecisions, false);
-        if (pr != null && (!mustConsumeStr || (mustConsumeStr && pr.getRemainingString().trim().length() == 0))) {
-          return new ParseResult(pr.getData(), pr.hasData(), pr.getRemainingString());
-        }
-      }
-      return null;
-    }
-
-    //
-    // If there is a target decision, then carry it out.
-    //
-    InferredType subelt = unionTypes.get(targetUnionDecisions.get(name));
-    ParseResult pr = subelt.internalParse(s, targetUnionDecisions, false);
-    if (pr != null && (!mustConsumeStr || (mustConsumeStr && pr.getRemainingString().trim().length() == 0))) {
-      return new ParseResult(pr.getData(), pr.hasData(), pr.getRemainingString());
-    }
-    return null;
-  }
-
-  /**
-   */
-  boolean isPrefixOf(List<String> a, List<String> b) {
-    for (int i = 0; i < a.size(); i++) {
-      if (i >= b.size() || a.get(i).compareTo(b.get(i)) != 0) {
-        return false;
-      }
-    }
-    return true;
-  }
- 
-  /**
-   */
-  Map<String, Set<Integer>> findCandidateUnionDecisions() {
-    HashSet<Integer> curDecisions = new HashSet<Integer>();
-    for (int i = 0; i < unionTypes.size(); i++) {
-      for (int j = i+1; j < unionTypes.size(); j++) {
-        List<String> iBases = unionTypes.get(i).getBases();
-        List<String> jBases = unionTypes.get(j).getBases();
-        if (isPrefixOf(iBases, jBases) || isPrefixOf(jBases, iBases)) {
-          curDecisions.add(i);
-          curDecisions.add(j);
-        }
-      }
-    }
-    Map<String, Set<Integer>> candidateUnionDecisions = new HashMap<String, Set<Integer>>();
-    for (InferredType subelt: unionTypes) {
-      candidateUnionDecisions.putAll(subelt.findCandidateUnionDecisions());
-    }
-    if (curDecisions.size() > 0) {
-      candidateUnionDecisions.put(name, curDecisions);
-    }
-    return candidateUnionDecisions;
-  }
-
-  /**
-   */
-  List<String> getBases() {
-    // We stop the base-evaluation when we hit a union.
-    return new ArrayList<String>();
-  }
 
   public String toString() {
     StringBuffer buf = new StringBuffer();
@@ -677,7 +687,7 @@ class UnionType extends InferredType {
     return dc;
   }
   String createName() {
-    return "union_" + unionCounter++;
+    return "union_" + unionCounter.getAndIncrement();
   }
   public void readFields(DataInput in) throws IOException {
     int numUnionElts = in.readInt();
@@ -685,7 +695,6 @@ class UnionType extends InferredType {
     for (int i = 0; i < numUnionElts; i++) {
       unionTypes.add(InferredType.readType(in));
     }
-    this.schema = computeAvroSchema();
   }
   public void write(DataOutput out) throws IOException {
     out.write(UNION_TYPE);
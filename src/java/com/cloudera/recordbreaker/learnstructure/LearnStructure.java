@@ -16,13 +16,15 @@ package com.cloudera.recordbreaker.learnstructure;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.nio.ByteBuffer;
+import javax.management.JMException;
 import org.apache.avro.Schema;
-import org.apache.avro.io.JsonEncoder;
-import org.apache.avro.io.EncoderFactory;
-import org.apache.avro.file.DataFileWriter;
 import org.apache.avro.generic.GenericContainer;
-import org.apache.avro.generic.GenericDatumWriter;
 
+import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.FileStatus;
@@ -40,57 +42,331 @@ public class LearnStructure {
   public static String JSONDATA_FILENAME = "data.avro.json";
   public static String DATA_FILENAME = "data.avro";
   public static String PARSER_FILENAME = "parser.dat";
+  public static String UNPARSED_FILENAME = "unparsed.txt";
+  static int TOKENIZE_BATCH_SIZE = 8192;
+  static int TOKENIZE_TASK_SIZE = 256;
+  static int PARSE_BATCH_SIZE = 1024;
+
+  // How inferRecordFormat() picks the 'maxLines' lines it learns from; see LineSampler
+  public static final int SAMPLE_HEAD = 0;
+  public static final int SAMPLE_RESERVOIR = 1;
+  public static final int SAMPLE_STRATIFIED = 2;
+  static int STRATIFIED_NUM_STRATA = 16;
+
+  /**
+   * Tokenizes lines [lo, hi) of a batch, splitting the range in half
+   * until it is small enough to do directly.  Each line's tokens land in
+   * the matching slot of 'results', so the batch stays in line order.
+   */
+  static class TokenizeTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    CharSequence lines[];
+    List<Token.AbstractToken> results[];
+    int lo;
+    int hi;
+
+    public TokenizeTask(CharSequence lines[], List<Token.AbstractToken> results[], int lo, int hi) {
+      this.lines = lines;
+      this.results = results;
+      this.lo = lo;
+      this.hi = hi;
+    }
+    protected void compute() {
+      if (hi - lo <= TOKENIZE_TASK_SIZE) {
+        try {
+          for (int i = lo; i < hi; i++) {
+            results[i] = Tokenizer.tokenize(lines[i]);
+          }
+        } catch (IOException iex) {
+          throw new RuntimeException(iex);
+        }
+      } else {
+        int mid = (lo + hi) / 2;
+        invokeAll(new TokenizeTask(lines, results, lo, mid), new TokenizeTask(lines, results, mid, hi));
+      }
+    }
+  }
+
+  /**
+   * Parses a batch of lines with a ParserProgram, and keeps whichever forms of each
+   * value the sinks use.  The encodings are packed end to end into a single array.
+   * Each task borrows a Parser from 'parsers' (or makes one, if none is free; it's
+   * profiled by 'monitor', if that's non-null).  Unless 'reuseData' is off, the Parser
+   * reuses its objects from one batch to the next, so the task holds on to it until the
+   * batch has been emitted, and emitBatch() puts it back.
+   */
+  static class ParseTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    ParserProgram program;
+    Queue<ParserProgram.Parser> parsers;
+    ParseMonitor monitor;
+    boolean reuseData;
+    boolean usesDatum;
+    boolean usesEncoded;
+    CharSequence lines[];
+    int numLines;
+
+    ParserProgram.Parser parser;
+    boolean isParsed[];
+    GenericContainer datums[];
+    byte encoded[];
+    int encodedEnd[];
+
+    public ParseTask(ParserProgram program, Queue<ParserProgram.Parser> parsers, ParseMonitor monitor, boolean reuseData, boolean usesDatum, boolean usesEncoded, CharSequence lines[], int numLines) {
+      this.program = program;
+      this.parsers = parsers;
+      this.monitor = monitor;
+      this.reuseData = reuseData;
+      this.usesDatum = usesDatum;
+      this.usesEncoded = usesEncoded;
+      this.lines = lines;
+      this.numLines = numLines;
+    }
+    protected void compute() {
+      parser = parsers.poll();
+      if (parser == null) {
+        parser = program.newParser();
+        parser.setReuseData(reuseData);
+        if (monitor != null) {
+          parser.setProfile(monitor.newProfile());
+        }
+      }
+      try {
+        isParsed = new boolean[numLines];
+        datums = usesDatum ? new GenericContainer[numLines] : null;
+        encodedEnd = new int[numLines];
+        ByteArrayOutputStream encodedOut = new ByteArrayOutputStream();
+        for (int i = 0; i < numLines; i++) {
+          ByteBuffer datumBytes;
+          if (usesDatum) {
+            datums[i] = parser.parse(lines[i]);
+            isParsed[i] = (datums[i] != null);
+            datumBytes = (isParsed[i] && usesEncoded) ? parser.encode(datums[i]) : null;
+          } else {
+            datumBytes = parser.encode(lines[i]);
+            isParsed[i] = (datumBytes != null);
+          }
+          if (datumBytes != null && usesEncoded) {
+            encodedOut.write(datumBytes.array(), datumBytes.position(), datumBytes.remaining());
+          }
+          encodedEnd[i] = encodedOut.size();
+        }
+        encoded = encodedOut.toByteArray();
+      } catch (IOException iex) {
+        throw new RuntimeException(iex);
+      }
+    }
+  }
+
+  int numThreads;
+  int samplingMode = SAMPLE_HEAD;
+  boolean profileParse = false;
+  boolean reuseData = true;
 
   public LearnStructure() {
+    this(1);
+  }
+
+  /**
+   * 'numThreads' is the number of threads used to tokenize the input, discover its structure, and parse it.
+   */
+  public LearnStructure(int numThreads) {
+    this.numThreads = numThreads;
+  }
+
+  /**
+   * When inferRecordFormat() is given a line limit, it learns from a sample of that many lines:
+   * the first lines of the file (SAMPLE_HEAD, the default), a uniform random sample of the whole
+   * file (SAMPLE_RESERVOIR), or runs of lines from evenly spaced points in the file (SAMPLE_STRATIFIED).
+   */
+  public void setSamplingMode(int samplingMode) {
+    this.samplingMode = samplingMode;
+  }
+
+  /**
+   * Profile the parsers that produce the data outputs (see ParseProfile).  While they run,
+   * the profile is published as a JMX MBean, a ParseMonitor; when they're done, it's printed
+   * to stderr.
+   */
+  public void setProfileParse(boolean profileParse) {
+    this.profileParse = profileParse;
+  }
+
+  /**
+   * Whether the parsers reuse their records and arrays from one batch of lines to the
+   * next (the default).  A sink that wants to keep a GenericContainer must copy it either
+   * way; this is here so that tests can check that reuse doesn't change the output.
+   */
+  void setReuseData(boolean reuseData) {
+    this.reuseData = reuseData;
+  }
+
+  /**
+   * The IOException that a fork-join task wrapped in the RuntimeException it threw, or else
+   * the RuntimeException itself is rethrown.  The wrapper may be wrapped again: when a task
+   * fails on another thread, join() and invoke() throw a new exception of the same class,
+   * with the original as its cause.  So the whole chain of causes is searched.
+   */
+  static IOException unwrapIOException(RuntimeException rex) {
+    for (Throwable cause = rex.getCause(); cause != null; cause = cause.getCause()) {
+      if (cause instanceof IOException) {
+        return (IOException) cause;
+      }
+    }
+    throw rex;
+  }
+
+  /**
+   * Tokenize the first 'numLines' lines in 'lines'.  If 'pool' is null, it's done on the
+   * current thread; otherwise the work is split across the pool.
+   */
+  List<Token.AbstractToken>[] tokenizeBatch(ForkJoinPool pool, CharSequence lines[], int numLines) throws IOException {
+    // There are no arrays of a generic type, so make a wildcard one and cast it
+    @SuppressWarnings("unchecked")
+    List<Token.AbstractToken> results[] = (List<Token.AbstractToken>[]) new List<?>[numLines];
+    if (pool == null) {
+      for (int i = 0; i < numLines; i++) {
+        results[i] = Tokenizer.tokenize(lines[i]);
+      }
+    } else {
+      try {
+        pool.invoke(new TokenizeTask(lines, results, 0, numLines));
+      } catch (RuntimeException rex) {
+        throw unwrapIOException(rex);
+      }
+    }
+    return results;
   }
   
+  /**
+   * The sinks for the usual data outputs: Avro JSON and an Avro data file, for whichever
+   * of the paths are non-null.
+   */
+  public static List<RecordSink> createDataSinks(FileSystem fs2, Path jsonDataFile, Path avroDataFile) {
+    List<RecordSink> sinks = new ArrayList<RecordSink>();
+    if (jsonDataFile != null) {
+      sinks.add(new RecordSink.JsonSink(fs2, jsonDataFile));
+    }
+    if (avroDataFile != null) {
+      sinks.add(new RecordSink.AvroFileSink(fs2, avroDataFile));
+    }
+    return sinks;
+  }
+
   /**
    */
   public void inferRecordFormat(FileSystem fs, Path p, FileSystem fs2, Path schemaFile, Path parseTreeFile, Path jsonDataFile, Path avroDataFile, boolean verbose, int maxLines) throws IOException {    
+    inferRecordFormat(fs, p, fs2, schemaFile, parseTreeFile, createDataSinks(fs2, jsonDataFile, avroDataFile), verbose, maxLines);
+  }
+
+  /**
+   * Learn the structure of the text file 'p', write the schema and parser program, and
+   * then parse the whole file once, handing every line to each of 'sinks'.
+   */
+  public void inferRecordFormat(FileSystem fs, Path p, FileSystem fs2, Path schemaFile, Path parseTreeFile, List<RecordSink> sinks, boolean verbose, int maxLines) throws IOException {
     // Store parse errors and results
     List<Integer> unparseableLineNos = new ArrayList<Integer>();
     List<String> unparseableStrs = new ArrayList<String>();
     List<Integer> parseableLineNos = new ArrayList<Integer>();
-    List<List<Token.AbstractToken>> allChunks = new ArrayList<List<Token.AbstractToken>>();
+    TokenArena allChunks = new TokenArena();
 
     //
     // Transform the text into a list of "chunks".  A single chunk corresponds to a line of text.  A chunk is a list of Tokens.
+    // The chunks are packed into a TokenArena as we go, so the per-line token objects are short-lived.
+    //
+    // Lines are read as raw bytes (memory-mapped, for local files) and tokenized in place;
+    // see ByteLineReader.  Splitting lines is cheap, so it happens here, one batch at a time;
+    // each batch is then tokenized across 'numThreads' threads and merged back in line order.
+    // The same pool is used afterwards for structure discovery.  (Its worker threads are
+    // daemons, so an exception that skips the shutdown below won't keep the JVM alive.)
+    //
+    // With a line limit and a sampling mode other than SAMPLE_HEAD, the lines come from a
+    // LineSampler instead, and line numbers count lines of the sample.
+    //
+    // If there are sinks to feed, we hold on to the lines we read.  When they turn out to
+    // be the whole file, the parse pass uses them rather than reading the file again.
     //
     long startRead = System.currentTimeMillis();
-    BufferedReader in = new BufferedReader(new InputStreamReader(fs.open(p)));
+    ForkJoinPool pool = (numThreads > 1) ? new ForkJoinPool(numThreads) : null;
+    ByteLineReader in = null;
+    Iterator<CharSequence> sampledLines = null;
+    if (maxLines >= 0 && samplingMode == SAMPLE_RESERVOIR) {
+      sampledLines = LineSampler.reservoirSample(fs, p, maxLines).iterator();
+    } else if (maxLines >= 0 && samplingMode == SAMPLE_STRATIFIED) {
+      sampledLines = LineSampler.stratifiedSample(fs, p, STRATIFIED_NUM_STRATA, maxLines).iterator();
+    } else {
+      in = new ByteLineReader(fs, p);
+    }
+    List<CharSequence> inputLines = (in != null && sinks.size() > 0) ? new ArrayList<CharSequence>() : null;
     try {
-      String s = in.readLine();
+      CharSequence batch[] = new CharSequence[TOKENIZE_BATCH_SIZE];
       int lineno = 0;
-      while (s != null) {
-        if (maxLines >= 0 && lineno >= maxLines) {
-          break;
+      boolean done = false;
+      while (! done) {
+        int batchSize = 0;
+        while (batchSize < batch.length) {
+          if (maxLines >= 0 && lineno + batchSize >= maxLines) {
+            if (inputLines != null && in.readLine() != null) {
+              inputLines = null;
+            }
+            done = true;
+            break;
+          }
+          CharSequence s;
+          if (sampledLines != null) {
+            s = sampledLines.hasNext() ? sampledLines.next() : null;
+          } else {
+            s = in.readLine();
+          }
+          if (s == null) {
+            done = true;
+            break;
+          }
+          batch[batchSize++] = s;
         }
-        List<Token.AbstractToken> chunkToks = Tokenizer.tokenize(s);
-        if (chunkToks != null) {
-          allChunks.add(chunkToks);
-          parseableLineNos.add(lineno);
-        } else {
-          unparseableStrs.add(s);
-          unparseableLineNos.add(lineno);
+
+        if (inputLines != null) {
+          inputLines.addAll(Arrays.asList(batch).subList(0, batchSize));
+        }
+        List<Token.AbstractToken> batchToks[] = tokenizeBatch(pool, batch, batchSize);
+        for (int i = 0; i < batchSize; i++) {
+          List<Token.AbstractToken> chunkToks = batchToks[i];
+          if (chunkToks != null) {
+            allChunks.addChunk(chunkToks);
+            parseableLineNos.add(lineno);
+          } else {
+            unparseableStrs.add(batch[i].toString());
+            unparseableLineNos.add(lineno);
+          }
+          lineno++;
         }
-        s = in.readLine();
-        lineno++;
       }
     } finally {
-      in.close();
+      if (in != null) {
+        in.close();
+      }
     }
+    allChunks.trimToSize();
 
     //
     // Infer type structure from the tokenized chunks
     //
     long start = System.currentTimeMillis();
-    InferredType typeTree = TypeInference.infer(allChunks);
+    InferredType typeTree;
+    try {
+      typeTree = TypeInference.infer(allChunks, pool);
+    } finally {
+      if (pool != null) {
+        pool.shutdown();
+      }
+    }
     long end = System.currentTimeMillis();
     double loadTime = (start - startRead) / 1000.0;
     double inferTime = (end - start) / 1000.0;
     double totalTime = (end - startRead) / 1000.0;
     if (verbose) {
-      System.err.println("Number of chunks: " + allChunks.size());    
+      System.err.println("Number of chunks: " + allChunks.getChunks().size());
+      System.err.println("Number of tokens: " + allChunks.size() + " (" + allChunks.getFootprint() + " bytes)");
       System.err.println("Elapsed load time: " + loadTime);
       System.err.println("Elapsed inference time: " + inferTime);
       System.err.println("Total execution time: " + totalTime);
@@ -111,7 +387,39 @@ public class LearnStructure {
     // 1) A JSON/Avro schema
     // 2) A serialized parser program that can consume data and emit Avro files using the given schema
     //
-    Schema s = typeTree.getAvroSchema();
+    emitResults(fs, p, fs2, typeTree.compile(), schemaFile, parseTreeFile, inputLines, sinks, verbose);
+  }
+
+  /**
+   * Apply a parser program saved by an earlier inferRecordFormat() (its PARSER_FILENAME
+   * output) to the given text file.  Inference and compilation are skipped entirely; the
+   * schema and data files are written just as inferRecordFormat() would write them.
+   */
+  public void applyRecordFormat(FileSystem fs, Path p, FileSystem fs2, Path parseTreeFile, Path schemaFile, Path jsonDataFile, Path avroDataFile, boolean verbose) throws IOException {
+    applyRecordFormat(fs, p, fs2, parseTreeFile, schemaFile, createDataSinks(fs2, jsonDataFile, avroDataFile), verbose);
+  }
+
+  /**
+   * Apply a saved parser program, handing every line of the text file to each of 'sinks'.
+   */
+  public void applyRecordFormat(FileSystem fs, Path p, FileSystem fs2, Path parseTreeFile, Path schemaFile, List<RecordSink> sinks, boolean verbose) throws IOException {
+    ParserProgram program;
+    DataInputStream ind = new DataInputStream(new BufferedInputStream(fs2.open(parseTreeFile)));
+    try {
+      program = ParserProgram.readProgram(ind);
+    } finally {
+      ind.close();
+    }
+    emitResults(fs, p, fs2, program, schemaFile, null, null, sinks, verbose);
+  }
+
+  /**
+   * Write the schema and the parser program, for whichever of the paths are non-null, and
+   * run the program over the input, feeding the sinks.  If 'inputLines' is non-null, it
+   * holds every line of the input, and the file isn't read again.
+   */
+  void emitResults(FileSystem fs, Path p, FileSystem fs2, ParserProgram program, Path schemaFile, Path parseTreeFile, List<CharSequence> inputLines, List<RecordSink> sinks, boolean verbose) throws IOException {
+    Schema s = program.getAvroSchema();
     if (schemaFile != null) {
       BufferedWriter out = new BufferedWriter(new OutputStreamWriter(fs2.create(schemaFile)));
       try {
@@ -123,78 +431,166 @@ public class LearnStructure {
     if (parseTreeFile != null) {
       DataOutputStream outd = new DataOutputStream(new BufferedOutputStream(fs2.create(parseTreeFile)));
       try {
-        typeTree.write(outd);
+        program.write(outd);
       } finally {
         outd.close();
       }
     }
+    if (sinks.size() == 0) {
+      return;
+    }
 
     //
-    // Apply the typetree's parser.
+    // Apply the parser program, in a single pass that feeds every sink.  Lines are read
+    // here, in batches, and each batch is parsed by a ParseTask.  With more than one
+    // thread, up to two batches per thread are in the pool at once; as the oldest one
+    // finishes, its results go to the sinks, so the sinks see the lines in input order
+    // and the output is the same as a single thread's.  Unless some sink wants the
+    // GenericContainers, lines are encoded straight to Avro binary.
     //
-    if (jsonDataFile != null) {
-      Schema schema = typeTree.getAvroSchema();
-      GenericDatumWriter jsonGDWriter = new GenericDatumWriter(schema);      
-      BufferedOutputStream outJson = new BufferedOutputStream(fs2.create(jsonDataFile));
-      JsonEncoder encoder = EncoderFactory.get().jsonEncoder(schema, outJson);
+    boolean usesDatum = false;
+    boolean usesEncoded = false;
+    for (RecordSink sink: sinks) {
+      usesDatum |= sink.usesDatum();
+      usesEncoded |= sink.usesEncoded();
+    }
+    ForkJoinPool pool = (numThreads > 1) ? new ForkJoinPool(numThreads) : null;
+    Queue<ParserProgram.Parser> parsers = new ConcurrentLinkedQueue<ParserProgram.Parser>();
+    Deque<ParseTask> pendingTasks = new ArrayDeque<ParseTask>();
+    int maxPendingTasks = (pool == null) ? 1 : 2 * numThreads;
+    long counts[] = new long[2];
+    ParseMonitor monitor = null;
+    if (profileParse) {
+      monitor = new ParseMonitor(program, p.toString());
       try {
-        in = new BufferedReader(new InputStreamReader(fs.open(p)));
-        try {
-          //System.err.println("Type tree root is " + typeTree);
-          String str = in.readLine();
-          while (str != null) {
-            GenericContainer gct = typeTree.parse(str);
-
-            if (gct != null) {
-              jsonGDWriter.write(gct, encoder);
-            }
+        monitor.register();
+      } catch (JMException jme) {
+        System.err.println("Could not publish the parse profile over JMX: " + jme);
+      }
+    }
+    ByteLineReader in = null;
+    try {
+      for (RecordSink sink: sinks) {
+        sink.open(s);
+      }
+      Iterator<CharSequence> inputIt = null;
+      if (inputLines != null) {
+        inputIt = inputLines.iterator();
+      } else {
+        in = new ByteLineReader(fs, p);
+      }
+      boolean done = false;
+      while (! done) {
+        CharSequence batch[] = new CharSequence[PARSE_BATCH_SIZE];
+        int batchSize = 0;
+        while (batchSize < batch.length) {
+          CharSequence str;
+          if (inputIt != null) {
+            str = inputIt.hasNext() ? inputIt.next() : null;
+          } else {
             str = in.readLine();
-          }      
-        } finally {
+          }
+          if (str == null) {
+            done = true;
+            break;
+          }
+          batch[batchSize++] = str;
+        }
+        if (batchSize > 0) {
+          ParseTask task = new ParseTask(program, parsers, monitor, reuseData, usesDatum, usesEncoded, batch, batchSize);
+          if (pool == null) {
+            task.invoke();
+          } else {
+            pool.execute(task);
+          }
+          pendingTasks.addLast(task);
+        }
+        while (pendingTasks.size() >= maxPendingTasks || (done && pendingTasks.size() > 0)) {
+          emitBatch(pendingTasks.removeFirst(), parsers, sinks, counts, verbose);
+        }
+      }
+    } finally {
+      if (pool != null) {
+        pool.shutdownNow();
+      }
+      if (monitor != null) {
+        try {
+          monitor.unregister();
+        } catch (JMException jme) {
+          System.err.println("Could not withdraw the parse profile from JMX: " + jme);
+        }
+      }
+      try {
+        if (in != null) {
           in.close();
         }
       } finally {
-        encoder.flush();
-        outJson.close();
+        closeSinks(sinks, 0);
       }
     }
+    if (verbose) {
+      System.err.println();
+      System.err.println("Total # input lines: " + counts[0]);
+      System.err.println("Total # lines parsed correctly: " + counts[1]);
+      System.err.println("Union dispatch:");
+      ParserProgram.Parser allParsers = program.newParser();
+      for (ParserProgram.Parser parser: parsers) {
+        allParsers.addUnionStats(parser);
+      }
+      allParsers.printUnionStats(System.err);
+    }
+    if (monitor != null) {
+      System.err.println();
+      System.err.println("Parse profile:");
+      monitor.getProfile().print(System.err);
+    }
+  }
 
-    if (avroDataFile != null) {
-      int numGoodParses = 0;
-      int lineno = 0;
-      Schema schema = typeTree.getAvroSchema();
-
-      GenericDatumWriter gdWriter = new GenericDatumWriter(schema);
-      DataFileWriter outData = new DataFileWriter(gdWriter);
-      outData = outData.create(schema, fs2.create(avroDataFile));
+  /**
+   * Wait for a ParseTask, hand its lines to the sinks, and return its Parser to 'parsers'.
+   * 'counts' holds the number of lines so far, and how many of them parsed.
+   */
+  void emitBatch(ParseTask task, Queue<ParserProgram.Parser> parsers, List<RecordSink> sinks, long counts[], boolean verbose) throws IOException {
+    try {
+      task.join();
+    } catch (RuntimeException rex) {
+      throw unwrapIOException(rex);
+    }
+    RecordSink.ParsedLine parsedLine = new RecordSink.ParsedLine();
+    int encodedStart = 0;
+    for (int i = 0; i < task.numLines; i++) {
+      long lineno = counts[0]++;
+      if (task.isParsed[i]) {
+        counts[1]++;
+        GenericContainer datum = (task.datums != null) ? task.datums[i] : null;
+        ByteBuffer datumBytes = task.usesEncoded ? ByteBuffer.wrap(task.encoded, encodedStart, task.encodedEnd[i] - encodedStart) : null;
+        parsedLine.reset(lineno, task.lines[i], datum, datumBytes);
+        for (RecordSink sink: sinks) {
+          sink.parsed(parsedLine);
+        }
+      } else {
+        if (verbose) {
+          System.err.println("unparsed line: '" + task.lines[i] + "'");
+        }
+        for (RecordSink sink: sinks) {
+          sink.unparsed(lineno, task.lines[i]);
+        }
+      }
+      encodedStart = task.encodedEnd[i];
+    }
+    task.parser.releaseData();
+    parsers.offer(task.parser);
+  }
 
+  /**
+   * Close sinks i, i+1, ..., even if closing one of them fails
+   */
+  static void closeSinks(List<RecordSink> sinks, int i) throws IOException {
+    if (i < sinks.size()) {
       try {
-        in = new BufferedReader(new InputStreamReader(fs.open(p)));
-        try {
-          String str = in.readLine();
-          while (str != null) {
-            GenericContainer gct = typeTree.parse(str);
-            if (gct != null) {
-              numGoodParses++;
-              outData.append(gct);
-            } else {
-              if (verbose) {
-                System.err.println("unparsed line: '" + str + "'");
-              }
-            }
-            str = in.readLine();
-            lineno++;
-          }      
-        } finally {
-          in.close();
-        }
+        sinks.get(i).close();
       } finally {
-        outData.close();
-      }
-      if (verbose) {
-        System.err.println();
-        System.err.println("Total # input lines: " + lineno);
-        System.err.println("Total # lines parsed correctly: " + numGoodParses);
+        closeSinks(sinks, i + 1);
       }
     }
   }
@@ -204,11 +600,26 @@ public class LearnStructure {
   //////////////////////////////////////////
   public static void main(String argv[]) throws IOException {
     if (argv.length < 2) {
-      System.err.println("Usage: LearnStructure <input-datafile> <outdir> (-emitAvro (true)|false)");
+      System.err.println("Usage: LearnStructure <input-datafile> <outdir> (-emitAvro (true)|false) (-threads <numThreads>) (-maxLines <numLines>) (-sample (head)|reservoir|stratified) (-parser <saved-" + PARSER_FILENAME + ">) (-emitUnparsed true|(false)) (-profile true|(false))");
+      System.err.println("  -emitAvro      write the parsed lines to " + DATA_FILENAME + " and " + JSONDATA_FILENAME);
+      System.err.println("  -threads       use this many threads for tokenizing, inference, and parsing");
+      System.err.println("  -maxLines      learn the structure from at most this many lines (all of them are parsed)");
+      System.err.println("  -sample        how -maxLines picks its lines: the first ones, a uniform random sample,");
+      System.err.println("                 or runs of lines from evenly spaced points in the file");
+      System.err.println("  -parser        skip learning, and parse with the " + PARSER_FILENAME + " of an earlier run");
+      System.err.println("  -emitUnparsed  write the lines that didn't parse to " + UNPARSED_FILENAME);
+      System.err.println("  -profile       print the parse time and backtracks per schema node, and publish them");
+      System.err.println("                 over JMX while parsing");
       return;
     }
-    FileSystem localFS = FileSystem.getLocal(null);
+    FileSystem localFS = FileSystem.getLocal(new Configuration());
     boolean emitAvro = true;
+    boolean emitUnparsed = false;
+    boolean profileParse = false;
+    int numThreads = 1;
+    int maxLines = -1;
+    int samplingMode = SAMPLE_HEAD;
+    Path savedParseTreeFile = null;
     int i = 0;
     Path f = new Path(new File(argv[i++]).getCanonicalPath());
     File outdir = new File(argv[i++]).getCanonicalFile();
@@ -216,6 +627,30 @@ public class LearnStructure {
       if ("-emitAvro".equals(argv[i])) {
         i++;
         emitAvro = "true".equals(argv[i]);
+      } else if ("-threads".equals(argv[i])) {
+        i++;
+        numThreads = Integer.parseInt(argv[i]);
+      } else if ("-maxLines".equals(argv[i])) {
+        i++;
+        maxLines = Integer.parseInt(argv[i]);
+      } else if ("-sample".equals(argv[i])) {
+        i++;
+        if ("reservoir".equals(argv[i])) {
+          samplingMode = SAMPLE_RESERVOIR;
+        } else if ("stratified".equals(argv[i])) {
+          samplingMode = SAMPLE_STRATIFIED;
+        } else {
+          samplingMode = SAMPLE_HEAD;
+        }
+      } else if ("-parser".equals(argv[i])) {
+        i++;
+        savedParseTreeFile = new Path(new File(argv[i]).getCanonicalPath());
+      } else if ("-emitUnparsed".equals(argv[i])) {
+        i++;
+        emitUnparsed = "true".equals(argv[i]);
+      } else if ("-profile".equals(argv[i])) {
+        i++;
+        profileParse = "true".equals(argv[i]);
       }
     }
 
@@ -233,7 +668,17 @@ public class LearnStructure {
       jsonDataFile = new Path(outdir.getCanonicalPath(), JSONDATA_FILENAME);    
       avroDataFile = new Path(outdir.getCanonicalPath(), DATA_FILENAME);
     }
-    LearnStructure ls = new LearnStructure();
-    ls.inferRecordFormat(localFS, f, localFS, schemaFile, parseTreeFile, jsonDataFile, avroDataFile, true, -1);
+    List<RecordSink> sinks = createDataSinks(localFS, jsonDataFile, avroDataFile);
+    if (emitUnparsed) {
+      sinks.add(new RecordSink.UnparsedLineSink(localFS, new Path(outdir.getCanonicalPath(), UNPARSED_FILENAME)));
+    }
+    LearnStructure ls = new LearnStructure(numThreads);
+    ls.setProfileParse(profileParse);
+    if (savedParseTreeFile != null) {
+      ls.applyRecordFormat(localFS, f, localFS, savedParseTreeFile, schemaFile, sinks, true);
+    } else {
+      ls.setSamplingMode(samplingMode);
+      ls.inferRecordFormat(localFS, f, localFS, schemaFile, parseTreeFile, sinks, true, maxLines);
+    }
   }
 }
@@ -0,0 +1,734 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure;
+
+import java.io.*;
+import java.util.*;
+
+/*********************************************************
+ * Lexer is a hand-written replacement for the regex cascade in Tokenizer.
+ *
+ * It makes a single pass over the line, looks at the class of the current
+ * character, and only runs the scanners that could possibly start there.
+ * Each scanner mimics the corresponding Tokenizer regex exactly (including
+ * the order in which the regex engine would backtrack), so the emitted
+ * Token stream is identical to the one that Tokenizer's regex path produces.
+ *
+ * Every scan method takes a region [pos, end) of the input and returns
+ * the index just past the matched text, or -1 if there is no match.
+ *********************************************************/
+public class Lexer {
+  // Must stay in the same order as the month alternation in Tokenizer's date patterns
+  static String MONTH_NAMES[] = {"January", "Jan", "jan", "February", "Feb", "feb", "March", "Mar", "mar",
+                                 "April", "Apr", "apr", "May", "may", "June", "Jun", "jun", "July", "Jul", "jul",
+                                 "August", "Aug", "aug", "September", "Sep", "sep", "October", "Oct", "oct",
+                                 "November", "Nov", "nov", "December", "Dec", "dec"};
+
+  // Components of a date pattern
+  final static int MONTH_NAME = 1;
+  final static int MONTH_NUM = 2;
+  final static int DAY = 3;
+  final static int YEAR = 4;
+  final static int SEP_WS = 5;
+  final static int SEP_DOT = 6;
+  final static int SEP_SLASH = 7;
+
+  // How the groups of a date pattern map onto the DateToken constructor
+  final static int MONTH_FIRST = 1;
+  final static int YEAR_FIRST = 2;
+  final static int DAY_FIRST = 3;
+
+  /**
+   * A DatePattern is the hand-compiled equivalent of one of Tokenizer's date regexes.
+   */
+  static class DatePattern {
+    int order;
+    int components[];
+    int numGroups;
+    public DatePattern(int order, int components[]) {
+      this.order = order;
+      this.components = components;
+      for (int i = 0; i < components.length; i++) {
+        if (! isSeparator(components[i])) {
+          numGroups++;
+        }
+      }
+    }
+  }
+
+  static List<DatePattern> datePatterns = new ArrayList<DatePattern>();
+  static {
+    // Mirrors the construction order of Tokenizer's monthFirst/yearFirst/dayFirst lists,
+    // which are tested in exactly that order.
+    int seps[] = {SEP_WS, SEP_DOT, SEP_SLASH};
+    int months[] = {MONTH_NAME, MONTH_NUM};
+    List<DatePattern> monthFirst = new ArrayList<DatePattern>();
+    List<DatePattern> yearFirst = new ArrayList<DatePattern>();
+    List<DatePattern> dayFirst = new ArrayList<DatePattern>();
+    for (int sep: seps) {
+      for (int month: months) {
+        monthFirst.add(new DatePattern(MONTH_FIRST, new int[] {month, sep, DAY, sep, YEAR}));
+        yearFirst.add(new DatePattern(YEAR_FIRST, new int[] {YEAR, sep, month, sep, DAY}));
+        dayFirst.add(new DatePattern(DAY_FIRST, new int[] {DAY, sep, month, sep, YEAR}));
+      }
+    }
+    for (int sep: seps) {
+      monthFirst.add(new DatePattern(MONTH_FIRST, new int[] {MONTH_NAME, sep, DAY}));
+      dayFirst.add(new DatePattern(DAY_FIRST, new int[] {DAY, sep, MONTH_NAME}));
+    }
+    datePatterns.addAll(monthFirst);
+    datePatterns.addAll(yearFirst);
+    datePatterns.addAll(dayFirst);
+  }
+
+  ///////////////////////////////////////////////////
+  // Character classes
+  ///////////////////////////////////////////////////
+  static boolean isDigit(char c) {
+    return c >= '0' && c <= '9';
+  }
+  /**
+   * Same as the regex \s class
+   */
+  static boolean isSpace(char c) {
+    return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+  }
+  static boolean isPermissionChar(char c) {
+    return c == 'd' || c == 'r' || c == 'w' || c == 'x' || c == '-';
+  }
+  /**
+   * Characters that may appear in a STRING token: non-whitespace, minus the delimiters
+   */
+  static boolean isStringChar(char c) {
+    if (isSpace(c)) {
+      return false;
+    }
+    switch (c) {
+    case '"': case ',': case ';': case '|': case '[': case ']':
+    case '{': case '}': case '<': case '>': case '(': case ')': case '\'':
+      return false;
+    default:
+      return true;
+    }
+  }
+  /**
+   * The end of the code point at 'pos'.  A regex matches a surrogate pair as one
+   * character, so \S consumes both halves and {2,} counts them once.
+   */
+  static int codePointEnd(CharSequence s, int pos, int end) {
+    if (pos + 1 < end && Character.isHighSurrogate(s.charAt(pos)) && Character.isLowSurrogate(s.charAt(pos+1))) {
+      return pos + 2;
+    }
+    return pos + 1;
+  }
+  static boolean isMonthInitial(char c) {
+    switch (c) {
+    case 'J': case 'F': case 'M': case 'A': case 'S': case 'O': case 'N': case 'D':
+    case 'j': case 'f': case 'm': case 'a': case 's': case 'o': case 'n': case 'd':
+      return true;
+    default:
+      return false;
+    }
+  }
+  static boolean isSeparator(int component) {
+    return component == SEP_WS || component == SEP_DOT || component == SEP_SLASH;
+  }
+  static char closeCharFor(char c) {
+    switch (c) {
+    case '[': return ']';
+    case '{': return '}';
+    case '"': return '"';
+    case '\'': return '\'';
+    case '<': return '>';
+    case '(': return ')';
+    default: return 0;
+    }
+  }
+
+  static int digitRun(CharSequence s, int pos, int end) {
+    while (pos < end && isDigit(s.charAt(pos))) {
+      pos++;
+    }
+    return pos;
+  }
+  static int spaceRun(CharSequence s, int pos, int end) {
+    while (pos < end && isSpace(s.charAt(pos))) {
+      pos++;
+    }
+    return pos;
+  }
+
+  ///////////////////////////////////////////////////
+  // Scanners, one per regex in Tokenizer
+  ///////////////////////////////////////////////////
+  /**
+   * ((?:(?:\d+\.){3,}\d+)|(?:\*\.(?:(?:\d+|\*)\.)*(?:\d+|\*)))
+   */
+  static int scanIPAddr(CharSequence s, int pos, int end) {
+    if (pos >= end) {
+      return -1;
+    }
+    char c = s.charAt(pos);
+    if (isDigit(c)) {
+      int numSegments = 0;
+      int lastDot = -1;
+      int cur = pos;
+      while (true) {
+        int digitEnd = digitRun(s, cur, end);
+        if (digitEnd == cur) {
+          // No trailing digits; the regex gives back the final "\d+\."
+          return (numSegments >= 4) ? lastDot : -1;
+        }
+        if (digitEnd < end && s.charAt(digitEnd) == '.') {
+          numSegments++;
+          lastDot = digitEnd;
+          cur = digitEnd + 1;
+        } else {
+          return (numSegments >= 3) ? digitEnd : -1;
+        }
+      }
+    } else if (c == '*') {
+      if (pos + 1 >= end || s.charAt(pos+1) != '.') {
+        return -1;
+      }
+      int numSegments = 0;
+      int lastDot = -1;
+      int cur = pos + 2;
+      while (true) {
+        int eltEnd;
+        if (cur < end && isDigit(s.charAt(cur))) {
+          eltEnd = digitRun(s, cur, end);
+        } else if (cur < end && s.charAt(cur) == '*') {
+          eltEnd = cur + 1;
+        } else {
+          return (numSegments >= 1) ? lastDot : -1;
+        }
+        if (eltEnd < end && s.charAt(eltEnd) == '.') {
+          numSegments++;
+          lastDot = eltEnd;
+          cur = eltEnd + 1;
+        } else {
+          return eltEnd;
+        }
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * ([drwx-]{9,})
+   */
+  static int scanPermissionBits(CharSequence s, int pos, int end) {
+    int cur = pos;
+    while (cur < end && isPermissionChar(s.charAt(cur))) {
+      cur++;
+    }
+    return (cur - pos >= 9) ? cur : -1;
+  }
+
+  /**
+   * (\d\d):(\d\d):(\d\d), or failing that, (\d\d):(\d\d).
+   * Returns the end of the longest form that matches.
+   */
+  static int scanTime(CharSequence s, int pos, int end) {
+    if (pos + 5 > end) {
+      return -1;
+    }
+    if (! (isDigit(s.charAt(pos)) && isDigit(s.charAt(pos+1)) && s.charAt(pos+2) == ':' &&
+           isDigit(s.charAt(pos+3)) && isDigit(s.charAt(pos+4)))) {
+      return -1;
+    }
+    if (pos + 8 <= end && s.charAt(pos+5) == ':' && isDigit(s.charAt(pos+6)) && isDigit(s.charAt(pos+7))) {
+      return pos + 8;
+    }
+    return pos + 5;
+  }
+
+  /**
+   * \d*\.\d+ with no sign
+   */
+  static int scanUnsignedFloat(CharSequence s, int pos, int end) {
+    int cur = digitRun(s, pos, end);
+    if (cur >= end || s.charAt(cur) != '.') {
+      return -1;
+    }
+    int fracEnd = digitRun(s, cur+1, end);
+    return (fracEnd > cur + 1) ? fracEnd : -1;
+  }
+
+  /**
+   * ([+-]?\d*\.\d+)
+   */
+  static int scanFloat(CharSequence s, int pos, int end) {
+    if (pos < end && (s.charAt(pos) == '+' || s.charAt(pos) == '-')) {
+      return scanUnsignedFloat(s, pos+1, end);
+    }
+    return scanUnsignedFloat(s, pos, end);
+  }
+
+  /**
+   * ([-+]?\d+)
+   */
+  static int scanInt(CharSequence s, int pos, int end) {
+    int cur = pos;
+    if (cur < end && (s.charAt(cur) == '+' || s.charAt(cur) == '-')) {
+      cur++;
+    }
+    int digitEnd = digitRun(s, cur, end);
+    return (digitEnd > cur) ? digitEnd : -1;
+  }
+
+  /**
+   * ((?:[\S&&[^\"\,\;\|\[\]\{\}\<\>\(\)\']]){2,})
+   */
+  static int scanString(CharSequence s, int pos, int end) {
+    int cur = pos;
+    int numChars = 0;
+    while (cur < end && isStringChar(s.charAt(cur))) {
+      cur = codePointEnd(s, cur, end);
+      numChars++;
+    }
+    return (numChars >= 2) ? cur : -1;
+  }
+
+  /**
+   * Try to match one of the date patterns from the given position, in the same order
+   * that Tokenizer tries them.  Returns the end of the match and adds a DateToken to
+   * the output list, or returns -1.
+   */
+  static int scanDate(CharSequence s, int pos, int end, List<Token.AbstractToken> outputToks) {
+    int groups[] = new int[6];
+    for (DatePattern dp: datePatterns) {
+      int matchEnd = matchDateComponents(dp.components, 0, s, pos, end, groups, 0);
+      if (matchEnd < 0) {
+        continue;
+      }
+      // Which groups hold the day, month, and year
+      int dayGroup, monthGroup, yearGroup;
+      if (dp.order == MONTH_FIRST) {
+        dayGroup = 1;
+        monthGroup = 0;
+        yearGroup = (dp.numGroups == 3) ? 2 : -1;
+      } else if (dp.order == YEAR_FIRST) {
+        dayGroup = 2;
+        monthGroup = 1;
+        yearGroup = 0;
+      } else {
+        dayGroup = 0;
+        monthGroup = 1;
+        yearGroup = (dp.numGroups == 3) ? 2 : -1;
+      }
+      try {
+        outputToks.add(new Token.DateToken(s, groups[2*dayGroup], groups[2*dayGroup+1],
+                                           groups[2*monthGroup], groups[2*monthGroup+1],
+                                           (yearGroup < 0) ? -1 : groups[2*yearGroup],
+                                           (yearGroup < 0) ? -1 : groups[2*yearGroup+1]));
+      } catch (IOException iex) {
+        continue;
+      }
+      return matchEnd;
+    }
+    return -1;
+  }
+
+  /**
+   * Backtracking match of a sequence of date components.  Candidate lengths for
+   * each component are tried in the same priority order as the regex engine would
+   * try them, so the first success is the same match the regex reports.
+   */
+  static int matchDateComponents(int components[], int idx, CharSequence s, int pos, int end, int groups[], int groupIdx) {
+    if (idx == components.length) {
+      return pos;
+    }
+    int component = components[idx];
+    switch (component) {
+    case MONTH_NAME: {
+      for (String name: MONTH_NAMES) {
+        int nameEnd = pos + name.length();
+        if (nameEnd <= end && regionMatches(s, pos, name)) {
+          int result = matchGroup(components, idx, s, pos, nameEnd, end, groups, groupIdx);
+          if (result >= 0) {
+            return result;
+          }
+        }
+      }
+      return -1;
+    }
+    case MONTH_NUM: {
+      // [01]*\d
+      int run = pos;
+      while (run < end && (s.charAt(run) == '0' || s.charAt(run) == '1')) {
+        run++;
+      }
+      for (int k = run; k >= pos; k--) {
+        if (k < end && isDigit(s.charAt(k))) {
+          int result = matchGroup(components, idx, s, pos, k+1, end, groups, groupIdx);
+          if (result >= 0) {
+            return result;
+          }
+        }
+      }
+      return -1;
+    }
+    case DAY: {
+      // [0123]?\d
+      if (pos + 1 < end && s.charAt(pos) >= '0' && s.charAt(pos) <= '3' && isDigit(s.charAt(pos+1))) {
+        int result = matchGroup(components, idx, s, pos, pos+2, end, groups, groupIdx);
+        if (result >= 0) {
+          return result;
+        }
+      }
+      if (pos < end && isDigit(s.charAt(pos))) {
+        return matchGroup(components, idx, s, pos, pos+1, end, groups, groupIdx);
+      }
+      return -1;
+    }
+    case YEAR: {
+      // [12]\d{3}
+      if (pos + 4 <= end && (s.charAt(pos) == '1' || s.charAt(pos) == '2') &&
+          isDigit(s.charAt(pos+1)) && isDigit(s.charAt(pos+2)) && isDigit(s.charAt(pos+3))) {
+        return matchGroup(components, idx, s, pos, pos+4, end, groups, groupIdx);
+      }
+      return -1;
+    }
+    case SEP_WS: {
+      int wsEnd = spaceRun(s, pos, end);
+      for (int k = wsEnd; k > pos; k--) {
+        int result = matchDateComponents(components, idx+1, s, k, end, groups, groupIdx);
+        if (result >= 0) {
+          return result;
+        }
+      }
+      return -1;
+    }
+    case SEP_DOT:
+    case SEP_SLASH: {
+      char sepChar = (component == SEP_DOT) ? '.' : '/';
+      if (pos < end && s.charAt(pos) == sepChar) {
+        return matchDateComponents(components, idx+1, s, pos+1, end, groups, groupIdx);
+      }
+      return -1;
+    }
+    default:
+      return -1;
+    }
+  }
+
+  static int matchGroup(int components[], int idx, CharSequence s, int start, int groupEnd, int end, int groups[], int groupIdx) {
+    groups[2*groupIdx] = start;
+    groups[2*groupIdx+1] = groupEnd;
+    return matchDateComponents(components, idx+1, s, groupEnd, end, groups, groupIdx+1);
+  }
+
+  static boolean regionMatches(CharSequence s, int pos, String target) {
+    for (int i = 0; i < target.length(); i++) {
+      if (s.charAt(pos+i) != target.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  ///////////////////////////////////////////////////
+  // Guided parsing
+  ///////////////////////////////////////////////////
+  /**
+   * Parse a single token of the given class from the region [pos, end).
+   * Returns the position just past the token, or -1 if the token class does not
+   * match here.  This is the cursor-based counterpart of Tokenizer's regex attemptParse().
+   */
+  static int attemptParse(int tokenClassId, String tokenParameter, CharSequence s, int pos, int end, List<Token.AbstractToken> outputToks) {
+    if (pos >= end) {
+      return -1;
+    }
+    switch (tokenClassId) {
+    case Token.IPADDR_TOKENCLASSID: {
+      int tokEnd = scanIPAddr(s, pos, end);
+      if (tokEnd >= 0) {
+        outputToks.add(new Token.IPAddrToken(s, pos, tokEnd));
+      }
+      return tokEnd;
+    }
+    case Token.PERMISSIONS_TOKENCLASSID: {
+      int tokEnd = scanPermissionBits(s, pos, end);
+      if (tokEnd >= 0) {
+        outputToks.add(new Token.PermissionBits(s, pos, tokEnd));
+      }
+      return tokEnd;
+    }
+    case Token.DATE_TOKENCLASSID: {
+      return scanDate(s, pos, end, outputToks);
+    }
+    case Token.TIME_TOKENCLASSID: {
+      int tokEnd = scanTime(s, pos, end);
+      if (tokEnd >= 0) {
+        outputToks.add(new Token.TimeToken(s, pos, pos+3, (tokEnd - pos == 8) ? pos+6 : -1));
+      }
+      return tokEnd;
+    }
+    case Token.CHAR_TOKENCLASSID: {
+      char c = s.charAt(pos);
+      if (isSpace(c)) {
+        return -1;
+      }
+      if (tokenParameter != null && (tokenParameter.length() != 1 || tokenParameter.charAt(0) != c)) {
+        return -1;
+      }
+      outputToks.add(new Token.CharToken(c));
+      return codePointEnd(s, pos, end);
+    }
+    case Token.FLOAT_TOKENCLASSID: {
+      int tokEnd = scanFloat(s, pos, end);
+      if (tokEnd >= 0) {
+        outputToks.add(new Token.FloatToken(s, pos, tokEnd));
+      }
+      return tokEnd;
+    }
+    case Token.INT_TOKENCLASSID: {
+      int tokEnd = scanInt(s, pos, end);
+      if (tokEnd >= 0) {
+        outputToks.add(new Token.IntToken(s, pos, tokEnd));
+      }
+      return tokEnd;
+    }
+    case Token.STRING_TOKENCLASSID: {
+      // A STRING may not start like a number
+      if (scanInt(s, pos, end) >= 0 || scanFloat(s, pos, end) >= 0) {
+        return -1;
+      }
+      int tokEnd = scanString(s, pos, end);
+      if (tokEnd >= 0) {
+        outputToks.add(new Token.StringToken(s, pos, tokEnd));
+      }
+      return tokEnd;
+    }
+    case Token.EOL_TOKENCLASSID: {
+      if (s.charAt(pos) != '\n') {
+        return -1;
+      }
+      outputToks.add(new Token.EOLToken());
+      return pos + 1;
+    }
+    case Token.WHITESPACE_TOKENCLASSID: {
+      int tokEnd = spaceRun(s, pos, end);
+      if (tokEnd == pos) {
+        return -1;
+      }
+      outputToks.add(new Token.WhitespaceToken());
+      return tokEnd;
+    }
+    default: {
+      return -1;
+    }
+    }
+  }
+
+  /**
+   * Whether a token of the given class could start with character 'c'.  This is
+   * a necessary condition for attemptParse() to succeed, not a sufficient one: if it
+   * returns false, attemptParse() is certain to fail.
+   */
+  static boolean canStart(int tokenClassId, String tokenParameter, char c) {
+    switch (tokenClassId) {
+    case Token.IPADDR_TOKENCLASSID:
+      return isDigit(c) || c == '*';
+    case Token.PERMISSIONS_TOKENCLASSID:
+      return isPermissionChar(c);
+    case Token.DATE_TOKENCLASSID:
+      return isDigit(c) || isMonthInitial(c);
+    case Token.TIME_TOKENCLASSID:
+      return isDigit(c);
+    case Token.CHAR_TOKENCLASSID:
+      if (isSpace(c)) {
+        return false;
+      }
+      return tokenParameter == null || (tokenParameter.length() == 1 && tokenParameter.charAt(0) == c);
+    case Token.FLOAT_TOKENCLASSID:
+      return isDigit(c) || c == '.' || c == '+' || c == '-';
+    case Token.INT_TOKENCLASSID:
+      return isDigit(c) || c == '+' || c == '-';
+    case Token.STRING_TOKENCLASSID:
+      // A STRING may not start like a number
+      return isStringChar(c) && ! isDigit(c);
+    case Token.EOL_TOKENCLASSID:
+      return c == '\n';
+    case Token.WHITESPACE_TOKENCLASSID:
+      return isSpace(c);
+    default:
+      return false;
+    }
+  }
+
+  /**
+   * Equivalent to s.substring(pos, end).trim().length() == 0
+   */
+  static boolean isBlank(CharSequence s, int pos, int end) {
+    for (int i = pos; i < end; i++) {
+      if (s.charAt(i) > ' ') {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  ///////////////////////////////////////////////////
+  // Tokenization
+  ///////////////////////////////////////////////////
+  /**
+   * Tokenize the whole line.  Emits exactly the same tokens as the regex path
+   * in Tokenizer.tokenize(), or null if the line cannot be parsed.
+   */
+  public static List<Token.AbstractToken> tokenize(CharSequence s) {
+    return tokenize(s, 0, s.length());
+  }
+
+  static List<Token.AbstractToken> tokenize(CharSequence s, int pos, int end) {
+    List<Token.AbstractToken> toksSoFar = new ArrayList<Token.AbstractToken>();
+    while (pos < end) {
+      int newPos = nextToken(s, pos, end, toksSoFar);
+      if (newPos < 0) {
+        return null;
+      }
+      pos = newPos;
+    }
+    return toksSoFar;
+  }
+
+  /**
+   * Lex a single token (or, for ranges, a short run of tokens) starting at 'pos'.
+   * The tests run in the same order as the regex cascade, but each one is
+   * skipped outright when the current character cannot start it.
+   */
+  static int nextToken(CharSequence s, int pos, int end, List<Token.AbstractToken> toksSoFar) {
+    char c = s.charAt(pos);
+
+    // META
+    char closeChar = closeCharFor(c);
+    if (closeChar != 0) {
+      int closeIndex = -1;
+      for (int i = pos + 1; i < end; i++) {
+        if (s.charAt(i) == closeChar) {
+          closeIndex = i;
+          break;
+        }
+      }
+      if (closeIndex >= 0) {
+        toksSoFar.add(new Token.MetaToken(new Token.CharToken(c), new Token.CharToken(closeChar), tokenize(s, pos+1, closeIndex)));
+        return closeIndex + 1;
+      }
+    }
+
+    // Whitespace never begins anything but EOL or WS
+    if (isSpace(c)) {
+      if (c == '\n') {
+        toksSoFar.add(new Token.EOLToken());
+        return pos + 1;
+      }
+      toksSoFar.add(new Token.WhitespaceToken());
+      return spaceRun(s, pos, end);
+    }
+
+    boolean isDigitStart = isDigit(c);
+    int tokEnd;
+
+    // IP ADDR
+    if (isDigitStart || c == '*') {
+      tokEnd = scanIPAddr(s, pos, end);
+      if (tokEnd >= 0) {
+        toksSoFar.add(new Token.IPAddrToken(s, pos, tokEnd));
+        return tokEnd;
+      }
+    }
+
+    // PERMISSION BITS
+    if (isPermissionChar(c)) {
+      tokEnd = scanPermissionBits(s, pos, end);
+      if (tokEnd >= 0) {
+        toksSoFar.add(new Token.PermissionBits(s, pos, tokEnd));
+        return tokEnd;
+      }
+    }
+
+    // DATE
+    if (isDigitStart || isMonthInitial(c)) {
+      tokEnd = scanDate(s, pos, end, toksSoFar);
+      if (tokEnd >= 0) {
+        return tokEnd;
+      }
+    }
+
+    if (isDigitStart) {
+      // TIME
+      tokEnd = scanTime(s, pos, end);
+      if (tokEnd >= 0) {
+        toksSoFar.add(new Token.TimeToken(s, pos, pos+3, (tokEnd - pos == 8) ? pos+6 : -1));
+        return tokEnd;
+      }
+    }
+
+    // FLOAT RANGE
+    if (isDigitStart || c == '.') {
+      int firstEnd = scanUnsignedFloat(s, pos, end);
+      if (firstEnd >= 0 && firstEnd < end && s.charAt(firstEnd) == '-') {
+        int secondEnd = scanUnsignedFloat(s, firstEnd+1, end);
+        if (secondEnd >= 0) {
+          toksSoFar.add(new Token.FloatToken(s, pos, firstEnd));
+          toksSoFar.add(new Token.CharToken('-'));
+          toksSoFar.add(new Token.FloatToken(s, firstEnd+1, secondEnd));
+          return secondEnd;
+        }
+      }
+    }
+
+    // INTEGER RANGE
+    if (isDigitStart) {
+      int firstEnd = digitRun(s, pos, end);
+      if (firstEnd < end && s.charAt(firstEnd) == '-') {
+        int secondEnd = digitRun(s, firstEnd+1, end);
+        if (secondEnd > firstEnd + 1) {
+          toksSoFar.add(new Token.IntToken(s, pos, firstEnd));
+          toksSoFar.add(new Token.CharToken('-'));
+          toksSoFar.add(new Token.IntToken(s, firstEnd+1, secondEnd));
+          return secondEnd;
+        }
+      }
+    }
+
+    // FLOAT and INTEGER
+    if (isDigitStart || c == '.' || c == '+' || c == '-') {
+      tokEnd = scanFloat(s, pos, end);
+      if (tokEnd >= 0) {
+        toksSoFar.add(new Token.FloatToken(s, pos, tokEnd));
+        return tokEnd;
+      }
+      tokEnd = scanInt(s, pos, end);
+      if (tokEnd >= 0) {
+        toksSoFar.add(new Token.IntToken(s, pos, tokEnd));
+        return tokEnd;
+      }
+    }
+
+    // STRING.  Anything that starts like a number was caught above.
+    tokEnd = scanString(s, pos, end);
+    if (tokEnd >= 0) {
+      toksSoFar.add(new Token.StringToken(s, pos, tokEnd));
+      return tokEnd;
+    }
+
+    // CHAR
+    toksSoFar.add(new Token.CharToken(c));
+    return codePointEnd(s, pos, end);
+  }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FSDataInputStream;
+
+/*********************************************************
+ * LineSampler picks a bounded number of lines from anywhere in a file, so that
+ * structure inference can see format changes late in a big file (say, a rotated
+ * or concatenated log) without reading all of it into memory.
+ *
+ * There are two methods:
+ * 1) Reservoir sampling reads the whole file once, and keeps a uniform random
+ *    sample of its lines.  The cost is one sequential pass.
+ * 2) Stratified sampling splits the file into equal-sized byte ranges and reads
+ *    the first few lines from each one, seeking straight to it.  The cost depends
+ *    only on the sample size, not on the size of the file.
+ *
+ * Either way, the sampled lines come back in file order.
+ *********************************************************/
+public class LineSampler {
+  static long RESERVOIR_SEED = 20110601L;
+  static int STRATUM_BUFFER_SIZE = 1 << 16;
+
+  /**
+   * A uniform random sample of 'sampleSize' lines from the file.  The random
+   * seed is fixed, so the same file always yields the same sample.
+   */
+  public static List<CharSequence> reservoirSample(FileSystem fs, Path p, int sampleSize) throws IOException {
+    Random r = new Random(RESERVOIR_SEED);
+    String reservoir[] = new String[sampleSize];
+    long reservoirLineNos[] = new long[sampleSize];
+
+    ByteLineReader in = new ByteLineReader(fs, p);
+    try {
+      long lineno = 0;
+      CharSequence s = in.readLine();
+      while (s != null) {
+        // Keep line #lineno with probability sampleSize/(lineno+1), in place of a random earlier pick
+        long slot = (lineno < sampleSize) ? lineno : (long) (r.nextDouble() * (lineno + 1));
+        if (slot < sampleSize) {
+          // Copy the line, so the sample doesn't pin the reader's buffers
+          reservoir[(int) slot] = s.toString();
+          reservoirLineNos[(int) slot] = lineno;
+        }
+        s = in.readLine();
+        lineno++;
+      }
+      int numSampled = (int) Math.min(lineno, sampleSize);
+
+      // Put the sample back into file order
+      Integer order[] = new Integer[numSampled];
+      for (int i = 0; i < numSampled; i++) {
+        order[i] = i;
+      }
+      final long lineNos[] = reservoirLineNos;
+      Arrays.sort(order, new Comparator<Integer>() {
+        public int compare(Integer i1, Integer i2) {
+          long l1 = lineNos[i1];
+          long l2 = lineNos[i2];
+          return (l1 < l2) ? -1 : ((l1 > l2) ? 1 : 0);
+        }
+      });
+      List<CharSequence> sample = new ArrayList<CharSequence>(numSampled);
+      for (int i = 0; i < numSampled; i++) {
+        sample.add(reservoir[order[i]]);
+      }
+      return sample;
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * About 'sampleSize' lines, spread over 'numStrata' equal byte ranges of the file.
+   * A line belongs to the range its first byte falls in; each range contributes its
+   * first lines, up to its share of the sample.  A file with no more than 'sampleSize'
+   * lines is returned whole.  A compressed file can't be read from the middle, so
+   * it gets a reservoir sample instead.
+   */
+  public static List<CharSequence> stratifiedSample(FileSystem fs, Path p, int numStrata, int sampleSize) throws IOException {
+    if (CompressedInput.isCompressed(fs, p)) {
+      return reservoirSample(fs, p, sampleSize);
+    }
+    long fileSize = fs.getFileStatus(p).getLen();
+    numStrata = Math.max(1, Math.min(numStrata, sampleSize));
+    List<CharSequence> sample = new ArrayList<CharSequence>(sampleSize);
+
+    FSDataInputStream in = fs.open(p);
+    try {
+      // If the whole file fits in the sample, take all of it
+      ByteLineReader head = new ByteLineReader(in, 0, STRATUM_BUFFER_SIZE);
+      for (int count = 0; count <= sampleSize; count++) {
+        CharSequence s = head.readLine();
+        if (s == null) {
+          return sample;
+        }
+        sample.add(s.toString());
+      }
+      sample.clear();
+
+      for (int i = 0; i < numStrata; i++) {
+        long stratumStart = fileSize * i / numStrata;
+        long stratumEnd = fileSize * (i + 1) / numStrata;
+        int quota = (int) ((long) sampleSize * (i + 1) / numStrata - (long) sampleSize * i / numStrata);
+        if (stratumStart >= stratumEnd || quota == 0) {
+          continue;
+        }
+
+        //
+        // Resynchronize on a line boundary.  Start reading one byte early and throw away
+        // everything up to the first line terminator: if that byte ends a line, we lose
+        // nothing; otherwise we skip the tail of a line that belongs to the previous range.
+        //
+        long readStart = Math.max(0, stratumStart - 1);
+        in.seek(readStart);
+        ByteLineReader lines = new ByteLineReader(in, readStart, STRATUM_BUFFER_SIZE);
+        if (stratumStart > 0) {
+          lines.readLine();
+        }
+        for (int count = 0; count < quota && lines.getPosition() < stratumEnd; count++) {
+          CharSequence s = lines.readLine();
+          if (s == null) {
+            break;
+          }
+          sample.add(s.toString());
+        }
+      }
+    } finally {
+      in.close();
+    }
+    return sample;
+  }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/*********************************************************
+ * ParseMonitor keeps the ParseProfiles of all the Parsers working on one input, and
+ * publishes their sum as a JMX MBean, so a long conversion's hot spots can be watched
+ * (with jconsole, say) while it runs.
+ *
+ * Each Parser updates its own profile without locking, so the sum read while parsing
+ * is under way is approximate.  Once the parsers are done, getProfile() is exact.
+ *********************************************************/
+public class ParseMonitor implements ParseMonitorMBean {
+  static String DOMAIN = "com.cloudera.recordbreaker";
+
+  ParserProgram program;
+  String inputName;
+  List<ParseProfile> profiles = new CopyOnWriteArrayList<ParseProfile>();
+  ObjectName objectName;
+
+  public ParseMonitor(ParserProgram program, String inputName) {
+    this.program = program;
+    this.inputName = inputName;
+  }
+
+  /**
+   * A new, empty profile for a Parser, to be counted in this monitor's sum
+   */
+  public ParseProfile newProfile() {
+    ParseProfile profile = new ParseProfile(program);
+    profiles.add(profile);
+    return profile;
+  }
+
+  /**
+   * The sum of the profiles so far
+   */
+  public ParseProfile getProfile() {
+    ParseProfile total = new ParseProfile(program);
+    for (ParseProfile profile: profiles) {
+      total.add(profile);
+    }
+    return total;
+  }
+
+  /**
+   * Publish this monitor on the platform MBean server
+   */
+  public void register() throws JMException {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    objectName = new ObjectName(DOMAIN + ":type=ParseMonitor,name=" + ObjectName.quote(inputName));
+    if (server.isRegistered(objectName)) {
+      server.unregisterMBean(objectName);
+    }
+    server.registerMBean(this, objectName);
+  }
+
+  public void unregister() throws JMException {
+    if (objectName != null) {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+      objectName = null;
+    }
+  }
+
+  //////////////////////////////////////////
+  // ParseMonitorMBean
+  //////////////////////////////////////////
+  public String getInputName() {
+    return inputName;
+  }
+  public long getNumLines() {
+    return getProfile().getNumLines();
+  }
+  public long getNumFallbacks() {
+    return getProfile().getNumFallbacks();
+  }
+  public long getNumUnparsed() {
+    return getProfile().getNumUnparsed();
+  }
+  public String[] getHotNodes() {
+    return getProfile().getHotNodes();
+  }
+  public String getReport() {
+    return getProfile().toString();
+  }
+}
@@ -0,0 +1,289 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure;
+
+import java.io.*;
+import java.util.*;
+
+/*********************************************************
+ * ParseProfile says where a ParserProgram's parsers spend their work, node by node
+ * of the type tree, so that a slow union or array can be found without a profiler.
+ *
+ * For each node, it counts how often the naive parse started it (attempts), how often
+ * it finished (successes), and how often the parse came back to a choice point the node
+ * left behind (backtracks): the next branch of a union, or the end of an array.  Lines
+ * that needed the fallback search are counted, but not broken down by node.  While
+ * parsing, a Parser only counts how often each instruction runs and fails, so that an
+ * unprofiled Parser pays for a single test per instruction; the node counts are worked
+ * out from those.
+ *
+ * Timing every instruction would cost more than the parse, so only one line in
+ * TIMING_SAMPLE_INTERVAL is timed (an input shorter than that gets no times).  On those
+ * lines, each instruction's time goes to the innermost node it belongs to (the node's
+ * "self" time); a node's total time adds in its descendants.  Reported times are scaled
+ * up from the timed lines to all of them.  The cost of reading the clock is taken out,
+ * and instructions that were plainly interrupted are left out.
+ *
+ * A ParseProfile isn't thread-safe: each Parser gets its own (see Parser.setProfile()),
+ * and add() sums them.
+ *********************************************************/
+public class ParseProfile {
+  static int TIMING_SAMPLE_INTERVAL = 64;
+  static int NUM_HOT_NODES = 10;
+
+  // What reading the clock costs, which is taken out of each timed instruction; otherwise
+  // nodes that run lots of cheap instructions would look slow
+  static long CLOCK_NANOS = measureClock();
+
+  // A single instruction that seems to take longer than this was interrupted (by the
+  // garbage collector, say), and its time is dropped rather than scaled up
+  static long MAX_INSTRUCTION_NANOS = 1000000;
+
+  static long measureClock() {
+    int numReads = 10000;
+    long best = Long.MAX_VALUE;
+    for (int round = 0; round < 5; round++) {
+      long start = System.nanoTime();
+      for (int i = 0; i < numReads; i++) {
+        System.nanoTime();
+      }
+      best = Math.min(best, (System.nanoTime() - start) / numReads);
+    }
+    return best;
+  }
+
+  ParserProgram program;
+  int pcNode[];
+  int nodeParent[];
+  int subtreeEnd[];
+
+  long pcCounts[];
+  long pcFailures[];
+  long backtracks[];
+  long selfNanos[];
+  long fallbackNanos;
+  long numLines;
+  long numTimedLines;
+  long numFallbacks;
+  long numUnparsed;
+
+  /**
+   * An empty profile for the given program
+   */
+  public ParseProfile(ParserProgram program) {
+    this.program = program;
+    int numNodes = program.numNodes;
+    this.pcNode = program.computeInstructionNodes();
+    this.pcCounts = new long[program.codeLen];
+    this.pcFailures = new long[program.codeLen];
+    this.backtracks = new long[numNodes];
+    this.selfNanos = new long[numNodes];
+
+    // In pre-order, a node's subtree is the node and the run of nodes after it
+    this.nodeParent = new int[numNodes];
+    this.subtreeEnd = new int[numNodes];
+    nodeParent[0] = -1;
+    for (int i = numNodes - 1; i >= 0; i--) {
+      int children[] = program.nodeChildren[i];
+      subtreeEnd[i] = (children.length == 0) ? i + 1 : subtreeEnd[children[children.length - 1]];
+      for (int child: children) {
+        nodeParent[child] = i;
+      }
+    }
+  }
+
+  /**
+   * An empty profile for the type tree's compiled program (see InferredType.parse())
+   */
+  public ParseProfile(InferredType typeTree) {
+    this(typeTree.compile());
+  }
+
+  /**
+   * Count a new line, and say whether to time it
+   */
+  boolean startLine() {
+    // Not the first line, which pays for class loading and the like
+    boolean timed = (numLines % TIMING_SAMPLE_INTERVAL == TIMING_SAMPLE_INTERVAL - 1);
+    numLines++;
+    if (timed) {
+      numTimedLines++;
+    }
+    return timed;
+  }
+
+  /**
+   * Add another profile of the same program to this one
+   */
+  public void add(ParseProfile other) {
+    if (other.program != program) {
+      throw new IllegalArgumentException("Profile is for a different ParserProgram");
+    }
+    for (int i = 0; i < program.codeLen; i++) {
+      pcCounts[i] += other.pcCounts[i];
+      pcFailures[i] += other.pcFailures[i];
+    }
+    for (int i = 0; i < program.numNodes; i++) {
+      backtracks[i] += other.backtracks[i];
+      selfNanos[i] += other.selfNanos[i];
+    }
+    fallbackNanos += other.fallbackNanos;
+    numLines += other.numLines;
+    numTimedLines += other.numTimedLines;
+    numFallbacks += other.numFallbacks;
+    numUnparsed += other.numUnparsed;
+  }
+
+  /**
+   * Each node's attempts and successes, from the instruction counts: a node's first
+   * instruction counts its attempts, and its last successful one its successes.  A union
+   * is attempted at the try of its first branch, and succeeds at any branch's commit.
+   */
+  long[][] computeNodeCounts() {
+    int code[] = program.code;
+    long attempts[] = new long[program.numNodes];
+    long successes[] = new long[program.numNodes];
+    for (int pc = 0; pc < program.codeLen; pc += ParserProgram.instructionLength(code[pc])) {
+      switch (code[pc]) {
+      case ParserProgram.OP_MATCH:
+        attempts[code[pc+2]] += pcCounts[pc];
+        successes[code[pc+2]] += pcCounts[pc] - pcFailures[pc];
+        break;
+      case ParserProgram.OP_ENTER_RECORD:
+      case ParserProgram.OP_ARRAY_BEGIN:
+        attempts[code[pc+1]] += pcCounts[pc];
+        break;
+      case ParserProgram.OP_EXIT_RECORD:
+      case ParserProgram.OP_ARRAY_END:
+        successes[code[pc+2]] += pcCounts[pc];
+        break;
+      case ParserProgram.OP_UNION_TRY:
+        if (code[pc+3] == program.nodeChildren[code[pc+2]][0]) {
+          attempts[code[pc+2]] += pcCounts[pc];
+        }
+        break;
+      case ParserProgram.OP_UNION_COMMIT:
+        successes[nodeParent[code[pc+2]]] += pcCounts[pc];
+        break;
+      }
+    }
+    return new long[][] {attempts, successes};
+  }
+
+  public long getNumLines() {
+    return numLines;
+  }
+  public long getNumFallbacks() {
+    return numFallbacks;
+  }
+  public long getNumUnparsed() {
+    return numUnparsed;
+  }
+
+  /**
+   * Scale nanoseconds measured on the timed lines up to all the lines, in milliseconds
+   */
+  double estimateMillis(long nanos) {
+    if (numTimedLines == 0) {
+      return 0;
+    }
+    return nanos * ((double) numLines / numTimedLines) / 1000000.0;
+  }
+  long getTotalNanos(int node) {
+    long total = 0;
+    for (int i = node; i < subtreeEnd[node]; i++) {
+      total += selfNanos[i];
+    }
+    return total;
+  }
+
+  /**
+   * The node's name, with its token class if it's a base node
+   */
+  String describeNode(int node) {
+    switch (program.nodeKind[node]) {
+    case ParserProgram.BASE_NODE:
+      return program.nodeName[node] + " (" + Token.AbstractToken.getStrDesc(program.nodeTokenClass[node], program.nodeTokenParameter[node]) + ")";
+    case ParserProgram.STRUCT_NODE:
+      return program.nodeName[node] + " (struct)";
+    case ParserProgram.ARRAY_NODE:
+      return program.nodeName[node] + " (array)";
+    default:
+      return program.nodeName[node] + " (union)";
+    }
+  }
+  String describeCounts(int node, long nodeCounts[][]) {
+    return "attempts=" + nodeCounts[0][node] + ", successes=" + nodeCounts[1][node] + ", backtracks=" + backtracks[node] +
+      String.format(", total=%.1fms, self=%.1fms", estimateMillis(getTotalNanos(node)), estimateMillis(selfNanos[node]));
+  }
+
+  /**
+   * The nodes with the most self time, most first, one line each
+   */
+  public String[] getHotNodes() {
+    Integer order[] = new Integer[program.numNodes];
+    for (int i = 0; i < order.length; i++) {
+      order[i] = i;
+    }
+    Arrays.sort(order, new Comparator<Integer>() {
+      public int compare(Integer i1, Integer i2) {
+        long n1 = selfNanos[i1];
+        long n2 = selfNanos[i2];
+        return (n1 > n2) ? -1 : ((n1 < n2) ? 1 : i1.compareTo(i2));
+      }
+    });
+    long nodeCounts[][] = computeNodeCounts();
+    List<String> hotNodes = new ArrayList<String>();
+    for (int i = 0; i < order.length && hotNodes.size() < NUM_HOT_NODES && selfNanos[order[i]] > 0; i++) {
+      hotNodes.add(describeNode(order[i]) + ": " + describeCounts(order[i], nodeCounts));
+    }
+    return hotNodes.toArray(new String[hotNodes.size()]);
+  }
+
+  /**
+   * Print the counts for every node the parse reached, as an indented tree, followed
+   * by the hottest nodes
+   */
+  public void print(PrintStream out) {
+    out.println("Lines: " + numLines + " (" + numFallbacks + " needed the fallback search, " + numUnparsed + " didn't parse, " + numTimedLines + " were timed)");
+    out.println(String.format("Fallback search: %.1fms", estimateMillis(fallbackNanos)));
+    long nodeCounts[][] = computeNodeCounts();
+    int depth[] = new int[program.numNodes];
+    for (int i = 0; i < program.numNodes; i++) {
+      depth[i] = (nodeParent[i] < 0) ? 0 : depth[nodeParent[i]] + 1;
+      if (nodeCounts[0][i] == 0) {
+        continue;
+      }
+      StringBuffer buf = new StringBuffer();
+      for (int j = 0; j < depth[i]; j++) {
+        buf.append("  ");
+      }
+      buf.append(describeNode(i) + ": " + describeCounts(i, nodeCounts));
+      out.println(buf.toString());
+    }
+    out.println("Hottest nodes, by self time:");
+    for (String hotNode: getHotNodes()) {
+      out.println("  " + hotNode);
+    }
+  }
+
+  public String toString() {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    PrintStream out = new PrintStream(bytes);
+    print(out);
+    out.flush();
+    return bytes.toString();
+  }
+}
@@ -0,0 +1,1567 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure;
+
+import java.io.*;
+import java.util.*;
+import java.nio.ByteBuffer;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericContainer;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.util.Utf8;
+
+/*********************************************************
+ * ParserProgram is an InferredType tree compiled into a flat form for parsing lots of lines.
+ *
+ * It holds two things:
+ * 1) A node table: one entry per tree node, in pre-order, with its kind, token class,
+ *    children, and Avro schema.
+ * 2) An instruction array that walks the nodes the way the naive parse does: match a
+ *    token, enter and exit a record, loop over an array, and try and commit union branches.
+ *
+ * A Parser runs the instructions in a single loop, with a choice-point stack for unions
+ * and arrays and capture buffers that are allocated once per Parser.  When the naive parse
+ * fails, it falls back to a memoized search over the node table that also considers the
+ * other union branches and shorter arrays.
+ *
+ * Each node also has a FIRST set: the characters its first token could start with, taken
+ * from the token classes (and literal chars) that can come first in it.  A union looks at
+ * the next character once, and only tries the branches that could start with it.  When no
+ * later branch could, the union commits to the current one without leaving a choice point,
+ * so unions whose branches start differently never backtrack.
+ *
+ * A Parser can also encode a line straight to Avro binary, for DataFileWriter.appendEncoded().
+ * The naive parse then writes each token's value as it matches, with union indexes and array
+ * counts inline, instead of building Records and Arrays for GenericDatumWriter to walk.
+ *
+ * A Parser can also reuse the objects it returns, the way Avro's DatumReader.read() reuses
+ * its 'reuse' argument: see setReuseData().  And it can count its work per node, in a
+ * ParseProfile: see setProfile().
+ *
+ * A ParserProgram is immutable, and is what gets written to parser.dat.  A Parser is not
+ * thread-safe; give each thread its own.
+ *********************************************************/
+public class ParserProgram implements Writable {
+  static int PROGRAM_VERSION = 2;
+
+  // Node kinds
+  static final int BASE_NODE = 1;
+  static final int STRUCT_NODE = 2;
+  static final int ARRAY_NODE = 3;
+  static final int UNION_NODE = 4;
+
+  //
+  // Instructions, with their operands.  A 'dest' operand says where a node's value goes
+  // when the node is done: a field of the enclosing record (the field's position), the
+  // enclosing array, the final result, or nowhere.
+  //
+  static final int OP_MATCH = 1;            // MATCH dest node: parse the base node's token
+  static final int OP_NOT_AT_END = 2;       // NOT_AT_END: fail at the end of the string
+  static final int OP_ENTER_RECORD = 3;     // ENTER_RECORD node
+  static final int OP_EXIT_RECORD = 4;      // EXIT_RECORD dest node
+  static final int OP_ARRAY_BEGIN = 5;      // ARRAY_BEGIN node endPc
+  static final int OP_ARRAY_NEXT = 6;       // ARRAY_NEXT bodyPc
+  static final int OP_ARRAY_END = 7;        // ARRAY_END dest node
+  static final int OP_UNION_TRY = 8;        // UNION_TRY nextBranchPc union branch
+  static final int OP_UNION_COMMIT = 9;     // UNION_COMMIT endPc branch
+  static final int OP_AT_BLANK = 10;        // AT_BLANK: fail unless the rest of the string is blank
+  static final int OP_RETURN = 11;          // RETURN
+  static final int OP_FAIL = 12;            // FAIL
+
+  static final int DEST_DISCARD = -1;
+  static final int DEST_APPEND = -2;
+  static final int DEST_RESULT = -3;
+
+  Schema schema;
+  int numNodes;
+  int nodeKind[];
+  String nodeName[];
+  int nodeTokenClass[];
+  String nodeTokenParameter[];
+  boolean nodeHasData[];
+  int nodeChildren[][];
+  int nodeDest[];
+  Schema nodeSchema[];
+  int nodeUnionIndex[];
+
+  // FIRST sets.  Bit c of firstChars[2*node + (c >> 6)] is set if the node could start
+  // with ASCII char c; a nullable node can match the empty string, so it could start with
+  // anything.  laterChars and laterNullable hold the same for a union branch's later
+  // siblings, taken together.  Non-ASCII chars are never ruled out.
+  long firstChars[];
+  boolean firstNullable[];
+  long laterChars[];
+  boolean laterNullable[];
+
+  int maxDepth;
+  int code[];
+  int codeLen;
+
+  public ParserProgram() {
+  }
+
+  /**
+   * Compile the given type tree.
+   */
+  public ParserProgram(InferredType root) {
+    this.schema = root.getAvroSchema();
+
+    List<InferredType> nodes = new ArrayList<InferredType>();
+    this.maxDepth = collectNodes(root, nodes);
+    this.numNodes = nodes.size();
+    this.nodeKind = new int[numNodes];
+    this.nodeName = new String[numNodes];
+    this.nodeTokenClass = new int[numNodes];
+    this.nodeTokenParameter = new String[numNodes];
+    this.nodeHasData = new boolean[numNodes];
+    this.nodeChildren = new int[numNodes][];
+    this.nodeDest = new int[numNodes];
+    this.nodeSchema = new Schema[numNodes];
+
+    Map<InferredType, Integer> nodeIds = new IdentityHashMap<InferredType, Integer>();
+    for (int i = 0; i < numNodes; i++) {
+      nodeIds.put(nodes.get(i), i);
+    }
+    for (int i = 0; i < numNodes; i++) {
+      InferredType it = nodes.get(i);
+      List<InferredType> children = new ArrayList<InferredType>();
+      if (it instanceof BaseType) {
+        BaseType bt = (BaseType) it;
+        nodeKind[i] = BASE_NODE;
+        nodeTokenClass[i] = bt.tokenClassIdentifier;
+        nodeTokenParameter[i] = bt.tokenParameter;
+        nodeHasData[i] = Token.AbstractToken.hasData(bt.tokenClassIdentifier);
+      } else if (it instanceof StructType) {
+        nodeKind[i] = STRUCT_NODE;
+        children = ((StructType) it).structTypes;
+      } else if (it instanceof ArrayType) {
+        nodeKind[i] = ARRAY_NODE;
+        children.add(((ArrayType) it).bodyType);
+      } else {
+        nodeKind[i] = UNION_NODE;
+        children = ((UnionType) it).unionTypes;
+      }
+      nodeName[i] = it.getName();
+      nodeSchema[i] = it.getAvroSchema();
+      nodeChildren[i] = new int[children.size()];
+      for (int j = 0; j < children.size(); j++) {
+        nodeChildren[i][j] = nodeIds.get(children.get(j));
+      }
+    }
+    computeDests();
+    computeUnionIndexes();
+    computeFirstSets();
+
+    this.code = new int[16];
+    this.codeLen = 0;
+    emitNode(0, DEST_RESULT, nodeKind[0] == UNION_NODE);
+    if (nodeKind[0] != UNION_NODE) {
+      emit(OP_AT_BLANK);
+    }
+    emit(OP_RETURN);
+  }
+
+  /**
+   * Add the subtree's nodes in pre-order, and return its height.
+   */
+  int collectNodes(InferredType it, List<InferredType> nodes) {
+    nodes.add(it);
+    List<InferredType> children = null;
+    if (it instanceof StructType) {
+      children = ((StructType) it).structTypes;
+    } else if (it instanceof ArrayType) {
+      children = Collections.singletonList(((ArrayType) it).bodyType);
+    } else if (it instanceof UnionType) {
+      children = ((UnionType) it).unionTypes;
+    }
+    int height = 0;
+    if (children != null) {
+      for (InferredType child: children) {
+        height = Math.max(height, collectNodes(child, nodes));
+      }
+    }
+    return height + 1;
+  }
+
+  /**
+   * Where each node's value goes, given its parent.  A record's fields are the children
+   * that have a schema, so a child's value goes to its field's position.  A union passes
+   * its own destination down to its branches.
+   */
+  void computeDests() {
+    nodeDest[0] = DEST_RESULT;
+    for (int i = 0; i < numNodes; i++) {
+      for (int child: nodeChildren[i]) {
+        if (nodeKind[i] == STRUCT_NODE) {
+          Schema.Field field = (nodeSchema[child] == null) ? null : nodeSchema[i].getField(nodeName[child]);
+          nodeDest[child] = (field == null) ? DEST_DISCARD : field.pos();
+        } else if (nodeKind[i] == ARRAY_NODE) {
+          nodeDest[child] = DEST_APPEND;
+        } else {
+          nodeDest[child] = nodeDest[i];
+        }
+      }
+    }
+  }
+
+  /**
+   * The index, within its union's schema, of each union branch: the branch GenericData
+   * would resolve the branch's value to.  -1 if it resolves to none (the generic path then
+   * fails), or if the node isn't a union branch.
+   */
+  void computeUnionIndexes() {
+    this.nodeUnionIndex = new int[numNodes];
+    Arrays.fill(nodeUnionIndex, -1);
+    for (int i = 0; i < numNodes; i++) {
+      if (nodeKind[i] != UNION_NODE) {
+        continue;
+      }
+      for (int branch: nodeChildren[i]) {
+        String valueName = null;
+        if (nodeKind[branch] == STRUCT_NODE) {
+          valueName = nodeSchema[branch].getFullName();
+        } else if (nodeKind[branch] == ARRAY_NODE) {
+          valueName = "array";
+        } else if (nodeKind[branch] == BASE_NODE && nodeHasData[branch]) {
+          valueName = getValueName(nodeTokenClass[branch]);
+        }
+        Integer index = (valueName == null) ? null : nodeSchema[i].getIndexNamed(valueName);
+        if (index != null) {
+          nodeUnionIndex[branch] = index;
+        }
+      }
+    }
+  }
+
+  /**
+   * The schema name of the values Token.get() returns for the given token class
+   */
+  static String getValueName(int tokenClassId) {
+    switch (tokenClassId) {
+    case Token.DATE_TOKENCLASSID:
+      return Token.DateToken.DATE_SCHEMA.getFullName();
+    case Token.TIME_TOKENCLASSID:
+      return Token.TimeToken.TIME_SCHEMA.getFullName();
+    case Token.INT_TOKENCLASSID:
+      return "int";
+    case Token.FLOAT_TOKENCLASSID:
+      return "double";
+    default:
+      return "string";
+    }
+  }
+
+  /**
+   * Compute every node's FIRST set, children before parents.  In pre-order, a node's
+   * children always come after it.
+   */
+  void computeFirstSets() {
+    this.firstChars = new long[2 * numNodes];
+    this.firstNullable = new boolean[numNodes];
+    this.laterChars = new long[2 * numNodes];
+    this.laterNullable = new boolean[numNodes];
+    for (int i = numNodes - 1; i >= 0; i--) {
+      int children[] = nodeChildren[i];
+      switch (nodeKind[i]) {
+      case BASE_NODE: {
+        for (int c = 0; c < 128; c++) {
+          if (Lexer.canStart(nodeTokenClass[i], nodeTokenParameter[i], (char) c)) {
+            firstChars[2*i + (c >> 6)] |= 1L << (c & 63);
+          }
+        }
+        break;
+      }
+      case STRUCT_NODE: {
+        // The first child, plus the next one if the first can be empty, and so on
+        firstNullable[i] = true;
+        for (int j = 0; j < children.length && firstNullable[i]; j++) {
+          addFirstSet(i, children[j]);
+          firstNullable[i] = firstNullable[children[j]];
+        }
+        break;
+      }
+      case ARRAY_NODE: {
+        addFirstSet(i, children[0]);
+        firstNullable[i] = true;
+        break;
+      }
+      default: {
+        long later0 = 0;
+        long later1 = 0;
+        boolean isLaterNullable = false;
+        for (int j = children.length - 1; j >= 0; j--) {
+          int branch = children[j];
+          laterChars[2*branch] = later0;
+          laterChars[2*branch+1] = later1;
+          laterNullable[branch] = isLaterNullable;
+          later0 |= firstChars[2*branch];
+          later1 |= firstChars[2*branch+1];
+          isLaterNullable |= firstNullable[branch];
+        }
+        firstChars[2*i] = later0;
+        firstChars[2*i+1] = later1;
+        firstNullable[i] = isLaterNullable;
+        break;
+      }
+      }
+    }
+  }
+  void addFirstSet(int node, int child) {
+    firstChars[2*node] |= firstChars[2*child];
+    firstChars[2*node+1] |= firstChars[2*child+1];
+  }
+
+  /**
+   * Whether a string in the given FIRST set could start at 'pos'
+   */
+  static boolean inFirstSet(long chars[], boolean nullable[], int node, CharSequence s, int pos, int len) {
+    if (nullable[node]) {
+      return true;
+    }
+    if (pos >= len) {
+      return false;
+    }
+    char c = s.charAt(pos);
+    if (c >= 128) {
+      return true;
+    }
+    return ((chars[2*node + (c >> 6)] >>> (c & 63)) & 1L) != 0;
+  }
+
+  void emit(int op) {
+    if (codeLen == code.length) {
+      code = Arrays.copyOf(code, code.length * 2);
+    }
+    code[codeLen++] = op;
+  }
+  void emit(int op, int arg1) {
+    emit(op);
+    emit(arg1);
+  }
+  void emit(int op, int arg1, int arg2) {
+    emit(op);
+    emit(arg1);
+    emit(arg2);
+  }
+  void emit(int op, int arg1, int arg2, int arg3) {
+    emit(op);
+    emit(arg1);
+    emit(arg2);
+    emit(arg3);
+  }
+
+  /**
+   * Emit the instructions for one node.  If 'atBlankAfterBranches' is set (only for a
+   * union at the root), each branch must also reach the end of the string to succeed.
+   */
+  void emitNode(int node, int dest, boolean atBlankAfterBranches) {
+    int children[] = nodeChildren[node];
+    switch (nodeKind[node]) {
+    case BASE_NODE: {
+      emit(OP_MATCH, dest, node);
+      break;
+    }
+    case STRUCT_NODE: {
+      emit(OP_ENTER_RECORD, node);
+      for (int child: children) {
+        emit(OP_NOT_AT_END);
+        emitNode(child, nodeDest[child], false);
+      }
+      emit(OP_EXIT_RECORD, dest, node);
+      break;
+    }
+    case ARRAY_NODE: {
+      emit(OP_ARRAY_BEGIN, node, -1);
+      int endPcOperand = codeLen - 1;
+      int bodyPc = codeLen;
+      emitNode(children[0], DEST_APPEND, false);
+      emit(OP_ARRAY_NEXT, bodyPc);
+      code[endPcOperand] = codeLen;
+      emit(OP_ARRAY_END, dest, node);
+      break;
+    }
+    case UNION_NODE: {
+      // Each branch is tried in turn; after the last one, the union fails
+      List<Integer> commitOperands = new ArrayList<Integer>();
+      for (int i = 0; i < children.length; i++) {
+        emit(OP_UNION_TRY, -1, node, children[i]);
+        int nextBranchOperand = codeLen - 3;
+        emitNode(children[i], dest, false);
+        if (atBlankAfterBranches) {
+          emit(OP_AT_BLANK);
+        }
+        emit(OP_UNION_COMMIT, -1, children[i]);
+        commitOperands.add(codeLen - 2);
+        code[nextBranchOperand] = codeLen;
+      }
+      emit(OP_FAIL);
+      for (int operand: commitOperands) {
+        code[operand] = codeLen;
+      }
+      break;
+    }
+    }
+  }
+
+  /**
+   * The number of ints in an instruction, operands included
+   */
+  static int instructionLength(int op) {
+    switch (op) {
+    case OP_MATCH:
+    case OP_EXIT_RECORD:
+    case OP_ARRAY_BEGIN:
+    case OP_ARRAY_END:
+    case OP_UNION_COMMIT:
+      return 3;
+    case OP_ENTER_RECORD:
+    case OP_ARRAY_NEXT:
+      return 2;
+    case OP_UNION_TRY:
+      return 4;
+    default:
+      return 1;
+    }
+  }
+
+  /**
+   * For each instruction, the innermost node whose code it's part of.  A node's code
+   * is contiguous and nested inside its parent's, so a single pass with a stack of the
+   * open records, arrays, and unions finds them.  A union's code ends with its FAIL.
+   */
+  int[] computeInstructionNodes() {
+    int pcNode[] = new int[codeLen];
+    int open[] = new int[maxDepth + 1];
+    int numOpen = 0;
+    for (int pc = 0; pc < codeLen; pc += instructionLength(code[pc])) {
+      int node;
+      switch (code[pc]) {
+      case OP_MATCH:
+        node = code[pc+2];
+        break;
+      case OP_ENTER_RECORD:
+      case OP_ARRAY_BEGIN:
+        node = code[pc+1];
+        open[numOpen++] = node;
+        break;
+      case OP_EXIT_RECORD:
+      case OP_ARRAY_END:
+        node = code[pc+2];
+        numOpen--;
+        break;
+      case OP_UNION_TRY:
+        node = code[pc+2];
+        if (numOpen == 0 || open[numOpen-1] != node) {
+          open[numOpen++] = node;
+        }
+        break;
+      case OP_FAIL:
+        node = open[--numOpen];
+        break;
+      default:
+        node = (numOpen == 0) ? 0 : open[numOpen-1];
+        break;
+      }
+      pcNode[pc] = node;
+    }
+    return pcNode;
+  }
+
+  public Schema getAvroSchema() {
+    return schema;
+  }
+
+  /**
+   * A Parser for this program, with its own buffers
+   */
+  public Parser newParser() {
+    return new Parser();
+  }
+
+  /**
+   * The bytes of one encoded value.  Unlike ByteArrayOutputStream, it can be cut back to
+   * an earlier length when the parse backtracks, and can insert an array's item count in
+   * front of its items once the count is known.
+   */
+  static class EncodeBuffer extends OutputStream {
+    byte buf[] = new byte[256];
+    int count;
+
+    void ensureCapacity(int capacity) {
+      if (capacity > buf.length) {
+        buf = Arrays.copyOf(buf, Math.max(capacity, 2 * buf.length));
+      }
+    }
+    public void write(int b) {
+      ensureCapacity(count + 1);
+      buf[count++] = (byte) b;
+    }
+    public void write(byte b[], int off, int len) {
+      ensureCapacity(count + len);
+      System.arraycopy(b, off, buf, count, len);
+      count += len;
+    }
+
+    /**
+     * Insert 'n' at 'offset' in Avro's zig-zag varint form, moving what follows along
+     */
+    void insertLong(int offset, long n) {
+      byte varint[] = new byte[10];
+      int len = 0;
+      n = (n << 1) ^ (n >> 63);
+      while ((n & ~0x7FL) != 0) {
+        varint[len++] = (byte) ((n & 0x7F) | 0x80);
+        n >>>= 7;
+      }
+      varint[len++] = (byte) n;
+      ensureCapacity(count + len);
+      System.arraycopy(buf, offset, buf, offset + len, count - offset);
+      System.arraycopy(varint, 0, buf, offset, len);
+      count += len;
+    }
+  }
+
+  /**
+   * One way of parsing a node, starting at some offset: where it ends, and what's needed
+   * to build the resulting data.  For a base node, 'data' is the parsed value.  For a struct
+   * node, 'parts' holds one alternative per child.  For an array node, 'parts' is empty (no
+   * elements) or holds the first element and the alternative for the rest of the array.  A
+   * union node passes on the alternative of the chosen branch, so 'node' always names the
+   * node that builds the data.
+   */
+  static class ParseAlternative {
+    int node;
+    int end;
+    boolean hasData;
+    Object data;
+    ParseAlternative parts[];
+
+    ParseAlternative(int node, int end, boolean hasData, Object data, ParseAlternative parts[]) {
+      this.node = node;
+      this.end = end;
+      this.hasData = hasData;
+      this.data = data;
+      this.parts = parts;
+    }
+  }
+
+  /**
+   * Parser runs a ParserProgram over one line at a time.
+   */
+  public class Parser {
+    // Capture buffers: the fields of each record node, and the elements of each array node.
+    // A node can't be nested inside itself, so each node needs only one of them.
+    Object recordFields[][] = new Object[numNodes][];
+    // There are no arrays of a generic type, so make a wildcard one and cast it
+    @SuppressWarnings("unchecked")
+    List<Object> arrayElts[] = (List<Object>[]) new List<?>[numNodes];
+
+    // Open records and arrays
+    int frameNode[] = new int[maxDepth];
+    boolean frameHasData[] = new boolean[maxDepth];
+
+    // Choice points: where to resume, and the state to restore, if what follows fails.
+    // 'choiceOwner' is the array node or union branch that pushed it, and 'choiceUnion'
+    // the branch's union (-1 for an array).
+    int choicePc[] = new int[maxDepth];
+    int choicePos[] = new int[maxDepth];
+    int choiceDepth[] = new int[maxDepth];
+    int choiceOwner[] = new int[maxDepth];
+    int choiceUnion[] = new int[maxDepth];
+    int choiceEncodeLen[] = new int[maxDepth];
+
+    // Direct encoding.  While 'encoding' is set, the naive parse writes values to
+    // 'encodeBuf' rather than building them; each array remembers where its items begin.
+    // 'irregular' is set if the parse reaches a value that GenericDatumWriter would not
+    // write the same way (or at all).  An encoded line then takes the generic path, and a
+    // built value is checked against the schema before it's returned.
+    boolean encoding;
+    boolean irregular;
+    EncodeBuffer encodeBuf = new EncodeBuffer();
+    BinaryEncoder encoder = EncoderFactory.get().directBinaryEncoder(encodeBuf, null);
+    GenericDatumWriter<Object> genericWriter;
+    int frameEncodeStart[] = new int[maxDepth];
+
+    // Reuse mode: the records, arrays, and strings that the naive parse returns come from
+    // per-node pools.  'dataPoolUsed' counts each pool's objects handed out since the last
+    // releaseData().
+    boolean reuseData;
+    @SuppressWarnings("unchecked")
+    List<Object> dataPools[] = (List<Object>[]) new List<?>[numNodes];
+    int dataPoolUsed[] = new int[numNodes];
+
+    // For each union: branches tried, branches ruled out by their FIRST sets, and branches
+    // that were tried but failed, so that the union went on to a later one
+    long unionTries[] = new long[numNodes];
+    long unionSkips[] = new long[numNodes];
+    long unionBacktracks[] = new long[numNodes];
+
+    // Where the work goes, if anyone asked: see setProfile().  On a line whose time is
+    // measured, 'tickNode' is the node of the instruction that started at 'tickTime'.
+    ParseProfile profile;
+    boolean timingLine;
+    long tickTime;
+    int tickNode;
+
+    List<Token.AbstractToken> outputToks = new ArrayList<Token.AbstractToken>(1);
+    Object result;
+    boolean resultHasData;
+
+    // The memo table for the fallback search: the alternatives of each (node, offset)
+    List<ParseAlternative> memo[][];
+    CharSequence memoStr;
+
+    Parser() {
+      for (int i = 0; i < numNodes; i++) {
+        if (nodeKind[i] == STRUCT_NODE) {
+          recordFields[i] = new Object[nodeSchema[i].getFields().size()];
+        } else if (nodeKind[i] == ARRAY_NODE) {
+          arrayElts[i] = new ArrayList<Object>();
+        }
+      }
+    }
+
+    /**
+     * In reuse mode, parse() fills in records, arrays, and strings it has returned before,
+     * rather than allocating new ones.  Once the caller is done with the values returned so
+     * far (say, it has serialized them) it calls releaseData(), and they're overwritten by
+     * later calls.  A caller that handles one line at a time calls it after every line.
+     */
+    public void setReuseData(boolean reuseData) {
+      this.reuseData = reuseData;
+      releaseData();
+    }
+
+    /**
+     * Let later calls to parse() overwrite the values it has returned so far
+     */
+    public void releaseData() {
+      Arrays.fill(dataPoolUsed, 0);
+    }
+
+    /**
+     * The next free object in the node's pool, or null if none is free
+     */
+    Object reusable(int node) {
+      List<Object> pool = dataPools[node];
+      if (pool == null || dataPoolUsed[node] == pool.size()) {
+        return null;
+      }
+      return pool.get(dataPoolUsed[node]++);
+    }
+
+    /**
+     * Add a newly built object to the node's pool, as in use
+     */
+    void addReusable(int node, Object o) {
+      if (dataPools[node] == null) {
+        dataPools[node] = new ArrayList<Object>();
+      }
+      dataPools[node].add(o);
+      dataPoolUsed[node]++;
+    }
+
+    /**
+     * Count this Parser's work in the given profile, which must be for this Parser's
+     * program (or stop counting, if it's null).  The profile isn't thread-safe; give each
+     * Parser its own, and add them up afterwards.
+     */
+    public void setProfile(ParseProfile profile) {
+      if (profile != null && profile.program != ParserProgram.this) {
+        throw new IllegalArgumentException("Profile is for a different ParserProgram");
+      }
+      this.profile = profile;
+    }
+    public ParseProfile getProfile() {
+      return profile;
+    }
+
+    /**
+     * Count a new line in the profile, and decide whether to time it
+     */
+    void startLine() {
+      if (profile != null) {
+        timingLine = profile.startLine();
+      }
+    }
+
+    /**
+     * Charge the time since the last tick to the node that was running, and start
+     * timing the given one
+     */
+    void tick(int node) {
+      long now = System.nanoTime();
+      long elapsed = now - tickTime - ParseProfile.CLOCK_NANOS;
+      if (elapsed > 0 && elapsed < ParseProfile.MAX_INSTRUCTION_NANOS) {
+        profile.selfNanos[tickNode] += elapsed;
+      }
+      tickTime = now;
+      tickNode = node;
+    }
+
+    /**
+     * Parse the given string.  Returns null if it can't be parsed or holds no data.
+     */
+    public GenericContainer parse(CharSequence s) {
+      startLine();
+      GenericContainer gct = parseLine(s);
+      if (profile != null && gct == null) {
+        profile.numUnparsed++;
+      }
+      return gct;
+    }
+
+    GenericContainer parseLine(CharSequence s) {
+      //
+      // Try the naive parse
+      //
+      boolean parsed;
+      try {
+        parsed = runNaive(s);
+      } catch (IOException iex) {
+        // Only encode() writes anything, and then only to memory
+        throw new IllegalStateException(iex);
+      }
+      if (parsed && resultHasData && (! irregular || isWritable(result))) {
+        Object data = result;
+        result = null;
+        return (GenericContainer) data;
+      }
+      result = null;
+      return parseFallback(s);
+    }
+
+    /**
+     * Otherwise, we need to consider other union-options (and shorter arrays).
+     * Find every way of parsing the string, best first, and take the first one
+     * that consumes all of it and builds a value the schema accepts.
+     */
+    GenericContainer parseFallback(CharSequence s) {
+      @SuppressWarnings("unchecked")
+      List<ParseAlternative> newMemo[][] = (List<ParseAlternative>[][]) new List<?>[numNodes][];
+      memo = newMemo;
+      memoStr = s;
+      long fallbackStart = 0;
+      if (profile != null) {
+        profile.numFallbacks++;
+        if (timingLine) {
+          fallbackStart = System.nanoTime();
+        }
+      }
+      try {
+        for (ParseAlternative alt: memoParse(0, 0)) {
+          if (alt.hasData && Lexer.isBlank(s, alt.end, s.length())) {
+            Object data = buildData(alt);
+            if (isWritable(data)) {
+              return (GenericContainer) data;
+            }
+          }
+        }
+        return null;
+      } finally {
+        memo = null;
+        memoStr = null;
+        if (profile != null && timingLine) {
+          profile.fallbackNanos += System.nanoTime() - fallbackStart;
+        }
+      }
+    }
+
+    /**
+     * Parse the given string and encode its value in Avro binary form, under the program's
+     * schema.  Returns null if it can't be parsed or holds no data.  The returned buffer is
+     * only good until the next call; DataFileWriter.appendEncoded() copies it.
+     */
+    public ByteBuffer encode(CharSequence s) throws IOException {
+      startLine();
+      encodeBuf.count = 0;
+      encoding = true;
+      boolean parsed;
+      try {
+        parsed = runNaive(s);
+      } finally {
+        encoding = false;
+      }
+      if (parsed && resultHasData && ! irregular) {
+        return ByteBuffer.wrap(encodeBuf.buf, 0, encodeBuf.count);
+      }
+
+      //
+      // Build the value, and have GenericDatumWriter encode it
+      //
+      GenericContainer gct = parseLine(s);
+      if (gct == null) {
+        if (profile != null) {
+          profile.numUnparsed++;
+        }
+        return null;
+      }
+      return encode(gct);
+    }
+
+    /**
+     * Whether GenericDatumWriter can write the value under the program's schema.  A
+     * union whose chosen branch carries no data, for example, leaves a null (or a
+     * data-less token's value) where the schema has no room for one.  Overwrites the
+     * buffer that encode() returns.
+     */
+    boolean isWritable(Object value) {
+      if (genericWriter == null) {
+        genericWriter = new GenericDatumWriter<Object>(schema);
+      }
+      encodeBuf.count = 0;
+      try {
+        genericWriter.write(value, encoder);
+        return true;
+      } catch (RuntimeException rex) {
+        return false;
+      } catch (IOException iex) {
+        // The encoder only writes to memory
+        throw new IllegalStateException(iex);
+      }
+    }
+
+    /**
+     * Encode a value that has already been built, such as one that parse() returned.
+     * The returned buffer is only good until the next call to encode().
+     */
+    public ByteBuffer encode(GenericContainer gct) throws IOException {
+      if (genericWriter == null) {
+        genericWriter = new GenericDatumWriter<Object>(schema);
+      }
+      encodeBuf.count = 0;
+      genericWriter.write(gct, encoder);
+      return ByteBuffer.wrap(encodeBuf.buf, 0, encodeBuf.count);
+    }
+
+    /**
+     * Add another Parser's union counts to this one's
+     */
+    public void addUnionStats(Parser other) {
+      for (int i = 0; i < numNodes; i++) {
+        unionTries[i] += other.unionTries[i];
+        unionSkips[i] += other.unionSkips[i];
+        unionBacktracks[i] += other.unionBacktracks[i];
+      }
+    }
+
+    /**
+     * For each union the naive parse has reached: how many branches it tried, how many
+     * it skipped because they couldn't start with the next character, and how many of
+     * the tried ones failed and sent it on to a later branch.
+     */
+    public void printUnionStats(PrintStream out) {
+      for (int i = 0; i < numNodes; i++) {
+        if (nodeKind[i] == UNION_NODE && (unionTries[i] > 0 || unionSkips[i] > 0)) {
+          out.println(nodeName[i] + ": tried=" + unionTries[i] + ", skipped=" + unionSkips[i] + ", backtracked=" + unionBacktracks[i]);
+        }
+      }
+    }
+
+    /**
+     * Hand a finished node's value to its destination.  'depth' is the number of open
+     * records and arrays; the innermost one is the enclosing container.
+     */
+    void deliver(int dest, Object value, boolean hasData, int depth) {
+      if (dest >= 0) {
+        if (hasData) {
+          recordFields[frameNode[depth-1]][dest] = value;
+          frameHasData[depth-1] = true;
+        }
+      } else if (dest == DEST_APPEND) {
+        arrayElts[frameNode[depth-1]].add(value);
+      } else if (dest == DEST_RESULT) {
+        result = value;
+        resultHasData = hasData;
+      }
+    }
+
+    /**
+     * The naive parse: each union takes the first branch that parses, each array takes
+     * as many elements as it can, and nothing is reconsidered.  Returns true if the
+     * program ran to completion; the value is left in 'result', or in 'encodeBuf' when
+     * encoding.
+     */
+    boolean runNaive(CharSequence s) throws IOException {
+      int len = s.length();
+      int pc = 0;
+      int pos = 0;
+      int depth = 0;
+      int numChoices = 0;
+      irregular = false;
+      ParseProfile prof = profile;
+      if (prof != null && timingLine) {
+        tickTime = System.nanoTime();
+        tickNode = 0;
+      }
+
+      while (true) {
+        if (prof != null) {
+          prof.pcCounts[pc]++;
+          if (timingLine) {
+            tick(prof.pcNode[pc]);
+          }
+        }
+        switch (code[pc]) {
+        case OP_MATCH: {
+          int node = code[pc+2];
+          int newPos = Tokenizer.attemptParse(nodeTokenClass[node], nodeTokenParameter[node], s, pos, len, outputToks);
+          if (newPos < 0) {
+            break;
+          }
+          if (code[pc+1] == DEST_APPEND && ! nodeHasData[node]) {
+            // An array element has to have a schema; a data-less token has none
+            outputToks.clear();
+            break;
+          }
+          Object value = null;
+          if (! encoding) {
+            if (! reuseData) {
+              value = outputToks.get(0).get();
+            } else {
+              Object reuse = reusable(node);
+              value = outputToks.get(0).get(reuse);
+              if (reuse == null && (value instanceof Utf8 || value instanceof GenericData.Record)) {
+                addReusable(node, value);
+              }
+            }
+          } else if (nodeHasData[node]) {
+            outputToks.get(0).encode(encoder);
+          }
+          outputToks.clear();
+          deliver(code[pc+1], value, nodeHasData[node], depth);
+          pos = newPos;
+          pc += 3;
+          continue;
+        }
+        case OP_NOT_AT_END: {
+          if (pos >= len) {
+            break;
+          }
+          pc += 1;
+          continue;
+        }
+        case OP_ENTER_RECORD: {
+          int node = code[pc+1];
+          Arrays.fill(recordFields[node], null);
+          frameNode[depth] = node;
+          frameHasData[depth] = false;
+          depth++;
+          pc += 2;
+          continue;
+        }
+        case OP_EXIT_RECORD: {
+          int node = code[pc+2];
+          GenericData.Record gdr = null;
+          depth--;
+          if (! encoding) {
+            Object fields[] = recordFields[node];
+            gdr = reuseData ? (GenericData.Record) reusable(node) : null;
+            if (gdr == null) {
+              gdr = new GenericData.Record(nodeSchema[node]);
+              if (reuseData) {
+                addReusable(node, gdr);
+              }
+            }
+            for (int i = 0; i < fields.length; i++) {
+              gdr.put(i, fields[i]);
+            }
+          }
+          if (code[pc+1] >= 0 && ! frameHasData[depth]) {
+            // The generic path would leave the field null
+            irregular = true;
+          }
+          deliver(code[pc+1], gdr, frameHasData[depth], depth);
+          pc += 3;
+          continue;
+        }
+        case OP_ARRAY_BEGIN: {
+          int node = code[pc+1];
+          arrayElts[node].clear();
+          frameNode[depth] = node;
+          frameHasData[depth] = true;
+          frameEncodeStart[depth] = encodeBuf.count;
+          depth++;
+          choicePc[numChoices] = code[pc+2];
+          choicePos[numChoices] = pos;
+          choiceDepth[numChoices] = depth;
+          choiceOwner[numChoices] = node;
+          choiceUnion[numChoices] = -1;
+          choiceEncodeLen[numChoices] = encodeBuf.count;
+          numChoices++;
+          pc += 3;
+          continue;
+        }
+        case OP_ARRAY_NEXT: {
+          // The array's choice point is on top.  Stop if the last element consumed
+          // nothing (it would repeat forever); otherwise go around again.
+          if (pos == choicePos[numChoices-1]) {
+            numChoices--;
+            pc += 2;
+          } else {
+            choicePos[numChoices-1] = pos;
+            choiceEncodeLen[numChoices-1] = encodeBuf.count;
+            pc = code[pc+1];
+          }
+          continue;
+        }
+        case OP_ARRAY_END: {
+          int node = code[pc+2];
+          List<Object> elts = arrayElts[node];
+          GenericData.Array<Object> gda = null;
+          depth--;
+          if (! encoding) {
+            if (reuseData) {
+              @SuppressWarnings("unchecked")
+              GenericData.Array<Object> reuse = (GenericData.Array<Object>) reusable(node);
+              gda = reuse;
+            }
+            if (gda == null) {
+              gda = new GenericData.Array<Object>(elts.size(), nodeSchema[node]);
+              if (reuseData) {
+                addReusable(node, gda);
+              }
+            }
+            gda.clear();
+            for (int i = 0; i < elts.size(); i++) {
+              gda.add(elts.get(i));
+            }
+          } else {
+            // The items form a single block, so the count goes in front of them
+            if (elts.size() > 0) {
+              encodeBuf.insertLong(frameEncodeStart[depth], elts.size());
+            }
+            encoder.writeArrayEnd();
+          }
+          elts.clear();
+          deliver(code[pc+1], gda, true, depth);
+          pc += 3;
+          continue;
+        }
+        case OP_UNION_TRY: {
+          int union = code[pc+2];
+          int branch = code[pc+3];
+          if (! inFirstSet(firstChars, firstNullable, branch, s, pos, len)) {
+            unionSkips[union]++;
+            pc = code[pc+1];
+            continue;
+          }
+          unionTries[union]++;
+          // Leave a choice point only if a later branch could start here
+          if (inFirstSet(laterChars, laterNullable, branch, s, pos, len)) {
+            choicePc[numChoices] = code[pc+1];
+            choicePos[numChoices] = pos;
+            choiceDepth[numChoices] = depth;
+            choiceOwner[numChoices] = branch;
+            choiceUnion[numChoices] = union;
+            choiceEncodeLen[numChoices] = encodeBuf.count;
+            numChoices++;
+          }
+          if (nodeDest[union] != DEST_DISCARD) {
+            if (nodeUnionIndex[branch] < 0) {
+              irregular = true;
+            } else if (encoding) {
+              encoder.writeIndex(nodeUnionIndex[branch]);
+            }
+          }
+          pc += 4;
+          continue;
+        }
+        case OP_UNION_COMMIT: {
+          if (numChoices > 0 && choiceOwner[numChoices-1] == code[pc+2]) {
+            numChoices--;
+          }
+          pc = code[pc+1];
+          continue;
+        }
+        case OP_FAIL: {
+          break;
+        }
+        case OP_AT_BLANK: {
+          if (! Lexer.isBlank(s, pos, len)) {
+            break;
+          }
+          pc += 1;
+          continue;
+        }
+        case OP_RETURN: {
+          if (prof != null && timingLine) {
+            tick(0);
+          }
+          return true;
+        }
+        }
+
+        //
+        // The instruction failed.  Go back to the most recent choice point: the next
+        // branch of a union, or the end of an array.
+        //
+        if (prof != null) {
+          prof.pcFailures[pc]++;
+        }
+        if (numChoices == 0) {
+          if (prof != null && timingLine) {
+            tick(0);
+          }
+          return false;
+        }
+        numChoices--;
+        if (choiceUnion[numChoices] >= 0) {
+          unionBacktracks[choiceUnion[numChoices]]++;
+        }
+        if (prof != null) {
+          prof.backtracks[(choiceUnion[numChoices] >= 0) ? choiceUnion[numChoices] : choiceOwner[numChoices]]++;
+        }
+        pc = choicePc[numChoices];
+        pos = choicePos[numChoices];
+        depth = choiceDepth[numChoices];
+        encodeBuf.count = choiceEncodeLen[numChoices];
+      }
+    }
+
+    /**
+     * All the ways the node can parse the memo's string starting at 'pos', best first.
+     *
+     * "Best" follows the naive parse: a union prefers its earlier branches, an array prefers
+     * more elements, and a struct prefers its first child's better alternatives, then its
+     * second child's, and so on.  Two alternatives that end at the same offset can be followed
+     * by exactly the same things, so only the better one is kept.  That bounds every list by
+     * the length of the string, and each node's list is built once per offset from its
+     * children's lists, so the cost per string is polynomial rather than exponential in the
+     * number of unions.
+     */
+    List<ParseAlternative> memoParse(int node, int pos) {
+      List<ParseAlternative> alts = memoGet(node, pos);
+      if (alts == null) {
+        switch (nodeKind[node]) {
+        case BASE_NODE:
+          alts = baseAlternatives(node, pos);
+          break;
+        case STRUCT_NODE:
+          alts = structAlternatives(node, pos);
+          break;
+        case ARRAY_NODE:
+          alts = arrayAlternatives(node, pos);
+          break;
+        default:
+          alts = unionAlternatives(node, pos);
+          break;
+        }
+        memoPut(node, pos, alts);
+      }
+      return alts;
+    }
+    List<ParseAlternative> memoGet(int node, int pos) {
+      List<ParseAlternative> byPos[] = memo[node];
+      return (byPos == null) ? null : byPos[pos];
+    }
+    void memoPut(int node, int pos, List<ParseAlternative> alts) {
+      if (memo[node] == null) {
+        @SuppressWarnings("unchecked")
+        List<ParseAlternative> byPos[] = (List<ParseAlternative>[]) new List<?>[memoStr.length() + 1];
+        memo[node] = byPos;
+      }
+      memo[node][pos] = alts;
+    }
+
+    List<ParseAlternative> baseAlternatives(int node, int pos) {
+      List<ParseAlternative> alts = new ArrayList<ParseAlternative>(1);
+      int newPos = Tokenizer.attemptParse(nodeTokenClass[node], nodeTokenParameter[node], memoStr, pos, memoStr.length(), outputToks);
+      if (newPos >= 0) {
+        alts.add(new ParseAlternative(node, newPos, nodeHasData[node], outputToks.get(0).get(), null));
+        outputToks.clear();
+      }
+      return alts;
+    }
+
+    /**
+     * Extend every surviving way of parsing the first i children with every way of parsing
+     * child i, keeping the best prefix that reaches each offset.
+     */
+    List<ParseAlternative> structAlternatives(int node, int pos) {
+      int children[] = nodeChildren[node];
+      int len = memoStr.length();
+      List<ParseAlternative> frontier = new ArrayList<ParseAlternative>();
+      frontier.add(new ParseAlternative(node, pos, false, null, new ParseAlternative[0]));
+
+      for (int i = 0; i < children.length; i++) {
+        List<ParseAlternative> nextFrontier = new ArrayList<ParseAlternative>();
+        boolean reached[] = new boolean[len + 1];
+        for (ParseAlternative prefix: frontier) {
+          // As in the naive parse, a child can't start at the end of the string
+          if (prefix.end >= len) {
+            continue;
+          }
+          for (ParseAlternative childAlt: memoParse(children[i], prefix.end)) {
+            if (! reached[childAlt.end]) {
+              reached[childAlt.end] = true;
+              ParseAlternative parts[] = new ParseAlternative[i+1];
+              System.arraycopy(prefix.parts, 0, parts, 0, i);
+              parts[i] = childAlt;
+              nextFrontier.add(new ParseAlternative(node, childAlt.end, prefix.hasData || childAlt.hasData, null, parts));
+            }
+          }
+        }
+        frontier = nextFrontier;
+      }
+      return frontier;
+    }
+
+    /**
+     * An array at 'pos' is either one element followed by an array, or empty (the least
+     * preferred choice).  Rather than recurse once per element, find every offset where
+     * an element could start, and fill in the array's alternatives from the last such
+     * offset backwards.
+     */
+    List<ParseAlternative> arrayAlternatives(int node, int pos) {
+      int body = nodeChildren[node][0];
+      int len = memoStr.length();
+      boolean reachable[] = new boolean[len + 1];
+      reachable[pos] = true;
+      for (int i = pos; i <= len; i++) {
+        if (reachable[i] && memoGet(node, i) == null) {
+          for (ParseAlternative bodyAlt: memoParse(body, i)) {
+            // An element that consumes nothing could repeat forever, and one
+            // without a schema (a data-less token) has nothing to put in the array
+            if (bodyAlt.end > i && nodeSchema[bodyAlt.node] != null) {
+              reachable[bodyAlt.end] = true;
+            }
+          }
+        }
+      }
+
+      List<ParseAlternative> alts = null;
+      for (int i = len; i >= pos; i--) {
+        if (! reachable[i] || memoGet(node, i) != null) {
+          continue;
+        }
+        alts = new ArrayList<ParseAlternative>();
+        boolean reached[] = new boolean[len + 1];
+        for (ParseAlternative bodyAlt: memoParse(body, i)) {
+          if (bodyAlt.end > i && nodeSchema[bodyAlt.node] != null) {
+            for (ParseAlternative restAlt: memoGet(node, bodyAlt.end)) {
+              if (! reached[restAlt.end]) {
+                reached[restAlt.end] = true;
+                alts.add(new ParseAlternative(node, restAlt.end, true, null, new ParseAlternative[] {bodyAlt, restAlt}));
+              }
+            }
+          }
+        }
+        if (! reached[i]) {
+          alts.add(new ParseAlternative(node, i, true, null, new ParseAlternative[0]));
+        }
+        if (i > pos) {
+          memoPut(node, i, alts);
+        }
+      }
+      return alts;
+    }
+
+    /**
+     * Each branch's alternatives, in branch order.
+     */
+    List<ParseAlternative> unionAlternatives(int node, int pos) {
+      List<ParseAlternative> alts = new ArrayList<ParseAlternative>();
+      boolean reached[] = new boolean[memoStr.length() + 1];
+      for (int branch: nodeChildren[node]) {
+        if (! inFirstSet(firstChars, firstNullable, branch, memoStr, pos, memoStr.length())) {
+          continue;
+        }
+        for (ParseAlternative branchAlt: memoParse(branch, pos)) {
+          if (! reached[branchAlt.end]) {
+            reached[branchAlt.end] = true;
+            alts.add(branchAlt);
+          }
+        }
+      }
+      return alts;
+    }
+
+    /**
+     * Build the data for the chosen alternative.
+     */
+    Object buildData(ParseAlternative alt) {
+      int node = alt.node;
+      if (nodeKind[node] == STRUCT_NODE) {
+        GenericData.Record gdr = new GenericData.Record(nodeSchema[node]);
+        int children[] = nodeChildren[node];
+        for (int i = 0; i < children.length; i++) {
+          ParseAlternative childAlt = alt.parts[i];
+          if (childAlt.hasData && nodeDest[children[i]] >= 0) {
+            gdr.put(nodeDest[children[i]], buildData(childAlt));
+          }
+        }
+        return gdr;
+      } else if (nodeKind[node] == ARRAY_NODE) {
+        GenericData.Array<Object> gda = new GenericData.Array<Object>(5, nodeSchema[node]);
+        while (alt.parts.length > 0) {
+          gda.add(buildData(alt.parts[0]));
+          alt = alt.parts[1];
+        }
+        return gda;
+      } else {
+        return alt.data;
+      }
+    }
+  }
+
+  /**
+   * Deserialize a ParserProgram from the given input stream
+   */
+  public static ParserProgram readProgram(DataInput in) throws IOException {
+    ParserProgram program = new ParserProgram();
+    program.readFields(in);
+    return program;
+  }
+
+  public void write(DataOutput out) throws IOException {
+    out.writeInt(PROGRAM_VERSION);
+    Text.writeString(out, schema.toString());
+    out.writeInt(numNodes);
+    for (int i = 0; i < numNodes; i++) {
+      out.writeByte(nodeKind[i]);
+      Text.writeString(out, nodeName[i]);
+      out.writeInt(nodeTokenClass[i]);
+      out.writeBoolean(nodeTokenParameter[i] != null);
+      if (nodeTokenParameter[i] != null) {
+        Text.writeString(out, nodeTokenParameter[i]);
+      }
+      out.writeInt(nodeChildren[i].length);
+      for (int child: nodeChildren[i]) {
+        out.writeInt(child);
+      }
+    }
+    out.writeInt(maxDepth);
+    out.writeInt(codeLen);
+    for (int i = 0; i < codeLen; i++) {
+      out.writeInt(code[i]);
+    }
+  }
+
+  /**
+   * A count of things to read, which must not be negative
+   */
+  static int readCount(DataInput in, String what) throws IOException {
+    int count = in.readInt();
+    if (count < 0) {
+      throw new IOException("Negative " + what + " count in parser program: " + count);
+    }
+    return count;
+  }
+
+  /**
+   * Check that the node table read in is a tree in pre-order, as the compiler writes it:
+   * each node's first child follows it, and each later child follows the subtree of the
+   * one before.  Base nodes have no children and arrays have one.  maxDepth must be the
+   * tree's height, since the Parser's stacks are sized by it.
+   */
+  void checkNodes() throws IOException {
+    int subtreeEnd[] = new int[numNodes];
+    int height[] = new int[numNodes];
+    for (int i = numNodes - 1; i >= 0; i--) {
+      int children[] = nodeChildren[i];
+      if ((nodeKind[i] == BASE_NODE && children.length != 0) ||
+          (nodeKind[i] == ARRAY_NODE && children.length != 1) ||
+          (nodeKind[i] == UNION_NODE && children.length == 0)) {
+        throw new IOException("Node " + i + " has the wrong number of children: " + children.length);
+      }
+      int next = i + 1;
+      height[i] = 1;
+      for (int child: children) {
+        if (child != next || child >= numNodes) {
+          throw new IOException("Child " + child + " of node " + i + " is missing or out of place");
+        }
+        next = subtreeEnd[child];
+        height[i] = Math.max(height[i], height[child] + 1);
+      }
+      subtreeEnd[i] = next;
+    }
+    if (subtreeEnd[0] != numNodes) {
+      throw new IOException("Nodes " + subtreeEnd[0] + " to " + (numNodes - 1) + " aren't in the tree");
+    }
+    if (maxDepth != height[0]) {
+      throw new IOException("Parser program depth is " + maxDepth + ", but its tree's height is " + height[0]);
+    }
+  }
+
+  /**
+   * Check that every instruction read in is whole, that the last one returns, and that
+   * its operands are nodes of the right kind, destinations, or the starts of other
+   * instructions
+   */
+  void checkCode() throws IOException {
+    boolean isStart[] = new boolean[codeLen];
+    int lastOp = -1;
+    for (int pc = 0; pc < codeLen; pc += instructionLength(lastOp)) {
+      lastOp = code[pc];
+      if (lastOp < OP_MATCH || lastOp > OP_FAIL) {
+        throw new IOException("Unknown instruction " + lastOp + " at " + pc);
+      }
+      if (pc + instructionLength(lastOp) > codeLen) {
+        throw new IOException("Instruction " + lastOp + " at " + pc + " runs past the end of the program");
+      }
+      isStart[pc] = true;
+    }
+    if (lastOp != OP_RETURN) {
+      throw new IOException("Parser program doesn't end with a RETURN");
+    }
+    for (int pc = 0; pc < codeLen; pc += instructionLength(code[pc])) {
+      switch (code[pc]) {
+      case OP_MATCH:
+        checkDest(pc, code[pc+1]);
+        checkNode(pc, code[pc+2], BASE_NODE);
+        break;
+      case OP_ENTER_RECORD:
+        checkNode(pc, code[pc+1], STRUCT_NODE);
+        break;
+      case OP_EXIT_RECORD:
+        checkDest(pc, code[pc+1]);
+        checkNode(pc, code[pc+2], STRUCT_NODE);
+        break;
+      case OP_ARRAY_BEGIN:
+        checkNode(pc, code[pc+1], ARRAY_NODE);
+        checkPc(pc, code[pc+2], isStart);
+        break;
+      case OP_ARRAY_NEXT:
+        checkPc(pc, code[pc+1], isStart);
+        break;
+      case OP_ARRAY_END:
+        checkDest(pc, code[pc+1]);
+        checkNode(pc, code[pc+2], ARRAY_NODE);
+        break;
+      case OP_UNION_TRY:
+        checkPc(pc, code[pc+1], isStart);
+        checkNode(pc, code[pc+2], UNION_NODE);
+        checkNode(pc, code[pc+3], -1);
+        break;
+      case OP_UNION_COMMIT:
+        checkPc(pc, code[pc+1], isStart);
+        checkNode(pc, code[pc+2], -1);
+        break;
+      }
+    }
+  }
+  void checkNode(int pc, int node, int kind) throws IOException {
+    if (node < 0 || node >= numNodes || (kind >= 0 && nodeKind[node] != kind)) {
+      throw new IOException("Instruction at " + pc + " refers to a missing or wrong node: " + node);
+    }
+  }
+  void checkDest(int pc, int dest) throws IOException {
+    if (dest < DEST_RESULT || dest >= numNodes) {
+      throw new IOException("Instruction at " + pc + " has a bad destination: " + dest);
+    }
+  }
+  void checkPc(int pc, int target, boolean isStart[]) throws IOException {
+    if (target < 0 || target >= codeLen || !isStart[target]) {
+      throw new IOException("Instruction at " + pc + " jumps outside the program's instructions: " + target);
+    }
+  }
+
+  public void readFields(DataInput in) throws IOException {
+    int version = in.readInt();
+    if (version != PROGRAM_VERSION) {
+      throw new IOException("Unknown parser program version: " + version);
+    }
+    Schema.Parser schemaParser = new Schema.Parser();
+    this.schema = schemaParser.parse(Text.readString(in));
+    this.numNodes = readCount(in, "node");
+    if (numNodes == 0) {
+      throw new IOException("Parser program has no nodes");
+    }
+    this.nodeKind = new int[numNodes];
+    this.nodeName = new String[numNodes];
+    this.nodeTokenClass = new int[numNodes];
+    this.nodeTokenParameter = new String[numNodes];
+    this.nodeHasData = new boolean[numNodes];
+    this.nodeChildren = new int[numNodes][];
+    this.nodeDest = new int[numNodes];
+    this.nodeSchema = new Schema[numNodes];
+    for (int i = 0; i < numNodes; i++) {
+      nodeKind[i] = in.readByte();
+      if (nodeKind[i] < BASE_NODE || nodeKind[i] > UNION_NODE) {
+        throw new IOException("Unknown kind " + nodeKind[i] + " for node " + i);
+      }
+      nodeName[i] = Text.readString(in);
+      nodeTokenClass[i] = in.readInt();
+      if (nodeKind[i] == BASE_NODE && (nodeTokenClass[i] < Token.META_TOKENCLASSID || nodeTokenClass[i] > Token.NOOP_TOKENCLASSID)) {
+        throw new IOException("Unknown token class " + nodeTokenClass[i] + " for node " + i);
+      }
+      nodeTokenParameter[i] = in.readBoolean() ? Text.readString(in) : null;
+      nodeHasData[i] = (nodeKind[i] == BASE_NODE) && Token.AbstractToken.hasData(nodeTokenClass[i]);
+      nodeChildren[i] = new int[readCount(in, "child")];
+      for (int j = 0; j < nodeChildren[i].length; j++) {
+        nodeChildren[i][j] = in.readInt();
+      }
+    }
+    this.maxDepth = in.readInt();
+    this.codeLen = readCount(in, "instruction");
+    this.code = new int[codeLen];
+    for (int i = 0; i < codeLen; i++) {
+      code[i] = in.readInt();
+    }
+    checkNodes();
+    checkCode();
+
+    //
+    // Recover each node's schema.  Records are named, so they come straight out of the
+    // program's schema; everything else is rebuilt from its children, bottom-up, the same
+    // way InferredType builds it.
+    //
+    Map<String, Schema> namedSchemas = new HashMap<String, Schema>();
+    for (Schema named: schemaParser.getTypes().values()) {
+      namedSchemas.put(named.getName(), named);
+    }
+    for (int i = numNodes - 1; i >= 0; i--) {
+      int children[] = nodeChildren[i];
+      switch (nodeKind[i]) {
+      case BASE_NODE: {
+        nodeSchema[i] = Token.AbstractToken.createAvroSchema(nodeTokenClass[i], nodeTokenParameter[i], nodeName[i]);
+        break;
+      }
+      case STRUCT_NODE: {
+        nodeSchema[i] = namedSchemas.get(nodeName[i]);
+        if (nodeSchema[i] == null) {
+          throw new IOException("No schema found for record " + nodeName[i]);
+        }
+        break;
+      }
+      case ARRAY_NODE: {
+        nodeSchema[i] = Schema.createArray(nodeSchema[children[0]]);
+        break;
+      }
+      default: {
+        HashSet<String> observedSchemas = new HashSet<String>();
+        List<Schema> branches = new ArrayList<Schema>();
+        for (int branch: children) {
+          Schema branchSchema = nodeSchema[branch];
+          if (branchSchema != null && observedSchemas.add(branchSchema.toString())) {
+            branches.add(branchSchema);
+          }
+        }
+        nodeSchema[i] = Schema.createUnion(branches);
+        break;
+      }
+      }
+    }
+    computeDests();
+    computeUnionIndexes();
+    computeFirstSets();
+  }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import org.apache.avro.Schema;
+import org.apache.avro.io.JsonEncoder;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.generic.GenericContainer;
+import org.apache.avro.generic.GenericDatumWriter;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.FileSystem;
+
+/*********************************************************
+ * RecordSink is one output of a pass of a ParserProgram over a text file.  The pass
+ * parses each line once and hands the result to every sink, so the Avro file, its
+ * JSON form, and a file of the lines that didn't parse all come from a single read
+ * of the input.
+ *
+ * A parsed line's value comes in two forms, a GenericContainer and its Avro binary
+ * encoding.  Each is built once, and only if some sink says it uses it (see usesDatum()
+ * and usesEncoded()).  The lines may have been parsed on several threads, but every sink
+ * sees them on a single thread, in input order.
+ *
+ * This file contains the superclass RecordSink as well as the sinks LearnStructure writes.
+ *********************************************************/
+public abstract class RecordSink {
+  /**
+   * A line that parsed, as handed to each sink in turn.
+   */
+  public static class ParsedLine {
+    long lineno;
+    CharSequence text;
+    GenericContainer datum;
+    ByteBuffer encoded;
+
+    void reset(long lineno, CharSequence text, GenericContainer datum, ByteBuffer encoded) {
+      this.lineno = lineno;
+      this.text = text;
+      this.datum = datum;
+      this.encoded = encoded;
+    }
+    public long getLineNo() {
+      return lineno;
+    }
+    public CharSequence getText() {
+      return text;
+    }
+    /**
+     * The parsed value.  Only set if some sink uses it.
+     */
+    public GenericContainer getDatum() {
+      return datum;
+    }
+    /**
+     * The Avro binary encoding of the value.  Only set if some sink uses it.
+     */
+    public ByteBuffer getEncoded() {
+      return encoded;
+    }
+  }
+
+  /**
+   * Prepare to receive lines whose values have the given schema
+   */
+  public abstract void open(Schema schema) throws IOException;
+
+  /**
+   * Whether this sink needs each line's GenericContainer.  If no sink does, the pass
+   * encodes lines straight to Avro binary instead of building them.
+   */
+  public boolean usesDatum() {
+    return false;
+  }
+
+  /**
+   * Whether this sink needs each line's Avro binary encoding
+   */
+  public boolean usesEncoded() {
+    return false;
+  }
+
+  public void parsed(ParsedLine line) throws IOException {
+  }
+
+  public void unparsed(long lineno, CharSequence line) throws IOException {
+  }
+
+  public abstract void close() throws IOException;
+
+  /**
+   * Writes the parsed values to an Avro data file
+   */
+  public static class AvroFileSink extends RecordSink {
+    FileSystem fs;
+    Path p;
+    DataFileWriter<Object> outData;
+
+    public AvroFileSink(FileSystem fs, Path p) {
+      this.fs = fs;
+      this.p = p;
+    }
+    public void open(Schema schema) throws IOException {
+      outData = new DataFileWriter<Object>(new GenericDatumWriter<Object>(schema));
+      outData.create(schema, fs.create(p));
+    }
+    public boolean usesEncoded() {
+      return true;
+    }
+    public void parsed(ParsedLine line) throws IOException {
+      outData.appendEncoded(line.getEncoded());
+    }
+    public void close() throws IOException {
+      outData.close();
+    }
+  }
+
+  /**
+   * Writes the parsed values as Avro JSON
+   */
+  public static class JsonSink extends RecordSink {
+    FileSystem fs;
+    Path p;
+    GenericDatumWriter<Object> jsonGDWriter;
+    BufferedOutputStream outJson;
+    JsonEncoder encoder;
+
+    public JsonSink(FileSystem fs, Path p) {
+      this.fs = fs;
+      this.p = p;
+    }
+    public void open(Schema schema) throws IOException {
+      jsonGDWriter = new GenericDatumWriter<Object>(schema);
+      outJson = new BufferedOutputStream(fs.create(p));
+      encoder = EncoderFactory.get().jsonEncoder(schema, outJson);
+    }
+    public boolean usesDatum() {
+      return true;
+    }
+    public void parsed(ParsedLine line) throws IOException {
+      jsonGDWriter.write(line.getDatum(), encoder);
+    }
+    public void close() throws IOException {
+      try {
+        encoder.flush();
+      } finally {
+        outJson.close();
+      }
+    }
+  }
+
+  /**
+   * Writes the lines that didn't parse, one per line, so they can be looked at
+   * (or fed to another round of inference)
+   */
+  public static class UnparsedLineSink extends RecordSink {
+    FileSystem fs;
+    Path p;
+    BufferedWriter out;
+
+    public UnparsedLineSink(FileSystem fs, Path p) {
+      this.fs = fs;
+      this.p = p;
+    }
+    public void open(Schema schema) throws IOException {
+      out = new BufferedWriter(new OutputStreamWriter(fs.create(p)));
+    }
+    public void unparsed(long lineno, CharSequence line) throws IOException {
+      out.append(line);
+      out.newLine();
+    }
+    public void close() throws IOException {
+      out.close();
+    }
+  }
+}
@@ -18,6 +18,7 @@ import java.io.*;
 import java.util.*;
 import org.apache.avro.Schema;
 import org.apache.avro.util.Utf8;
+import org.apache.avro.io.Encoder;
 import org.apache.avro.generic.GenericData;
 
 /*********************************************************
@@ -172,6 +173,106 @@ public class Token {
     }
     public abstract Object get();
     public abstract String getSampleString();
+
+    /**
+     * get()'s value, but written into 'reuse' where the token can: an earlier value of the
+     * same token class, or null.  Like the 'reuse' argument of Avro's DatumReader.read().
+     */
+    public Object get(Object reuse) {
+      return get();
+    }
+
+    /**
+     * Write get()'s value in Avro binary form, as GenericDatumWriter would under this
+     * token class's schema.  Tokens without data write nothing.
+     */
+    public void encode(Encoder out) throws IOException {
+    }
+  }
+
+  /**
+   * A SpanToken's text is a region of the input line.  It records the region's
+   * offsets rather than copying the text out, and only builds a String when
+   * the token's value is actually requested.
+   */
+  static abstract class SpanToken extends AbstractToken {
+    CharSequence src;
+    int start;
+    int end;
+    public SpanToken(int classId, CharSequence src, int start, int end) {
+      super(classId, null);
+      this.src = src;
+      this.start = start;
+      this.end = end;
+    }
+    public int getStart() {
+      return start;
+    }
+    public int getEnd() {
+      return end;
+    }
+    public String getText() {
+      return src.subSequence(start, end).toString();
+    }
+    /**
+     * The text as a Utf8, written into 'reuse' if it is one.  ASCII text is copied
+     * straight across, without building a String.
+     */
+    Utf8 getUtf8(Object reuse) {
+      Utf8 utf8 = (reuse instanceof Utf8) ? (Utf8) reuse : new Utf8();
+      int len = end - start;
+      utf8.setByteLength(len);
+      byte bytes[] = utf8.getBytes();
+      for (int i = 0; i < len; i++) {
+        char c = src.charAt(start + i);
+        if (c >= 128) {
+          byte encoded[] = Utf8.getBytesFor(getText());
+          utf8.setByteLength(encoded.length);
+          System.arraycopy(encoded, 0, utf8.getBytes(), 0, encoded.length);
+          return utf8;
+        }
+        bytes[i] = (byte) c;
+      }
+      return utf8;
+    }
+  }
+
+  /**
+   * Parse a run of ASCII digits (with optional sign) without creating a String.
+   * Long runs fall back to Integer.parseInt() so that overflow behaves identically.
+   */
+  static int parseInt(CharSequence s, int start, int end) {
+    int pos = start;
+    boolean negative = false;
+    if (pos < end && (s.charAt(pos) == '+' || s.charAt(pos) == '-')) {
+      negative = (s.charAt(pos) == '-');
+      pos++;
+    }
+    if (end - pos > 9 || pos == end) {
+      return Integer.parseInt(s.subSequence(start, end).toString());
+    }
+    int val = 0;
+    for (; pos < end; pos++) {
+      char c = s.charAt(pos);
+      if (c < '0' || c > '9') {
+        throw new NumberFormatException("For input string: \"" + s.subSequence(start, end) + "\"");
+      }
+      val = val * 10 + (c - '0');
+    }
+    return negative ? -val : val;
+  }
+
+  /**
+   * The schema of a date or time value: a record of three ints.
+   */
+  static Schema createValueSchema(String recordName, String field1, String field2, String field3) {
+    List<Schema.Field> fields = new ArrayList<Schema.Field>();
+    fields.add(new Schema.Field(field1, Schema.create(Schema.Type.INT), "", null));
+    fields.add(new Schema.Field(field2, Schema.create(Schema.Type.INT), "", null));
+    fields.add(new Schema.Field(field3, Schema.create(Schema.Type.INT), "", null));
+    Schema newSchema = Schema.createRecord(recordName, "", "", false);
+    newSchema.setFields(fields);
+    return newSchema;
   }
 
   static class MetaToken extends AbstractToken {
@@ -240,41 +341,59 @@ public class Token {
     }
   }
 
-  static class IPAddrToken extends AbstractToken {
-    String s;
+  static class IPAddrToken extends SpanToken {
     public IPAddrToken(String s) {
-      super(IPADDR_TOKENCLASSID, null);
-      this.s = s;
+      this(s, 0, s.length());
+    }
+    public IPAddrToken(CharSequence src, int start, int end) {
+      super(IPADDR_TOKENCLASSID, src, start, end);
     }
     public String toString() {
-      return "IPADDR(" + s + ")";
+      return "IPADDR(" + getText() + ")";
     }
     public String getSampleString() {
-      return get().toString();
+      return getText();
     }
     public Object get() {
-      return new Utf8(s);
+      return new Utf8(getText());
+    }
+    public Object get(Object reuse) {
+      return getUtf8(reuse);
+    }
+    public void encode(Encoder out) throws IOException {
+      out.writeString(getText());
     }
   }
 
-  static class PermissionBits extends AbstractToken {
-    String s;
+  static class PermissionBits extends SpanToken {
     public PermissionBits(String s) {
-      super(PERMISSIONS_TOKENCLASSID, null);
-      this.s = s;
+      this(s, 0, s.length());
+    }
+    public PermissionBits(CharSequence src, int start, int end) {
+      super(PERMISSIONS_TOKENCLASSID, src, start, end);
     }
     public String toString() {
-      return "PERMISSION-BITS(" + s + ")";
+      return "PERMISSION-BITS(" + getText() + ")";
     }
     public String getSampleString() {
-      return get().toString();
+      return getText();
     }
     public Object get() {
-      return new Utf8(s);
+      return new Utf8(getText());
+    }
+    public Object get(Object reuse) {
+      return getUtf8(reuse);
+    }
+    public void encode(Encoder out) throws IOException {
+      out.writeString(getText());
     }
   }
 
   static class DateToken extends AbstractToken {
+    // Built once; every date value shares it
+    static final Schema DATE_SCHEMA = createValueSchema("date", "month", "day", "year");
+
+    static String MONTH_ABBREVS[] = {"jan", "feb", "mar", "apr", "may", "jun", "jul", "aug", "sep", "oct", "nov", "dec"};
     int month;
     int day;
     int year;
@@ -311,6 +430,55 @@ public class Token {
         nfe.printStackTrace();
       }
     }
+    /**
+     * Build a DateToken straight from regions of the input line.  A negative
+     * yrStart means there is no year component.
+     */
+    public DateToken(CharSequence src, int dayStart, int dayEnd, int monthStart, int monthEnd, int yrStart, int yrEnd) throws IOException {
+      super(DATE_TOKENCLASSID, null);
+      this.day = parseInt(src, dayStart, dayEnd);
+      if (day < 1 || day > 31) {
+        throw new IOException("Illegal day value: " + day);
+      }
+      this.month = convertMonth(src, monthStart, monthEnd);
+      if (yrStart < 0) {
+        this.year = -1;
+      } else {
+        this.year = parseInt(src, yrStart, yrEnd);
+        if (year < EPOCH_START_YEAR) {
+          throw new IOException("Illegal year value: " + year);
+        }
+      }
+    }
+    int convertMonth(CharSequence src, int start, int end) {
+      boolean allDigits = true;
+      for (int i = start; i < end; i++) {
+        char c = src.charAt(i);
+        if (c < '0' || c > '9') {
+          allDigits = false;
+          break;
+        }
+      }
+      if (allDigits) {
+        try {
+          return parseInt(src, start, end);
+        } catch (NumberFormatException nfe) {
+          return -1;
+        }
+      }
+      if (end - start != 3) {
+        return -1;
+      }
+      for (int i = 0; i < MONTH_ABBREVS.length; i++) {
+        String abbrev = MONTH_ABBREVS[i];
+        if (Character.toLowerCase(src.charAt(start)) == abbrev.charAt(0) &&
+            Character.toLowerCase(src.charAt(start+1)) == abbrev.charAt(1) &&
+            Character.toLowerCase(src.charAt(start+2)) == abbrev.charAt(2)) {
+          return i + 1;
+        }
+      }
+      return -1;
+    }
     int convertMonthStr(String monthStr) {
       try {
         return Integer.parseInt(monthStr);
@@ -361,25 +529,39 @@ public class Token {
       return "(" + day + ", " + month + ", " + year + ")";
     }
     public Object get() {
-      List<Schema.Field> fields = new ArrayList<Schema.Field>();
-      fields.add(new Schema.Field("month", Schema.create(Schema.Type.INT), "", null));
-      fields.add(new Schema.Field("day", Schema.create(Schema.Type.INT), "", null));
-      fields.add(new Schema.Field("year", Schema.create(Schema.Type.INT), "", null));
-      Schema newSchema = Schema.createRecord("date", "", "", false);
-      newSchema.setFields(fields);
-      GenericData.Record gdr = new GenericData.Record(newSchema);
+      return get(null);
+    }
+    public Object get(Object reuse) {
+      GenericData.Record gdr = (reuse instanceof GenericData.Record) ? (GenericData.Record) reuse : new GenericData.Record(DATE_SCHEMA);
 
       gdr.put("month", month);
       gdr.put("day", day);
       gdr.put("year", year);
       return gdr;
     }
+    public void encode(Encoder out) throws IOException {
+      out.writeInt(month);
+      out.writeInt(day);
+      out.writeInt(year);
+    }
   }
 
   static class TimeToken extends AbstractToken {
+    // Built once; every time value shares it
+    static final Schema TIME_SCHEMA = createValueSchema("timestamp", "hrs", "mins", "secs");
+
     int hr;
     int min;
     int sec;
+    /**
+     * Each component is two digits long.  A negative secStart means seconds are absent.
+     */
+    public TimeToken(CharSequence src, int hrStart, int minStart, int secStart) {
+      super(TIME_TOKENCLASSID, null);
+      this.hr = parseInt(src, hrStart, hrStart + 2);
+      this.min = parseInt(src, minStart, minStart + 2);
+      this.sec = (secStart < 0) ? 0 : parseInt(src, secStart, secStart + 2);
+    }
     public TimeToken(String hrS, String minS, String secS) {
       super(TIME_TOKENCLASSID, null);
       try {
@@ -397,27 +579,32 @@ public class Token {
       return "(" + hr + ", " + min + ", " + sec + ")";
     }
     public Object get() {
-      List<Schema.Field> fields = new ArrayList<Schema.Field>();
-      fields.add(new Schema.Field("hrs", Schema.create(Schema.Type.INT), "", null));
-      fields.add(new Schema.Field("mins", Schema.create(Schema.Type.INT), "", null));
-      fields.add(new Schema.Field("secs", Schema.create(Schema.Type.INT), "", null));
-      Schema newSchema = Schema.createRecord("timestamp", "", "", false);
-      newSchema.setFields(fields);
-      GenericData.Record gdr = new GenericData.Record(newSchema);
+      return get(null);
+    }
+    public Object get(Object reuse) {
+      GenericData.Record gdr = (reuse instanceof GenericData.Record) ? (GenericData.Record) reuse : new GenericData.Record(TIME_SCHEMA);
 
       gdr.put("hrs", hr);
       gdr.put("mins", min);
       gdr.put("secs", sec);
       return gdr;
     }
+    public void encode(Encoder out) throws IOException {
+      out.writeInt(hr);
+      out.writeInt(min);
+      out.writeInt(sec);
+    }
   }
 
-  static class IntToken extends AbstractToken {
+  static class IntToken extends SpanToken {
     int i;
     public IntToken(String s) {
-      super(INT_TOKENCLASSID, null);
+      this(s, 0, s.length());
+    }
+    public IntToken(CharSequence src, int start, int end) {
+      super(INT_TOKENCLASSID, src, start, end);
       try {
-        this.i = Integer.parseInt(s);
+        this.i = parseInt(src, start, end);
       } catch (NumberFormatException nfe) {
         nfe.printStackTrace();
       }
@@ -431,43 +618,69 @@ public class Token {
     public Object get() {
       return i;
     }
+    public void encode(Encoder out) throws IOException {
+      out.writeInt(i);
+    }
   }
 
-  static class FloatToken extends AbstractToken {
+  static class FloatToken extends SpanToken {
     double f;
+    boolean parsed = false;
     public FloatToken(String s) {
-      super(FLOAT_TOKENCLASSID, null);
-      try {
-        this.f = Double.parseDouble(s);
-      } catch (NumberFormatException nfe) {
-        nfe.printStackTrace();
+      this(s, 0, s.length());
+    }
+    public FloatToken(CharSequence src, int start, int end) {
+      super(FLOAT_TOKENCLASSID, src, start, end);
+    }
+    /**
+     * Double.parseDouble() needs a String, so we defer it until the value is wanted.
+     */
+    double getValue() {
+      if (! parsed) {
+        try {
+          this.f = Double.parseDouble(getText());
+        } catch (NumberFormatException nfe) {
+          nfe.printStackTrace();
+        }
+        parsed = true;
       }
+      return f;
     }
     public String toString() {
-      return "FLOAT(" + f + ")";
+      return "FLOAT(" + getValue() + ")";
     }
     public String getSampleString() {
       return get().toString();
     }
     public Object get() {
-      return f;
+      return getValue();
+    }
+    public void encode(Encoder out) throws IOException {
+      out.writeDouble(getValue());
     }
   }
 
-  static class StringToken extends AbstractToken {
-    String s;
+  static class StringToken extends SpanToken {
     public StringToken(String s) {
-      super(STRING_TOKENCLASSID, null);
-      this.s = s;
+      this(s, 0, s.length());
+    }
+    public StringToken(CharSequence src, int start, int end) {
+      super(STRING_TOKENCLASSID, src, start, end);
     }
     public String toString() {
-      return "STRING(" + s + ")";
+      return "STRING(" + getText() + ")";
     }
     public String getSampleString() {
-      return get().toString();
+      return getText();
     }
     public Object get() {
-      return new Utf8(s);
+      return new Utf8(getText());
+    }
+    public Object get(Object reuse) {
+      return getUtf8(reuse);
+    }
+    public void encode(Encoder out) throws IOException {
+      out.writeString(getText());
     }
   }
 
@@ -0,0 +1,691 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure;
+
+import java.util.*;
+
+/*********************************************************
+ * TokenArena stores the tokens of many chunks in a handful of parallel primitive
+ * arrays, instead of one object per token and one ArrayList per chunk.
+ *
+ * Each token is identified by its index in the arena.  For each token we keep its
+ * class id, its parameter char (for CHAR and META tokens), the start/end offsets of its
+ * text, the source line those offsets refer to, and its parsed value (INT, DATE, TIME).
+ *
+ * A chunk is simply a contiguous range of token indices.  Every chunk that type inference
+ * ever looks at -- a whole line, a struct field, an array body, the inside of a META
+ * token -- is such a range, so the inference code passes around (start, end) pairs
+ * collected in a ChunkList rather than nested lists of tokens.
+ *
+ * A META token's contents are laid out as a separate block: the opening CHAR token,
+ * the middle tokens, then the closing CHAR token.  For a META token the start/end
+ * fields hold the range of middle tokens rather than text offsets.
+ *
+ * Type inference compares tokens by their getId() string.  The arena numbers those
+ * strings instead: each distinct id gets a small int "type id", so that type profiles
+ * and histograms can be built from int arrays.  The plain token classes use their class
+ * id; every CHAR token character gets its own type id.
+ *********************************************************/
+public class TokenArena {
+  static int INITIAL_CAPACITY = 1024;
+
+  /**
+   * A list of chunks, each one a [start, end) range of arena token indices.
+   *
+   * A chunk may stand in for several identical ones: its weight says how many.  The
+   * chunks produced by groupIdenticalLines() all have a group, and so do the pieces
+   * later cut from them with addPart().  The group remembers where the first few of
+   * the identical lines are, so that sample values can still be drawn from the real
+   * data.  A chunk added with add() has weight 1 and no group.
+   */
+  public static class ChunkList {
+    int starts[];
+    int ends[];
+    int weights[];
+    int groupIds[];
+    int size;
+    int totalWeight;
+    // groupMemberBases[g] lists the first token of the first few lines in group g, in line order
+    int groupMemberBases[][];
+
+    public ChunkList() {
+      this(16);
+    }
+    public ChunkList(int capacity) {
+      this.starts = new int[Math.max(capacity, 1)];
+      this.ends = new int[Math.max(capacity, 1)];
+      this.weights = new int[Math.max(capacity, 1)];
+      this.groupIds = new int[Math.max(capacity, 1)];
+      this.size = 0;
+      this.totalWeight = 0;
+    }
+    public void add(int start, int end) {
+      add(start, end, 1, -1);
+    }
+    void add(int start, int end, int weight, int groupId) {
+      if (size == starts.length) {
+        starts = Arrays.copyOf(starts, size * 2);
+        ends = Arrays.copyOf(ends, size * 2);
+        weights = Arrays.copyOf(weights, size * 2);
+        groupIds = Arrays.copyOf(groupIds, size * 2);
+      }
+      starts[size] = start;
+      ends[size] = end;
+      weights[size] = weight;
+      groupIds[size] = groupId;
+      size++;
+      totalWeight += weight;
+    }
+    /**
+     * Add [start, end), a piece of chunk i of 'src'.  It stands in for the same
+     * number of chunks as chunk i does.
+     */
+    public void addPart(ChunkList src, int i, int start, int end) {
+      if (src.groupIds[i] >= 0) {
+        groupMemberBases = src.groupMemberBases;
+      }
+      add(start, end, src.weights[i], src.groupIds[i]);
+    }
+    public int size() {
+      return size;
+    }
+    public int getStart(int i) {
+      return starts[i];
+    }
+    public int getEnd(int i) {
+      return ends[i];
+    }
+    public int getLength(int i) {
+      return ends[i] - starts[i];
+    }
+    public int getWeight(int i) {
+      return weights[i];
+    }
+    /**
+     * The number of chunks this list stands for: the sum of the weights
+     */
+    public int getTotalWeight() {
+      return totalWeight;
+    }
+    /**
+     * Return a copy without the chunks that contain no tokens.
+     */
+    public ChunkList removeEmpty() {
+      ChunkList result = new ChunkList(size);
+      for (int i = 0; i < size; i++) {
+        if (ends[i] > starts[i]) {
+          result.addPart(this, i, starts[i], ends[i]);
+        }
+      }
+      return result;
+    }
+
+    /**
+     * The first token of each of the first 'max' chunks this list stands for, in input
+     * order, as if identical lines had never been grouped.  Chunk i stands for the piece
+     * at the same offset within each line of its group.  Those pieces are ordered by line,
+     * and within a line by their position in this list.
+     */
+    public int[] getSampleStarts(int max) {
+      // Keys are (line's first token, list position), kept sorted, smallest 'max' only
+      long best[] = new long[max];
+      int bestStarts[] = new int[max];
+      int numBest = 0;
+      for (int i = 0; i < size; i++) {
+        int members[];
+        int offset;
+        if (groupIds[i] < 0) {
+          members = new int[] {starts[i]};
+          offset = 0;
+        } else {
+          members = groupMemberBases[groupIds[i]];
+          offset = starts[i] - members[0];
+        }
+        for (int m = 0; m < members.length; m++) {
+          long key = (((long) members[m]) << 32) | i;
+          if (numBest == max && key >= best[max-1]) {
+            break;
+          }
+          int pos = Math.min(numBest, max - 1);
+          while (pos > 0 && best[pos-1] > key) {
+            best[pos] = best[pos-1];
+            bestStarts[pos] = bestStarts[pos-1];
+            pos--;
+          }
+          best[pos] = key;
+          bestStarts[pos] = members[m] + offset;
+          numBest = Math.min(numBest + 1, max);
+        }
+      }
+      return Arrays.copyOf(bestStarts, numBest);
+    }
+  }
+
+  byte classIds[];
+  char params[];
+  int starts[];
+  int ends[];
+  int srcIds[];
+  long values[];
+  int numTokens;
+
+  CharSequence sources[];
+  int numSources;
+
+  ChunkList lines;
+
+  // Type-id bookkeeping; see getTypeId()
+  static int FIRST_CHAR_TYPEID = Token.NOOP_TOKENCLASSID + 1;
+  static int NUM_ASCII_CHARS = 128;
+  String typeNames[];
+  int typeNameHashes[];
+  int typeNamePowers[];
+  int numTypes;
+  Map<Character, Integer> extendedCharTypes = new HashMap<Character, Integer>();
+  int typesInNameOrder[];
+
+  public TokenArena() {
+    this(INITIAL_CAPACITY);
+  }
+  public TokenArena(int capacity) {
+    capacity = Math.max(capacity, 1);
+    this.classIds = new byte[capacity];
+    this.params = new char[capacity];
+    this.starts = new int[capacity];
+    this.ends = new int[capacity];
+    this.srcIds = new int[capacity];
+    this.values = new long[capacity];
+    this.numTokens = 0;
+    this.sources = new CharSequence[16];
+    this.numSources = 0;
+    this.lines = new ChunkList();
+
+    this.numTypes = FIRST_CHAR_TYPEID + NUM_ASCII_CHARS;
+    this.typeNames = new String[numTypes];
+    for (int i = 0; i < FIRST_CHAR_TYPEID; i++) {
+      typeNames[i] = Token.AbstractToken.getClassStr(i);
+    }
+    for (int i = 0; i < NUM_ASCII_CHARS; i++) {
+      typeNames[FIRST_CHAR_TYPEID + i] = Token.AbstractToken.getStrDesc(Token.CHAR_TOKENCLASSID, "" + (char) i);
+    }
+    this.typeNameHashes = new int[numTypes];
+    this.typeNamePowers = new int[numTypes];
+    for (int i = 0; i < numTypes; i++) {
+      typeNameHashes[i] = typeNames[i].hashCode();
+      typeNamePowers[i] = stringHashPower(typeNames[i].length());
+    }
+  }
+
+  /**
+   * Build an arena holding the given chunks, in order.
+   */
+  public static TokenArena fromChunks(List<List<Token.AbstractToken>> chunks) {
+    TokenArena arena = new TokenArena();
+    for (List<Token.AbstractToken> chunk: chunks) {
+      arena.addChunk(chunk);
+    }
+    return arena;
+  }
+
+  /**
+   * Copy a tokenized line into the arena.  The token objects can be discarded
+   * afterwards; the arena keeps only the line's source text.
+   */
+  public void addChunk(List<Token.AbstractToken> chunk) {
+    int base = reserve(chunk.size());
+    fill(chunk, base);
+    lines.add(base, base + chunk.size());
+  }
+
+  /**
+   * All the chunks added with addChunk(), in order.
+   */
+  public ChunkList getChunks() {
+    return lines;
+  }
+
+  /**
+   * All the chunks added with addChunk(), with identical lines grouped together.
+   *
+   * Two lines are identical here when their tokens, including the insides of any META
+   * tokens, have the same types and the same layout.  Each group is represented by its
+   * first line, weighted by the number of lines in the group; groups are listed in order
+   * of their first line.  Each group also keeps the first 'maxSamples' of its lines.
+   *
+   * Type inference only looks at token types and counts, so it reaches the same
+   * conclusions over the groups as it would over all the lines.
+   */
+  public ChunkList groupIdenticalLines(int maxSamples) {
+    int numLines = lines.size();
+    int tableSize = Integer.highestOneBit(Math.max(numLines, 1) * 2) * 2;
+    // table holds groupId+1, or 0 for an empty slot
+    int table[] = new int[tableSize];
+    int groupHashes[] = new int[16];
+    int groupFirstLines[] = new int[16];
+    int groupCounts[] = new int[16];
+    int groupMemberBases[][] = new int[16][];
+    int numGroups = 0;
+
+    for (int line = 0; line < numLines; line++) {
+      int base = lines.getStart(line);
+      int blockEnd = lineBlockEnd(line);
+      int hash = layoutHash(base, blockEnd);
+      int slot = hash & (tableSize - 1);
+      int groupId = -1;
+      while (table[slot] != 0) {
+        int g = table[slot] - 1;
+        if (groupHashes[g] == hash && sameLayout(lines.getStart(groupFirstLines[g]), lineBlockEnd(groupFirstLines[g]), base, blockEnd)) {
+          groupId = g;
+          break;
+        }
+        slot = (slot + 1) & (tableSize - 1);
+      }
+      if (groupId < 0) {
+        if (numGroups == groupHashes.length) {
+          groupHashes = Arrays.copyOf(groupHashes, numGroups * 2);
+          groupFirstLines = Arrays.copyOf(groupFirstLines, numGroups * 2);
+          groupCounts = Arrays.copyOf(groupCounts, numGroups * 2);
+          groupMemberBases = Arrays.copyOf(groupMemberBases, numGroups * 2);
+        }
+        groupId = numGroups++;
+        groupHashes[groupId] = hash;
+        groupFirstLines[groupId] = line;
+        groupMemberBases[groupId] = new int[0];
+        table[slot] = groupId + 1;
+      }
+      groupCounts[groupId]++;
+      if (groupMemberBases[groupId].length < maxSamples) {
+        int members[] = Arrays.copyOf(groupMemberBases[groupId], groupMemberBases[groupId].length + 1);
+        members[members.length - 1] = base;
+        groupMemberBases[groupId] = members;
+      }
+    }
+
+    ChunkList result = new ChunkList(numGroups);
+    result.groupMemberBases = Arrays.copyOf(groupMemberBases, numGroups);
+    for (int g = 0; g < numGroups; g++) {
+      int firstLine = groupFirstLines[g];
+      result.add(lines.getStart(firstLine), lines.getEnd(firstLine), groupCounts[g], g);
+    }
+    return result;
+  }
+
+  /**
+   * A line's top-level tokens come first, then the blocks for its META tokens, so all
+   * of its tokens lie between its first token and the next line's first token.
+   */
+  int lineBlockEnd(int line) {
+    return (line + 1 < lines.size()) ? lines.getStart(line + 1) : numTokens;
+  }
+
+  /**
+   * Hash of the type ids of tokens [start, end), plus where each META token's middle lies
+   */
+  int layoutHash(int start, int end) {
+    int h = end - start;
+    for (int t = start; t < end; t++) {
+      h = h * 31 + getTypeId(t);
+      if (classIds[t] == Token.META_TOKENCLASSID) {
+        h = h * 31 + (starts[t] - start);
+        h = h * 31 + (ends[t] - start);
+      }
+    }
+    return h;
+  }
+
+  /**
+   * Do the blocks [start1, end1) and [start2, end2) have the same types and META layout?
+   */
+  boolean sameLayout(int start1, int end1, int start2, int end2) {
+    if (end1 - start1 != end2 - start2) {
+      return false;
+    }
+    for (int i = 0; i < end1 - start1; i++) {
+      int t1 = start1 + i;
+      int t2 = start2 + i;
+      if (getTypeId(t1) != getTypeId(t2)) {
+        return false;
+      }
+      if (classIds[t1] == Token.META_TOKENCLASSID &&
+          (starts[t1] - start1 != starts[t2] - start2 || ends[t1] - start1 != ends[t2] - start2)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public int size() {
+    return numTokens;
+  }
+
+  int reserve(int n) {
+    if (numTokens + n > classIds.length) {
+      int newCapacity = Math.max(classIds.length * 2, numTokens + n);
+      classIds = Arrays.copyOf(classIds, newCapacity);
+      params = Arrays.copyOf(params, newCapacity);
+      starts = Arrays.copyOf(starts, newCapacity);
+      ends = Arrays.copyOf(ends, newCapacity);
+      srcIds = Arrays.copyOf(srcIds, newCapacity);
+      values = Arrays.copyOf(values, newCapacity);
+    }
+    int base = numTokens;
+    numTokens += n;
+    return base;
+  }
+
+  /**
+   * Release the unused capacity at the end of the arrays.  Call once all the chunks have been added.
+   */
+  public void trimToSize() {
+    classIds = Arrays.copyOf(classIds, Math.max(numTokens, 1));
+    params = Arrays.copyOf(params, Math.max(numTokens, 1));
+    starts = Arrays.copyOf(starts, Math.max(numTokens, 1));
+    ends = Arrays.copyOf(ends, Math.max(numTokens, 1));
+    srcIds = Arrays.copyOf(srcIds, Math.max(numTokens, 1));
+    values = Arrays.copyOf(values, Math.max(numTokens, 1));
+    sources = Arrays.copyOf(sources, Math.max(numSources, 1));
+  }
+
+  int sourceId(CharSequence src) {
+    if (numSources > 0 && sources[numSources-1] == src) {
+      return numSources-1;
+    }
+    if (numSources == sources.length) {
+      sources = Arrays.copyOf(sources, numSources * 2);
+    }
+    sources[numSources] = src;
+    return numSources++;
+  }
+
+  static long packTriple(int a, int b, int c) {
+    return (((long) a) << 32) | ((((long) b) & 0xffff) << 16) | (((long) c) & 0xffff);
+  }
+
+  void fill(List<Token.AbstractToken> chunk, int base) {
+    for (int i = 0; i < chunk.size(); i++) {
+      Token.AbstractToken tok = chunk.get(i);
+      int idx = base + i;
+      classIds[idx] = (byte) tok.getClassId();
+      params[idx] = 0;
+      starts[idx] = 0;
+      ends[idx] = 0;
+      srcIds[idx] = -1;
+      values[idx] = 0;
+
+      switch (tok.getClassId()) {
+      case Token.META_TOKENCLASSID: {
+        Token.MetaToken mtok = (Token.MetaToken) tok;
+        List<Token.AbstractToken> middle = mtok.getMiddleChunk();
+        int blk = reserve(middle.size() + 2);
+        setChar(blk, mtok.getStartToken().getChar());
+        setChar(blk + middle.size() + 1, mtok.getEndToken().getChar());
+        params[idx] = mtok.getStartToken().getChar();
+        starts[idx] = blk + 1;
+        ends[idx] = blk + 1 + middle.size();
+        fill(middle, blk + 1);
+        break;
+      }
+      case Token.CHAR_TOKENCLASSID:
+        setChar(idx, ((Token.CharToken) tok).getChar());
+        break;
+      case Token.DATE_TOKENCLASSID: {
+        Token.DateToken dtok = (Token.DateToken) tok;
+        values[idx] = packTriple(dtok.year, dtok.month, dtok.day);
+        break;
+      }
+      case Token.TIME_TOKENCLASSID: {
+        Token.TimeToken ttok = (Token.TimeToken) tok;
+        values[idx] = packTriple(ttok.hr, ttok.min, ttok.sec);
+        break;
+      }
+      case Token.INT_TOKENCLASSID:
+        values[idx] = ((Token.IntToken) tok).i;
+        // fall through, to record the text span
+      case Token.IPADDR_TOKENCLASSID:
+      case Token.PERMISSIONS_TOKENCLASSID:
+      case Token.FLOAT_TOKENCLASSID:
+      case Token.STRING_TOKENCLASSID: {
+        Token.SpanToken stok = (Token.SpanToken) tok;
+        srcIds[idx] = sourceId(stok.src);
+        starts[idx] = stok.getStart();
+        ends[idx] = stok.getEnd();
+        break;
+      }
+      default:
+        break;
+      }
+    }
+  }
+
+  void setChar(int idx, char c) {
+    classIds[idx] = Token.CHAR_TOKENCLASSID;
+    params[idx] = c;
+    starts[idx] = 0;
+    ends[idx] = 0;
+    srcIds[idx] = -1;
+    values[idx] = 0;
+    if (c >= NUM_ASCII_CHARS && extendedCharTypes.get(c) == null) {
+      addCharType(c);
+    }
+  }
+
+  void addCharType(char c) {
+    if (numTypes == typeNames.length) {
+      typeNames = Arrays.copyOf(typeNames, numTypes * 2);
+      typeNameHashes = Arrays.copyOf(typeNameHashes, numTypes * 2);
+      typeNamePowers = Arrays.copyOf(typeNamePowers, numTypes * 2);
+    }
+    typeNames[numTypes] = Token.AbstractToken.getStrDesc(Token.CHAR_TOKENCLASSID, "" + c);
+    typeNameHashes[numTypes] = typeNames[numTypes].hashCode();
+    typeNamePowers[numTypes] = stringHashPower(typeNames[numTypes].length());
+    extendedCharTypes.put(c, numTypes);
+    numTypes++;
+    typesInNameOrder = null;
+  }
+
+  ///////////////////////////////////////////////
+  // Token type ids
+  ///////////////////////////////////////////////
+  /**
+   * 31^len, the factor by which String.hashCode() scales a prefix when 'len' chars are appended
+   */
+  static int stringHashPower(int len) {
+    int p = 1;
+    for (int i = 0; i < len; i++) {
+      p *= 31;
+    }
+    return p;
+  }
+
+  /**
+   * The type id of the token at 'idx'.  Two tokens have the same type id exactly
+   * when they have the same getId() string.  (As with getId(), a META token's type
+   * does not depend on its delimiter.)
+   */
+  public int getTypeId(int idx) {
+    int classId = classIds[idx];
+    if (classId != Token.CHAR_TOKENCLASSID) {
+      return classId;
+    }
+    char c = params[idx];
+    if (c < NUM_ASCII_CHARS) {
+      return FIRST_CHAR_TYPEID + c;
+    }
+    return extendedCharTypes.get(c);
+  }
+
+  /**
+   * Type ids run from 0 to getNumTypes()-1
+   */
+  public int getNumTypes() {
+    return numTypes;
+  }
+
+  /**
+   * The getId() string shared by all tokens of the given type
+   */
+  public String getTypeName(int typeId) {
+    return typeNames[typeId];
+  }
+
+  /**
+   * The String.hashCode() of the type's name, and the power of 31 for its length.
+   * Together they let callers compute the hash of a concatenation of type names
+   * without building it.
+   */
+  public int getTypeNameHash(int typeId) {
+    return typeNameHashes[typeId];
+  }
+  public int getTypeNamePower(int typeId) {
+    return typeNamePowers[typeId];
+  }
+
+  /**
+   * All type ids, sorted by type name
+   */
+  public synchronized int[] getTypesInNameOrder() {
+    if (typesInNameOrder == null) {
+      Integer sorted[] = new Integer[numTypes];
+      for (int i = 0; i < numTypes; i++) {
+        sorted[i] = i;
+      }
+      Arrays.sort(sorted, new Comparator<Integer>() {
+        public int compare(Integer t1, Integer t2) {
+          return typeNames[t1].compareTo(typeNames[t2]);
+        }
+      });
+      typesInNameOrder = new int[numTypes];
+      for (int i = 0; i < numTypes; i++) {
+        typesInNameOrder[i] = sorted[i];
+      }
+    }
+    return typesInNameOrder;
+  }
+
+  ///////////////////////////////////////////////
+  // Per-token accessors
+  ///////////////////////////////////////////////
+  public int getClassId(int idx) {
+    return classIds[idx];
+  }
+
+  /**
+   * Same as Token.AbstractToken.getParameter()
+   */
+  public String getParameter(int idx) {
+    int classId = classIds[idx];
+    if (classId == Token.CHAR_TOKENCLASSID || classId == Token.META_TOKENCLASSID) {
+      return "" + params[idx];
+    }
+    return null;
+  }
+
+  /**
+   * Same as Token.AbstractToken.getId().  Note that a META token's id does not
+   * include its delimiter.
+   */
+  public String getId(int idx) {
+    return typeNames[getTypeId(idx)];
+  }
+
+  /**
+   * For a META token: the range of its middle tokens.  The opening and closing
+   * CHAR tokens sit just before and just after that range.
+   */
+  public int getMiddleStart(int idx) {
+    return starts[idx];
+  }
+  public int getMiddleEnd(int idx) {
+    return ends[idx];
+  }
+
+  public String getText(int idx) {
+    return sources[srcIds[idx]].subSequence(starts[idx], ends[idx]).toString();
+  }
+
+  /**
+   * Same as Token.AbstractToken.getSampleString() for the token at 'idx'
+   */
+  public String getSampleString(int idx) {
+    long v = values[idx];
+    switch (classIds[idx]) {
+    case Token.META_TOKENCLASSID: {
+      StringBuffer buf = new StringBuffer();
+      buf.append("META(CHAR(" + params[idx] + ")...CHAR(" + params[ends[idx]] + ")\n");
+      for (int i = starts[idx]; i < ends[idx]; i++) {
+        buf.append("\t" + getDescription(i) + "\n");
+      }
+      buf.append(")");
+      return buf.toString();
+    }
+    case Token.CHAR_TOKENCLASSID:
+      return "" + params[idx];
+    case Token.DATE_TOKENCLASSID:
+      return "(" + (short) v + ", " + (short) (v >> 16) + ", " + (int) (v >> 32) + ")";
+    case Token.TIME_TOKENCLASSID:
+      return "(" + (int) (v >> 32) + ", " + (short) (v >> 16) + ", " + (short) v + ")";
+    case Token.INT_TOKENCLASSID:
+      return "" + (int) v;
+    case Token.FLOAT_TOKENCLASSID:
+      return "" + new Token.FloatToken(sources[srcIds[idx]], starts[idx], ends[idx]).getValue();
+    case Token.IPADDR_TOKENCLASSID:
+    case Token.PERMISSIONS_TOKENCLASSID:
+    case Token.STRING_TOKENCLASSID:
+      return getText(idx);
+    case Token.EOL_TOKENCLASSID:
+      return "EOL()";
+    case Token.WHITESPACE_TOKENCLASSID:
+      return "WS()";
+    default:
+      return "NOOP()";
+    }
+  }
+
+  /**
+   * Same as the token's toString(); used for META sample strings.
+   */
+  String getDescription(int idx) {
+    long v = values[idx];
+    switch (classIds[idx]) {
+    case Token.META_TOKENCLASSID:
+      return getSampleString(idx);
+    case Token.CHAR_TOKENCLASSID:
+      return "CHAR(" + params[idx] + ")";
+    case Token.DATE_TOKENCLASSID:
+      return "DATE" + getSampleString(idx);
+    case Token.TIME_TOKENCLASSID:
+      return "TIME(" + (int) (v >> 32) + ":" + (short) (v >> 16) + ":" + (short) v + ")";
+    case Token.INT_TOKENCLASSID:
+      return "INT(" + (int) v + ")";
+    case Token.FLOAT_TOKENCLASSID:
+      return "FLOAT(" + getSampleString(idx) + ")";
+    case Token.IPADDR_TOKENCLASSID:
+      return "IPADDR(" + getText(idx) + ")";
+    case Token.PERMISSIONS_TOKENCLASSID:
+      return "PERMISSION-BITS(" + getText(idx) + ")";
+    case Token.STRING_TOKENCLASSID:
+      return "STRING(" + getText(idx) + ")";
+    default:
+      return getSampleString(idx);
+    }
+  }
+
+  /**
+   * Approximate heap footprint of the arena's arrays, in bytes.  Source lines are not counted.
+   */
+  public long getFootprint() {
+    return (long) classIds.length * (1 + 2 + 4 + 4 + 4 + 8) + (long) sources.length * 8 + (long) lines.starts.length * 16;
+  }
+}
@@ -50,20 +50,28 @@ public class Tokenizer {
   static HashMap<String, String> reverseComplements;
 
   /**
-   * attemptParse() tries to parse the input string with the given token-class.  
-   * If successful, it returns the remaining string and adds the token to the given list.
-   * If not successful, it returns null and does not modify the given list.
+   * attemptParse() tries to parse a token of the given token-class at position 'pos' of the input.
+   * If successful, it returns the position just past the token and adds the token to the given list.
+   * If not successful, it returns -1 and does not modify the given list.
    *
-   * This method is used in two places:
-   * 1) text-tokenization during the structure-learning phase
-   * 2) Guided parsing, after a learned structure-parser has been constructed.
+   * The input is never copied; the resulting token records offsets into 's'.
    *
-   * For case #1, we expect that a loop will call attemptParse repeatedly, until it find a token-type
-   * that can be correctly parsed.  This is what happens inside tokenize() below.
+   * This method is used for guided parsing, after a learned structure-parser has been constructed.
+   * We expect that the parse-tree will contain a specific token-type that *must* be
+   * parsed, or else that branch of the parse-tree is invalid.  This is what a ParserProgram
+   * does at each base node of the tree.
+   */
+  public static int attemptParse(int tokenClassId, String tokenParameter, CharSequence s, int pos, int end, List<Token.AbstractToken> outputToks) {
+    return Lexer.attemptParse(tokenClassId, tokenParameter, s, pos, end, outputToks);
+  }
+
+  /**
+   * The regex version of attemptParse().  It tries to parse the input string with the given token-class.
+   * If successful, it returns the remaining string and adds the token to the given list.
+   * If not successful, it returns null and does not modify the given list.
    *
-   * For case #2, we expect that the parse-tree will contain a specific token-type that *must* be
-   * parsed, or else that branch of the parse-tree is invalid.  This is what happens inside
-   * InferredType.BaseType.internalParse().
+   * We expect that a loop will call attemptParse repeatedly, until it find a token-type
+   * that can be correctly parsed.  This is what happens inside regexTokenize() below.
    */
   public static String attemptParse(int tokenClassId, String tokenParameter, String inputStr, List<Token.AbstractToken> outputToks) {
     switch (tokenClassId) {
@@ -268,11 +276,37 @@ public class Tokenizer {
   }
 
 
+  /**
+   * When true, tokenize() uses the original cascade of regular expressions
+   * instead of the single-pass Lexer.  The two should emit identical tokens;
+   * the regex path is kept so that they can be diffed.
+   */
+  static boolean useRegexTokenizer = false;
+
+  public static void setUseRegexTokenizer(boolean useRegex) {
+    useRegexTokenizer = useRegex;
+  }
+
   /**
    * Accepts a single line of input, returns all the tokens for that line.
    * If the line cannot be parsed, we return null.
+   *
+   * The line may be any CharSequence, such as a view over a ByteLineReader's buffer;
+   * the Lexer reads it in place.
    */
-  static public List<Token.AbstractToken> tokenize(String s) throws IOException {
+  static public List<Token.AbstractToken> tokenize(CharSequence s) throws IOException {
+    if (useRegexTokenizer) {
+      return regexTokenize(s.toString());
+    } else {
+      return Lexer.tokenize(s);
+    }
+  }
+
+  /**
+   * The original tokenizer: try each token-class regex in turn against
+   * the remainder of the line.
+   */
+  static List<Token.AbstractToken> regexTokenize(String s) throws IOException {
     String curS = s;
     List<Token.AbstractToken> toksSoFar = new ArrayList<Token.AbstractToken>();
 
@@ -286,7 +320,7 @@ public class Tokenizer {
         String closeChar = complements.get("" + startChar);
         int closeIndex = curS.indexOf(closeChar, 1);
         if (closeIndex >= 0) {
-          toksSoFar.add(new Token.MetaToken(new Token.CharToken(curS.charAt(0)), new Token.CharToken(closeChar.charAt(0)), tokenize(curS.substring(1, closeIndex))));
+          toksSoFar.add(new Token.MetaToken(new Token.CharToken(curS.charAt(0)), new Token.CharToken(closeChar.charAt(0)), regexTokenize(curS.substring(1, closeIndex))));
           curS = curS.substring(closeIndex+1);
           continue;
         }
@@ -396,19 +430,38 @@ public class Tokenizer {
     return toksSoFar;
   }
 
+  /**
+   * A printable description of a token list, used to compare tokenizer implementations.
+   */
+  static String describeChunk(List<Token.AbstractToken> chunk) {
+    if (chunk == null) {
+      return "null";
+    }
+    StringBuffer buf = new StringBuffer();
+    for (Token.AbstractToken tok: chunk) {
+      buf.append(tok.getId() + ":" + tok + "  ");
+    }
+    return buf.toString();
+  }
+
   ///////////////////////////////////////////////////
   // main() tests the Tokenizer.
   ////////////////////////////////////////////////////
   public static void main(String argv[]) throws IOException {
     if (argv.length < 1) {
-      System.err.println("Usage: Tokenizer <datafile> (-verbose)");
+      System.err.println("Usage: Tokenizer <datafile> (-verbose) (-regex) (-compare)");
       return;
     }
     File f = new File(argv[0]).getCanonicalFile();
     boolean verbose = false;
+    boolean compare = false;
     for (int i = 1; i < argv.length; i++) {
       if ("-verbose".equals(argv[i])) {
         verbose = true;
+      } else if ("-regex".equals(argv[i])) {
+        setUseRegexTokenizer(true);
+      } else if ("-compare".equals(argv[i])) {
+        compare = true;
       }
     }
     System.err.println("Input file: " + f.getCanonicalPath());
@@ -418,6 +471,7 @@ public class Tokenizer {
     List<String> unparseableStrs = new ArrayList<String>();
     List<Integer> parseableLineNos = new ArrayList<Integer>();
     List<List<Token.AbstractToken>> allChunks = new ArrayList<List<Token.AbstractToken>>();
+    List<Integer> mismatchLineNos = new ArrayList<Integer>();
 
     // Transform the text into a list of "chunks".  
     // A single chunk corresponds to a line of text.  A chunk is a list of Tokens.
@@ -430,6 +484,9 @@ public class Tokenizer {
       int lineno = 0;
       while (s != null) {
         List<Token.AbstractToken> chunkToks = Tokenizer.tokenize(s);
+        if (compare && ! describeChunk(regexTokenize(s)).equals(describeChunk(Lexer.tokenize(s)))) {
+          mismatchLineNos.add(lineno);
+        }
         if (chunkToks != null) {
           allChunks.add(chunkToks);
           parseableLineNos.add(lineno);
@@ -451,6 +508,9 @@ public class Tokenizer {
     System.err.println("Total lines: " + totalCount);
     System.err.println("Parsed lines: " + parsedCount + " (" + (1.0*parsedCount / totalCount) + ")");
     System.err.println("Error lines: " + errorCount + " (" + (1.0*errorCount / totalCount) + ")");
+    if (compare) {
+      System.err.println("Lines where regex and lexer disagree: " + mismatchLineNos.size() + " " + mismatchLineNos);
+    }
 
     //
     // Print out parsed tokens
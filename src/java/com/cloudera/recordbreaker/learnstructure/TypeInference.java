@@ -16,6 +16,9 @@ package com.cloudera.recordbreaker.learnstructure;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
 
 /**********************************************************
  * TypeInference takes a set of parsed tokens and transforms them
@@ -24,6 +27,7 @@ import java.util.*;
  **********************************************************/
 public class TypeInference {
   static int MAX_SAMPLES = 5;
+  static int DISCOVER_FORK_THRESHOLD = 4096;
 
   /////////////////////////////////////
   // Inner Classes
@@ -32,61 +36,270 @@ public class TypeInference {
   }
 
   static class BaseProphecy extends TypeProphecy {
-    Token.AbstractToken token;
-    List<Token.AbstractToken> samples;
-    public BaseProphecy(Token.AbstractToken token, List<Token.AbstractToken> samples) {
-      this.token = token;
+    int tokenClassId;
+    String tokenParameter;
+    List<String> samples;
+    public BaseProphecy(int tokenClassId, String tokenParameter, List<String> samples) {
+      this.tokenClassId = tokenClassId;
+      this.tokenParameter = tokenParameter;
       this.samples = samples;
     }
-    public Token.AbstractToken getToken() {
-      return token;
+    public int getTokenClassId() {
+      return tokenClassId;
     }
-    public List<Token.AbstractToken> getSamples() {
+    public String getTokenParameter() {
+      return tokenParameter;
+    }
+    public List<String> getSamples() {
       return samples;
     }
   }
 
   static class StructProphecy extends TypeProphecy {
-    List<List<List<Token.AbstractToken>>> structElts;
-    public StructProphecy(List<List<List<Token.AbstractToken>>> structElts) {
+    List<TokenArena.ChunkList> structElts;
+    public StructProphecy(List<TokenArena.ChunkList> structElts) {
       this.structElts = structElts;
     }
-    public List<List<List<Token.AbstractToken>>> getStructElts() {
+    public List<TokenArena.ChunkList> getStructElts() {
       return structElts;
     }
   }
 
   static class ArrayProphecy extends TypeProphecy {
-    List<List<Token.AbstractToken>> first;
-    List<List<Token.AbstractToken>> body;
-    List<List<Token.AbstractToken>> last;
+    TokenArena.ChunkList first;
+    TokenArena.ChunkList body;
+    TokenArena.ChunkList last;
 
-    public ArrayProphecy(List<List<Token.AbstractToken>> first, List<List<Token.AbstractToken>> body, List<List<Token.AbstractToken>> last) {
+    public ArrayProphecy(TokenArena.ChunkList first, TokenArena.ChunkList body, TokenArena.ChunkList last) {
       this.first = first;
       this.body = body;
       this.last = last;
     }
-    public List<List<Token.AbstractToken>> getFirst() {
+    public TokenArena.ChunkList getFirst() {
       return first;
     }
-    public List<List<Token.AbstractToken>> getBody() {
+    public TokenArena.ChunkList getBody() {
       return body;
     }
-    public List<List<Token.AbstractToken>> getLast() {
+    public TokenArena.ChunkList getLast() {
       return last;
     }
   }
 
   static class UnionProphecy extends TypeProphecy {
-    List<List<List<Token.AbstractToken>>> unionElts;
-    public UnionProphecy(List<List<List<Token.AbstractToken>>> unionElts) {
+    List<TokenArena.ChunkList> unionElts;
+    public UnionProphecy(List<TokenArena.ChunkList> unionElts) {
       this.unionElts = unionElts;
     }
-    public List<List<List<Token.AbstractToken>>> getUnionElements() {
+    public List<TokenArena.ChunkList> getUnionElements() {
       return unionElts;
     }
   }
 
+  /**
+   * A chunk's type profile, used as a hash key when splitting chunks into union branches.
+   * Two profiles are equal when their chunks have the same first 'len' token types.
+   *
+   * Profiles used to be built as strings of token ids.  The hash here is computed to be the
+   * String.hashCode() of that string, so that a HashMap of profiles iterates (and hence
+   * orders the union branches) exactly as before, without the strings being built.
+   */
+  static class TypeProfile {
+    TokenArena arena;
+    int start;
+    int len;
+    int hash;
+
+    public TypeProfile(TokenArena arena, int start, int len, int hash) {
+      this.arena = arena;
+      this.start = start;
+      this.len = len;
+      this.hash = hash;
+    }
+    public int hashCode() {
+      return hash;
+    }
+    public boolean equals(Object o) {
+      if (! (o instanceof TypeProfile)) {
+        return false;
+      }
+      TypeProfile other = (TypeProfile) o;
+      return hash == other.hash && sameTypes(arena, start, other.start, len, other.len);
+    }
+  }
+
+  /**
+   * The outcome of discovery over one set of chunks: what the oracle prophesied, and
+   * the discoveries for each of the prophecy's sub-chunklists.  Only the BaseProphecy
+   * is kept, so that the chunklists can be dropped as soon as they've been examined.
+   */
+  static class Discovery {
+    static final int BASE = 0;
+    static final int STRUCT = 1;
+    static final int ARRAY = 2;
+    static final int UNION = 3;
+
+    int kind;
+    // How many chunks the prophecy was made from
+    int numChunks;
+    BaseProphecy base;
+    List<Discovery> children = new ArrayList<Discovery>();
+    // For an ARRAY, children are the optional preamble, the body, then the optional postamble
+    int arrayBodyIndex;
+  }
+
+  /**
+   * Runs the oracle over a set of chunks, then recursively over each sub-chunklist it prophesies.
+   * The sub-problems work on disjoint chunks, so when there are at least DISCOVER_FORK_THRESHOLD
+   * chunks (and we are running in a ForkJoinPool) the children are discovered in parallel.
+   */
+  static class DiscoverTask extends RecursiveTask<Discovery> {
+    private static final long serialVersionUID = 1L;
+    TokenArena arena;
+    TokenArena.ChunkList chunks;
+
+    public DiscoverTask(TokenArena arena, TokenArena.ChunkList chunks) {
+      this.arena = arena;
+      this.chunks = chunks;
+    }
+    protected Discovery compute() {
+      // Remove chunks that are empty.  These should never get passed-in
+      TokenArena.ChunkList nonEmptyChunks = chunks.removeEmpty();
+      chunks = null;
+
+      // Error testing
+      assert(nonEmptyChunks.size() > 0);
+
+      //
+      // Type predictions from the oracle come in one of four flavors: Base, Struct, Array, or Union
+      //
+      TypeProphecy typePrediction = oracle(arena, nonEmptyChunks);
+      Discovery d = new Discovery();
+      d.numChunks = nonEmptyChunks.size();
+      List<TokenArena.ChunkList> childChunks = new ArrayList<TokenArena.ChunkList>();
+      if (typePrediction instanceof BaseProphecy) {
+        d.kind = Discovery.BASE;
+        d.base = (BaseProphecy) typePrediction;
+        return d;
+
+      } else if (typePrediction instanceof StructProphecy) {
+        d.kind = Discovery.STRUCT;
+        childChunks.addAll(((StructProphecy) typePrediction).getStructElts());
+
+      } else if (typePrediction instanceof ArrayProphecy) {
+        ArrayProphecy ap = (ArrayProphecy) typePrediction;
+        assert(ap.getBody().size() > 0);
+        d.kind = Discovery.ARRAY;
+        if (ap.getFirst().size() > 0) {
+          childChunks.add(ap.getFirst());
+        }
+        d.arrayBodyIndex = childChunks.size();
+        childChunks.add(ap.getBody());
+        if (ap.getLast().size() > 0) {
+          childChunks.add(ap.getLast());
+        }
+
+      } else if (typePrediction instanceof UnionProphecy) {
+        d.kind = Discovery.UNION;
+        childChunks.addAll(((UnionProphecy) typePrediction).getUnionElements());
+
+      } else {
+        return null;
+      }
+
+      List<DiscoverTask> subtasks = new ArrayList<DiscoverTask>();
+      for (TokenArena.ChunkList childChunkList: childChunks) {
+        subtasks.add(new DiscoverTask(arena, childChunkList));
+      }
+      if (nonEmptyChunks.size() >= DISCOVER_FORK_THRESHOLD && ForkJoinTask.inForkJoinPool()) {
+        invokeAll(subtasks);
+        for (DiscoverTask subtask: subtasks) {
+          d.children.add(subtask.join());
+        }
+      } else {
+        for (DiscoverTask subtask: subtasks) {
+          d.children.add(subtask.compute());
+        }
+      }
+      return d;
+    }
+  }
+
+  // String.hashCode() constants for the profile punctuation
+  static int NONE_HASH = "<none>_".hashCode();
+  static int NONE_POWER = TokenArena.stringHashPower("<none>_".length());
+
+  /**
+   * Do the token ranges [start1, start1+len1) and [start2, start2+len2) have the same types?
+   */
+  static boolean sameTypes(TokenArena arena, int start1, int start2, int len1, int len2) {
+    if (len1 != len2) {
+      return false;
+    }
+    for (int i = 0; i < len1; i++) {
+      if (arena.getTypeId(start1 + i) != arena.getTypeId(start2 + i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Hash of a chunk's profile relative to the chosen histogram cluster: the cluster's token types
+   * are written out individually, and the runs of other tokens between them are grouped into fields.
+   */
+  static int clusterProfileHash(TokenArena arena, int start, int end, boolean clusterTypes[]) {
+    int h = 0;
+    int fieldHash = '(';
+    int fieldPower = 31;
+    for (int t = start; t < end; t++) {
+      int type = arena.getTypeId(t);
+      int typeHash = arena.getTypeNameHash(type);
+      int typePower = arena.getTypeNamePower(type);
+      if (clusterTypes[type]) {
+        // type + "_" + field + ")" + "_" + "(" + type + ")" + "_"
+        h = h * typePower + typeHash;
+        h = h * 31 + '_';
+        fieldHash = fieldHash * 31 + ')';
+        fieldPower *= 31;
+        h = h * fieldPower + fieldHash;
+        h = h * 31 + '_';
+        h = h * 31 + '(';
+        h = h * typePower + typeHash;
+        h = h * 31 + ')';
+        h = h * 31 + '_';
+        fieldHash = '(';
+        fieldPower = 31;
+      } else {
+        // type + ","
+        fieldHash = fieldHash * typePower + typeHash;
+        fieldPower *= typePower;
+        fieldHash = fieldHash * 31 + ',';
+        fieldPower *= 31;
+      }
+    }
+    fieldHash = fieldHash * 31 + ')';
+    fieldPower *= 31;
+    return h * fieldPower + fieldHash;
+  }
+
+  /**
+   * Hash of a chunk's first 'numTokens' types: type + "_" for each, or "<none>_" past the end
+   */
+  static int prefixProfileHash(TokenArena arena, int start, int end, int numTokens) {
+    int h = 0;
+    for (int i = 0; i < numTokens; i++) {
+      if (start + i < end) {
+        int type = arena.getTypeId(start + i);
+        h = h * arena.getTypeNamePower(type) + arena.getTypeNameHash(type);
+        h = h * 31 + '_';
+      } else {
+        h = h * NONE_POWER + NONE_HASH;
+      }
+    }
+    return h;
+  }
+
   /////////////////////////////////////
   // Public methods and support methods
   /////////////////////////////////////
@@ -99,7 +312,32 @@ public class TypeInference {
    * This is the core of the LearnPADS algorithm.
    */
   public static InferredType infer(List<List<Token.AbstractToken>> chunks) {
-    InferredType typeTree = discover(chunks);
+    return infer(TokenArena.fromChunks(chunks));
+  }
+
+  /**
+   * Infer the record structure of all the chunks stored in the given arena.
+   */
+  public static InferredType infer(TokenArena arena) {
+    return infer(arena, null);
+  }
+
+  /**
+   * Infer the record structure of all the chunks stored in the given arena.
+   * If 'pool' is non-null, independent parts of the discovery run on the pool's threads.
+   * The resulting tree (including its type names) is the same either way.
+   */
+  public static InferredType infer(TokenArena arena, ForkJoinPool pool) {
+    return infer(arena, pool, true);
+  }
+
+  /**
+   * Same as above.  If 'groupLines' is false, every line is inferred over on its own rather
+   * than grouped with the lines identical to it, which should change nothing but the time taken.
+   */
+  static InferredType infer(TokenArena arena, ForkJoinPool pool, boolean groupLines) {
+    TokenArena.ChunkList chunks = groupLines ? arena.groupIdenticalLines(MAX_SAMPLES) : arena.getChunks();
+    InferredType typeTree = discover(arena, chunks, pool);
     typeTree = typeTree.hoistUnions();
     //typeTree.ensureParsability();
     return typeTree;
@@ -108,79 +346,78 @@ public class TypeInference {
   /**
    * The oracle() function attempts to predict the best type for the data given by 'chunks'.
    */
-  private static TypeProphecy oracle(List<List<Token.AbstractToken>> chunks) {
+  private static TypeProphecy oracle(TokenArena arena, TokenArena.ChunkList chunks) {
     //////////////////////////////////////////////////////////////
     // Phase 1: Handling chunks that appear homogenous (at this meta-level, at least)
     //////////////////////////////////////////////////////////////
-    // Start by gathering some stats on the chunks
-    HashSet<String> uniqTokTypes = new HashSet<String>();
+    // Start by gathering some stats on the chunks.  Counts are weighted, so that a chunk
+    // standing for several identical chunks is counted once for each of them.
+    int firstTokType = -1;
+    boolean multipleTokTypes = false;
     int noops = 0;
     int numToks = 0;
-    for (List<Token.AbstractToken> chunk: chunks) {
-      if (chunk.size() == 0) {
-        noops++;
+    for (int c = 0; c < chunks.size(); c++) {
+      if (chunks.getLength(c) == 0) {
+        noops += chunks.getWeight(c);
       }
-      for (Token.AbstractToken tok: chunk) {
-        uniqTokTypes.add(tok.getId());
-        numToks++;
+      for (int t = chunks.getStart(c); t < chunks.getEnd(c); t++) {
+        int type = arena.getTypeId(t);
+        if (firstTokType < 0) {
+          firstTokType = type;
+        } else if (type != firstTokType) {
+          multipleTokTypes = true;
+        }
+        numToks += chunks.getWeight(c);
       }
     }
 
     //
     // CONDITION: Is the chunkset empty?
     //
-    if (numToks == 0 && noops == chunks.size()) {
+    if (numToks == 0 && noops == chunks.getTotalWeight()) {
       //System.err.println("BASE-1");
-      List<Token.AbstractToken> samples = new ArrayList<Token.AbstractToken>();
+      List<String> samples = new ArrayList<String>();
       Token.NoopToken noop = new Token.NoopToken();
-      samples.add(noop);
-      return new BaseProphecy(noop, samples);
+      samples.add(noop.getSampleString());
+      return new BaseProphecy(noop.getClassId(), noop.getParameter(), samples);
     }
     //
     // CONDITION: Does the chunkset consist of a single column of one type of token?
     //
-    if (numToks == chunks.size() && uniqTokTypes.size() == 1) {
+    if (numToks == chunks.getTotalWeight() && numToks > 0 && ! multipleTokTypes) {
       // If so, grab an example from the column
-      Token.AbstractToken prizeToken = chunks.get(0).get(0);
-      if (! (prizeToken instanceof Token.MetaToken)) {
+      int prizeToken = chunks.getStart(0);
+      if (arena.getClassId(prizeToken) != Token.META_TOKENCLASSID) {
         // If it's not a MetaToken, then it's easy: we prophesy a data column consisting of a single basic type
-        List<Token.AbstractToken> samples = new ArrayList<Token.AbstractToken>();
-        int numSamples = 0;
-        for (List<Token.AbstractToken> curChunk: chunks) {
-          samples.add(curChunk.get(0));
-          numSamples++;
-          if (numSamples >= MAX_SAMPLES) {
-            break;
-          }
+        List<String> samples = new ArrayList<String>();
+        for (int sampleStart: chunks.getSampleStarts(MAX_SAMPLES)) {
+          samples.add(arena.getSampleString(sampleStart));
         }
-        return new BaseProphecy(prizeToken, samples);
+        return new BaseProphecy(arena.getClassId(prizeToken), arena.getParameter(prizeToken), samples);
       } else {
         //System.err.println("STRUCT-1");
         //
         // If it IS a metatoken, then we prophesy a struct that contains what's inside the metatoken.
         // In other words, we break apart the pair-delimited "meta" structure in this step.
         //
-        // Note: the getId() fn of MetaToken returns the char-delimiter, so if we've got just one elt in uniqTokTypes,
-        // it implies that there's a single MetaToken type in the entire chunkset.
+        // Note: a MetaToken's type does not include its char-delimiter, so a single token type
+        // here does not guarantee a single kind of MetaToken; we take the delimiters from the first one.
         //
-        Token.MetaToken mtok = (Token.MetaToken) prizeToken;
-
-        List<List<Token.AbstractToken>> startChunkList = new ArrayList<List<Token.AbstractToken>>();
-        List<Token.AbstractToken> startChunk = new ArrayList<Token.AbstractToken>();
-        startChunk.add(mtok.getStartToken());
-        startChunkList.add(startChunk);
+        // In the arena, the opening and closing CHAR tokens sit on either side of the middle chunk.
+        //
+        TokenArena.ChunkList startChunkList = new TokenArena.ChunkList(1);
+        startChunkList.add(arena.getMiddleStart(prizeToken) - 1, arena.getMiddleStart(prizeToken));
 
-        List<List<Token.AbstractToken>> middleChunkList = new ArrayList<List<Token.AbstractToken>>();
-        for (List<Token.AbstractToken> chunk: chunks) {
-          middleChunkList.add(((Token.MetaToken) chunk.get(0)).getMiddleChunk());
+        TokenArena.ChunkList middleChunkList = new TokenArena.ChunkList(chunks.size());
+        for (int c = 0; c < chunks.size(); c++) {
+          int mtok = chunks.getStart(c);
+          middleChunkList.addPart(chunks, c, arena.getMiddleStart(mtok), arena.getMiddleEnd(mtok));
         }
 
-        List<List<Token.AbstractToken>> endChunkList = new ArrayList<List<Token.AbstractToken>>();
-        List<Token.AbstractToken> endChunk = new ArrayList<Token.AbstractToken>();
-        endChunk.add(mtok.getEndToken());
-        endChunkList.add(endChunk);
+        TokenArena.ChunkList endChunkList = new TokenArena.ChunkList(1);
+        endChunkList.add(arena.getMiddleEnd(prizeToken), arena.getMiddleEnd(prizeToken) + 1);
 
-        List<List<List<Token.AbstractToken>>> structElts = new ArrayList<List<List<Token.AbstractToken>>>();
+        List<TokenArena.ChunkList> structElts = new ArrayList<TokenArena.ChunkList>();
         structElts.add(startChunkList);
         structElts.add(middleChunkList);
         structElts.add(endChunkList);
@@ -192,9 +429,8 @@ public class TypeInference {
     // Phase 2: Handling heterogeneous chunks
     //////////////////////////////////////////////////////////////
     // As usual, start by gathering some statistics
-    List<Histogram> normalizedHistograms = Histogram.computeNormalizedHistograms(chunks);
-    List<List<Histogram>> clusteredHistograms = Histogram.clusterHistograms(normalizedHistograms);
-
+    List<Histogram> normalizedHistograms = Histogram.computeNormalizedHistograms(arena, chunks);
+    final List<List<Histogram>> clusteredHistograms = Histogram.clusterHistograms(normalizedHistograms);
     //
     // CONDITION: Does a Struct exist?
     //
@@ -216,14 +452,15 @@ public class TypeInference {
         } else if (minResidualMass1 > minResidualMass2) {
           return 1;
         } else {
-          return o1.hashCode() - o2.hashCode();
+          // Break ties by cluster order, so the choice doesn't depend on identity hash codes
+          return clusteredHistograms.indexOf(o1) - clusteredHistograms.indexOf(o2);
         }
       }
     });
     for (List<Histogram> histogramCluster: clusteredHistograms) {
       boolean allHistogramsPass = true;
       for (Histogram h: histogramCluster) {
-        if (! h.passStructStatisticalTest(chunks.size())) {
+        if (! h.passStructStatisticalTest(chunks.getTotalWeight())) {
           allHistogramsPass = false;
         }
       }
@@ -246,9 +483,9 @@ public class TypeInference {
     //
     if (bestCluster != null) {
       // Find the types that are present in that cluster
-      Set<String> bestClusterTypes = new HashSet<String>();
+      boolean bestClusterTypes[] = new boolean[arena.getNumTypes()];
       for (Histogram h: bestCluster) {
-        bestClusterTypes.add(h.getHistogramType());
+        bestClusterTypes[h.getHistogramType()] = true;
       }
 
       //
@@ -263,33 +500,21 @@ public class TypeInference {
       // Right now, we could have very different inter-identified-token items, and we would consider
       // them all to be identical.
       //
-      Set<String> allTypeProfiles = new HashSet<String>();
-      for (List<Token.AbstractToken> chunk: chunks) {
-        StringBuffer curTypeProfile = new StringBuffer();
-        StringBuffer curField = new StringBuffer();
-        curField.append("(");
-        for (Token.AbstractToken tok: chunk) {
-          if (bestClusterTypes.contains(tok.getId())) {
-            curField.append(")");
-            curTypeProfile.append(curField.toString());
-            curTypeProfile.append("_");
-            curTypeProfile.append("(" + tok.getId() + ")");
-            curTypeProfile.append("_");
-            curField = new StringBuffer();
-            curField.append("(");
-          } else {
-            curField.append(tok.getId() + ",");
-          }
+      // Since the profile spells out every token's type, two chunks share a profile exactly
+      // when they have the same sequence of token types.
+      //
+      boolean singleTypeProfile = true;
+      for (int c = 1; c < chunks.size(); c++) {
+        if (! sameTypes(arena, chunks.getStart(0), chunks.getStart(c), chunks.getLength(0), chunks.getLength(c))) {
+          singleTypeProfile = false;
+          break;
         }
-        curField.append(")");
-        curTypeProfile.append(curField.toString());
-        allTypeProfiles.add(curTypeProfile.toString());
       }
 
       //
       // Is it a STRUCT or a UNION?
       //
-      if (allTypeProfiles.size() == 1) {
+      if (singleTypeProfile) {
         // It's a STRUCT.
         //System.err.println("STRUCT-2");
 
@@ -302,58 +527,51 @@ public class TypeInference {
         // The 4th field has the 2nd identified token.
         // ... and so on.  The final field has all the tokens AFTER the final token that appears in the target histogram-cluster
         //
-        Map<Integer, List<List<Token.AbstractToken>>> structChunks = new TreeMap<Integer, List<List<Token.AbstractToken>>>();
+        // Since every field is a contiguous run of a chunk's tokens, each one is just a sub-range of the chunk.
+        //
+        Map<Integer, TokenArena.ChunkList> structChunks = new TreeMap<Integer, TokenArena.ChunkList>();
         // For each chunk in the input...
-        for (List<Token.AbstractToken> chunk: chunks) {
+        for (int c = 0; c < chunks.size(); c++) {
+          int chunkStart = chunks.getStart(c);
+          int chunkSize = chunks.getLength(c);
           //
           // Add to 'structChunks' as appropriate.
           //
           int lastIdentifiedIndex = -1;
-          for (int i = 0; i < chunk.size(); i++) {
-            Token.AbstractToken tok = chunk.get(i);
-            if (bestClusterTypes.contains(tok.getId())) {
-              List<List<Token.AbstractToken>> preludeChunkList = structChunks.get(2 * i);
+          for (int i = 0; i < chunkSize; i++) {
+            if (bestClusterTypes[arena.getTypeId(chunkStart + i)]) {
+              TokenArena.ChunkList preludeChunkList = structChunks.get(2 * i);
               if (preludeChunkList == null) {
-                preludeChunkList = new ArrayList<List<Token.AbstractToken>>();
+                preludeChunkList = new TokenArena.ChunkList();
                 structChunks.put(2*i, preludeChunkList);
               }
-              List<Token.AbstractToken> preludeChunk = new ArrayList<Token.AbstractToken>();
-              for (int j = lastIdentifiedIndex+1; j < i; j++) {
-                preludeChunk.add(chunk.get(j));
-              }
-              preludeChunkList.add(preludeChunk);
+              preludeChunkList.addPart(chunks, c, chunkStart + lastIdentifiedIndex + 1, chunkStart + i);
 
-              List<List<Token.AbstractToken>> identifiedChunkList = structChunks.get(2 * i + 1);
+              TokenArena.ChunkList identifiedChunkList = structChunks.get(2 * i + 1);
               if (identifiedChunkList == null) {
-                identifiedChunkList = new ArrayList<List<Token.AbstractToken>>();
+                identifiedChunkList = new TokenArena.ChunkList();
                 structChunks.put(2 * i + 1, identifiedChunkList);
               }
-              List<Token.AbstractToken> identifiedChunk = new ArrayList<Token.AbstractToken>();
-              identifiedChunk.add(chunk.get(i));
-              identifiedChunkList.add(identifiedChunk);
+              identifiedChunkList.addPart(chunks, c, chunkStart + i, chunkStart + i + 1);
 
               lastIdentifiedIndex = i;
             }
           }
-          List<List<Token.AbstractToken>> suffixChunkList = structChunks.get(2 * chunk.size() + 1);
+          TokenArena.ChunkList suffixChunkList = structChunks.get(2 * chunkSize + 1);
           if (suffixChunkList == null) {
-            suffixChunkList = new ArrayList<List<Token.AbstractToken>>();
-            structChunks.put(2 * chunk.size() + 1, suffixChunkList);
-          }
-          List<Token.AbstractToken> suffixChunk = new ArrayList<Token.AbstractToken>();
-          for (int j = lastIdentifiedIndex+1; j < chunk.size(); j++) {
-            suffixChunk.add(chunk.get(j));
+            suffixChunkList = new TokenArena.ChunkList();
+            structChunks.put(2 * chunkSize + 1, suffixChunkList);
           }
-          suffixChunkList.add(suffixChunk);
+          suffixChunkList.addPart(chunks, c, chunkStart + lastIdentifiedIndex + 1, chunkStart + chunkSize);
         }
 
         // Make sure that for each chunkList in 'structChunks', there is at least one non-empty chunk.
         for (Iterator<Integer> it = structChunks.keySet().iterator(); it.hasNext(); ) {
           Integer chunkId = it.next();
-          List<List<Token.AbstractToken>> chunkList = structChunks.get(chunkId);
+          TokenArena.ChunkList chunkList = structChunks.get(chunkId);
           int numTokensInChunkList = 0;
-          for (List<Token.AbstractToken> chunk: chunkList) {
-            numTokensInChunkList += chunk.size();
+          for (int c = 0; c < chunkList.size(); c++) {
+            numTokensInChunkList += chunkList.getLength(c);
           }
           if (numTokensInChunkList == 0) {
             it.remove();
@@ -361,9 +579,9 @@ public class TypeInference {
         }
 
         // Transform the map into a chunklist
-        List<List<List<Token.AbstractToken>>> structChunkList = new ArrayList<List<List<Token.AbstractToken>>>();
+        List<TokenArena.ChunkList> structChunkList = new ArrayList<TokenArena.ChunkList>();
         for (Integer chunkId: structChunks.keySet()) {
-          List<List<Token.AbstractToken>> chunkList = structChunks.get(chunkId);
+          TokenArena.ChunkList chunkList = structChunks.get(chunkId);
           structChunkList.add(chunkList);
         }
         //System.err.println("STRUCT-2");
@@ -372,38 +590,22 @@ public class TypeInference {
         // It's a UNION.
         // A UnionProphecy requires a number of chunklists, one for each type profile
         //System.err.println("UNION-1");
-        Map<String, List<List<Token.AbstractToken>>> unionMap = new HashMap<String, List<List<Token.AbstractToken>>>();
-        for (List<Token.AbstractToken> chunk: chunks) {
-          StringBuffer curTypeProfile = new StringBuffer();
-          StringBuffer curField = new StringBuffer();
-          curField.append("(");
-          for (Token.AbstractToken tok: chunk) {
-            if (bestClusterTypes.contains(tok.getId())) {
-              curTypeProfile.append(tok.getId() + "_");
-              curField.append(")");
-              curTypeProfile.append(curField.toString());
-              curTypeProfile.append("_");
-              curTypeProfile.append("(" + tok.getId() + ")");
-              curTypeProfile.append("_");
-              curField = new StringBuffer();
-              curField.append("(");
-            } else {
-              curField.append(tok.getId() + ",");
-            }
-          }
-          curField.append(")");
-          curTypeProfile.append(curField.toString());
+        Map<TypeProfile, TokenArena.ChunkList> unionMap = new HashMap<TypeProfile, TokenArena.ChunkList>();
+        for (int c = 0; c < chunks.size(); c++) {
+          int start = chunks.getStart(c);
+          int end = chunks.getEnd(c);
+          TypeProfile curTypeProfile = new TypeProfile(arena, start, end - start, clusterProfileHash(arena, start, end, bestClusterTypes));
 
-          List<List<Token.AbstractToken>> unionChunks = unionMap.get(curTypeProfile.toString());
+          TokenArena.ChunkList unionChunks = unionMap.get(curTypeProfile);
           if (unionChunks == null) {
-            unionChunks = new ArrayList<List<Token.AbstractToken>>();
-            unionMap.put(curTypeProfile.toString(), unionChunks);
+            unionChunks = new TokenArena.ChunkList();
+            unionMap.put(curTypeProfile, unionChunks);
           }
-          unionChunks.add(chunk);
+          unionChunks.addPart(chunks, c, start, end);
         }
 
-        List<List<List<Token.AbstractToken>>> unionChunklists = new ArrayList<List<List<Token.AbstractToken>>>();
-        for (List<List<Token.AbstractToken>> unionChunklist: unionMap.values()) {
+        List<TokenArena.ChunkList> unionChunklists = new ArrayList<TokenArena.ChunkList>();
+        for (TokenArena.ChunkList unionChunklist: unionMap.values()) {
           unionChunklists.add(unionChunklist);
         }
         return new UnionProphecy(unionChunklists);
@@ -432,14 +634,14 @@ public class TypeInference {
           } else if (maxCoverage1 > maxCoverage2) {
             return -1;
           } else {
-            return o1.hashCode() - o2.hashCode();
+            return clusteredHistograms.indexOf(o1) - clusteredHistograms.indexOf(o2);
           }
         }
       });
       for (List<Histogram> histogramCluster: clusteredHistograms) {
         boolean allHistogramsPass = true;
         for (Histogram h: histogramCluster) {
-          if (! h.passArrayStatisticalTest(chunks.size())) {
+          if (! h.passArrayStatisticalTest(chunks.getTotalWeight())) {
             allHistogramsPass = false;
           }
         }
@@ -450,62 +652,64 @@ public class TypeInference {
       if (arrayHistogramClusters.size() > 0) {
         // It's going to be an array!
         List<Histogram> bestArrayCluster = arrayHistogramClusters.first();
-        Set<String> bestClusterTypes = new HashSet<String>();
+        boolean bestClusterTypes[] = new boolean[arena.getNumTypes()];
+        int numBestClusterTypes = 0;
         for (Histogram h: bestArrayCluster) {
-          bestClusterTypes.add(h.getHistogramType());
+          bestClusterTypes[h.getHistogramType()] = true;
+          numBestClusterTypes++;
         }
 
         //
         // Goal is to split the array into three chunklists: preamble, repeated-body, and post-amble.
         //
-        List<List<Token.AbstractToken>> preambles = new ArrayList<List<Token.AbstractToken>>();
-        List<List<Token.AbstractToken>> middles = new ArrayList<List<Token.AbstractToken>>();
-        List<List<Token.AbstractToken>> postambles = new ArrayList<List<Token.AbstractToken>>();
+        // Each of these is a contiguous range of the chunk: the preamble is followed by a run of
+        // complete body groups, and the postamble picks up any partial group plus everything after it.
+        //
+        TokenArena.ChunkList preambles = new TokenArena.ChunkList(chunks.size());
+        TokenArena.ChunkList middles = new TokenArena.ChunkList(chunks.size());
+        TokenArena.ChunkList postambles = new TokenArena.ChunkList(chunks.size());
+        // observedStamp[type] == c+1 means the type has been observed in chunk c
+        int observedStamp[] = new int[arena.getNumTypes()];
 
         //
         // For each chunk of input...
         // 
-        for (List<Token.AbstractToken> chunk: chunks) {
-          List<Token.AbstractToken> preamble = new ArrayList<Token.AbstractToken>();
-          List<List<Token.AbstractToken>> middleGroup = new ArrayList<List<Token.AbstractToken>>();
-          List<Token.AbstractToken> curMiddle = new ArrayList<Token.AbstractToken>();
-          List<Token.AbstractToken> postamble = new ArrayList<Token.AbstractToken>();
-          Set<String> observedClusterTypes = new HashSet<String>();
+        for (int c = 0; c < chunks.size(); c++) {
+          int chunkEnd = chunks.getEnd(c);
+          int preambleEnd = chunks.getStart(c);
+          int curMiddleStart = -1;
+          int postambleStart = chunkEnd;
+          int numObservedClusterTypes = 0;
           int mode = 0;
 
-          for (Token.AbstractToken tok: chunk) {
+          for (int t = chunks.getStart(c); t < chunkEnd; t++) {
+            int type = arena.getTypeId(t);
             // Transit
-            if (mode == 0 && observedClusterTypes.size() == bestClusterTypes.size()) {
+            if (mode == 0 && numObservedClusterTypes == numBestClusterTypes) {
               mode = 1;
-            } else if (mode == 1 && ! bestClusterTypes.contains(tok.getId())) {
+              curMiddleStart = t;
+            } else if (mode == 1 && ! bestClusterTypes[type]) {
               mode = 2;
+              postambleStart = curMiddleStart;
+              break;
             }
-            if (mode == 0 && bestClusterTypes.contains(tok.getId())) {
-              observedClusterTypes.add(tok.getId());
+            if (mode == 0 && bestClusterTypes[type] && observedStamp[type] != c + 1) {
+              observedStamp[type] = c + 1;
+              numObservedClusterTypes++;
             }
 
             // Operate according to the modes
             if (mode == 0) {
-              preamble.add(tok);
-            } else if (mode == 1) {
-              curMiddle.add(tok);
-              if (curMiddle.size() == bestClusterTypes.size()) {
-                middleGroup.add(curMiddle);
-                curMiddle = new ArrayList<Token.AbstractToken>();
-              }
+              preambleEnd = t + 1;
             } else {
-              if (curMiddle != null) {
-                for (Token.AbstractToken t2: curMiddle) {
-                  postamble.add(t2);
-                }
-                curMiddle = null;
+              if (t + 1 - curMiddleStart == numBestClusterTypes) {
+                middles.addPart(chunks, c, curMiddleStart, t + 1);
+                curMiddleStart = t + 1;
               }
-              postamble.add(tok);
             }
           }
-          preambles.add(preamble);
-          middles.addAll(middleGroup);
-          postambles.add(postamble);
+          preambles.addPart(chunks, c, chunks.getStart(c), preambleEnd);
+          postambles.addPart(chunks, c, postambleStart, chunkEnd);
         }
         //System.err.println("ARRAY-1");
         return new ArrayProphecy(preambles, middles, postambles);
@@ -524,24 +728,12 @@ public class TypeInference {
         int neededTokens = 1;
         boolean foundDifference = false;
         while (! foundDifference) {
-          String lastSeenProfile = null;
-          for (List<Token.AbstractToken> chunk: chunks) {
-            // Build type profile
-            StringBuffer curTypeProfile = new StringBuffer();
-            for (int i = 0; i < neededTokens; i++) {
-              if (i < chunk.size()) {
-                curTypeProfile.append(chunk.get(i).getId() + "_");
-              } else {
-                curTypeProfile.append("<none>" + "_");
-              }
-            }
-            if (lastSeenProfile == null) {
-              lastSeenProfile = curTypeProfile.toString();
-            } else {
-              if (! lastSeenProfile.equals(curTypeProfile.toString())) {
-                foundDifference = true;
-                break;
-              }
+          // Compare each chunk's first 'neededTokens' types (padded with "none") against the first chunk's
+          for (int c = 1; c < chunks.size(); c++) {
+            if (! sameTypes(arena, chunks.getStart(0), chunks.getStart(c),
+                            Math.min(neededTokens, chunks.getLength(0)), Math.min(neededTokens, chunks.getLength(c)))) {
+              foundDifference = true;
+              break;
             }
           }
           neededTokens++;
@@ -551,27 +743,21 @@ public class TypeInference {
         // Now that we have computed 'neededTokens', we can proceed to partition the input chunks using
         // the first 'neededTokens' from each chunk.
         //
-        Map<String, List<List<Token.AbstractToken>>> unionMap = new HashMap<String, List<List<Token.AbstractToken>>>();
-        for (List<Token.AbstractToken> chunk: chunks) {
-          StringBuffer curTypeProfile = new StringBuffer();
-          for (int i = 0; i < neededTokens; i++) {
-            if (i < chunk.size()) {
-              Token.AbstractToken tok = chunk.get(i);
-              curTypeProfile.append(tok.getId() + "_");
-            } else {
-              curTypeProfile.append("<none>" + "_");
-            }
-          }
-          List<List<Token.AbstractToken>> unionChunks = unionMap.get(curTypeProfile.toString());
+        Map<TypeProfile, TokenArena.ChunkList> unionMap = new HashMap<TypeProfile, TokenArena.ChunkList>();
+        for (int c = 0; c < chunks.size(); c++) {
+          int start = chunks.getStart(c);
+          int end = chunks.getEnd(c);
+          TypeProfile curTypeProfile = new TypeProfile(arena, start, Math.min(neededTokens, end - start), prefixProfileHash(arena, start, end, neededTokens));
+          TokenArena.ChunkList unionChunks = unionMap.get(curTypeProfile);
           if (unionChunks == null) {
-            unionChunks = new ArrayList<List<Token.AbstractToken>>();
-            unionMap.put(curTypeProfile.toString(), unionChunks);
+            unionChunks = new TokenArena.ChunkList();
+            unionMap.put(curTypeProfile, unionChunks);
           }
-          unionChunks.add(chunk);
+          unionChunks.addPart(chunks, c, start, end);
         }
 
-        List<List<List<Token.AbstractToken>>> unionChunklists = new ArrayList<List<List<Token.AbstractToken>>>();
-        for (List<List<Token.AbstractToken>> unionChunklist: unionMap.values()) {
+        List<TokenArena.ChunkList> unionChunklists = new ArrayList<TokenArena.ChunkList>();
+        for (TokenArena.ChunkList unionChunklist: unionMap.values()) {
           unionChunklists.add(unionChunklist);
         }
         return new UnionProphecy(unionChunklists);
@@ -580,65 +766,56 @@ public class TypeInference {
   }
 
   /**
+   * Discovery runs in two steps.  First the oracle is consulted over the chunks and, recursively,
+   * over every sub-chunklist it prophesies; this is the expensive part, and it can be spread over
+   * 'pool'.  Then the InferredType tree is built from the results on the calling thread, in the same
+   * order as a purely serial discovery would build it, so the types get the same names every time.
    */
-  private static InferredType discover(List<List<Token.AbstractToken>> chunks) {
-    // Remove chunks that are empty.  These should never get passed-in
-    for (Iterator<List<Token.AbstractToken>> it = chunks.iterator(); it.hasNext(); ) {
-      List<Token.AbstractToken> chunk = it.next();
-      if (chunk.size() == 0) {
-        it.remove();
-      }
-    }
-
-    // Error testing
-    assert(chunks.size() > 0);
+  private static InferredType discover(TokenArena arena, TokenArena.ChunkList chunks, ForkJoinPool pool) {
+    DiscoverTask task = new DiscoverTask(arena, chunks);
+    Discovery d = (pool == null) ? task.compute() : pool.invoke(task);
+    return buildType(d);
+  }
 
-    //
-    // Type predictions from the oracle come in one of four flavors: Base, Struct, Array, or Union
-    //
-    TypeProphecy typePrediction = oracle(chunks);
-    if (typePrediction instanceof BaseProphecy) {
-      BaseProphecy bp = (BaseProphecy) typePrediction;
-      List<String> sampleStrs = new ArrayList<String>();
-      for (Iterator<Token.AbstractToken> it = bp.getSamples().iterator(); it.hasNext(); ) {
-        Token.AbstractToken tok = it.next();
-        sampleStrs.add(tok.getSampleString());
-      }
-      return new BaseType(bp.getToken(), sampleStrs);
+  /**
+   * Build the InferredType for a Discovery.  Children are built before their parents.
+   */
+  private static InferredType buildType(Discovery d) {
+    if (d == null) {
+      return null;
+    }
+    if (d.kind == Discovery.BASE) {
+      BaseProphecy bp = d.base;
+      return new BaseType(bp.getTokenClassId(), bp.getSamples(), bp.getTokenParameter());
 
-    } else if (typePrediction instanceof StructProphecy) {
-      StructProphecy sp = (StructProphecy) typePrediction;
+    } else if (d.kind == Discovery.STRUCT) {
       List<InferredType> structDataTypes = new ArrayList<InferredType>();
-      int i = 0;
-      for (List<List<Token.AbstractToken>> structElt: sp.getStructElts()) {
-        structDataTypes.add(discover(structElt));
+      for (Discovery child: d.children) {
+        structDataTypes.add(buildType(child));
       }
       return new StructType(structDataTypes);
 
-    } else if (typePrediction instanceof ArrayProphecy) {
-      ArrayProphecy ap = (ArrayProphecy) typePrediction;
-      assert(ap.getBody().size() > 0);
-
+    } else if (d.kind == Discovery.ARRAY) {
       List<InferredType> structDataTypes = new ArrayList<InferredType>();
-      if (ap.getFirst().size() > 0) {
-        structDataTypes.add(discover(ap.getFirst()));
-      }
-      structDataTypes.add(new ArrayType(discover(ap.getBody())));
-      if (ap.getLast().size() > 0) {
-        structDataTypes.add(discover(ap.getLast()));
+      for (int i = 0; i < d.children.size(); i++) {
+        if (i == d.arrayBodyIndex) {
+          structDataTypes.add(new ArrayType(buildType(d.children.get(i))));
+        } else {
+          structDataTypes.add(buildType(d.children.get(i)));
+        }
       }
       return new StructType(structDataTypes);
 
-    } else if (typePrediction instanceof UnionProphecy) {
-      UnionProphecy up = (UnionProphecy) typePrediction;
+    } else {
       List<InferredType> unionDataTypes = new ArrayList<InferredType>();
-      
-      for (List<List<Token.AbstractToken>> unionElt: up.getUnionElements()) {
-        unionDataTypes.add(discover(unionElt));
+      double branchWeights[] = new double[d.children.size()];
+      for (int i = 0; i < d.children.size(); i++) {
+        Discovery child = d.children.get(i);
+        unionDataTypes.add(buildType(child));
+        branchWeights[i] = (child == null) ? 0 : child.numChunks;
       }
-      return new UnionType(unionDataTypes);
+      return new UnionType(unionDataTypes, branchWeights);
     }
-    return null;
   }
 
   /////////////////////////////////////////////////////
@@ -659,7 +836,7 @@ public class TypeInference {
     System.err.println("Input file: " + f.getCanonicalPath());
 
     // Store parse results
-    List<List<Token.AbstractToken>> allChunks = new ArrayList<List<Token.AbstractToken>>();
+    TokenArena allChunks = new TokenArena();
 
     // Transform the text into a list of "chunks".  
     // A single chunk corresponds to a line of text.  A chunk is a list of Tokens.
@@ -672,7 +849,7 @@ public class TypeInference {
       while (s != null) {
         List<Token.AbstractToken> chunkToks = Tokenizer.tokenize(s);
         if (chunkToks != null) {
-          allChunks.add(chunkToks);
+          allChunks.addChunk(chunkToks);
           parsedCount++;
         }
         s = in.readLine();
@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.analyzer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.cloudera.recordbreaker.test.FileFixtures;
+
+/**
+ * TestKnownTextFormatLibrary checks that the format library loads the same from
+ * the src/formats directory, from classpath resources (including a jar), and
+ * from the default constructor; and that a missing library is an error.
+ *
+ * It lives in the analyzer package so it can hand the library a class loader.
+ *
+ * @see KnownTextFormatLibrary
+ */
+public class TestKnownTextFormatLibrary {
+  static File formatDir = new File(System.getProperty("test.formats.dir", "src/formats"));
+
+  @Rule
+  public TemporaryFolder tmpOutDir = new TemporaryFolder();
+
+  /**
+   * A class loader that sees only the given location, not the test classpath
+   */
+  static ClassLoader isolatedLoader(File location) throws IOException {
+    return new URLClassLoader(new URL[] {location.toURI().toURL()}, null);
+  }
+
+  static void assertSameFormats(KnownTextFormatLibrary expected, KnownTextFormatLibrary actual) {
+    Assert.assertEquals(expected.getFormatIdentifiers(), actual.getFormatIdentifiers());
+    for (int i = 0; i < expected.possibleDescriptors.size(); i++) {
+      TextRegexpDataDescriptor expectedFormat = expected.possibleDescriptors.get(i);
+      TextRegexpDataDescriptor actualFormat = actual.possibleDescriptors.get(i);
+      Assert.assertEquals(expectedFormat.regexps.size(), actualFormat.regexps.size());
+      for (int j = 0; j < expectedFormat.regexps.size(); j++) {
+        Assert.assertEquals(expectedFormat.regexps.get(j).pattern(), actualFormat.regexps.get(j).pattern());
+      }
+      Assert.assertEquals(expectedFormat.schemas, actualFormat.schemas);
+    }
+    Assert.assertEquals(expected.matcher.getNumPatterns(), actual.matcher.getNumPatterns());
+  }
+
+  /**
+   * formats/index lists every pattern in the directory, in the directory's order
+   */
+  @Test
+  public void testIndexMatchesDirectory() throws IOException {
+    KnownTextFormatLibrary fromDir = new KnownTextFormatLibrary(formatDir);
+    Assert.assertTrue(fromDir.getFormatIdentifiers().size() > 0);
+    KnownTextFormatLibrary fromResources = new KnownTextFormatLibrary(isolatedLoader(formatDir.getCanonicalFile().getParentFile()));
+    assertSameFormats(fromDir, fromResources);
+  }
+
+  void addToJar(JarOutputStream out, File f, String name) throws IOException {
+    if (f.isDirectory()) {
+      for (File child: f.listFiles()) {
+        addToJar(out, child, name + "/" + child.getName());
+      }
+      return;
+    }
+    out.putNextEntry(new JarEntry(name));
+    InputStream in = new FileInputStream(f);
+    try {
+      byte buf[] = new byte[4096];
+      int numRead;
+      while ((numRead = in.read(buf)) >= 0) {
+        out.write(buf, 0, numRead);
+      }
+    } finally {
+      in.close();
+    }
+    out.closeEntry();
+  }
+
+  /**
+   * The library loads from a jar, where the formats aren't a directory
+   */
+  @Test
+  public void testLoadFromJar() throws IOException {
+    File jarFile = new File(tmpOutDir.getRoot(), "formats.jar");
+    JarOutputStream out = new JarOutputStream(new FileOutputStream(jarFile));
+    try {
+      addToJar(out, formatDir, "formats");
+    } finally {
+      out.close();
+    }
+    assertSameFormats(new KnownTextFormatLibrary(formatDir), new KnownTextFormatLibrary(isolatedLoader(jarFile)));
+  }
+
+  /**
+   * The default library is the one on the classpath, unless the system property
+   * names a directory
+   */
+  @Test
+  public void testDefaultLibrary() throws IOException {
+    assertSameFormats(new KnownTextFormatLibrary(formatDir), new KnownTextFormatLibrary());
+
+    File otherDir = tmpOutDir.newFolder("otherformats");
+    File onlyFormat = new File(otherDir, "onlyformat");
+    onlyFormat.mkdir();
+    FileFixtures.writeFile(new File(onlyFormat, "kv.regex"), "^(\\w+)=(\\d+)$\n");
+    FileFixtures.writeFile(new File(onlyFormat, "kv.avsc"), "{\"type\": \"record\", \"name\": \"kv\", \"fields\": [" +
+              "{\"name\": \"key\", \"type\": \"string\"}, {\"name\": \"value\", \"type\": \"int\"}]}");
+    System.setProperty(KnownTextFormatLibrary.FORMAT_DIR_PROPERTY, otherDir.getCanonicalPath());
+    try {
+      KnownTextFormatLibrary library = new KnownTextFormatLibrary();
+      Assert.assertEquals(1, library.getFormatIdentifiers().size());
+      Assert.assertEquals("onlyformat", library.getFormatIdentifiers().get(0));
+    } finally {
+      System.clearProperty(KnownTextFormatLibrary.FORMAT_DIR_PROPERTY);
+    }
+  }
+
+  /**
+   * A missing index, or an index entry with no pattern behind it, is an error
+   * rather than an empty library
+   */
+  @Test
+  public void testMissingLibrary() throws IOException {
+    File emptyDir = tmpOutDir.newFolder("empty");
+    try {
+      new KnownTextFormatLibrary(isolatedLoader(emptyDir));
+      Assert.fail("Loaded a library with no index");
+    } catch (IOException iex) {
+    }
+
+    File badDir = tmpOutDir.newFolder("bad");
+    new File(badDir, "formats").mkdir();
+    FileFixtures.writeFile(new File(badDir, "formats/index"), "# nothing behind this\nnoformat/nopattern\n");
+    try {
+      new KnownTextFormatLibrary(isolatedLoader(badDir));
+      Assert.fail("Loaded a library with a missing pattern");
+    } catch (IOException iex) {
+    }
+  }
+}
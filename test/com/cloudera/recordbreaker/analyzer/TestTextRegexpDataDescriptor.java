@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.analyzer;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.regex.Pattern;
+
+import org.apache.avro.Schema;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.conf.Configuration;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.cloudera.recordbreaker.test.FileFixtures;
+
+/**
+ * TestTextRegexpDataDescriptor checks which files a text format claims: it looks at
+ * no more than MAX_TEST_LINES non-blank lines, needs MIN_MATCH_RATIO of them to
+ * match, and a pattern need only match part of a line.
+ *
+ * It lives in the analyzer package so it can use the limits themselves.
+ *
+ * @see TextRegexpDataDescriptor
+ */
+public class TestTextRegexpDataDescriptor {
+  static String WHOLE_LINE_PATTERN = "^\\d+ apples$";
+  static String MATCHING = "12 apples";
+  static String OTHER = "some pears";
+
+  @Rule
+  public TemporaryFolder tmpOutDir = new TemporaryFolder();
+
+  /**
+   * 'numLines' copies of 'line', each ended by '\n'
+   */
+  static String lines(String line, int numLines) {
+    StringBuffer sb = new StringBuffer();
+    for (int i = 0; i < numLines; i++) {
+      sb.append(line).append('\n');
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Whether a format with the single pattern 'regexp' claims a file holding 'text'
+   */
+  boolean claims(String regexp, String text) throws IOException {
+    FileSystem localFS = FileSystem.getLocal(new Configuration());
+    Path p = FileFixtures.writeFile(tmpOutDir.getRoot(), "data.txt", text.getBytes("ISO-8859-1"));
+    TextRegexpDataDescriptor format = new TextRegexpDataDescriptor("apples", Arrays.asList(Pattern.compile(regexp)), Arrays.<Schema>asList());
+    return format.testData(localFS, p);
+  }
+
+  /**
+   * Only the first MAX_TEST_LINES lines count, however many match after them
+   */
+  @Test
+  public void testMatchesPastTestLines() throws IOException {
+    int maxLines = TextRegexpDataDescriptor.MAX_TEST_LINES;
+    int minMatching = (int) Math.ceil(maxLines * TextRegexpDataDescriptor.MIN_MATCH_RATIO);
+    String matches = lines(MATCHING, 10 * maxLines);
+    Assert.assertTrue(claims(WHOLE_LINE_PATTERN, lines(OTHER, maxLines - minMatching) + matches));
+    Assert.assertFalse(claims(WHOLE_LINE_PATTERN, lines(OTHER, maxLines - minMatching + 1) + matches));
+    Assert.assertFalse(claims(WHOLE_LINE_PATTERN, lines(OTHER, maxLines) + matches));
+  }
+
+  /**
+   * Files with just enough matching lines, and one fewer, whether the matches come
+   * first or last
+   */
+  @Test
+  public void testMatchRatio() throws IOException {
+    for (int numLines: new int[] {10, 47, TextRegexpDataDescriptor.MAX_TEST_LINES}) {
+      int minMatching = (int) Math.ceil(numLines * TextRegexpDataDescriptor.MIN_MATCH_RATIO);
+      for (int numMatching = minMatching - 1; numMatching <= minMatching + 1; numMatching++) {
+        boolean expected = (numMatching >= minMatching);
+        String msg = numMatching + " of " + numLines + " lines";
+        String matches = lines(MATCHING, numMatching);
+        String others = lines(OTHER, numLines - numMatching);
+        Assert.assertEquals(msg, expected, claims(WHOLE_LINE_PATTERN, matches + others));
+        Assert.assertEquals(msg, expected, claims(WHOLE_LINE_PATTERN, others + matches));
+      }
+    }
+  }
+
+  /**
+   * Blank lines aren't counted, whether among the first MAX_TEST_LINES lines or not
+   */
+  @Test
+  public void testBlankLines() throws IOException {
+    int maxLines = TextRegexpDataDescriptor.MAX_TEST_LINES;
+    Assert.assertFalse(claims(WHOLE_LINE_PATTERN, lines("", 2 * maxLines)));
+    Assert.assertTrue(claims(WHOLE_LINE_PATTERN, lines("", 2 * maxLines) + lines(MATCHING, 1)));
+
+    // Half of the first MAX_TEST_LINES lines are blank, so the matches after them count
+    int minMatching = (int) Math.ceil(maxLines * TextRegexpDataDescriptor.MIN_MATCH_RATIO);
+    String blankAndOther = lines(OTHER + "\n", maxLines / 2);
+    Assert.assertTrue(claims(WHOLE_LINE_PATTERN, blankAndOther + lines(MATCHING, minMatching) + lines(OTHER, maxLines)));
+    Assert.assertFalse(claims(WHOLE_LINE_PATTERN, blankAndOther + lines(MATCHING, minMatching - 1) + lines(OTHER, maxLines)));
+  }
+
+  /**
+   * A pattern may match anywhere in a line, unless it's anchored
+   */
+  @Test
+  public void testPartialMatch() throws IOException {
+    Assert.assertTrue(claims("\\d+ apples", lines("I have 12 apples today", 10)));
+    Assert.assertFalse(claims(WHOLE_LINE_PATTERN, lines("I have 12 apples today", 10)));
+    Assert.assertFalse(claims("^\\d+ apples", lines("I have 12 apples", 10)));
+    Assert.assertTrue(claims("\\d+ apples$", lines("I have 12 apples", 10)));
+  }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.analyzer.test;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.FileStatus;
+
+import com.almworks.sqlite4java.SQLite;
+import com.almworks.sqlite4java.SQLiteException;
+import com.almworks.sqlite4java.SQLiteConnection;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.cloudera.recordbreaker.analyzer.FSAnalyzer;
+import com.cloudera.recordbreaker.analyzer.KnownTextFormatLibrary;
+import com.cloudera.recordbreaker.test.FileFixtures;
+
+/**
+ * TestAnalysisCache runs FSAnalyzer's analysis cache against a real metadata store:
+ * lookups that hit and miss, replaced entries, entries made with a different format
+ * library, and stores opened again, including one made before the cache recorded
+ * which analyzer made each entry.
+ *
+ * It needs sqlite4java's native library, which ivy fetches for OS X and Linux.
+ *
+ * @see FSAnalyzer
+ */
+public class TestAnalysisCache {
+  @Rule
+  public TemporaryFolder tmpOutDir = new TemporaryFolder();
+
+  static boolean haveNativeLibrary() {
+    try {
+      SQLite.loadLibrary();
+      return true;
+    } catch (SQLiteException sle) {
+      return false;
+    }
+  }
+
+  static FileStatus fileStatus(String path, long len, long modified) {
+    return new FileStatus(len, false, 1, 64 * 1024 * 1024, modified, new Path(path));
+  }
+
+  FSAnalyzer openStore(File store) throws IOException, SQLiteException {
+    return new FSAnalyzer(store, new File(tmpOutDir.getRoot(), "schemas"));
+  }
+
+  @Test
+  public void testHitMissReplace() throws Exception {
+    Assume.assumeTrue(haveNativeLibrary());
+    File store = new File(tmpOutDir.getRoot(), "store.db");
+    FSAnalyzer analyzer = openStore(store);
+    try {
+      FileStatus a = fileStatus("file:/data/a.txt", 1000, 5000);
+      Assert.assertEquals(-1, analyzer.getCachedAnalysis(a, ""));
+
+      analyzer.cacheAnalysis(a, "", 7);
+      Assert.assertEquals(7, analyzer.getCachedAnalysis(a, ""));
+      Assert.assertEquals(7, analyzer.getCachedAnalysis(fileStatus("file:/data/a.txt", 1000, 5000), ""));
+
+      // Any change to the file misses
+      Assert.assertEquals(-1, analyzer.getCachedAnalysis(fileStatus("file:/data/a.txt", 1001, 5000), ""));
+      Assert.assertEquals(-1, analyzer.getCachedAnalysis(fileStatus("file:/data/a.txt", 1000, 5001), ""));
+      Assert.assertEquals(-1, analyzer.getCachedAnalysis(fileStatus("file:/data/b.txt", 1000, 5000), ""));
+      Assert.assertEquals(-1, analyzer.getCachedAnalysis(a, "abcd"));
+
+      // A path has a single entry, for the file as it was last analyzed
+      FileStatus a2 = fileStatus("file:/data/a.txt", 2000, 6000);
+      analyzer.cacheAnalysis(a2, "", 8);
+      Assert.assertEquals(8, analyzer.getCachedAnalysis(a2, ""));
+      Assert.assertEquals(-1, analyzer.getCachedAnalysis(a, ""));
+      analyzer.cacheAnalysis(a2, "", 9);
+      Assert.assertEquals(9, analyzer.getCachedAnalysis(a2, ""));
+
+      FileStatus b = fileStatus("file:/data/b.txt", 10, 20);
+      analyzer.cacheAnalysis(b, "abcd", 10);
+      Assert.assertEquals(10, analyzer.getCachedAnalysis(b, "abcd"));
+      Assert.assertEquals(-1, analyzer.getCachedAnalysis(b, ""));
+      Assert.assertEquals(9, analyzer.getCachedAnalysis(a2, ""));
+    } finally {
+      analyzer.close();
+    }
+  }
+
+  /**
+   * Entries survive opening the store again with the same analyzer, but not
+   * with a different format library
+   */
+  @Test
+  public void testReopenAndFingerprint() throws Exception {
+    Assume.assumeTrue(haveNativeLibrary());
+    File store = new File(tmpOutDir.getRoot(), "store.db");
+    FileStatus a = fileStatus("file:/data/a.txt", 1000, 5000);
+    FSAnalyzer analyzer = openStore(store);
+    try {
+      analyzer.cacheAnalysis(a, "", 7);
+    } finally {
+      analyzer.close();
+    }
+
+    analyzer = openStore(store);
+    try {
+      Assert.assertEquals(7, analyzer.getCachedAnalysis(a, ""));
+    } finally {
+      analyzer.close();
+    }
+
+    File otherDir = tmpOutDir.newFolder("otherformats");
+    File onlyFormat = new File(otherDir, "onlyformat");
+    onlyFormat.mkdir();
+    FileFixtures.writeFile(new File(onlyFormat, "kv.regex"), "^(\\w+)=(\\d+)$\n");
+    FileFixtures.writeFile(new File(onlyFormat, "kv.avsc"), "{\"type\": \"record\", \"name\": \"kv\", \"fields\": [" +
+              "{\"name\": \"key\", \"type\": \"string\"}, {\"name\": \"value\", \"type\": \"int\"}]}");
+    System.setProperty(KnownTextFormatLibrary.FORMAT_DIR_PROPERTY, otherDir.getCanonicalPath());
+    try {
+      analyzer = openStore(store);
+      try {
+        Assert.assertEquals(-1, analyzer.getCachedAnalysis(a, ""));
+        analyzer.cacheAnalysis(a, "", 8);
+        Assert.assertEquals(8, analyzer.getCachedAnalysis(a, ""));
+      } finally {
+        analyzer.close();
+      }
+    } finally {
+      System.clearProperty(KnownTextFormatLibrary.FORMAT_DIR_PROPERTY);
+    }
+
+    // Back to the default library, whose entry was replaced
+    analyzer = openStore(store);
+    try {
+      Assert.assertEquals(-1, analyzer.getCachedAnalysis(a, ""));
+    } finally {
+      analyzer.close();
+    }
+  }
+
+  /**
+   * A store whose cache table predates the analyzer column gets a new, empty one
+   */
+  @Test
+  public void testOldCacheTable() throws Exception {
+    Assume.assumeTrue(haveNativeLibrary());
+    File store = new File(tmpOutDir.getRoot(), "store.db");
+    openStore(store).close();
+
+    SQLiteConnection db = new SQLiteConnection(store);
+    db.open(false);
+    try {
+      db.exec("DROP TABLE AnalysisCache;");
+      db.exec("CREATE TABLE AnalysisCache(path varchar(256) primary key, size integer, modified integer, checksum varchar(128), fid integer, foreign key(fid) references Files(fid));");
+      db.exec("INSERT INTO AnalysisCache VALUES('file:/data/a.txt', 1000, 5000, '', 7);");
+    } finally {
+      db.dispose();
+    }
+
+    FileStatus a = fileStatus("file:/data/a.txt", 1000, 5000);
+    FSAnalyzer analyzer = openStore(store);
+    try {
+      Assert.assertEquals(-1, analyzer.getCachedAnalysis(a, ""));
+      analyzer.cacheAnalysis(a, "", 8);
+      Assert.assertEquals(8, analyzer.getCachedAnalysis(a, ""));
+    } finally {
+      analyzer.close();
+    }
+  }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.analyzer.test;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.conf.Configuration;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.cloudera.recordbreaker.analyzer.FileProbe;
+import com.cloudera.recordbreaker.test.FileFixtures;
+
+/**
+ * TestFileProbe checks that a FileProbe's lines and stream match the file's, whether
+ * or not the probe holds all of it.
+ *
+ * @see FileProbe
+ */
+public class TestFileProbe {
+  static int NUM_LINES = 500;
+  static int PROBE_BYTES = 1000;
+
+  @Rule
+  public TemporaryFolder tmpOutDir = new TemporaryFolder();
+
+  /**
+   * Check a probe of a file holding 'text' that's too big for the probe
+   */
+  static void checkPartialProbe(FileProbe probe, String text) throws IOException {
+    Assert.assertFalse(probe.isComplete());
+    Assert.assertEquals(PROBE_BYTES, probe.getLength());
+
+    // Only the whole lines in the probe
+    List<String> probeLines = probe.getLines();
+    Assert.assertTrue(probeLines.size() > 0);
+    Assert.assertTrue(probeLines.size() < NUM_LINES);
+    Assert.assertEquals(FileFixtures.splitLines(text, probeLines.size()), probeLines);
+
+    // Within the probe, past it, and past the end of the file
+    Assert.assertEquals(FileFixtures.splitLines(text, 5), probe.getLines(5));
+    Assert.assertEquals(FileFixtures.splitLines(text, probeLines.size() + 1), probe.getLines(probeLines.size() + 1));
+    Assert.assertEquals(FileFixtures.splitLines(text, 300), probe.getLines(300));
+    Assert.assertEquals(FileFixtures.splitLines(text, NUM_LINES), probe.getLines(NUM_LINES + 100));
+
+    Assert.assertArrayEquals(text.getBytes("ISO-8859-1"), FileFixtures.readAll(probe.openStream()));
+  }
+
+  @Test
+  public void testPartialProbe() throws IOException {
+    String text = FileFixtures.makeText(NUM_LINES);
+    FileSystem localFS = FileSystem.getLocal(new Configuration());
+    Path p = FileFixtures.writeFile(tmpOutDir.getRoot(), "plain.txt", text.getBytes("ISO-8859-1"));
+    FileProbe probe = new FileProbe(localFS, p, PROBE_BYTES);
+    Assert.assertFalse(probe.isCompressed());
+    Assert.assertEquals("plain.txt", probe.getName());
+    checkPartialProbe(probe, text);
+  }
+
+  /**
+   * A compressed file's probe holds decompressed bytes, and reading past it
+   * means decompressing the file again from the start.  Its name loses the
+   * codec's extension, if it has one.
+   */
+  @Test
+  public void testCompressedProbe() throws IOException {
+    String text = FileFixtures.makeText(NUM_LINES);
+    byte bytes[] = text.getBytes("ISO-8859-1");
+    FileSystem localFS = FileSystem.getLocal(new Configuration());
+    String names[] = {"plain.txt.gz", "plain.txt", "plain.txt.bz2", "bzplain"};
+    String expectedNames[] = {"plain.txt", "plain.txt", "plain.txt", "bzplain"};
+    for (int i = 0; i < names.length; i++) {
+      byte compressed[] = (i < 2) ? FileFixtures.gzip(bytes) : FileFixtures.bzip2(bytes);
+      Assert.assertTrue(compressed.length < bytes.length);
+      FileProbe probe = new FileProbe(localFS, FileFixtures.writeFile(tmpOutDir.getRoot(), names[i], compressed), PROBE_BYTES);
+      Assert.assertTrue(probe.isCompressed());
+      Assert.assertEquals(expectedNames[i], probe.getName());
+      checkPartialProbe(probe, text);
+    }
+
+    // A compressed file whose decompressed text fits in the probe
+    String small = FileFixtures.makeText(10);
+    FileProbe probe = new FileProbe(localFS, FileFixtures.writeFile(tmpOutDir.getRoot(), "small.gz", FileFixtures.gzip(small.getBytes("ISO-8859-1"))), PROBE_BYTES);
+    Assert.assertTrue(probe.isComplete());
+    Assert.assertEquals(FileFixtures.splitLines(small, 100), probe.getLines(100));
+    Assert.assertArrayEquals(small.getBytes("ISO-8859-1"), FileFixtures.readAll(probe.openStream()));
+  }
+
+  /**
+   * A probe that holds the whole file, including one exactly the file's size, and
+   * a last line with no terminator
+   */
+  @Test
+  public void testCompleteProbe() throws IOException {
+    String text = FileFixtures.makeText(10) + "no newline";
+    byte bytes[] = text.getBytes("ISO-8859-1");
+    FileSystem localFS = FileSystem.getLocal(new Configuration());
+    Path p = FileFixtures.writeFile(tmpOutDir.getRoot(), "small.txt", bytes);
+    for (int probeBytes: new int[] {bytes.length, bytes.length + 1, PROBE_BYTES}) {
+      FileProbe probe = new FileProbe(localFS, p, probeBytes);
+      Assert.assertTrue(probe.isComplete());
+      Assert.assertEquals(bytes.length, probe.getLength());
+      Assert.assertEquals(FileFixtures.splitLines(text, 100), probe.getLines());
+      Assert.assertEquals(FileFixtures.splitLines(text, 100), probe.getLines(100));
+      Assert.assertEquals(FileFixtures.splitLines(text, 3), probe.getLines(3));
+      Assert.assertArrayEquals(bytes, FileFixtures.readAll(probe.openStream()));
+    }
+
+    // One byte short of the file: the unterminated last line is left out
+    FileProbe probe = new FileProbe(localFS, p, bytes.length - 1);
+    Assert.assertFalse(probe.isComplete());
+    Assert.assertEquals(FileFixtures.splitLines(text, 10), probe.getLines());
+    Assert.assertEquals(FileFixtures.splitLines(text, 100), probe.getLines(100));
+  }
+
+  /**
+   * Lines ended by a lone '\r', or by "\r\n", including probes that end
+   * between the two
+   */
+  @Test
+  public void testCarriageReturns() throws IOException {
+    FileSystem localFS = FileSystem.getLocal(new Configuration());
+    for (String terminator: new String[] {"\r", "\r\n"}) {
+      String text = FileFixtures.makeText(NUM_LINES).replace("\n", terminator);
+      Path p = FileFixtures.writeFile(tmpOutDir.getRoot(), "cr.txt", text.getBytes("ISO-8859-1"));
+      checkPartialProbe(new FileProbe(localFS, p, PROBE_BYTES), text);
+
+      // Probes that end on every byte around one line's terminator
+      int lineEnd = text.indexOf(terminator, PROBE_BYTES);
+      for (int probeBytes = lineEnd - 2; probeBytes <= lineEnd + terminator.length() + 1; probeBytes++) {
+        int numWholeLines = 0;
+        for (int i = text.indexOf(terminator); i >= 0 && i < probeBytes; i = text.indexOf(terminator, i + 1)) {
+          numWholeLines++;
+        }
+        FileProbe probe = new FileProbe(localFS, p, probeBytes);
+        Assert.assertEquals(FileFixtures.splitLines(text, numWholeLines), probe.getLines());
+        Assert.assertEquals(FileFixtures.splitLines(text, numWholeLines + 2), probe.getLines(numWholeLines + 2));
+      }
+    }
+  }
+
+  @Test
+  public void testEmptyFile() throws IOException {
+    FileSystem localFS = FileSystem.getLocal(new Configuration());
+    Path p = FileFixtures.writeFile(tmpOutDir.getRoot(), "empty.txt", new byte[0]);
+    FileProbe probe = new FileProbe(localFS, p, PROBE_BYTES);
+    Assert.assertTrue(probe.isComplete());
+    Assert.assertEquals(0, probe.getLength());
+    Assert.assertEquals(0, probe.getLines(10).size());
+    Assert.assertEquals(0, FileFixtures.readAll(probe.openStream()).length);
+  }
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.analyzer.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.FileFilter;
+import java.util.List;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+import java.util.ArrayList;
+import java.util.regex.Pattern;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.cloudera.recordbreaker.analyzer.MultiPatternMatcher;
+import com.cloudera.recordbreaker.test.FileFixtures;
+
+/**
+ * TestMultiPatternMatcher checks that MultiPatternMatcher.match() says a pattern
+ * matches a line exactly when Pattern.matcher(line).find() does, for the patterns
+ * that ship in src/formats and for random ones.
+ *
+ * @see MultiPatternMatcher
+ */
+public class TestMultiPatternMatcher {
+  static File formatDir = new File(System.getProperty("test.formats.dir", "src/formats"));
+  static File sampleDir = new File(System.getProperty("test.samples.dir", "src/samples"), "textdata");
+
+  /**
+   * The first line of every .regex file under the format directory
+   */
+  static List<String> shippedPatterns() throws IOException {
+    List<String> patterns = new ArrayList<String>();
+    File formatDirs[] = formatDir.listFiles(new FileFilter() {
+        public boolean accept(File f) {
+          return f.isDirectory();
+        }
+      });
+    Arrays.sort(formatDirs);
+    for (File dir: formatDirs) {
+      File patternFiles[] = dir.listFiles(new FileFilter() {
+          public boolean accept(File f) {
+            return f.getName().endsWith(".regex");
+          }
+        });
+      Arrays.sort(patternFiles);
+      for (File patternFile: patternFiles) {
+        patterns.add(FileFixtures.readLines(patternFile).get(0));
+      }
+    }
+    return patterns;
+  }
+
+  /**
+   * Assert that match() agrees with find() for every pattern on every line
+   */
+  static void checkAgreement(List<String> patterns, List<String> lines) {
+    MultiPatternMatcher matcher = new MultiPatternMatcher(patterns);
+    Pattern javaPatterns[] = new Pattern[patterns.size()];
+    for (int i = 0; i < javaPatterns.length; i++) {
+      javaPatterns[i] = Pattern.compile(patterns.get(i));
+    }
+    for (String line: lines) {
+      BitSet expected = new BitSet();
+      for (int i = 0; i < javaPatterns.length; i++) {
+        if (javaPatterns[i].matcher(line).find()) {
+          expected.set(i);
+        }
+      }
+      Assert.assertEquals(patterns + " on \"" + escape(line) + "\"", expected, matcher.match(line));
+    }
+  }
+
+  /**
+   * Copies of the line with a few random chars deleted, duplicated or replaced
+   */
+  static List<String> mutations(Random r, String line, int numMutations) {
+    List<String> mutated = new ArrayList<String>();
+    String replacements = " -:[]\"/0123456789aZ\t";
+    for (int i = 0; i < numMutations && line.length() > 0; i++) {
+      StringBuffer sb = new StringBuffer(line);
+      for (int j = 1 + r.nextInt(3); j > 0 && sb.length() > 0; j--) {
+        int pos = r.nextInt(sb.length());
+        switch (r.nextInt(3)) {
+        case 0:
+          sb.deleteCharAt(pos);
+          break;
+        case 1:
+          sb.insert(pos, sb.charAt(pos));
+          break;
+        default:
+          sb.setCharAt(pos, replacements.charAt(r.nextInt(replacements.length())));
+        }
+      }
+      mutated.add(sb.toString());
+    }
+    return mutated;
+  }
+
+  /**
+   * The shipped patterns are all compiled, and agree with java.util.regex on the
+   * sample files, on lines of each format, and on damaged copies of them.
+   */
+  @Test
+  public void testShippedPatterns() throws IOException {
+    List<String> patterns = shippedPatterns();
+    Assert.assertTrue(patterns.size() > 0);
+    Assert.assertEquals(0, new MultiPatternMatcher(patterns).getNumFallbackPatterns());
+
+    List<String> lines = new ArrayList<String>();
+    for (File f: sampleDir.listFiles()) {
+      if (f.getName().endsWith(".txt")) {
+        lines.addAll(FileFixtures.readLines(f));
+      }
+    }
+    lines.add("127.0.0.1 - frank [10/Oct/2000:13:55:36 -0700] \"GET /apache_pb.gif HTTP/1.0\" 200 2326 \"http://www.example.com/start.html\" \"Mozilla/4.08 [en] (Win98; I ;Nav)\"");
+    lines.add("2011-10-03 14:02:17,431 INFO org.apache.hadoop.hdfs.server.datanode.DataNode: Receiving block blk_-1234 src: /10.0.0.1:5000");
+    lines.add("Oct 3 14:02:17 myhost sshd[1234]: Accepted publickey for root from 10.0.0.1 port 5000 ssh2");
+    lines.add("Oct 3 14:02:17 myhost kernel[0]: trailing terminator\r\n");
+    lines.add("");
+
+    Random r = new Random(0);
+    List<String> allLines = new ArrayList<String>(lines);
+    for (String line: lines) {
+      allLines.addAll(mutations(r, line, 20));
+    }
+    checkAgreement(patterns, allLines);
+  }
+
+  static String ALPHABET = "ab1 _-\u00e9";
+  static String CLASS_ITEMS[] = {"a", "b", "a-c", "0-9", " ", "\\d", "\\s", "\\w", "\\W", "\\-", "_"};
+  static String ESCAPES[] = {"\\d", "\\D", "\\s", "\\S", "\\w", "\\W", "\\.", "\\-", "\\x61", "\\u00e9", "\\t"};
+
+  static String randomAtom(Random r, int depth) {
+    switch (r.nextInt(depth > 2 ? 4 : 6)) {
+    case 0:
+    case 1:
+      return "" + ALPHABET.charAt(r.nextInt(ALPHABET.length() - 1));
+    case 2: {
+      StringBuffer sb = new StringBuffer("[");
+      if (r.nextInt(3) == 0) {
+        sb.append('^');
+      }
+      for (int i = 1 + r.nextInt(3); i > 0; i--) {
+        sb.append(CLASS_ITEMS[r.nextInt(CLASS_ITEMS.length)]);
+      }
+      return sb.append(']').toString();
+    }
+    case 3:
+      return r.nextBoolean() ? "." : ESCAPES[r.nextInt(ESCAPES.length)];
+    default:
+      return (r.nextBoolean() ? "(" : "(?:") + randomAlt(r, depth + 1) + ")";
+    }
+  }
+
+  static String QUANTIFIERS[] = {"*", "+", "?", "{2}", "{1,3}", "{0,2}", "{2,}"};
+
+  static String randomConcat(Random r, int depth) {
+    StringBuffer sb = new StringBuffer();
+    for (int i = r.nextInt(4); i >= 0; i--) {
+      sb.append(randomAtom(r, depth));
+      if (r.nextInt(3) == 0) {
+        sb.append(QUANTIFIERS[r.nextInt(QUANTIFIERS.length)]);
+        if (r.nextInt(4) == 0) {
+          sb.append('?');
+        }
+      }
+    }
+    return sb.toString();
+  }
+
+  static String randomAlt(Random r, int depth) {
+    String alt = randomConcat(r, depth);
+    while (r.nextInt(4) == 0) {
+      alt += "|" + randomConcat(r, depth);
+    }
+    return alt;
+  }
+
+  static String randomPattern(Random r) {
+    String pattern = randomAlt(r, 0);
+    if (r.nextInt(4) == 0) {
+      pattern = "^" + pattern;
+    }
+    if (r.nextInt(4) == 0) {
+      pattern = pattern + "$";
+    }
+    return pattern;
+  }
+
+  static String LINE_ENDS[] = {"", "", "", "\n", "\r\n", "\r", "\u0085", "\n\n"};
+
+  static String randomLine(Random r) {
+    StringBuffer sb = new StringBuffer();
+    for (int i = r.nextInt(10); i > 0; i--) {
+      sb.append(ALPHABET.charAt(r.nextInt(ALPHABET.length())));
+    }
+    return sb.append(LINE_ENDS[r.nextInt(LINE_ENDS.length)]).toString();
+  }
+
+  /**
+   * Random patterns in the compiled subset, on random lines over the same
+   * small alphabet (so that the patterns often match), including lines that
+   * end in terminators, around which '$' and '.' behave specially.
+   */
+  @Test
+  public void testRandomPatterns() {
+    Random r = new Random(1);
+    for (int trial = 0; trial < 300; trial++) {
+      List<String> patterns = new ArrayList<String>();
+      for (int i = 1 + r.nextInt(6); i > 0; i--) {
+        patterns.add(randomPattern(r));
+      }
+      Assert.assertEquals(patterns.toString(), 0, new MultiPatternMatcher(patterns).getNumFallbackPatterns());
+      List<String> lines = new ArrayList<String>();
+      for (int i = 0; i < 60; i++) {
+        lines.add(randomLine(r));
+      }
+      checkAgreement(patterns, lines);
+    }
+  }
+
+  /**
+   * Patterns outside the compiled subset are run with java.util.regex, and still
+   * report their own indexes alongside the compiled patterns around them.
+   */
+  @Test
+  public void testUnsupportedFallsBack() {
+    List<String> unsupported = Arrays.asList("(a)\\1", "a(?=b)", "a*+b", "a{200}", "[a-z&&[^b]]+1",
+                                             "\\ba", "\\p{Alpha}1", "(?i)AB");
+    List<String> patterns = new ArrayList<String>();
+    for (String p: unsupported) {
+      patterns.add("b[a1]");
+      patterns.add(p);
+    }
+    patterns.add("^a+$");
+    Assert.assertEquals(unsupported.size(), new MultiPatternMatcher(patterns).getNumFallbackPatterns());
+
+    StringBuffer many = new StringBuffer();
+    for (int i = 0; i < 200; i++) {
+      many.append('a');
+    }
+    List<String> lines = new ArrayList<String>(Arrays.asList("aa", "ab", "ba1", "xa", "a b", "c1", "Ab", "aab\n", "", many.toString()));
+    Random r = new Random(2);
+    for (int i = 0; i < 200; i++) {
+      lines.add(randomLine(r));
+    }
+    checkAgreement(patterns, lines);
+  }
+
+  static String escape(String s) {
+    return s.replace("\r", "\\r").replace("\n", "\\n");
+  }
+}
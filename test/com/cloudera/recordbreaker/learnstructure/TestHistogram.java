@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure;
+
+import java.util.Map;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.ArrayList;
+import java.util.Comparator;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * TestHistogram checks clusterHistograms() against the merging it replaced, which
+ * kept each cluster's members in a map and visited the close pairs in a sorted set.
+ * The order the pairs are merged in decides which cluster id survives each merge,
+ * and so the order the clusters come out in.
+ *
+ * It lives in the learnstructure package so it can score histograms directly.
+ *
+ * @see Histogram#clusterHistograms(List)
+ */
+public class TestHistogram {
+  /**
+   * Histograms drawn from a few shapes, each count nudged a little, so that many
+   * pairs are close enough to merge and many of those tie
+   */
+  static List<Histogram> randomHistograms(Random r, int numHistograms) {
+    int shapes[][] = {{0, 50, 20}, {0, 50, 20, 5}, {0, 30, 30}, {0, 70}};
+    List<Histogram> histograms = new ArrayList<Histogram>();
+    for (int i = 0; i < numHistograms; i++) {
+      int shape[] = shapes[r.nextInt(shapes.length)];
+      int freqs[] = new int[shape.length];
+      int counts[] = new int[shape.length];
+      for (int k = 0; k < shape.length; k++) {
+        freqs[k] = k;
+        counts[k] = (k == 0) ? 0 : shape[k] + r.nextInt(3);
+      }
+      histograms.add(new Histogram(i, "h" + i, freqs, counts, 1.0, 0.0, 1.0));
+    }
+    return histograms;
+  }
+
+  /**
+   * The old clustering: visit the close pairs by score, then by index, and fold
+   * the second histogram's cluster into the first's
+   */
+  static List<List<Histogram>> mergeClusters(List<Histogram> histograms) {
+    TreeSet<double[]> scores = new TreeSet<double[]>(new Comparator<double[]>() {
+        public int compare(double a[], double b[]) {
+          for (int k = 0; k < a.length; k++) {
+            if (a[k] != b[k]) {
+              return (a[k] < b[k]) ? -1 : 1;
+            }
+          }
+          return 0;
+        }
+      });
+    for (int i = 0; i < histograms.size(); i++) {
+      for (int j = i+1; j < histograms.size(); j++) {
+        double sre = histograms.get(i).computeSymmetricRelativeEntropy(histograms.get(j));
+        if (sre < Histogram.CLUSTER_TOLERANCE) {
+          scores.add(new double[] {sre, i, j});
+        }
+      }
+    }
+    int histogramToCluster[] = new int[histograms.size()];
+    Map<Integer, TreeSet<Integer>> clusterToHistograms = new TreeMap<Integer, TreeSet<Integer>>();
+    for (int i = 0; i < histograms.size(); i++) {
+      histogramToCluster[i] = i;
+      clusterToHistograms.put(i, new TreeSet<Integer>());
+      clusterToHistograms.get(i).add(i);
+    }
+    for (double score[]: scores) {
+      int cluster1 = histogramToCluster[(int) score[1]];
+      int cluster2 = histogramToCluster[(int) score[2]];
+      if (cluster1 == cluster2) {
+        continue;
+      }
+      for (int i: clusterToHistograms.get(cluster2)) {
+        histogramToCluster[i] = cluster1;
+      }
+      clusterToHistograms.get(cluster1).addAll(clusterToHistograms.remove(cluster2));
+    }
+    List<List<Histogram>> clusters = new ArrayList<List<Histogram>>();
+    for (TreeSet<Integer> members: clusterToHistograms.values()) {
+      List<Histogram> cluster = new ArrayList<Histogram>();
+      for (int i: members) {
+        cluster.add(histograms.get(i));
+      }
+      clusters.add(cluster);
+    }
+    return clusters;
+  }
+
+  /**
+   * Random histograms fall into the same clusters, in the same order, as they did
+   * under the old merging
+   */
+  @Test
+  public void testClusterOrder() {
+    Random r = new Random(29);
+    int numMerged = 0;
+    for (int trial = 0; trial < 500; trial++) {
+      List<Histogram> histograms = randomHistograms(r, r.nextInt(40) + 1);
+      List<List<Histogram>> expected = mergeClusters(histograms);
+      Assert.assertEquals(expected, Histogram.clusterHistograms(histograms));
+      numMerged += histograms.size() - expected.size();
+    }
+    // Enough merges that their order was tested
+    Assert.assertTrue(numMerged > 1000);
+  }
+}
@@ -0,0 +1,354 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.List;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.avro.Schema;
+import org.apache.avro.file.DataFileReader;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.io.DecoderFactory;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.conf.Configuration;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.cloudera.recordbreaker.test.FileFixtures;
+
+/**
+ * TestLearnStructure checks how LearnStructure runs its work across threads and
+ * batches: however many of either there are, and whether or not the parsers reuse
+ * their objects, every sink must get the same values, in input order.
+ *
+ * It lives in the learnstructure package so it can shrink the batches, and reach
+ * the batch machinery directly.
+ *
+ * @see LearnStructure
+ */
+public class TestLearnStructure {
+  static int NUM_THREADS = 4;
+  static int MIN_INPUT_LINES = 100;
+  int savedTokenizeBatchSize;
+  int savedTokenizeTaskSize;
+  int savedParseBatchSize;
+
+  @Rule
+  public TemporaryFolder tmpOutDir = new TemporaryFolder();
+
+  /**
+   * Small batches, so that even the sample files are split into many of them
+   */
+  @Before
+  public void shrinkBatches() {
+    savedTokenizeBatchSize = LearnStructure.TOKENIZE_BATCH_SIZE;
+    savedTokenizeTaskSize = LearnStructure.TOKENIZE_TASK_SIZE;
+    savedParseBatchSize = LearnStructure.PARSE_BATCH_SIZE;
+    LearnStructure.TOKENIZE_BATCH_SIZE = 50;
+    LearnStructure.TOKENIZE_TASK_SIZE = 4;
+    LearnStructure.PARSE_BATCH_SIZE = 3;
+  }
+
+  @After
+  public void restoreBatches() {
+    LearnStructure.TOKENIZE_BATCH_SIZE = savedTokenizeBatchSize;
+    LearnStructure.TOKENIZE_TASK_SIZE = savedTokenizeTaskSize;
+    LearnStructure.PARSE_BATCH_SIZE = savedParseBatchSize;
+  }
+
+  /**
+   * A sink that writes down each line it's handed, and the value it parsed to.  The
+   * value comes from the GenericContainer or from the Avro binary, whichever the sink
+   * says it uses.  It's turned into text at once, since the parser may reuse it.
+   */
+  static class CollectingSink extends RecordSink {
+    boolean usesDatum;
+    Schema schema;
+    List<String> lines = new ArrayList<String>();
+
+    public CollectingSink(boolean usesDatum) {
+      this.usesDatum = usesDatum;
+    }
+    public void open(Schema schema) {
+      this.schema = schema;
+    }
+    public boolean usesDatum() {
+      return usesDatum;
+    }
+    public boolean usesEncoded() {
+      return ! usesDatum;
+    }
+    public void parsed(ParsedLine line) throws IOException {
+      Object value;
+      if (usesDatum) {
+        value = line.getDatum();
+      } else {
+        ByteBuffer encoded = line.getEncoded();
+        value = new GenericDatumReader<Object>(schema).read(null, DecoderFactory.get().binaryDecoder(encoded.array(), encoded.arrayOffset() + encoded.position(), encoded.remaining(), null));
+      }
+      lines.add(line.getLineNo() + "\t" + line.getText() + "\t" + value);
+    }
+    public void unparsed(long lineno, CharSequence line) {
+      lines.add(lineno + "\t" + line + "\tunparsed");
+    }
+    public void close() {
+    }
+  }
+
+  /**
+   * What a run of LearnStructure wrote: the schema, the records of the Avro data file,
+   * and the lines seen by a sink that takes GenericContainers and one that takes Avro binary
+   */
+  static class Outputs {
+    String schema;
+    List<String> records = new ArrayList<String>();
+    CollectingSink datumSink = new CollectingSink(true);
+    CollectingSink encodedSink = new CollectingSink(false);
+
+    /**
+     * Number the schema's names in the order they first appear, rather than in the order
+     * they were made, which is global to the JVM and depends on how the work was split up.
+     */
+    void renumberNames() {
+      Map<String, String> newNames = numberNames(schema);
+      schema = rename(schema, newNames);
+      for (List<String> strs: Arrays.asList(records, datumSink.lines, encodedSink.lines)) {
+        for (int i = 0; i < strs.size(); i++) {
+          strs.set(i, rename(strs.get(i), newNames));
+        }
+      }
+    }
+  }
+
+  static Pattern GENERATED_NAME = Pattern.compile("\\b(base|record|union|array)_\\d+\\b");
+
+  /**
+   * A new name for each generated name in 's', numbered in the order they first appear
+   */
+  static Map<String, String> numberNames(String s) {
+    Map<String, String> newNames = new HashMap<String, String>();
+    Matcher m = GENERATED_NAME.matcher(s);
+    while (m.find()) {
+      if (! newNames.containsKey(m.group())) {
+        newNames.put(m.group(), m.group(1) + "_" + newNames.size());
+      }
+    }
+    return newNames;
+  }
+
+  static String rename(String s, Map<String, String> newNames) {
+    StringBuffer sb = new StringBuffer();
+    Matcher m = GENERATED_NAME.matcher(s);
+    while (m.find()) {
+      String newName = newNames.get(m.group());
+      m.appendReplacement(sb, (newName != null) ? newName : m.group());
+    }
+    m.appendTail(sb);
+    return sb.toString();
+  }
+
+  /**
+   * The sample files, and a mix of two of them that's mostly unparseable, each
+   * written out as many times in a row as it takes to fill MIN_INPUT_LINES, so that
+   * there are more batches than the threads have in hand at once
+   */
+  List<File> writeInputs() throws IOException {
+    List<File> inputs = new ArrayList<File>();
+    for (List<String> lines: TestParserProgram.allInputs()) {
+      StringBuffer sb = new StringBuffer();
+      for (int numLines = 0; numLines < MIN_INPUT_LINES; numLines += lines.size()) {
+        for (String s: lines) {
+          sb.append(s).append('\n');
+        }
+      }
+      inputs.add(new File(FileFixtures.writeFile(tmpOutDir.getRoot(), "input" + inputs.size() + ".txt", sb.toString().getBytes("ISO-8859-1")).toUri().getPath()));
+    }
+    return inputs;
+  }
+
+  /**
+   * Learn the structure of 'input' and parse it, or, if 'parser' is non-null, just
+   * parse it with that saved program.  The outputs go to the new directory 'name'.
+   */
+  Outputs run(LearnStructure ls, File input, File parser, String name) throws IOException {
+    File outDir = tmpOutDir.newFolder(name);
+    File schemaFile = new File(outDir, LearnStructure.SCHEMA_FILENAME);
+    File avroFile = new File(outDir, LearnStructure.DATA_FILENAME);
+    FileSystem localFS = FileSystem.getLocal(new Configuration());
+    Outputs outputs = new Outputs();
+    List<RecordSink> sinks = new ArrayList<RecordSink>();
+    sinks.add(outputs.datumSink);
+    sinks.add(new RecordSink.AvroFileSink(localFS, new Path(avroFile.getCanonicalPath())));
+    sinks.add(outputs.encodedSink);
+    if (parser == null) {
+      ls.inferRecordFormat(localFS, new Path(input.getCanonicalPath()), localFS, new Path(schemaFile.getCanonicalPath()),
+                           new Path(new File(outDir, LearnStructure.PARSER_FILENAME).getCanonicalPath()), sinks, false, -1);
+    } else {
+      ls.applyRecordFormat(localFS, new Path(input.getCanonicalPath()), localFS, new Path(parser.getCanonicalPath()),
+                           new Path(schemaFile.getCanonicalPath()), sinks, false);
+    }
+    outputs.schema = FileFixtures.readLines(schemaFile).toString();
+    DataFileReader<Object> in = new DataFileReader<Object>(avroFile, new GenericDatumReader<Object>());
+    try {
+      for (Object record: in) {
+        outputs.records.add(record.toString());
+      }
+    } finally {
+      in.close();
+    }
+    outputs.renumberNames();
+    return outputs;
+  }
+
+  static LearnStructure newLearnStructure(int numThreads, boolean reuseData) {
+    LearnStructure ls = new LearnStructure(numThreads);
+    ls.setReuseData(reuseData);
+    return ls;
+  }
+
+  static void assertSameOutputs(String msg, Outputs expected, Outputs actual) {
+    Assert.assertEquals(msg, expected.schema, actual.schema);
+    Assert.assertEquals(msg, expected.records, actual.records);
+    Assert.assertEquals(msg, expected.datumSink.lines, actual.datumSink.lines);
+    Assert.assertEquals(msg, expected.encodedSink.lines, actual.encodedSink.lines);
+  }
+
+  /**
+   * Learning and parsing with several threads gives the same schema, and the same
+   * records in the same order, as with one; so does parsing with a saved program.
+   */
+  @Test
+  public void testThreadsGiveSameOutput() throws IOException {
+    for (File input: writeInputs()) {
+      String name = input.getName();
+      Outputs single = run(newLearnStructure(1, true), input, null, name + "-1");
+      Assert.assertTrue(name, single.datumSink.lines.size() > LearnStructure.PARSE_BATCH_SIZE * NUM_THREADS * 2);
+      assertSameOutputs(name, single, run(newLearnStructure(NUM_THREADS, true), input, null, name + "-n"));
+
+      File parser = new File(new File(tmpOutDir.getRoot(), name + "-1"), LearnStructure.PARSER_FILENAME);
+      assertSameOutputs(name, single, run(newLearnStructure(NUM_THREADS, true), input, parser, name + "-apply"));
+    }
+  }
+
+  /**
+   * The parsers' reuse of their records and arrays from one batch to the next doesn't
+   * change what any sink sees
+   */
+  @Test
+  public void testReuseGivesSameOutput() throws IOException {
+    for (File input: writeInputs()) {
+      String name = input.getName();
+      for (int numThreads: new int[] {1, NUM_THREADS}) {
+        Outputs fresh = run(newLearnStructure(numThreads, false), input, null, name + "-fresh-" + numThreads);
+        Outputs reused = run(newLearnStructure(numThreads, true), input, null, name + "-reused-" + numThreads);
+        assertSameOutputs(name, fresh, reused);
+      }
+    }
+  }
+
+  /**
+   * Every sink gets every line, once, in order; and the sink that takes GenericContainers,
+   * the one that takes Avro binary, and the Avro data file all get the same values.
+   */
+  @Test
+  public void testSinksAgree() throws IOException {
+    for (File input: writeInputs()) {
+      String name = input.getName();
+      List<String> lines = FileFixtures.readLines(input);
+      for (int numThreads: new int[] {1, NUM_THREADS}) {
+        Outputs outputs = run(newLearnStructure(numThreads, true), input, null, name + "-" + numThreads);
+        Assert.assertEquals(name, outputs.datumSink.lines, outputs.encodedSink.lines);
+        Assert.assertEquals(name, lines.size(), outputs.datumSink.lines.size());
+
+        int numParsed = 0;
+        for (int i = 0; i < lines.size(); i++) {
+          String fields[] = outputs.datumSink.lines.get(i).split("\t");
+          Assert.assertEquals(name, "" + i, fields[0]);
+          Assert.assertEquals(name, lines.get(i), fields[1]);
+          if (! "unparsed".equals(fields[fields.length - 1])) {
+            Assert.assertEquals(name, outputs.records.get(numParsed++), fields[fields.length - 1]);
+          }
+        }
+        Assert.assertEquals(name, outputs.records.size(), numParsed);
+      }
+    }
+  }
+
+  /**
+   * A task that fails, on whatever thread runs it, with the given exception
+   */
+  static class FailingTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    RuntimeException rex;
+
+    public FailingTask(RuntimeException rex) {
+      this.rex = rex;
+    }
+    protected void compute() {
+      throw rex;
+    }
+  }
+
+  static RuntimeException invokeFailing(ForkJoinPool pool, RuntimeException rex) {
+    try {
+      pool.invoke(new FailingTask(rex));
+    } catch (RuntimeException thrown) {
+      return thrown;
+    }
+    Assert.fail("The task didn't fail");
+    return null;
+  }
+
+  /**
+   * An IOException wrapped by a task on a worker thread is found however deep
+   * join() and invoke() bury it, and anything else is rethrown as it came.
+   */
+  @Test
+  public void testUnwrapIOException() {
+    IOException iex = new IOException("read failed");
+    ForkJoinPool pool = new ForkJoinPool(2);
+    try {
+      Assert.assertSame(iex, LearnStructure.unwrapIOException(invokeFailing(pool, new RuntimeException(iex))));
+      Assert.assertSame(iex, LearnStructure.unwrapIOException(new RuntimeException(new RuntimeException(iex))));
+
+      RuntimeException other = invokeFailing(pool, new IllegalStateException("no I/O here"));
+      try {
+        LearnStructure.unwrapIOException(other);
+        Assert.fail("Unwrapped an exception with no IOException");
+      } catch (RuntimeException rex) {
+        Assert.assertSame(other, rex);
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.cloudera.recordbreaker.test.FileFixtures;
+
+/**
+ * TestLexer checks that the Lexer emits exactly the tokens that Tokenizer's
+ * regex cascade does, on the sample files, on lines built to sit at the edges
+ * of each token class, and on random lines.
+ *
+ * It lives in the learnstructure package so it can call both tokenizers directly.
+ *
+ * @see Lexer
+ */
+public class TestLexer {
+  static String SAMPLE_FILES[] = {"angioplasty.txt", "commonlog.txt", "courselisting.txt",
+                                  "filelisting.txt", "flights.txt", "wikipediatopics.txt"};
+
+  // Each line, and the id of the first token it should give
+  static String EDGE_CASES[][] = {
+    // Dates, in every order and separator, and ones that only look like dates
+    {"Jan 12 2011", "date"}, {"January 12, 2011", "date"}, {"jan.3.1999", "date"},
+    {"12/31/2011", "date"}, {"2011/12/31", "date"}, {"31 Dec 2011", "date"},
+    {"13/45/2011", "int"}, {"Dec 32", "string"}, {"Decimal 12", "string"}, {"Feb-12-2011", "string"},
+    // Times
+    {"12:34:56 PM", "time"}, {"12:34", "time"}, {"1:34", "int"}, {"12:3", "int"},
+    // IP addresses, and things with too few dots
+    {"10.0.0.1 - -", "ipaddr"}, {"*.cloudera.com", "string"}, {"*.1.*", "ipaddr"},
+    {"1.2.3", "float"}, {"192.168.1.1.5:8080", "ipaddr"},
+    // Permission bits
+    {"drwxr-xr-x 2 root", "permissionbits"}, {"-rw-r--r--@", "permissionbits"}, {"rwxrwx", "string"},
+    // Signed numbers and ranges
+    {"-12.5e3", "float"}, {"+.5", "float"}, {"-.", "string"}, {"+-1", "string"}, {"-7", "int"},
+    {"3-4", "int"}, {"3.5-4.25", "float"}, {"3.-4", "int"}, {"10-", "int"},
+    // Whitespace, tabs, CRs and newlines
+    {"\tindented\tline\r", "ws"}, {"a\r\nb", "char"}, {"\n\n", "eol"}, {" \u000B\f ", "ws"},
+    // Brackets and quotes, closed, unclosed, and nested
+    {"[12] (a, b) {c}", "meta"}, {"\"quoted 'inner' text\"", "meta"}, {"<unclosed", "char"},
+    {"it's", "string"}, {"()", "meta"}, {"[[1]]", "meta"},
+    // Characters beyond ASCII, including non-breaking spaces, which aren't \s, and surrogate pairs
+    {"caf\u00e9 \u00a0x", "string"}, {"\ud83d\ude00", "char"}, {"\ud83d\ude00\ud83d\ude00", "string"},
+    {"a\ud83d\ude00", "string"}, {"\ud800", "char"}, {"", null}
+  };
+
+  // Characters that start, end or separate tokens
+  static String RANDOM_CHARS = "0123456789.-+:/*, \t\r\n[](){}<>\"';|drwxJanFebDecMay" +
+    "abcZ\u00a0\u00e9\ud83d\ude00";
+
+  static String describe(List<Token.AbstractToken> toks) {
+    return Tokenizer.describeChunk(toks);
+  }
+
+  static void assertSameTokens(String s) throws IOException {
+    String msg = "[" + s + "]";
+    String expected = describe(Tokenizer.regexTokenize(s));
+    Assert.assertEquals(msg, expected, describe(Lexer.tokenize(s)));
+    // The lexer doesn't care what sort of CharSequence it reads
+    Assert.assertEquals(msg, expected, describe(Lexer.tokenize(new StringBuilder(s))));
+  }
+
+  /**
+   * The two agree on every line of every sample file
+   */
+  @Test
+  public void testSampleFiles() throws IOException {
+    for (String name: SAMPLE_FILES) {
+      for (String s: FileFixtures.readLines(new File(TestParserProgram.sampleDir, name))) {
+        assertSameTokens(s);
+      }
+    }
+  }
+
+  /**
+   * The two agree at the edges of each token class, and give the expected first
+   * token.  No line is unparseable, since any character that isn't a space is at
+   * worst a CHAR, so both give a token list for every line.
+   */
+  @Test
+  public void testEdgeCases() throws IOException {
+    for (String edgeCase[]: EDGE_CASES) {
+      String s = edgeCase[0];
+      assertSameTokens(s);
+      List<Token.AbstractToken> toks = Lexer.tokenize(s);
+      Assert.assertNotNull(s, toks);
+      if (edgeCase[1] == null) {
+        Assert.assertEquals(s, 0, toks.size());
+      } else {
+        Assert.assertEquals(s, edgeCase[1], Token.AbstractToken.getClassStr(toks.get(0).getClassId()));
+      }
+    }
+  }
+
+  /**
+   * The two agree on random lines made mostly of the characters that start and
+   * end tokens
+   */
+  @Test
+  public void testRandomLines() throws IOException {
+    Random r = new Random(19);
+    for (int i = 0; i < 20000; i++) {
+      StringBuffer sb = new StringBuffer();
+      int len = r.nextInt(30);
+      for (int j = 0; j < len; j++) {
+        sb.append(RANDOM_CHARS.charAt(r.nextInt(RANDOM_CHARS.length())));
+      }
+      assertSameTokens(sb.toString());
+    }
+  }
+
+  /**
+   * Tokenizer.tokenize() takes whichever path it's told to
+   */
+  @Test
+  public void testRegexSwitch() throws IOException {
+    try {
+      for (String edgeCase[]: EDGE_CASES) {
+        Tokenizer.setUseRegexTokenizer(true);
+        String regexToks = describe(Tokenizer.tokenize(edgeCase[0]));
+        Tokenizer.setUseRegexTokenizer(false);
+        Assert.assertEquals(edgeCase[0], regexToks, describe(Tokenizer.tokenize(edgeCase[0])));
+      }
+    } finally {
+      Tokenizer.setUseRegexTokenizer(false);
+    }
+  }
+}
@@ -0,0 +1,300 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.List;
+import java.util.Random;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.NoSuchElementException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * TestMaterializeWithoutUnions checks InferredType's union-free trees against a
+ * brute-force enumeration: the same trees, each exactly once, in order of cost,
+ * and cut off after maxTrees.
+ *
+ * It lives in the learnstructure package so it can build types by hand and read
+ * each alternative's cost.
+ *
+ * @see InferredType#materializeWithoutUnions(int)
+ */
+public class TestMaterializeWithoutUnions {
+  static double EPSILON = 1e-9;
+
+  /**
+   * Type trees of random shape, each base node a CHAR with its own parameter so
+   * that different picks at the unions give trees that describe() tells apart.
+   */
+  static class RandomTypes {
+    Random r;
+    int numLeaves = 0;
+    RandomTypes(long seed) {
+      this.r = new Random(seed);
+    }
+    InferredType leaf() {
+      return new BaseType(Token.CHAR_TOKENCLASSID, new ArrayList<String>(), "c" + numLeaves++);
+    }
+    InferredType build(int depth) {
+      if (depth == 0) {
+        return leaf();
+      }
+      switch (r.nextInt(5)) {
+      case 0:
+        return new ArrayType(build(depth - 1));
+      case 1:
+      case 2: {
+        List<InferredType> fields = new ArrayList<InferredType>();
+        for (int i = r.nextInt(3) + 1; i > 0; i--) {
+          fields.add(build(depth - 1));
+        }
+        return new StructType(fields);
+      }
+      case 3: {
+        int numBranches = r.nextInt(3) + 1;
+        List<InferredType> branches = new ArrayList<InferredType>();
+        double weights[] = new double[numBranches];
+        for (int i = 0; i < numBranches; i++) {
+          branches.add(build(depth - 1));
+          weights[i] = r.nextInt(10);
+        }
+        // Sometimes no weights, sometimes all zero: every branch is then equally likely
+        return new UnionType(branches, r.nextBoolean() ? weights : null);
+      }
+      default:
+        return leaf();
+      }
+    }
+  }
+
+  /**
+   * The shape of a tree and the parameters of its leaves
+   */
+  static String describe(InferredType it) {
+    if (it instanceof BaseType) {
+      return ((BaseType) it).tokenParameter;
+    } else if (it instanceof StructType) {
+      StringBuffer buf = new StringBuffer("{");
+      for (InferredType field: ((StructType) it).structTypes) {
+        buf.append(describe(field) + " ");
+      }
+      return buf.append("}").toString();
+    } else if (it instanceof ArrayType) {
+      return "[" + describe(((ArrayType) it).bodyType) + "]";
+    } else {
+      StringBuffer buf = new StringBuffer("U(");
+      for (InferredType branch: ((UnionType) it).unionTypes) {
+        buf.append(describe(branch) + " ");
+      }
+      return buf.append(")").toString();
+    }
+  }
+
+  /**
+   * Every union-free tree of 'it', by brute force, and its cost
+   */
+  static Map<String, Double> enumerate(InferredType it) {
+    Map<String, Double> result = new HashMap<String, Double>();
+    if (it instanceof BaseType) {
+      result.put(describe(it), 0.0);
+    } else if (it instanceof StructType) {
+      // Build up the combinations one field at a time
+      List<String> prefixes = new ArrayList<String>();
+      List<Double> costs = new ArrayList<Double>();
+      prefixes.add("{");
+      costs.add(0.0);
+      for (InferredType field: ((StructType) it).structTypes) {
+        List<String> newPrefixes = new ArrayList<String>();
+        List<Double> newCosts = new ArrayList<Double>();
+        for (Map.Entry<String, Double> fieldAlt: enumerate(field).entrySet()) {
+          for (int i = 0; i < prefixes.size(); i++) {
+            newPrefixes.add(prefixes.get(i) + fieldAlt.getKey() + " ");
+            newCosts.add(costs.get(i) + fieldAlt.getValue());
+          }
+        }
+        prefixes = newPrefixes;
+        costs = newCosts;
+      }
+      for (int i = 0; i < prefixes.size(); i++) {
+        result.put(prefixes.get(i) + "}", costs.get(i));
+      }
+    } else if (it instanceof ArrayType) {
+      for (Map.Entry<String, Double> bodyAlt: enumerate(((ArrayType) it).bodyType).entrySet()) {
+        result.put("[" + bodyAlt.getKey() + "]", bodyAlt.getValue());
+      }
+    } else {
+      UnionType ut = (UnionType) it;
+      for (int i = 0; i < ut.unionTypes.size(); i++) {
+        for (Map.Entry<String, Double> branchAlt: enumerate(ut.unionTypes.get(i)).entrySet()) {
+          result.put(branchAlt.getKey(), branchAlt.getValue() - Math.log(ut.getBranchFraction(i)));
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * The number of union-free trees, in closed form
+   */
+  static long countTrees(InferredType it) {
+    if (it instanceof BaseType) {
+      return 1;
+    } else if (it instanceof StructType) {
+      long count = 1;
+      for (InferredType field: ((StructType) it).structTypes) {
+        count *= countTrees(field);
+      }
+      return count;
+    } else if (it instanceof ArrayType) {
+      return countTrees(((ArrayType) it).bodyType);
+    } else {
+      long count = 0;
+      for (InferredType branch: ((UnionType) it).unionTypes) {
+        count += countTrees(branch);
+      }
+      return count;
+    }
+  }
+
+  static boolean hasUnion(InferredType it) {
+    if (it instanceof UnionType) {
+      return true;
+    } else if (it instanceof StructType) {
+      for (InferredType field: ((StructType) it).structTypes) {
+        if (hasUnion(field)) {
+          return true;
+        }
+      }
+      return false;
+    } else if (it instanceof ArrayType) {
+      return hasUnion(((ArrayType) it).bodyType);
+    }
+    return false;
+  }
+
+  /**
+   * Every union-free tree comes out once, in order of cost, and each one's cost
+   * is the sum of -log of the fractions of the branches it took.
+   */
+  @Test
+  public void testAgreesWithEnumeration() {
+    RandomTypes types = new RandomTypes(7);
+    for (int trial = 0; trial < 300; trial++) {
+      InferredType it = types.build(4);
+      Map<String, Double> expected = enumerate(it);
+      Assert.assertEquals(countTrees(it), expected.size());
+
+      InferredType.Alternatives alts = it.alternatives();
+      HashSet<String> seen = new HashSet<String>();
+      int i = 0;
+      for (Iterator<InferredType> trees = it.materializeWithoutUnions(); trees.hasNext(); i++) {
+        InferredType tree = trees.next();
+        String desc = describe(tree);
+        Assert.assertFalse(desc, hasUnion(tree));
+        Assert.assertTrue("Repeated " + desc, seen.add(desc));
+        Assert.assertTrue("Unexpected " + desc, expected.containsKey(desc));
+
+        // The iterator's trees are the alternatives', so their costs can be read there
+        Assert.assertTrue(alts.has(i));
+        Assert.assertEquals(desc, describe(alts.tree(i)));
+        Assert.assertEquals(desc, expected.get(desc), alts.cost(i), EPSILON);
+        if (i > 0) {
+          Assert.assertTrue(alts.cost(i - 1) <= alts.cost(i) + EPSILON);
+        }
+      }
+      Assert.assertEquals(expected.size(), seen.size());
+      Assert.assertFalse(alts.has(i));
+    }
+  }
+
+  /**
+   * maxTrees cuts off the output after that many trees, which are the first
+   * trees of the whole output
+   */
+  @Test
+  public void testMaxTrees() {
+    RandomTypes types = new RandomTypes(11);
+    for (int trial = 0; trial < 100; trial++) {
+      InferredType it = types.build(4);
+      List<String> all = new ArrayList<String>();
+      for (Iterator<InferredType> trees = it.materializeWithoutUnions(); trees.hasNext(); ) {
+        all.add(describe(trees.next()));
+        Assert.assertTrue(all.size() <= countTrees(it));
+      }
+      for (int maxTrees = 0; maxTrees <= all.size() + 1; maxTrees++) {
+        Iterator<InferredType> trees = it.materializeWithoutUnions(maxTrees);
+        int i = 0;
+        while (trees.hasNext()) {
+          Assert.assertEquals(all.get(i), describe(trees.next()));
+          i++;
+        }
+        Assert.assertEquals(Math.min(maxTrees, all.size()), i);
+        try {
+          trees.next();
+          Assert.fail("Tree past the end");
+        } catch (NoSuchElementException nsee) {
+        }
+      }
+    }
+  }
+
+  /**
+   * A union-free tree is its own single alternative, shared rather than copied
+   */
+  @Test
+  public void testUnionFreeTree() {
+    RandomTypes types = new RandomTypes(13);
+    int numChecked = 0;
+    for (int trial = 0; trial < 100; trial++) {
+      InferredType it = types.build(3);
+      if (! hasUnion(it)) {
+        Iterator<InferredType> trees = it.materializeWithoutUnions();
+        Assert.assertSame(it, trees.next());
+        Assert.assertFalse(trees.hasNext());
+        numChecked++;
+      }
+    }
+    Assert.assertTrue(numChecked > 0);
+  }
+
+  /**
+   * On the types inferred from the sample files, the cheapest trees come out in
+   * order and free of unions
+   */
+  @Test
+  public void testInferredTypes() throws IOException {
+    for (List<String> lines: TestParserProgram.allInputs()) {
+      InferredType it = TestParserProgram.learnType(lines);
+      InferredType.Alternatives alts = it.alternatives();
+      int i = 0;
+      for (Iterator<InferredType> trees = it.materializeWithoutUnions(50); trees.hasNext(); i++) {
+        InferredType tree = trees.next();
+        Assert.assertFalse(hasUnion(tree));
+        Assert.assertTrue(alts.has(i));
+        Assert.assertEquals(describe(alts.tree(i)), describe(tree));
+        if (i > 0) {
+          Assert.assertTrue(alts.cost(i - 1) <= alts.cost(i) + EPSILON);
+        }
+      }
+      Assert.assertEquals(Math.min(50, countTrees(it)), i);
+    }
+  }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * TestParseProfile checks the counts in a parse profile, and their sum in a ParseMonitor,
+ * against what the parser did; and that profiling doesn't change what it does.  The
+ * monitor is never published, so none of this needs JMX.
+ *
+ * It lives in the learnstructure package so it can read the per-node counts.
+ *
+ * @see ParseProfile
+ * @see ParseMonitor
+ */
+public class TestParseProfile {
+  /**
+   * How many of the lines the program can't parse
+   */
+  static int countUnparsed(ParserProgram program, List<String> lines) {
+    ParserProgram.Parser parser = program.newParser();
+    int numUnparsed = 0;
+    for (String s: lines) {
+      if (parser.parse(s) == null) {
+        numUnparsed++;
+      }
+    }
+    return numUnparsed;
+  }
+
+  static void assertCounts(ParseProfile profile, long numLines, long numUnparsed) {
+    Assert.assertEquals(numLines, profile.getNumLines());
+    Assert.assertEquals(numLines / ParseProfile.TIMING_SAMPLE_INTERVAL, profile.numTimedLines);
+    Assert.assertEquals(numUnparsed, profile.getNumUnparsed());
+    // Every line that the naive parse gets wrong goes on to the fallback search
+    Assert.assertTrue(profile.getNumFallbacks() >= numUnparsed);
+    Assert.assertTrue(profile.getNumFallbacks() <= numLines);
+    // Every line starts at the root, and encode() may start it twice
+    long nodeCounts[][] = profile.computeNodeCounts();
+    Assert.assertTrue(nodeCounts[0][0] >= numLines);
+    Assert.assertTrue(nodeCounts[1][0] <= nodeCounts[0][0]);
+    Assert.assertTrue(profile.toString().startsWith("Lines: " + numLines + " "));
+  }
+
+  /**
+   * A profiled parser counts every line, and parses each one as an unprofiled one does
+   */
+  @Test
+  public void testCounts() throws IOException {
+    for (List<String> lines: TestParserProgram.allInputs()) {
+      ParserProgram program = TestParserProgram.learnProgram(lines);
+      ParserProgram.Parser plain = program.newParser();
+      ParserProgram.Parser profiled = program.newParser();
+      ParseProfile profile = new ParseProfile(program);
+      profiled.setProfile(profile);
+      int numUnparsed = 0;
+      // Enough passes that some lines are timed
+      int numPasses = ParseProfile.TIMING_SAMPLE_INTERVAL / lines.size() + 2;
+      for (int pass = 0; pass < numPasses; pass++) {
+        for (String s: lines) {
+          String expected = TestParserProgram.describe(plain.parse(s));
+          Assert.assertEquals(expected, TestParserProgram.describe(profiled.parse(s)));
+          if (expected == null) {
+            numUnparsed++;
+          }
+        }
+      }
+      Assert.assertSame(profile, profiled.getProfile());
+      Assert.assertTrue(profile.numTimedLines > 0);
+      assertCounts(profile, numPasses * lines.size(), numUnparsed);
+      Assert.assertEquals(numPasses * lines.size(), profile.computeNodeCounts()[0][0]);
+    }
+  }
+
+  /**
+   * A monitor sums its parsers' profiles afresh each time it's asked; a parser given
+   * a new profile starts counting again from zero, and one given none stops counting.
+   */
+  @Test
+  public void testMonitorAndReset() throws IOException {
+    List<String> lines = TestParserProgram.allInputs().get(0);
+    ParserProgram program = TestParserProgram.learnProgram(lines);
+    int numUnparsed = countUnparsed(program, lines);
+
+    ParseMonitor monitor = new ParseMonitor(program, "input.txt");
+    ParserProgram.Parser p1 = program.newParser();
+    ParserProgram.Parser p2 = program.newParser();
+    p1.setProfile(monitor.newProfile());
+    p2.setProfile(monitor.newProfile());
+    for (String s: lines) {
+      p1.parse(s);
+      p2.encode(s);
+    }
+    p2.parse(lines.get(0));
+    assertCounts(monitor.getProfile(), 2 * lines.size() + 1, 2 * numUnparsed + countUnparsed(program, lines.subList(0, 1)));
+    Assert.assertEquals(2 * lines.size() + 1, monitor.getNumLines());
+    Assert.assertEquals(monitor.getNumLines(), monitor.getProfile().getNumLines());
+    Assert.assertEquals("input.txt", monitor.getInputName());
+
+    // A new profile starts from nothing
+    ParseProfile fresh = new ParseProfile(program);
+    assertCounts(fresh, 0, 0);
+    p1.setProfile(fresh);
+    for (String s: lines) {
+      p1.parse(s);
+    }
+    assertCounts(fresh, lines.size(), numUnparsed);
+
+    // No profile, no counting; the monitor's sum is as it was
+    p1.setProfile(null);
+    p2.setProfile(null);
+    for (String s: lines) {
+      p1.parse(s);
+      p2.parse(s);
+    }
+    assertCounts(fresh, lines.size(), numUnparsed);
+    Assert.assertEquals(2 * lines.size() + 1, monitor.getNumLines());
+  }
+
+  /**
+   * A profile only goes with its own program
+   */
+  @Test
+  public void testOtherProgram() throws IOException {
+    List<List<String>> inputs = TestParserProgram.allInputs();
+    ParserProgram program = TestParserProgram.learnProgram(inputs.get(0));
+    ParserProgram other = TestParserProgram.learnProgram(inputs.get(1));
+    try {
+      program.newParser().setProfile(new ParseProfile(other));
+      Assert.fail("Profiled a parser with another program's profile");
+    } catch (IllegalArgumentException iae) {
+    }
+    try {
+      new ParseProfile(program).add(new ParseProfile(other));
+      Assert.fail("Added another program's profile");
+    } catch (IllegalArgumentException iae) {
+    }
+  }
+}
@@ -0,0 +1,378 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.ArrayList;
+
+import org.apache.avro.generic.GenericContainer;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.EncoderFactory;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.cloudera.recordbreaker.test.FileFixtures;
+
+/**
+ * TestParserProgram checks the compiled parser against itself: a program read back from
+ * its serialized form, the memoized fallback search, and the direct Avro encoding must all
+ * agree with the naive parse of the original program.
+ *
+ * It lives in the learnstructure package so it can reach the fallback search directly.
+ *
+ * @see ParserProgram
+ */
+public class TestParserProgram {
+  static File sampleDir = new File(System.getProperty("test.samples.dir", "src/samples"), "textdata");
+  static String SAMPLE_FILES[] = {"angioplasty.txt", "commonlog.txt", "courselisting.txt",
+                                  "filelisting.txt", "flights.txt", "wikipediatopics.txt"};
+
+  /**
+   * Lines picked at random from two sample files.  The structure learned from them has
+   * unions inside arrays whose branches carry no data; see TestMixedInference.
+   */
+  static List<String> mixedLines(String file1, String file2, long seed, int numLines) throws IOException {
+    List<String> allLines = new ArrayList<String>();
+    allLines.addAll(FileFixtures.readLines(new File(sampleDir, file1)));
+    allLines.addAll(FileFixtures.readLines(new File(sampleDir, file2)));
+    Random r = new Random(seed);
+    List<String> lines = new ArrayList<String>();
+    for (int i = 0; i < numLines; i++) {
+      lines.add(allLines.get(r.nextInt(allLines.size())));
+    }
+    return lines;
+  }
+
+  /**
+   * Every set of lines the tests run over: each sample file, and a mixed file
+   */
+  static List<List<String>> allInputs() throws IOException {
+    List<List<String>> inputs = new ArrayList<List<String>>();
+    for (String fname: SAMPLE_FILES) {
+      inputs.add(FileFixtures.readLines(new File(sampleDir, fname)));
+    }
+    inputs.add(mixedLines("wikipediatopics.txt", "angioplasty.txt", 3, 200));
+    return inputs;
+  }
+
+  static ParserProgram learnProgram(List<String> lines) throws IOException {
+    return new ParserProgram(learnType(lines));
+  }
+
+  static InferredType learnType(List<String> lines) throws IOException {
+    List<List<Token.AbstractToken>> chunks = new ArrayList<List<Token.AbstractToken>>();
+    for (String s: lines) {
+      List<Token.AbstractToken> chunkToks = Tokenizer.tokenize(s);
+      if (chunkToks != null) {
+        chunks.add(chunkToks);
+      }
+    }
+    return TypeInference.infer(chunks);
+  }
+
+  static String describe(GenericContainer gct) {
+    return (gct == null) ? null : gct.toString();
+  }
+
+  /**
+   * The bytes GenericDatumWriter produces for the value
+   */
+  static byte[] genericEncode(ParserProgram program, GenericContainer gct) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    BinaryEncoder encoder = EncoderFactory.get().binaryEncoder(out, null);
+    new GenericDatumWriter<Object>(program.getAvroSchema()).write(gct, encoder);
+    encoder.flush();
+    return out.toByteArray();
+  }
+
+  /**
+   * A program read back from write() parses every line the same way, and writes
+   * itself out to the same bytes.
+   */
+  @Test
+  public void testWriteReadRoundTrip() throws IOException {
+    for (List<String> lines: allInputs()) {
+      ParserProgram program = learnProgram(lines);
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      program.write(new DataOutputStream(bytes));
+      ParserProgram readBack = ParserProgram.readProgram(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+
+      Assert.assertEquals(program.getAvroSchema(), readBack.getAvroSchema());
+      ByteArrayOutputStream bytes2 = new ByteArrayOutputStream();
+      readBack.write(new DataOutputStream(bytes2));
+      Assert.assertArrayEquals(bytes.toByteArray(), bytes2.toByteArray());
+
+      ParserProgram.Parser parser = program.newParser();
+      ParserProgram.Parser readParser = readBack.newParser();
+      int numParsed = 0;
+      for (String s: lines) {
+        GenericContainer gct = parser.parse(s);
+        Assert.assertEquals(s, describe(gct), describe(readParser.parse(s)));
+        if (gct != null) {
+          numParsed++;
+        }
+      }
+      if (lines.size() < 100) {
+        Assert.assertTrue(numParsed > 0);
+      }
+    }
+  }
+
+  /**
+   * The memoized fallback search finds the same value as the naive parse, whenever
+   * the naive parse succeeds.
+   */
+  @Test
+  public void testCompiledAgreesWithFallback() throws IOException {
+    for (List<String> lines: allInputs()) {
+      ParserProgram program = learnProgram(lines);
+      ParserProgram.Parser parser = program.newParser();
+      ParserProgram.Parser fallbackParser = program.newParser();
+      for (String s: lines) {
+        Assert.assertEquals(s, describe(parser.parse(s)), describe(fallbackParser.parseFallback(s)));
+      }
+    }
+  }
+
+  /**
+   * A copy of the program whose unions try every branch, whatever the next character
+   */
+  static ParserProgram withoutFirstSets(ParserProgram program) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    program.write(new DataOutputStream(bytes));
+    ParserProgram copy = ParserProgram.readProgram(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+    Arrays.fill(copy.firstNullable, true);
+    Arrays.fill(copy.laterNullable, true);
+    return copy;
+  }
+
+  /**
+   * Skipping the branches that can't start with the next character changes no result.
+   */
+  @Test
+  public void testFirstSetDispatchAgrees() throws IOException {
+    long totalSkips = 0;
+    for (List<String> lines: allInputs()) {
+      ParserProgram program = learnProgram(lines);
+      ParserProgram.Parser parser = program.newParser();
+      ParserProgram.Parser undispatchedParser = withoutFirstSets(program).newParser();
+      for (String s: lines) {
+        Assert.assertEquals(s, describe(undispatchedParser.parse(s)), describe(parser.parse(s)));
+      }
+      for (int i = 0; i < program.numNodes; i++) {
+        totalSkips += parser.unionSkips[i];
+        Assert.assertEquals(0, undispatchedParser.unionSkips[i]);
+        Assert.assertTrue(parser.unionBacktracks[i] <= undispatchedParser.unionBacktracks[i]);
+      }
+    }
+    Assert.assertTrue(totalSkips > 0);
+  }
+
+  /**
+   * Wherever a node can match a non-empty string, its FIRST set admits the
+   * character it starts with.
+   */
+  @Test
+  public void testFirstSetsSound() throws IOException {
+    for (List<String> lines: allInputs()) {
+      ParserProgram program = learnProgram(lines);
+      ParserProgram.Parser parser = withoutFirstSets(program).newParser();
+      for (String s: lines) {
+        @SuppressWarnings("unchecked")
+        List<ParserProgram.ParseAlternative> memo[][] = new List[program.numNodes][];
+        parser.memo = memo;
+        parser.memoStr = s;
+        for (int node = 0; node < program.numNodes; node++) {
+          for (int pos = 0; pos < s.length(); pos++) {
+            for (ParserProgram.ParseAlternative alt: parser.memoParse(node, pos)) {
+              if (alt.end > pos) {
+                Assert.assertTrue(program.nodeName[node] + " at " + pos + " of " + s,
+                                  ParserProgram.inFirstSet(program.firstChars, program.firstNullable, node, s, pos, s.length()));
+              }
+            }
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * encode() writes exactly the bytes GenericDatumWriter writes for the value parse()
+   * builds, whether the line was encoded directly or had to take the generic path.
+   */
+  @Test
+  public void testEncodeMatchesGenericDatumWriter() throws IOException {
+    int numDirect = 0;
+    for (List<String> lines: allInputs()) {
+      ParserProgram program = learnProgram(lines);
+      ParserProgram.Parser parser = program.newParser();
+      ParserProgram.Parser encodingParser = program.newParser();
+      for (String s: lines) {
+        GenericContainer gct = parser.parse(s);
+        ByteBuffer encoded = encodingParser.encode(s);
+        if (gct == null) {
+          Assert.assertNull(s, encoded);
+          continue;
+        }
+        Assert.assertNotNull(s, encoded);
+        byte direct[] = new byte[encoded.remaining()];
+        encoded.get(direct);
+        Assert.assertArrayEquals(s, genericEncode(program, gct), direct);
+        if (! encodingParser.irregular) {
+          numDirect++;
+        }
+      }
+    }
+    Assert.assertTrue(numDirect > 0);
+  }
+
+  /**
+   * Lines that can't be parsed into a value the schema accepts come back as null;
+   * whatever does come back can be written.
+   */
+  @Test
+  public void testMixedLinesWritable() throws IOException {
+    List<String> lines = mixedLines("wikipediatopics.txt", "angioplasty.txt", 3, 200);
+    ParserProgram program = learnProgram(lines);
+    ParserProgram.Parser parser = program.newParser();
+    ParserProgram.Parser encodingParser = program.newParser();
+    for (String s: lines) {
+      GenericContainer gct = parser.parse(s);
+      if (gct != null) {
+        genericEncode(program, gct);
+        Assert.assertNotNull(s, encodingParser.encode(s));
+      } else {
+        Assert.assertNull(s, encodingParser.encode(s));
+      }
+    }
+  }
+
+  static byte[] programBytes(ParserProgram program) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    program.write(new DataOutputStream(bytes));
+    return bytes.toByteArray();
+  }
+
+  static ParserProgram readBytes(byte bytes[]) throws IOException {
+    return ParserProgram.readProgram(new DataInputStream(new ByteArrayInputStream(bytes)));
+  }
+
+  /**
+   * Reading 'bytes' fails with an IOException, and nothing else
+   */
+  static void assertUnreadable(String msg, byte bytes[]) {
+    try {
+      readBytes(bytes);
+      Assert.fail(msg + ": read a bad program");
+    } catch (IOException iex) {
+    }
+  }
+
+  /**
+   * Every truncation of a program fails to read
+   */
+  @Test
+  public void testTruncatedProgram() throws IOException {
+    byte bytes[] = programBytes(learnProgram(allInputs().get(0)));
+    for (int len = 0; len < bytes.length; len++) {
+      assertUnreadable("Truncated to " + len, Arrays.copyOf(bytes, len));
+    }
+  }
+
+  /**
+   * A program whose nodes or instructions point outside its tables, or are out of
+   * place, fails to read with an IOException.
+   */
+  @Test
+  public void testCorruptProgram() throws IOException {
+    for (List<String> lines: allInputs()) {
+      byte bytes[] = programBytes(learnProgram(lines));
+      readBytes(bytes);
+
+      // Node table
+      ParserProgram p = readBytes(bytes);
+      p.numNodes--;
+      assertUnreadable("Missing last node", programBytes(p));
+      p = readBytes(bytes);
+      p.maxDepth++;
+      assertUnreadable("Wrong depth", programBytes(p));
+      p = readBytes(bytes);
+      p.nodeKind[0] = 17;
+      assertUnreadable("Unknown kind", programBytes(p));
+      for (int i = 0; i < p.numNodes; i++) {
+        p = readBytes(bytes);
+        if (p.nodeKind[i] == ParserProgram.BASE_NODE) {
+          p.nodeTokenClass[i] = -1;
+          assertUnreadable("Unknown token class at " + i, programBytes(p));
+          p = readBytes(bytes);
+          p.nodeChildren[i] = new int[] {i + 1};
+          assertUnreadable("Child of base node " + i, programBytes(p));
+        } else {
+          int children[] = p.nodeChildren[i];
+          children[children.length - 1] = p.numNodes;
+          assertUnreadable("Missing child of node " + i, programBytes(p));
+          p = readBytes(bytes);
+          p.nodeChildren[i][0] = -1;
+          assertUnreadable("Negative child of node " + i, programBytes(p));
+          p = readBytes(bytes);
+          p.nodeChildren[i] = new int[0];
+          assertUnreadable("No children for node " + i, programBytes(p));
+        }
+      }
+
+      // Code: every operand that names a node, destination or instruction
+      p = readBytes(bytes);
+      int codeLen = p.codeLen;
+      p.codeLen--;
+      assertUnreadable("Cut instruction", programBytes(p));
+      for (int pc = 0; pc < codeLen; pc += ParserProgram.instructionLength(p.code[pc])) {
+        p = readBytes(bytes);
+        p.code[pc] = 99;
+        assertUnreadable("Unknown instruction at " + pc, programBytes(p));
+        for (int arg = 1; arg < ParserProgram.instructionLength(readBytes(bytes).code[pc]); arg++) {
+          for (int bad: new int[] {-1000, 1000000}) {
+            p = readBytes(bytes);
+            p.code[pc + arg] = bad;
+            assertUnreadable("Operand " + arg + " at " + pc + " is " + bad, programBytes(p));
+          }
+        }
+      }
+
+      // Random overwrites of the code either read back or fail with an IOException
+      Random r = new Random(42);
+      int codeStart = bytes.length - 4 * codeLen;
+      for (int trial = 0; trial < 1000; trial++) {
+        byte corrupt[] = bytes.clone();
+        int at = codeStart + 4 * r.nextInt(codeLen);
+        ByteBuffer.wrap(corrupt).putInt(at, r.nextInt(codeLen + p.numNodes + 10) - 5);
+        try {
+          readBytes(corrupt);
+        } catch (IOException iex) {
+        }
+      }
+    }
+  }
+}
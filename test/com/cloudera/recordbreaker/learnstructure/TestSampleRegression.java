@@ -0,0 +1,317 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.Set;
+import java.util.List;
+import java.util.Random;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.ArrayList;
+
+import org.apache.avro.generic.GenericContainer;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.cloudera.recordbreaker.test.FileFixtures;
+
+/**
+ * TestSampleRegression checks what the tokenizer and the inference code make of each
+ * sample input against what they made of it before they were reworked.
+ *
+ * The expected output for each input is in golden/NAME.expected, in sections that each
+ * start with a "# section" line: the tokens of each line, the histograms and clusters
+ * of the lines' token types, the inferred schema, and the record parsed from each
+ * line.  It was written by the code as it stood before tokens kept offsets into their
+ * line, before inference worked on a TokenArena, and before histograms were kept in
+ * int arrays.  Generated names are numbered in the order they first appear in the
+ * schema, since the counters behind them are global to the JVM.  Type profiles, once
+ * strings and now int hashes, are checked against the strings they replaced.
+ *
+ * It lives in the learnstructure package so it can get at the tokens themselves.
+ */
+public class TestSampleRegression {
+  /**
+   * Each input's name, in the order of TestParserProgram.allInputs()
+   */
+  static List<String> inputNames() {
+    List<String> names = new ArrayList<String>();
+    for (String fname: TestParserProgram.SAMPLE_FILES) {
+      names.add(fname);
+    }
+    names.add("mixed");
+    return names;
+  }
+
+  /**
+   * The sections of an input's expected output, by name
+   */
+  static Map<String, List<String>> readExpected(String name) throws IOException {
+    InputStream in = TestSampleRegression.class.getResourceAsStream("golden/" + name + ".expected");
+    Assert.assertNotNull("No expected output for " + name, in);
+    Map<String, List<String>> sections = new HashMap<String, List<String>>();
+    List<String> section = null;
+    for (String s: FileFixtures.splitLines(new String(FileFixtures.readAll(in), "ISO-8859-1"))) {
+      if (s.startsWith("# ")) {
+        section = new ArrayList<String>();
+        sections.put(s.substring(2), section);
+      } else {
+        section.add(s);
+      }
+    }
+    return sections;
+  }
+
+  static void assertSection(String name, String section, List<String> expected, List<String> actual) {
+    for (int i = 0; i < Math.min(expected.size(), actual.size()); i++) {
+      Assert.assertEquals(name + ", " + section + " line " + i, expected.get(i), actual.get(i));
+    }
+    Assert.assertEquals(name + ", " + section + " lines", expected.size(), actual.size());
+  }
+
+  /**
+   * Each token's id and value
+   */
+  static String describeTokens(List<Token.AbstractToken> toks) {
+    if (toks == null) {
+      return "null";
+    }
+    StringBuffer buf = new StringBuffer();
+    for (Token.AbstractToken tok: toks) {
+      buf.append(tok.getId() + "=" + tok.get() + "  ");
+    }
+    return buf.toString();
+  }
+
+  static List<List<Token.AbstractToken>> tokenize(List<String> lines) throws IOException {
+    List<List<Token.AbstractToken>> chunks = new ArrayList<List<Token.AbstractToken>>();
+    for (String s: lines) {
+      List<Token.AbstractToken> toks = Tokenizer.tokenize(s);
+      if (toks != null) {
+        chunks.add(toks);
+      }
+    }
+    return chunks;
+  }
+
+  /**
+   * The inferred schema, and the record parsed from each line, with the generated
+   * names renumbered
+   */
+  static List<List<String>> inferAndParse(List<String> lines) throws IOException {
+    InferredType it = TestParserProgram.learnType(lines);
+    String schema = it.getAvroSchema().toString(true);
+    Map<String, String> newNames = TestLearnStructure.numberNames(schema);
+    List<String> records = new ArrayList<String>();
+    ParserProgram.Parser parser = it.compile().newParser();
+    for (String s: lines) {
+      GenericContainer gct = parser.parse(s);
+      records.add(TestLearnStructure.rename((gct == null) ? "null" : gct.toString(), newNames));
+    }
+    List<List<String>> result = new ArrayList<List<String>>();
+    result.add(FileFixtures.splitLines(TestLearnStructure.rename(schema, newNames)));
+    result.add(records);
+    return result;
+  }
+
+  /**
+   * Every line gives the same tokens, with the same values
+   */
+  @Test
+  public void testTokens() throws IOException {
+    List<String> names = inputNames();
+    List<List<String>> inputs = TestParserProgram.allInputs();
+    for (int i = 0; i < names.size(); i++) {
+      List<String> tokens = new ArrayList<String>();
+      for (String s: inputs.get(i)) {
+        tokens.add(describeTokens(Tokenizer.tokenize(s)));
+      }
+      assertSection(names.get(i), "tokens", readExpected(names.get(i)).get("tokens"), tokens);
+    }
+  }
+
+  /**
+   * Every line parses to the same record under the inferred structure
+   */
+  @Test
+  public void testRecords() throws IOException {
+    List<String> names = inputNames();
+    List<List<String>> inputs = TestParserProgram.allInputs();
+    for (int i = 0; i < names.size(); i++) {
+      assertSection(names.get(i), "records", readExpected(names.get(i)).get("records"), inferAndParse(inputs.get(i)).get(1));
+    }
+  }
+
+  /**
+   * Inference gives the same schema
+   */
+  @Test
+  public void testSchema() throws IOException {
+    List<String> names = inputNames();
+    List<List<String>> inputs = TestParserProgram.allInputs();
+    for (int i = 0; i < names.size(); i++) {
+      assertSection(names.get(i), "schema", readExpected(names.get(i)).get("schema"), inferAndParse(inputs.get(i)).get(0));
+    }
+  }
+
+  static void assertArenaMatches(String msg, TokenArena arena, int start, int end, List<Token.AbstractToken> toks) {
+    Assert.assertEquals(msg, toks.size(), end - start);
+    for (int i = 0; i < toks.size(); i++) {
+      Token.AbstractToken tok = toks.get(i);
+      int idx = start + i;
+      String tokMsg = msg + ", token " + i;
+      Assert.assertEquals(tokMsg, tok.getClassId(), arena.getClassId(idx));
+      Assert.assertEquals(tokMsg, tok.getId(), arena.getId(idx));
+      Assert.assertEquals(tokMsg, tok.getId(), arena.getTypeName(arena.getTypeId(idx)));
+      Assert.assertEquals(tokMsg, tok.getParameter(), arena.getParameter(idx));
+      Assert.assertEquals(tokMsg, tok.getSampleString(), arena.getSampleString(idx));
+      if (tok instanceof Token.MetaToken) {
+        assertArenaMatches(tokMsg, arena, arena.getMiddleStart(idx), arena.getMiddleEnd(idx), ((Token.MetaToken) tok).getMiddleChunk());
+      }
+    }
+  }
+
+  /**
+   * The arena holds what each token would have said about itself, inside META
+   * tokens too
+   */
+  @Test
+  public void testArena() throws IOException {
+    List<String> names = inputNames();
+    List<List<String>> inputs = TestParserProgram.allInputs();
+    for (int i = 0; i < names.size(); i++) {
+      List<List<Token.AbstractToken>> chunks = tokenize(inputs.get(i));
+      TokenArena arena = TokenArena.fromChunks(chunks);
+      TokenArena.ChunkList lines = arena.getChunks();
+      Assert.assertEquals(chunks.size(), lines.size());
+      for (int j = 0; j < chunks.size(); j++) {
+        assertArenaMatches(names.get(i) + ", line " + j, arena, lines.getStart(j), lines.getEnd(j), chunks.get(j));
+      }
+    }
+  }
+
+  static List<String> describeHistograms(List<Histogram> histograms) {
+    List<String> result = new ArrayList<String>();
+    for (Histogram h: histograms) {
+      result.add(h.toString());
+    }
+    return result;
+  }
+
+  /**
+   * The lines' histograms, and the clusters made of them, are the same
+   */
+  @Test
+  public void testHistograms() throws IOException {
+    List<String> names = inputNames();
+    List<List<String>> inputs = TestParserProgram.allInputs();
+    for (int i = 0; i < names.size(); i++) {
+      Map<String, List<String>> expected = readExpected(names.get(i));
+      List<List<Token.AbstractToken>> chunks = tokenize(inputs.get(i));
+      List<Histogram> histograms = Histogram.computeNormalizedHistograms(chunks);
+      assertSection(names.get(i), "histograms", expected.get("histograms"), describeHistograms(histograms));
+
+      List<String> clusters = new ArrayList<String>();
+      for (List<Histogram> cluster: Histogram.clusterHistograms(histograms)) {
+        clusters.add("cluster");
+        clusters.addAll(describeHistograms(cluster));
+      }
+      assertSection(names.get(i), "clusters", expected.get("clusters"), clusters);
+    }
+  }
+
+  /**
+   * The old profile of a chunk against a histogram cluster: each cluster token's id,
+   * with the runs of other tokens' ids between them grouped into fields
+   */
+  static String clusterProfile(List<Token.AbstractToken> chunk, Set<String> clusterIds) {
+    StringBuffer profile = new StringBuffer();
+    StringBuffer field = new StringBuffer("(");
+    for (Token.AbstractToken tok: chunk) {
+      if (clusterIds.contains(tok.getId())) {
+        profile.append(tok.getId() + "_" + field + ")_(" + tok.getId() + ")_");
+        field = new StringBuffer("(");
+      } else {
+        field.append(tok.getId() + ",");
+      }
+    }
+    return profile.append(field + ")").toString();
+  }
+
+  /**
+   * The old profile of a chunk's first 'numTokens' tokens
+   */
+  static String prefixProfile(List<Token.AbstractToken> chunk, int numTokens) {
+    StringBuffer profile = new StringBuffer();
+    for (int i = 0; i < numTokens; i++) {
+      profile.append((i < chunk.size()) ? chunk.get(i).getId() + "_" : "<none>_");
+    }
+    return profile.toString();
+  }
+
+  /**
+   * Type profiles hash to the String.hashCode() of the profile strings they replace,
+   * so maps keyed on them iterate, and build union branches, in the same order
+   */
+  @Test
+  public void testProfileHashes() throws IOException {
+    Random r = new Random(23);
+    for (List<String> lines: TestParserProgram.allInputs()) {
+      List<List<Token.AbstractToken>> chunks = tokenize(lines);
+      TokenArena arena = TokenArena.fromChunks(chunks);
+      TokenArena.ChunkList arenaLines = arena.getChunks();
+      int numTypes = arena.getNumTypes();
+
+      // Clusters of each single type, and some random ones
+      List<boolean[]> clusters = new ArrayList<boolean[]>();
+      for (int t = 0; t < numTypes; t++) {
+        boolean clusterTypes[] = new boolean[numTypes];
+        clusterTypes[t] = true;
+        clusters.add(clusterTypes);
+      }
+      for (int k = 0; k < 20; k++) {
+        boolean clusterTypes[] = new boolean[numTypes];
+        for (int t = 0; t < numTypes; t++) {
+          clusterTypes[t] = r.nextBoolean();
+        }
+        clusters.add(clusterTypes);
+      }
+
+      for (int j = 0; j < chunks.size(); j++) {
+        List<Token.AbstractToken> chunk = chunks.get(j);
+        int start = arenaLines.getStart(j);
+        int end = arenaLines.getEnd(j);
+        for (int numTokens = 1; numTokens <= chunk.size() + 2; numTokens++) {
+          String profile = prefixProfile(chunk, numTokens);
+          Assert.assertEquals(profile, profile.hashCode(), TypeInference.prefixProfileHash(arena, start, end, numTokens));
+        }
+        for (boolean clusterTypes[]: clusters) {
+          Set<String> clusterIds = new HashSet<String>();
+          for (int t = 0; t < numTypes; t++) {
+            if (clusterTypes[t]) {
+              clusterIds.add(arena.getTypeName(t));
+            }
+          }
+          String profile = clusterProfile(chunk, clusterIds);
+          Assert.assertEquals(profile, profile.hashCode(), TypeInference.clusterProfileHash(arena, start, end, clusterTypes));
+        }
+      }
+    }
+  }
+}
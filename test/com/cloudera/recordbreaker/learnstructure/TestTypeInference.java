@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.List;
+import java.util.Random;
+import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collections;
+
+import org.apache.avro.generic.GenericContainer;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * TestTypeInference checks that grouping identical lines before inference changes
+ * nothing but the work done: inferring over every line on its own gives the same
+ * structure, with the same sample values, and the same parses.
+ *
+ * It lives in the learnstructure package so it can turn the grouping off.
+ *
+ * @see TokenArena#groupIdenticalLines(int)
+ */
+public class TestTypeInference {
+  /**
+   * Each line repeated up to 'maxCopies' times, and the copies shuffled, so that
+   * identical lines end up far apart
+   */
+  static List<String> repeatLines(List<String> lines, Random r, int maxCopies) {
+    List<String> result = new ArrayList<String>();
+    for (String s: lines) {
+      for (int i = r.nextInt(maxCopies) + 1; i > 0; i--) {
+        result.add(s);
+      }
+    }
+    Collections.shuffle(result, r);
+    return result;
+  }
+
+  /**
+   * Each node of the tree in pre-order, with its sample values, and a number for
+   * each node's generated name in 'newNames'.  This leaves out the Avro schema, which
+   * can't be written out when an array's body carries no data.
+   */
+  static void describeTree(InferredType it, List<String> desc, Map<String, String> newNames) {
+    newNames.put(it.getName(), "n" + newNames.size());
+    List<InferredType> children = new ArrayList<InferredType>();
+    if (it instanceof BaseType) {
+      desc.add(it.toString() + it.getDocString());
+    } else if (it instanceof StructType) {
+      desc.add("struct");
+      children = ((StructType) it).structTypes;
+    } else if (it instanceof ArrayType) {
+      desc.add("array");
+      children.add(((ArrayType) it).bodyType);
+    } else {
+      desc.add("union");
+      children = ((UnionType) it).unionTypes;
+    }
+    for (InferredType child: children) {
+      describeTree(child, desc, newNames);
+    }
+  }
+
+  /**
+   * The tree inferred from 'lines', with or without grouping, and the record
+   * parsed from each line, with the generated names renumbered
+   */
+  static List<String> inferAndParse(List<String> lines, boolean groupLines) throws IOException {
+    InferredType it = TypeInference.infer(TokenArena.fromChunks(TestSampleRegression.tokenize(lines)), null, groupLines);
+    List<String> result = new ArrayList<String>();
+    Map<String, String> newNames = new HashMap<String, String>();
+    describeTree(it, result, newNames);
+    ParserProgram.Parser parser = it.compile().newParser();
+    for (String s: lines) {
+      GenericContainer gct = parser.parse(s);
+      result.add(TestLearnStructure.rename((gct == null) ? "null" : gct.toString(), newNames));
+    }
+    return result;
+  }
+
+  /**
+   * Grouped and ungrouped inference agree on the sample inputs, as they are and
+   * with their lines repeated
+   */
+  @Test(timeout=60000)
+  public void testGroupedLines() throws IOException {
+    Random r = new Random(31);
+    for (List<String> sample: TestParserProgram.allInputs()) {
+      List<List<String>> inputs = new ArrayList<List<String>>();
+      inputs.add(sample);
+      inputs.add(repeatLines(sample, r, 5));
+      // Mostly one line, which ends up a single heavy group
+      List<String> oneLine = repeatLines(sample.subList(0, 1), r, 1);
+      for (int i = 0; i < 50; i++) {
+        oneLine.add(sample.get(0));
+      }
+      oneLine.addAll(sample.subList(1, Math.min(sample.size(), 10)));
+      inputs.add(oneLine);
+
+      for (List<String> lines: inputs) {
+        TokenArena arena = TokenArena.fromChunks(TestSampleRegression.tokenize(lines));
+        Assert.assertTrue(arena.groupIdenticalLines(TypeInference.MAX_SAMPLES).size() <= arena.getChunks().size());
+        List<String> expected = inferAndParse(lines, false);
+        List<String> actual = inferAndParse(lines, true);
+        TestSampleRegression.assertSection(lines.get(0), "grouped", expected, actual);
+      }
+    }
+  }
+}
@@ -23,6 +23,10 @@ import java.util.Iterator;
 import org.apache.avro.file.DataFileReader;
 import org.apache.avro.generic.GenericDatumReader;
 
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.conf.Configuration;
+
 import org.junit.rules.TemporaryFolder;
 import com.cloudera.recordbreaker.learnstructure.LearnStructure;
 
@@ -53,7 +57,10 @@ public abstract class InferenceTest {
       LearnStructure ls = new LearnStructure();
       try {
         // Infer structure
-        ls.inferRecordFormat(inputData, tmpSingletonDir, true);
+        FileSystem localFS = FileSystem.getLocal(new Configuration());
+        ls.inferRecordFormat(localFS, new Path(inputData.getCanonicalPath()), localFS,
+                             new Path(schemaFile.getCanonicalPath()), null, null,
+                             new Path(avroFile.getCanonicalPath()), false, -1);
 
         // Test the inferred structure
         // First, load in the avro file and see how many records there are.
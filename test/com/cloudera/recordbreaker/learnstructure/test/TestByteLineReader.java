@@ -0,0 +1,214 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.FileOutputStream;
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.io.ByteArrayInputStream;
+import java.util.List;
+import java.util.Random;
+import java.util.ArrayList;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.conf.Configuration;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.cloudera.recordbreaker.learnstructure.ByteLineReader;
+
+/**
+ * TestByteLineReader checks that ByteLineReader splits lines exactly as
+ * BufferedReader.readLine() does, wherever the buffer refills happen to fall.
+ *
+ * @see ByteLineReader
+ */
+public class TestByteLineReader {
+  @Rule
+  public TemporaryFolder tmpOutDir = new TemporaryFolder();
+
+  static String TERMINATORS[] = {"\n", "\r", "\r\n"};
+
+  /**
+   * Build a random ASCII text with a random mix of terminators, including
+   * empty lines and runs of terminators such as "\r\r\n" and "\n\r".
+   */
+  static String randomText(Random r, int numLines, boolean finalTerminator) {
+    StringBuffer sb = new StringBuffer();
+    for (int i = 0; i < numLines; i++) {
+      int len = r.nextInt(4) == 0 ? 0 : r.nextInt(12);
+      for (int j = 0; j < len; j++) {
+        sb.append((char) ('!' + r.nextInt(94)));
+      }
+      if (i < numLines - 1 || finalTerminator) {
+        sb.append(TERMINATORS[r.nextInt(TERMINATORS.length)]);
+      }
+    }
+    return sb.toString();
+  }
+
+  static List<String> expectedLines(String text) throws IOException {
+    List<String> lines = new ArrayList<String>();
+    BufferedReader in = new BufferedReader(new StringReader(text));
+    try {
+      String s;
+      while ((s = in.readLine()) != null) {
+        lines.add(s);
+      }
+    } finally {
+      in.close();
+    }
+    return lines;
+  }
+
+  static List<String> readAll(ByteLineReader in) throws IOException {
+    List<String> lines = new ArrayList<String>();
+    try {
+      CharSequence s;
+      while ((s = in.readLine()) != null) {
+        lines.add(s.toString());
+      }
+    } finally {
+      in.close();
+    }
+    return lines;
+  }
+
+  /**
+   * Every buffer size from 1 byte up puts refills on every possible
+   * boundary, including between the '\r' and '\n' of a "\r\n".
+   */
+  @Test
+  public void testTerminatorsAcrossRefills() throws IOException {
+    Random r = new Random(0);
+    for (int trial = 0; trial < 200; trial++) {
+      String text = randomText(r, 1 + r.nextInt(30), r.nextBoolean());
+      byte bytes[] = text.getBytes("ISO-8859-1");
+      List<String> expected = expectedLines(text);
+      for (int bufSize = 1; bufSize <= 9; bufSize++) {
+        ByteLineReader in = new ByteLineReader(new ByteArrayInputStream(bytes), 0, bufSize);
+        Assert.assertEquals("Buffer size " + bufSize + " on " + escape(text), expected, readAll(in));
+      }
+    }
+  }
+
+  /**
+   * A "\r\n" whose '\n' arrives only with the next refill is still a single terminator.
+   */
+  @Test
+  public void testSplitCRLF() throws IOException {
+    byte bytes[] = "ab\r\ncd\r\n\r\nef".getBytes("ISO-8859-1");
+    ByteLineReader in = new ByteLineReader(new ByteArrayInputStream(bytes), 0, 3);
+    Assert.assertEquals("ab", in.readLine().toString());
+    Assert.assertEquals(4, in.getPosition());
+    Assert.assertEquals("cd", in.readLine().toString());
+    Assert.assertEquals("", in.readLine().toString());
+    Assert.assertEquals("ef", in.readLine().toString());
+    Assert.assertNull(in.readLine());
+    Assert.assertEquals(bytes.length, in.getPosition());
+    in.close();
+  }
+
+  /**
+   * Positions count from the offset the stream was opened at, and track the
+   * start of each line including its terminator.
+   */
+  @Test
+  public void testPositions() throws IOException {
+    Random r = new Random(1);
+    for (int trial = 0; trial < 50; trial++) {
+      String text = randomText(r, 1 + r.nextInt(20), true);
+      byte bytes[] = text.getBytes("ISO-8859-1");
+      ByteLineReader in = new ByteLineReader(new ByteArrayInputStream(bytes), 1000, 1 + r.nextInt(8));
+      long expectedPos = 1000;
+      CharSequence s;
+      while ((s = in.readLine()) != null) {
+        expectedPos += s.length();
+        if (bytes[(int) (expectedPos - 1000)] == '\r' && expectedPos - 1000 + 1 < bytes.length && bytes[(int) (expectedPos - 1000 + 1)] == '\n') {
+          expectedPos += 2;
+        } else {
+          expectedPos += 1;
+        }
+        Assert.assertEquals(expectedPos, in.getPosition());
+      }
+      Assert.assertEquals(1000 + bytes.length, in.getPosition());
+      in.close();
+    }
+  }
+
+  /**
+   * Lines handed out earlier stay readable after later refills.
+   */
+  @Test
+  public void testViewsSurviveRefill() throws IOException {
+    Random r = new Random(2);
+    String text = randomText(r, 100, true);
+    ByteLineReader in = new ByteLineReader(new ByteArrayInputStream(text.getBytes("ISO-8859-1")), 0, 5);
+    List<CharSequence> views = new ArrayList<CharSequence>();
+    CharSequence s;
+    while ((s = in.readLine()) != null) {
+      views.add(s);
+    }
+    in.close();
+    List<String> expected = expectedLines(text);
+    Assert.assertEquals(expected.size(), views.size());
+    for (int i = 0; i < views.size(); i++) {
+      Assert.assertEquals(expected.get(i), views.get(i).toString());
+    }
+  }
+
+  /**
+   * Non-ASCII lines are decoded with the platform charset, as InputStreamReader would.
+   */
+  @Test
+  public void testNonAscii() throws IOException {
+    String text = "caf\u00e9\r\nna\u00efve\rplain\n";
+    byte bytes[] = text.getBytes();
+    List<String> expected = expectedLines(new String(bytes));
+    for (int bufSize = 1; bufSize <= 6; bufSize++) {
+      ByteLineReader in = new ByteLineReader(new ByteArrayInputStream(bytes), 0, bufSize);
+      Assert.assertEquals(expected, readAll(in));
+    }
+  }
+
+  /**
+   * The memory-mapped path agrees with BufferedReader on a local file.
+   */
+  @Test
+  public void testMappedLocalFile() throws IOException {
+    Random r = new Random(3);
+    String text = randomText(r, 500, false);
+    File f = new File(tmpOutDir.getRoot(), "lines.txt");
+    FileOutputStream out = new FileOutputStream(f);
+    try {
+      out.write(text.getBytes("ISO-8859-1"));
+    } finally {
+      out.close();
+    }
+    FileSystem localFS = FileSystem.getLocal(new Configuration());
+    ByteLineReader in = new ByteLineReader(localFS, new Path(f.getCanonicalPath()));
+    Assert.assertEquals(expectedLines(text), readAll(in));
+  }
+
+  static String escape(String s) {
+    return s.replace("\r", "\\r").replace("\n", "\\n");
+  }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure.test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.ArrayList;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.compress.GzipCodec;
+import org.apache.hadoop.io.compress.BZip2Codec;
+import org.apache.hadoop.io.compress.CompressionCodec;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.cloudera.recordbreaker.learnstructure.LineSampler;
+import com.cloudera.recordbreaker.learnstructure.ByteLineReader;
+import com.cloudera.recordbreaker.learnstructure.CompressedInput;
+import com.cloudera.recordbreaker.test.FileFixtures;
+
+/**
+ * TestCompressedInput checks that gzip'd and bzip2'd files are recognized by their
+ * first bytes whatever they're called, and that everything that reads lines sees
+ * the decompressed text.
+ *
+ * @see CompressedInput
+ */
+public class TestCompressedInput {
+  @Rule
+  public TemporaryFolder tmpOutDir = new TemporaryFolder();
+
+  static List<String> asStrings(List<CharSequence> lines) {
+    List<String> strs = new ArrayList<String>();
+    for (CharSequence s: lines) {
+      strs.add(s.toString());
+    }
+    return strs;
+  }
+
+  void checkCompressed(FileSystem fs, Path p, Class<? extends CompressionCodec> codecClass, String text) throws IOException {
+    CompressionCodec codec = CompressedInput.getCodec(fs, p);
+    Assert.assertNotNull(p.getName(), codec);
+    Assert.assertEquals(codecClass, codec.getClass());
+    Assert.assertTrue(CompressedInput.isCompressed(fs, p));
+
+    CompressionCodec codecOut[] = new CompressionCodec[1];
+    Assert.assertArrayEquals(text.getBytes("ISO-8859-1"), FileFixtures.readAll(CompressedInput.open(fs, p, codecOut)));
+    Assert.assertEquals(codecClass, codecOut[0].getClass());
+  }
+
+  /**
+   * gzip and bzip2 files are found by their magic numbers, with or without an
+   * extension, and with a misleading one.
+   */
+  @Test
+  public void testSniffCompression() throws IOException {
+    FileSystem localFS = FileSystem.getLocal(new Configuration());
+    String text = FileFixtures.makeText(1000);
+    byte bytes[] = text.getBytes("ISO-8859-1");
+    for (String name: new String[] {"data", "data.txt", "data.bz2"}) {
+      checkCompressed(localFS, FileFixtures.writeFile(tmpOutDir.getRoot(), name, FileFixtures.gzip(bytes)), GzipCodec.class, text);
+    }
+    for (String name: new String[] {"bzdata", "bzdata.txt", "bzdata.gz"}) {
+      checkCompressed(localFS, FileFixtures.writeFile(tmpOutDir.getRoot(), name, FileFixtures.bzip2(bytes)), BZip2Codec.class, text);
+    }
+  }
+
+  /**
+   * Plain files are read as they are, even when named as if compressed, and even
+   * when shorter than the magic numbers.
+   */
+  @Test
+  public void testPlainFiles() throws IOException {
+    FileSystem localFS = FileSystem.getLocal(new Configuration());
+    for (String text: new String[] {FileFixtures.makeText(10), "B", "BZ", "", "\u001f"}) {
+      for (String name: new String[] {"plain", "plain.gz", "plain.bz2"}) {
+        Path p = FileFixtures.writeFile(tmpOutDir.getRoot(), name, text.getBytes("ISO-8859-1"));
+        Assert.assertNull(CompressedInput.getCodec(localFS, p));
+        Assert.assertFalse(CompressedInput.isCompressed(localFS, p));
+        Assert.assertArrayEquals(text.getBytes("ISO-8859-1"), FileFixtures.readAll(CompressedInput.open(localFS, p)));
+      }
+    }
+  }
+
+  /**
+   * ByteLineReader decompresses a local file rather than mapping it, and counts
+   * positions in decompressed bytes.
+   */
+  @Test
+  public void testByteLineReader() throws IOException {
+    FileSystem localFS = FileSystem.getLocal(new Configuration());
+    String text = FileFixtures.makeText(5000);
+    byte bytes[] = text.getBytes("ISO-8859-1");
+    Path gzFile = FileFixtures.writeFile(tmpOutDir.getRoot(), "lines", FileFixtures.gzip(bytes));
+    Path bzFile = FileFixtures.writeFile(tmpOutDir.getRoot(), "bzlines", FileFixtures.bzip2(bytes));
+    for (Path p: new Path[] {gzFile, bzFile}) {
+      ByteLineReader in = new ByteLineReader(localFS, p);
+      List<String> lines = new ArrayList<String>();
+      try {
+        CharSequence s;
+        while ((s = in.readLine()) != null) {
+          lines.add(s.toString());
+        }
+        Assert.assertEquals(bytes.length, in.getPosition());
+      } finally {
+        in.close();
+      }
+      Assert.assertEquals(FileFixtures.splitLines(text), lines);
+    }
+  }
+
+  /**
+   * A compressed file can't be split into byte ranges, so its stratified sample
+   * is the reservoir sample of its lines.
+   */
+  @Test
+  public void testStratifiedSampleFallsBack() throws IOException {
+    FileSystem localFS = FileSystem.getLocal(new Configuration());
+    byte bytes[] = FileFixtures.makeText(2000).getBytes("ISO-8859-1");
+    Path plain = FileFixtures.writeFile(tmpOutDir.getRoot(), "sample.txt", bytes);
+    Path compressed = FileFixtures.writeFile(tmpOutDir.getRoot(), "sample", FileFixtures.gzip(bytes));
+    List<String> expected = asStrings(LineSampler.reservoirSample(localFS, plain, 100));
+    Assert.assertEquals(100, expected.size());
+    Assert.assertEquals(expected, asStrings(LineSampler.reservoirSample(localFS, compressed, 100)));
+    Assert.assertEquals(expected, asStrings(LineSampler.stratifiedSample(localFS, compressed, 10, 100)));
+  }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.FileOutputStream;
+import java.util.List;
+import java.util.Random;
+import java.util.ArrayList;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.conf.Configuration;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.cloudera.recordbreaker.learnstructure.LineSampler;
+
+/**
+ * TestLineSampler checks that stratified samples take each line from the byte
+ * range its first byte falls in, and that reservoir samples come back in file order.
+ *
+ * @see LineSampler
+ */
+public class TestLineSampler {
+  @Rule
+  public TemporaryFolder tmpOutDir = new TemporaryFolder();
+
+  /**
+   * The lines of 'bytes', split as BufferedReader.readLine() would split them.
+   */
+  static List<String> splitLines(byte bytes[], List<Long> lineStarts) {
+    List<String> lines = new ArrayList<String>();
+    int start = 0;
+    int i = 0;
+    while (i < bytes.length) {
+      if (bytes[i] == '\n' || bytes[i] == '\r') {
+        lines.add(new String(bytes, start, i - start));
+        lineStarts.add((long) start);
+        i += (bytes[i] == '\r' && i + 1 < bytes.length && bytes[i + 1] == '\n') ? 2 : 1;
+        start = i;
+      } else {
+        i++;
+      }
+    }
+    if (start < bytes.length) {
+      lines.add(new String(bytes, start, bytes.length - start));
+      lineStarts.add((long) start);
+    }
+    return lines;
+  }
+
+  /**
+   * What stratifiedSample() should return: for each byte range, the first lines
+   * that start inside it, up to the range's quota.
+   */
+  static List<String> expectedStratified(byte bytes[], int numStrata, int sampleSize) {
+    List<Long> lineStarts = new ArrayList<Long>();
+    List<String> lines = splitLines(bytes, lineStarts);
+    if (lines.size() <= sampleSize) {
+      return lines;
+    }
+    numStrata = Math.max(1, Math.min(numStrata, sampleSize));
+    long fileSize = bytes.length;
+    List<String> sample = new ArrayList<String>();
+    for (int i = 0; i < numStrata; i++) {
+      long stratumStart = fileSize * i / numStrata;
+      long stratumEnd = fileSize * (i + 1) / numStrata;
+      int quota = (int) ((long) sampleSize * (i + 1) / numStrata - (long) sampleSize * i / numStrata);
+      int taken = 0;
+      for (int j = 0; j < lines.size() && taken < quota; j++) {
+        if (lineStarts.get(j) >= stratumStart && lineStarts.get(j) < stratumEnd) {
+          sample.add(lines.get(j));
+          taken++;
+        }
+      }
+    }
+    return sample;
+  }
+
+  Path writeFile(String name, byte bytes[]) throws IOException {
+    File f = new File(tmpOutDir.getRoot(), name);
+    FileOutputStream out = new FileOutputStream(f);
+    try {
+      out.write(bytes);
+    } finally {
+      out.close();
+    }
+    return new Path(f.getCanonicalPath());
+  }
+
+  static List<String> asStrings(List<CharSequence> lines) {
+    List<String> strs = new ArrayList<String>();
+    for (CharSequence s: lines) {
+      strs.add(s.toString());
+    }
+    return strs;
+  }
+
+  void checkStratified(String text, int numStrata, int sampleSize) throws IOException {
+    byte bytes[] = text.getBytes("ISO-8859-1");
+    FileSystem localFS = FileSystem.getLocal(new Configuration());
+    Path p = writeFile("stratified.txt", bytes);
+    Assert.assertEquals(expectedStratified(bytes, numStrata, sampleSize),
+                        asStrings(LineSampler.stratifiedSample(localFS, p, numStrata, sampleSize)));
+  }
+
+  /**
+   * Range boundaries that fall just after a '\n', so the preceding byte is a whole terminator.
+   */
+  @Test
+  public void testBoundaryAfterNewline() throws IOException {
+    StringBuffer sb = new StringBuffer();
+    for (int i = 0; i < 16; i++) {
+      sb.append("l" + Integer.toHexString(i) + "x\n");
+    }
+    // 64 bytes, 4 strata: boundaries at 16, 32 and 48 are all line starts
+    checkStratified(sb.toString(), 4, 8);
+    checkStratified(sb.toString(), 4, 4);
+  }
+
+  /**
+   * Range boundaries that fall on the '\r' and on the '\n' of a "\r\n".
+   */
+  @Test
+  public void testBoundaryInsideCRLF() throws IOException {
+    StringBuffer sb = new StringBuffer();
+    for (int i = 0; i < 16; i++) {
+      sb.append("ab" + Integer.toHexString(i) + "\r\n");
+    }
+    // 80 bytes of 5-byte lines: 5 strata put boundaries at 16, 32, 48 (a '\r') and 64 (a '\n')
+    checkStratified(sb.toString(), 5, 10);
+    // 4 strata put boundaries at 20, 40 and 60, which are line starts
+    checkStratified(sb.toString(), 4, 8);
+    // 4-byte lines: across these strata counts, boundaries land on every byte of a line
+    for (int numStrata = 2; numStrata <= 12; numStrata++) {
+      checkStratified("ab\r\ncd\r\nef\r\ngh\r\nij\r\nkl\r\n", numStrata, 4);
+    }
+  }
+
+  /**
+   * Lone '\r' terminators at range boundaries.
+   */
+  @Test
+  public void testBoundaryOnCarriageReturn() throws IOException {
+    StringBuffer sb = new StringBuffer();
+    for (int i = 0; i < 20; i++) {
+      sb.append("q" + (i % 10) + "\r");
+    }
+    // 60 bytes: every multiple of 3 starts a line, so try strata that land on and off those
+    for (int numStrata = 2; numStrata <= 10; numStrata++) {
+      checkStratified(sb.toString(), numStrata, 10);
+    }
+  }
+
+  /**
+   * Random texts with random terminators, against the reference sampler above.
+   */
+  @Test
+  public void testRandomStratified() throws IOException {
+    Random r = new Random(0);
+    String terminators[] = {"\n", "\r", "\r\n"};
+    for (int trial = 0; trial < 100; trial++) {
+      StringBuffer sb = new StringBuffer();
+      int numLines = 1 + r.nextInt(60);
+      for (int i = 0; i < numLines; i++) {
+        int len = r.nextInt(5) == 0 ? 0 : r.nextInt(8);
+        for (int j = 0; j < len; j++) {
+          sb.append((char) ('a' + r.nextInt(26)));
+        }
+        if (i < numLines - 1 || r.nextBoolean()) {
+          sb.append(terminators[r.nextInt(terminators.length)]);
+        }
+      }
+      checkStratified(sb.toString(), 1 + r.nextInt(12), 1 + r.nextInt(20));
+    }
+  }
+
+  /**
+   * A file with no more lines than the sample size comes back whole.
+   */
+  @Test
+  public void testSmallFileWhole() throws IOException {
+    checkStratified("a\nb\r\nc\rd", 16, 4);
+    checkStratified("", 16, 4);
+  }
+
+  /**
+   * A reservoir sample is a subset of the file's lines, in file order.
+   */
+  @Test
+  public void testReservoirSample() throws IOException {
+    StringBuffer sb = new StringBuffer();
+    for (int i = 0; i < 1000; i++) {
+      sb.append("line" + i + "\n");
+    }
+    FileSystem localFS = FileSystem.getLocal(new Configuration());
+    Path p = writeFile("reservoir.txt", sb.toString().getBytes("ISO-8859-1"));
+
+    List<String> sample = asStrings(LineSampler.reservoirSample(localFS, p, 50));
+    Assert.assertEquals(50, sample.size());
+    int prev = -1;
+    for (String s: sample) {
+      int lineno = Integer.parseInt(s.substring("line".length()));
+      Assert.assertTrue(lineno > prev);
+      prev = lineno;
+    }
+    Assert.assertEquals(sample, asStrings(LineSampler.reservoirSample(localFS, p, 50)));
+
+    List<String> all = asStrings(LineSampler.reservoirSample(localFS, p, 2000));
+    Assert.assertEquals(1000, all.size());
+    Assert.assertEquals("line0", all.get(0));
+    Assert.assertEquals("line999", all.get(999));
+  }
+}
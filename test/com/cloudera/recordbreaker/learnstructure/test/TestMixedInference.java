@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.FileWriter;
+import java.io.BufferedWriter;
+import java.util.List;
+import java.util.Random;
+import java.util.Iterator;
+import java.util.ArrayList;
+
+import org.apache.avro.file.DataFileReader;
+import org.apache.avro.generic.GenericDatumReader;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.conf.Configuration;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.cloudera.recordbreaker.learnstructure.LearnStructure;
+import com.cloudera.recordbreaker.test.FileFixtures;
+
+/**
+ * TestMixedInference runs LearnStructure over a file that interleaves two unrelated
+ * formats, 'wikipediatopics.txt' and 'angioplasty.txt'.  The structure learned from such
+ * a mix has arrays whose elements are unions of data-less tokens and data-carrying ones.
+ * Most lines can't be parsed, and those that can't must be reported as unparsed rather
+ * than turned into records the schema rejects.
+ *
+ * @see InferenceTest
+ */
+public class TestMixedInference {
+  static int NUM_MIXED_LINES = 200;
+  static long MIX_SEED = 3;
+
+  @Rule
+  public TemporaryFolder tmpOutDir = new TemporaryFolder();
+
+  /**
+   * Write NUM_MIXED_LINES lines, each picked at random from all the lines of both files
+   */
+  static File writeMixedFile(File dir) throws IOException {
+    List<String> allLines = new ArrayList<String>();
+    allLines.addAll(FileFixtures.readLines(new File(InferenceTest.sampleDir, "wikipediatopics.txt")));
+    allLines.addAll(FileFixtures.readLines(new File(InferenceTest.sampleDir, "angioplasty.txt")));
+
+    File mixed = new File(dir, "mixed.txt");
+    Random r = new Random(MIX_SEED);
+    BufferedWriter out = new BufferedWriter(new FileWriter(mixed));
+    try {
+      for (int i = 0; i < NUM_MIXED_LINES; i++) {
+        out.write(allLines.get(r.nextInt(allLines.size())));
+        out.newLine();
+      }
+    } finally {
+      out.close();
+    }
+    return mixed;
+  }
+
+  @Test(timeout=60000)
+  public void testMixedInference() throws IOException {
+    File workingDir = tmpOutDir.newFolder("workingdir");
+    File mixed = writeMixedFile(workingDir);
+    File avroFile = new File(workingDir, LearnStructure.DATA_FILENAME);
+    File schemaFile = new File(workingDir, LearnStructure.SCHEMA_FILENAME);
+
+    FileSystem localFS = FileSystem.getLocal(new Configuration());
+    LearnStructure ls = new LearnStructure();
+    ls.inferRecordFormat(localFS, new Path(mixed.getCanonicalPath()), localFS,
+                         new Path(schemaFile.getCanonicalPath()), null, null,
+                         new Path(avroFile.getCanonicalPath()), false, -1);
+
+    // Whatever was written must read back
+    int avroCount = 0;
+    DataFileReader in = new DataFileReader(avroFile, new GenericDatumReader());
+    try {
+      Iterator it = in.iterator();
+      while (it.hasNext()) {
+        Assert.assertNotNull(it.next());
+        avroCount++;
+      }
+    } finally {
+      in.close();
+    }
+    Assert.assertTrue(avroCount <= NUM_MIXED_LINES);
+  }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2011, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.FileReader;
+import java.io.FileOutputStream;
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.compress.BZip2Codec;
+
+/**
+ * FileFixtures holds the helpers that tests in several packages use to make
+ * input files and read back what they hold.  (It isn't named Test* so that
+ * the test target doesn't try to run it.)
+ */
+public class FileFixtures {
+  /**
+   * 'numLines' distinct lines, each ended by '\n'
+   */
+  public static String makeText(int numLines) {
+    StringBuffer sb = new StringBuffer();
+    for (int i = 0; i < numLines; i++) {
+      sb.append("line " + i + " of the file, value " + (i * 7 % 13) + "\n");
+    }
+    return sb.toString();
+  }
+
+  /**
+   * The first 'maxLines' lines of 'text', as BufferedReader splits them
+   */
+  public static List<String> splitLines(String text, int maxLines) throws IOException {
+    List<String> lines = new ArrayList<String>();
+    BufferedReader in = new BufferedReader(new StringReader(text));
+    String s;
+    while (lines.size() < maxLines && (s = in.readLine()) != null) {
+      lines.add(s);
+    }
+    return lines;
+  }
+
+  public static List<String> splitLines(String text) throws IOException {
+    return splitLines(text, Integer.MAX_VALUE);
+  }
+
+  /**
+   * The lines of a text file
+   */
+  public static List<String> readLines(File f) throws IOException {
+    List<String> lines = new ArrayList<String>();
+    BufferedReader in = new BufferedReader(new FileReader(f));
+    try {
+      String s;
+      while ((s = in.readLine()) != null) {
+        lines.add(s);
+      }
+    } finally {
+      in.close();
+    }
+    return lines;
+  }
+
+  /**
+   * Everything left in the stream, which is then closed
+   */
+  public static byte[] readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try {
+      byte buf[] = new byte[333];
+      int numRead;
+      while ((numRead = in.read(buf)) >= 0) {
+        out.write(buf, 0, numRead);
+      }
+    } finally {
+      in.close();
+    }
+    return out.toByteArray();
+  }
+
+  public static byte[] gzip(byte bytes[]) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    GZIPOutputStream gzOut = new GZIPOutputStream(out);
+    gzOut.write(bytes);
+    gzOut.close();
+    return out.toByteArray();
+  }
+
+  public static byte[] bzip2(byte bytes[]) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    OutputStream bzOut = new BZip2Codec().createOutputStream(out);
+    bzOut.write(bytes);
+    bzOut.close();
+    return out.toByteArray();
+  }
+
+  /**
+   * Write 'bytes' to the file 'name' in 'dir', and return its Path
+   */
+  public static Path writeFile(File dir, String name, byte bytes[]) throws IOException {
+    File f = new File(dir, name);
+    OutputStream out = new FileOutputStream(f);
+    try {
+      out.write(bytes);
+    } finally {
+      out.close();
+    }
+    return new Path(f.getCanonicalPath());
+  }
+
+  public static void writeFile(File f, String text) throws IOException {
+    writeFile(f.getParentFile(), f.getName(), text.getBytes("ISO-8859-1"));
+  }
+}